@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Contrôle de non régression des performances : exécute les benchmarks et échoue (code de sortie 1)
+ * si le score d'un benchmark dépasse son seuil en ns/op.<br>
+ * Les seuils sont lus dans benchmark-thresholds.properties ou dans le fichier indiqué par
+ * la propriété système benchmark.thresholds, avec pour clé "NomDeClasse.nomDeMéthode" ;
+ * les benchmarks sans seuil (références sans instrumentation) ne sont pas contrôlés.<br>
+ * Exécution : mvn verify -Pbenchmark-check dans javamelody-benchmarks,
+ * ou java -cp target/benchmarks.jar net.bull.javamelody.BenchmarkRegressionCheck [expression régulière des benchmarks].
+ * @author Emeric Vernat
+ */
+public final class BenchmarkRegressionCheck {
+	private static final String THRESHOLDS_RESOURCE = "/benchmark-thresholds.properties";
+	private static final String THRESHOLDS_PROPERTY = "benchmark.thresholds";
+
+	private BenchmarkRegressionCheck() {
+		super();
+	}
+
+	/**
+	 * Méthode main.
+	 * @param args Expression régulière des benchmarks à exécuter (optionnelle, tous par défaut)
+	 * @throws IOException e
+	 * @throws RunnerException e
+	 */
+	public static void main(String[] args) throws IOException, RunnerException {
+		final Properties thresholds = loadThresholds();
+		final String include = args.length > 0 ? args[0]
+				: BenchmarkRegressionCheck.class.getPackage().getName() + ".*Benchmark.*";
+		final Collection<RunResult> results = new Runner(
+				new OptionsBuilder().include(include).shouldFailOnError(true).build()).run();
+		final List<String> regressions = checkThresholds(results, thresholds);
+		if (!regressions.isEmpty()) {
+			for (final String regression : regressions) {
+				System.err.println("performance regression: " + regression);
+			}
+			System.exit(1);
+		}
+		System.out.println("no performance regression in " + results.size() + " benchmarks");
+	}
+
+	static List<String> checkThresholds(Collection<RunResult> results, Properties thresholds) {
+		final List<String> regressions = new ArrayList<String>();
+		for (final RunResult result : results) {
+			final BenchmarkParams params = result.getParams();
+			final String benchmark = params.getBenchmark();
+			// clé sans le package : NomDeClasse.nomDeMéthode
+			final String key = benchmark.substring(
+					benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+			final String threshold = thresholds.getProperty(key);
+			if (threshold == null) {
+				continue;
+			}
+			final double score = result.getPrimaryResult().getScore();
+			if (score > Double.parseDouble(threshold.trim())) {
+				regressions.add(key + getParamsLabel(params) + ": " + Math.round(score) + ' '
+						+ result.getPrimaryResult().getScoreUnit() + " > " + threshold.trim());
+			}
+		}
+		return regressions;
+	}
+
+	private static String getParamsLabel(BenchmarkParams params) {
+		if (params.getParamsKeys().isEmpty()) {
+			return "";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final String paramKey : params.getParamsKeys()) {
+			sb.append(sb.length() == 0 ? " (" : ", ").append(paramKey).append('=')
+					.append(params.getParam(paramKey));
+		}
+		return sb.append(')').toString();
+	}
+
+	private static Properties loadThresholds() throws IOException {
+		final String thresholdsFile = System.getProperty(THRESHOLDS_PROPERTY);
+		final InputStream input = thresholdsFile != null ? new FileInputStream(thresholdsFile)
+				: BenchmarkRegressionCheck.class.getResourceAsStream(THRESHOLDS_RESOURCE);
+		if (input == null) {
+			throw new IOException(THRESHOLDS_RESOURCE + " not found");
+		}
+		try {
+			final Properties properties = new Properties();
+			properties.load(input);
+			return properties;
+		} finally {
+			input.close();
+		}
+	}
+}
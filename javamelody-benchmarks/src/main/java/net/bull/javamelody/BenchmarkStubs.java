@@ -0,0 +1,149 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Implémentations minimales (proxys sans traitement) de l'api servlet et de l'api jdbc pour les benchmarks.
+ *
+ * Ces implémentations ne font rien et retournent des valeurs fixes, pour que les benchmarks
+ * mesurent seulement le coût de l'instrumentation et pas celui d'un conteneur ou d'une base de données.
+ * Les mêmes instances sont utilisées par les benchmarks de référence sans instrumentation.
+ * @author Emeric Vernat
+ */
+final class BenchmarkStubs {
+	static final String CONTEXT_PATH = "/benchmark";
+
+	private BenchmarkStubs() {
+		super();
+	}
+
+	static FilterConfig createFilterConfig() {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getFilterName", "javamelody");
+		values.put("getServletContext", createServletContext());
+		return createStub(FilterConfig.class, values);
+	}
+
+	static ServletContext createServletContext() {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getContextPath", CONTEXT_PATH);
+		values.put("getServletContextName", "benchmark");
+		values.put("getServerInfo", "benchmark");
+		values.put("getMajorVersion", 3);
+		values.put("getMinorVersion", 1);
+		return createStub(ServletContext.class, values);
+	}
+
+	static HttpServletRequest createHttpServletRequest(String requestUri) {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getRequestURI", requestUri);
+		values.put("getContextPath", CONTEXT_PATH);
+		values.put("getServletPath", requestUri.substring(CONTEXT_PATH.length()));
+		values.put("getMethod", "GET");
+		values.put("getProtocol", "HTTP/1.1");
+		values.put("getRemoteAddr", "127.0.0.1");
+		return createStub(HttpServletRequest.class, values);
+	}
+
+	static HttpServletResponse createHttpServletResponse() {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getStatus", HttpServletResponse.SC_OK);
+		values.put("getCharacterEncoding", "UTF-8");
+		return createStub(HttpServletResponse.class, values);
+	}
+
+	static FilterChain createFilterChain() {
+		return createStub(FilterChain.class, Collections.<String, Object> emptyMap());
+	}
+
+	static Connection createConnection() {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("createStatement", createStatement());
+		values.put("isClosed", Boolean.FALSE);
+		return createStub(Connection.class, values);
+	}
+
+	static Statement createStatement() {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("execute", Boolean.TRUE);
+		values.put("executeUpdate", 1);
+		return createStub(Statement.class, values);
+	}
+
+	private static <T> T createStub(Class<T> interfaceClass, final Map<String, Object> values) {
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			/** {@inheritDoc} */
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final String methodName = method.getName();
+				if (values.containsKey(methodName)) {
+					return values.get(methodName);
+				} else if ("equals".equals(methodName)) {
+					return proxy == args[0];
+				} else if ("hashCode".equals(methodName)) {
+					return System.identityHashCode(proxy);
+				} else if ("toString".equals(methodName)) {
+					return proxy.getClass().getSimpleName();
+				}
+				return getDefaultValue(method.getReturnType());
+			}
+		};
+		return interfaceClass.cast(Proxy.newProxyInstance(BenchmarkStubs.class.getClassLoader(),
+				new Class<?>[] { interfaceClass }, invocationHandler));
+	}
+
+	private static Object getDefaultValue(Class<?> type) {
+		if (type == Enumeration.class) {
+			// getInitParameterNames, getHeaderNames, getParameterNames...
+			return Collections.enumeration(Collections.emptyList());
+		} else if (!type.isPrimitive() || type == Void.TYPE) {
+			return null;
+		} else if (type == Boolean.TYPE) {
+			return Boolean.FALSE;
+		} else if (type == Long.TYPE) {
+			return 0L;
+		} else if (type == Double.TYPE) {
+			return 0d;
+		} else if (type == Float.TYPE) {
+			return 0f;
+		} else if (type == Character.TYPE) {
+			return '\0';
+		} else if (type == Byte.TYPE) {
+			return (byte) 0;
+		} else if (type == Short.TYPE) {
+			return (short) 0;
+		}
+		return 0;
+	}
+}
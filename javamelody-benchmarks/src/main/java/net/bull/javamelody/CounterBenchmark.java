@@ -0,0 +1,150 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark de {@link Counter#addRequest(String, long, long, boolean, int)},
+ * sur un seul thread et avec contention entre plusieurs threads,
+ * avec ou sans pattern de transformation et avec ou sans le paramètre lock-free-counters,
+ * et en mode heavy-hitters avec des requêtes toutes différentes.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterBenchmark {
+	// plusieurs urls différentes, pour que le pattern de transformation ait des nombres à remplacer
+	private static final String[] REQUEST_NAMES = new String[16];
+
+	static {
+		for (int i = 0; i < REQUEST_NAMES.length; i++) {
+			REQUEST_NAMES[i] = "/benchmark/items/" + (1000 + i) + " GET";
+		}
+	}
+
+	@Param({ "", "[0-9]+" })
+	public String transformPattern; // NOPMD
+
+	@Param({ "false", "true" })
+	public boolean lockFreeCounters; // NOPMD
+
+	private Counter counter;
+	// compteur plein en mode heavy-hitters, où presque toutes les requêtes ne sont pas admises
+	private Counter heavyHittersCounter;
+
+	/**
+	 * Index de la prochaine requête, par thread.
+	 */
+	@State(Scope.Thread)
+	public static class RequestIndex {
+		private int index;
+
+		private long uniqueIndex;
+
+		String nextRequestName() {
+			index = index + 1 & REQUEST_NAMES.length - 1;
+			return REQUEST_NAMES[index];
+		}
+
+		String nextUniqueRequestName() {
+			// sql non bindé par exemple
+			uniqueIndex++;
+			return "select * from items where id = " + uniqueIndex;
+		}
+	}
+
+	/**
+	 * Initialisation.
+	 */
+	@Setup
+	public void setUp() {
+		counter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png");
+		if (!transformPattern.isEmpty()) {
+			counter.setRequestTransformPattern(Pattern.compile(transformPattern));
+		}
+		counter.setLockFreeRecording(lockFreeCounters);
+		heavyHittersCounter = new Counter(Counter.SQL_COUNTER_NAME, "db.png");
+		heavyHittersCounter.setMaxRequestsCount(1000);
+		heavyHittersCounter.setHeavyHittersEnabled(true);
+		heavyHittersCounter.setLockFreeRecording(lockFreeCounters);
+		for (int i = 0; i < 2000; i++) {
+			heavyHittersCounter.addRequest("select * from warmup where id = " + i, 10, -1, false,
+					-1);
+		}
+	}
+
+	/**
+	 * Référence sans instrumentation : seulement le choix du nom de la requête.
+	 * @param requestIndex RequestIndex
+	 * @param blackhole Blackhole
+	 */
+	@Benchmark
+	public void baseline(RequestIndex requestIndex, Blackhole blackhole) {
+		blackhole.consume(requestIndex.nextRequestName());
+	}
+
+	/**
+	 * Ajout d'une requête sur un seul thread.
+	 * @param requestIndex RequestIndex
+	 */
+	@Benchmark
+	@Threads(1)
+	public void addRequest(RequestIndex requestIndex) {
+		counter.addRequest(requestIndex.nextRequestName(), 10, 1, false, 1000);
+	}
+
+	/**
+	 * Ajout d'une requête sur 4 threads avec contention sur les mêmes requêtes.
+	 * @param requestIndex RequestIndex
+	 */
+	@Benchmark
+	@Threads(4)
+	public void addRequestContended(RequestIndex requestIndex) {
+		counter.addRequest(requestIndex.nextRequestName(), 10, 1, false, 1000);
+	}
+
+	/**
+	 * Ajout de requêtes toutes différentes sur 4 threads dans un compteur plein en mode heavy-hitters.
+	 * @param requestIndex RequestIndex
+	 */
+	@Benchmark
+	@Threads(4)
+	public void addRequestHeavyHittersContended(RequestIndex requestIndex) {
+		heavyHittersCounter.addRequest(requestIndex.nextUniqueRequestName(), 10, -1, false, -1);
+	}
+}
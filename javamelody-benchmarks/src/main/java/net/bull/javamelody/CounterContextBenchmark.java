@@ -0,0 +1,95 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de {@link Counter#bindContext(String, String, String, long)} et {@link Counter#unbindContext()},
+ * seuls puis avec des contextes imbriqués comme dans une requête http appelant un service
+ * qui exécute une requête sql.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterContextBenchmark {
+	private static final String HTTP_REQUEST_NAME = "/benchmark/items GET";
+	private static final String SERVICE_REQUEST_NAME = "ItemService.findItems";
+	private static final String SQL_REQUEST_NAME = "select * from items where id = ?";
+
+	private Counter sqlCounter;
+	private Counter servicesCounter;
+	private Counter httpCounter;
+
+	/**
+	 * Initialisation.
+	 */
+	@Setup
+	public void setUp() {
+		// comme dans FilterContext et MonitoringProxy, les compteurs partagent le ThreadLocal du compteur sql
+		sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, "db.png");
+		servicesCounter = new Counter("services", "beans.png", sqlCounter);
+		httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png", sqlCounter);
+	}
+
+	/**
+	 * Contexte http seul, sans ajout de requête.
+	 */
+	@Benchmark
+	public void bindUnbind() {
+		httpCounter.bindContext(HTTP_REQUEST_NAME, HTTP_REQUEST_NAME, null, -1);
+		httpCounter.unbindContext();
+	}
+
+	/**
+	 * Contexte http seul, avec ajout de la requête http.
+	 */
+	@Benchmark
+	public void bindAddRequest() {
+		httpCounter.bindContext(HTTP_REQUEST_NAME, HTTP_REQUEST_NAME, null, -1);
+		httpCounter.addRequestForCurrentContext(false);
+	}
+
+	/**
+	 * Contextes imbriqués : requête http, puis service, puis requête sql fille du service.
+	 */
+	@Benchmark
+	public void nestedContexts() {
+		httpCounter.bindContext(HTTP_REQUEST_NAME, HTTP_REQUEST_NAME, null, -1);
+		servicesCounter.bindContext(SERVICE_REQUEST_NAME, SERVICE_REQUEST_NAME, null, -1);
+		sqlCounter.addRequest(SQL_REQUEST_NAME, 1, -1, false, -1);
+		// le contexte du service est fermé et le contexte http est rebindé
+		servicesCounter.addRequestForCurrentContext(false);
+		httpCounter.addRequestForCurrentContext(false);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark du proxy jdbc de {@link JdbcWrapper} pour l'exécution d'une requête sql,
+ * par rapport à la même connexion sans proxy (les stubs n'implémentant que les interfaces de java.sql,
+ * ce proxy est un wrapper sans réflexion, {@link JdbcConnectionWrapper} et {@link JdbcStatementWrapper}).
+ * La connexion et le statement ne font rien (voir {@link BenchmarkStubs}).
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JdbcWrapperBenchmark {
+	private static final String SQL = "select * from items where id = 1";
+
+	private Connection connection;
+	private Connection connectionProxy;
+	private Statement statement;
+	private Statement statementProxy;
+
+	/**
+	 * Initialisation.
+	 * @throws SQLException e
+	 */
+	@Setup
+	public void setUp() throws SQLException {
+		JdbcWrapper.SINGLETON.getSqlCounter().setDisplayed(true);
+		connection = BenchmarkStubs.createConnection();
+		connectionProxy = JdbcWrapper.SINGLETON.createConnectionProxy(connection);
+		statement = connection.createStatement();
+		statementProxy = connectionProxy.createStatement();
+	}
+
+	/**
+	 * Référence : exécution sans proxy.
+	 * @return boolean
+	 * @throws SQLException e
+	 */
+	@Benchmark
+	public boolean baseline() throws SQLException {
+		return statement.execute(SQL);
+	}
+
+	/**
+	 * Exécution par le proxy du statement.
+	 * @return boolean
+	 * @throws SQLException e
+	 */
+	@Benchmark
+	public boolean statementProxy() throws SQLException {
+		return statementProxy.execute(SQL);
+	}
+
+	/**
+	 * Référence : création et exécution d'un statement sans proxy.
+	 * @return boolean
+	 * @throws SQLException e
+	 */
+	@Benchmark
+	public boolean baselineCreateStatement() throws SQLException {
+		final Statement newStatement = connection.createStatement();
+		try {
+			return newStatement.execute(SQL);
+		} finally {
+			newStatement.close();
+		}
+	}
+
+	/**
+	 * Création du proxy d'un statement par le proxy de la connexion, puis exécution.
+	 * @return boolean
+	 * @throws SQLException e
+	 */
+	@Benchmark
+	public boolean createStatementProxy() throws SQLException {
+		final Statement newStatement = connectionProxy.createStatement();
+		try {
+			return newStatement.execute(SQL);
+		} finally {
+			newStatement.close();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de {@link MonitoringFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, FilterChain)}
+ * avec une chaîne de filtres qui ne fait rien, par rapport à l'appel de la même chaîne sans le filtre.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonitoringFilterBenchmark {
+	private MonitoringFilter monitoringFilter;
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private FilterChain chain;
+
+	/**
+	 * Initialisation.
+	 * @throws ServletException e
+	 */
+	@Setup
+	public void setUp() throws ServletException {
+		monitoringFilter = new MonitoringFilter();
+		monitoringFilter.init(BenchmarkStubs.createFilterConfig());
+		request = BenchmarkStubs
+				.createHttpServletRequest(BenchmarkStubs.CONTEXT_PATH + "/items/1");
+		response = BenchmarkStubs.createHttpServletResponse();
+		chain = BenchmarkStubs.createFilterChain();
+	}
+
+	/**
+	 * Arrêt du filtre.
+	 */
+	@TearDown
+	public void tearDown() {
+		monitoringFilter.destroy();
+	}
+
+	/**
+	 * Référence : chaîne de filtres sans le filtre de monitoring.
+	 * @throws IOException e
+	 * @throws ServletException e
+	 */
+	@Benchmark
+	public void baseline() throws IOException, ServletException {
+		chain.doFilter(request, response);
+	}
+
+	/**
+	 * Requête http monitorée sur un seul thread.
+	 * @throws IOException e
+	 * @throws ServletException e
+	 */
+	@Benchmark
+	@Threads(1)
+	public void doFilter() throws IOException, ServletException {
+		monitoringFilter.doFilter(request, response, chain);
+	}
+
+	/**
+	 * Requêtes http monitorées sur 4 threads avec contention sur la même requête.
+	 * @throws IOException e
+	 * @throws ServletException e
+	 */
+	@Benchmark
+	@Threads(4)
+	public void doFilterContended() throws IOException, ServletException {
+		monitoringFilter.doFilter(request, response, chain);
+	}
+}
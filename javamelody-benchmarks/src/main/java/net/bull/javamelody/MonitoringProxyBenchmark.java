@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de {@link MonitoringProxy#invoke(Object, Method, Object[])},
+ * par rapport à un appel direct et à un proxy jdk sans instrumentation.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonitoringProxyBenchmark {
+	private ItemService itemService;
+	private ItemService uninstrumentedProxy;
+	private ItemService monitoringProxy;
+
+	/**
+	 * Façade appelée.
+	 */
+	public interface ItemService {
+		/**
+		 * @param id long
+		 * @return long
+		 */
+		long findItem(long id);
+	}
+
+	private static class ItemServiceImpl implements ItemService {
+		ItemServiceImpl() {
+			super();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public long findItem(long id) {
+			return id + 1;
+		}
+	}
+
+	/**
+	 * Initialisation.
+	 */
+	@Setup
+	public void setUp() {
+		itemService = new ItemServiceImpl();
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			/** {@inheritDoc} */
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return method.invoke(itemService, args);
+			}
+		};
+		uninstrumentedProxy = (ItemService) Proxy.newProxyInstance(
+				ItemService.class.getClassLoader(), new Class<?>[] { ItemService.class },
+				invocationHandler);
+		MonitoringProxy.getServicesCounter().setDisplayed(true);
+		monitoringProxy = MonitoringProxy.createProxy(itemService);
+	}
+
+	/**
+	 * Référence : appel direct.
+	 * @return long
+	 */
+	@Benchmark
+	public long baseline() {
+		return itemService.findItem(1);
+	}
+
+	/**
+	 * Référence : proxy jdk sans instrumentation (coût de la réflexion seule).
+	 * @return long
+	 */
+	@Benchmark
+	public long uninstrumentedProxy() {
+		return uninstrumentedProxy.findItem(1);
+	}
+
+	/**
+	 * Proxy de monitoring.
+	 * @return long
+	 */
+	@Benchmark
+	public long monitoringProxy() {
+		return monitoringProxy.findItem(1);
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Enregistrement asynchrone des requêtes http (paramètre async-recording).
+ *
+ * Les threads des requêtes publient des évènements dans un buffer circulaire borné et sans verrou
+ * (réservation d'une position par compareAndSet), et un seul thread démon consomme
+ * ces évènements pour faire l'agrégation dans les compteurs hors du temps de réponse.
+ * Si le buffer est plein (thread consommateur en retard), l'évènement est ignoré
+ * et compté dans les évènements perdus, pour ne jamais ralentir les requêtes.
+ * @author Emeric Vernat
+ */
+final class AsyncRecorder {
+	static final int DEFAULT_CAPACITY = 16384;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	private static volatile AsyncRecorder currentRecorder;
+
+	private final AtomicReferenceArray<Runnable> buffer;
+	private final int mask;
+	// prochaine position réservée par un thread de requête
+	private final AtomicLong tail = new AtomicLong();
+	// prochaine position consommée, modifiée seulement par le thread consommateur
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong recordedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final Thread consumerThread;
+	private volatile boolean consumerWaiting;
+	private volatile boolean stopped;
+
+	/**
+	 * Constructeur.
+	 * @param capacity Nombre maximum d'évènements en attente (arrondi à une puissance de 2)
+	 */
+	AsyncRecorder(int capacity) {
+		super();
+		assert capacity > 0;
+		int length = 1;
+		while (length < capacity) {
+			length <<= 1;
+		}
+		this.buffer = new AtomicReferenceArray<Runnable>(length);
+		this.mask = length - 1;
+		this.consumerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "javamelody async recorder");
+		consumerThread.setDaemon(true);
+	}
+
+	/**
+	 * Démarre le thread consommateur et définit cette instance comme celle affichée dans le rapport.
+	 */
+	void start() {
+		consumerThread.start();
+		currentRecorder = this;
+	}
+
+	/**
+	 * Arrête le thread consommateur après avoir enregistré les évènements en attente.
+	 */
+	void stop() {
+		stopped = true;
+		LockSupport.unpark(consumerThread);
+		try {
+			consumerThread.join(STOP_TIMEOUT_MILLIS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (currentRecorder == this) {
+				currentRecorder = null;
+			}
+		}
+	}
+
+	/**
+	 * @return Instance démarrée dans cette JVM, ou null si l'enregistrement asynchrone n'est pas actif
+	 */
+	static AsyncRecorder getCurrentRecorder() {
+		return currentRecorder;
+	}
+
+	/**
+	 * Publie un évènement à exécuter par le thread consommateur.
+	 * @param event Évènement, qui ne doit pas référencer d'objet modifié ensuite par le thread de la requête
+	 * @return false si l'évènement est perdu car le buffer est plein ou l'enregistrement arrêté
+	 */
+	boolean record(Runnable event) {
+		assert event != null;
+		long currentTail;
+		do {
+			currentTail = tail.get();
+			if (stopped || currentTail - head.get() >= buffer.length()) {
+				droppedCount.incrementAndGet();
+				return false;
+			}
+		} while (!tail.compareAndSet(currentTail, currentTail + 1));
+		buffer.set((int) currentTail & mask, event);
+		if (consumerWaiting) {
+			consumerWaiting = false;
+			LockSupport.unpark(consumerThread);
+		}
+		return true;
+	}
+
+	void consume() {
+		while (true) {
+			final Runnable event = poll();
+			if (event != null) {
+				try {
+					event.run();
+				} catch (final Throwable t) { // NOPMD
+					// le thread consommateur ne doit pas s'arrêter à cause d'un évènement
+					LOG.warn("exception while recording a request", t);
+				}
+				recordedCount.incrementAndGet();
+			} else if (stopped) {
+				break;
+			} else {
+				// le flag est lu par les threads des requêtes après leur publication,
+				// donc l'un ou l'autre voit forcément la publication ou l'attente
+				consumerWaiting = true;
+				if (buffer.get((int) head.get() & mask) == null && !stopped) {
+					LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				}
+				consumerWaiting = false;
+			}
+		}
+	}
+
+	private Runnable poll() {
+		final long currentHead = head.get();
+		final int index = (int) currentHead & mask;
+		// la position peut être réservée mais pas encore écrite par le thread de la requête
+		final Runnable event = buffer.get(index);
+		if (event != null) {
+			buffer.lazySet(index, null);
+			head.lazySet(currentHead + 1);
+		}
+		return event;
+	}
+
+	long getRecordedCount() {
+		return recordedCount.get();
+	}
+
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	long getPendingCount() {
+		return Math.max(tail.get() - head.get(), 0);
+	}
+
+	int getCapacity() {
+		return buffer.length();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[capacity=" + getCapacity() + ", pendingCount="
+				+ getPendingCount() + ", recordedCount=" + getRecordedCount()
+				+ ", droppedCount=" + getDroppedCount() + ']';
+	}
+}
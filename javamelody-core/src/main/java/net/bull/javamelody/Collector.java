@@ -25,12 +25,22 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import net.bull.javamelody.Counter.CounterRequestComparator;
 import net.bull.javamelody.Counter.CounterRequestContextComparator;
 import net.bull.javamelody.SamplingProfiler.SampledMethod;
 
@@ -39,34 +49,65 @@ import net.bull.javamelody.SamplingProfiler.SampledMethod;
  * @author Emeric Vernat
  */
 public class Collector { // NOPMD
+	/**
+	 * Centiles des temps ayant des courbes si le paramètre percentiles-graphs est actif.
+	 */
+	static final int[] GRAPHED_PERCENTILES = { 95, 99 };
+	private static final int DEFAULT_PERCENTILES_GRAPHS_REQUESTS = 10;
+	// nombre de threads pour collecter les compteurs en parallèle : au moins 2 même avec un seul processeur,
+	// car la collecte attend surtout les écritures des fichiers
+	private static final int COLLECT_THREADS = Math.min(
+			Math.max(2, Runtime.getRuntime().availableProcessors()), 4);
+	// nombre de valeurs des courbes par requête enregistrées par une même tâche
+	private static final int REQUEST_JROBIN_VALUES_BATCH_SIZE = 100;
+	private static final ForkJoinWorkerThreadFactory COLLECT_THREAD_FACTORY = new ForkJoinWorkerThreadFactory() {
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+					.newThread(pool);
+			thread.setName("javamelody collect " + thread.getPoolIndex());
+			return thread;
+		}
+	};
 	// période entre 2 collectes en milli-secondes
 	private final int periodMillis;
 	private final String application;
 	private final List<Counter> counters;
 	private final SamplingProfiler samplingProfiler;
 	private final Map<String, JRobin> requestJRobinsById = new ConcurrentHashMap<String, JRobin>();
+	// pool borné de ce collector (et non partagé : plusieurs collectors peuvent être dans le même classloader),
+	// créé à la première collecte en parallèle et arrêté par stop()
+	private ForkJoinPool collectPool;
+	// verrou du pool, distinct de celui de la collecte pour que stop() n'attende pas la fin d'une collecte
+	private final Object collectPoolLock = new Object();
 	// les instances jrobins des compteurs sont créées à l'initialisation
 	private final Map<String, JRobin> counterJRobins = new LinkedHashMap<String, JRobin>();
 	private final Map<String, JRobin> otherJRobins = new LinkedHashMap<String, JRobin>();
-	// globalRequestsByCounter, requestsById, dayCountersByCounter et cpuTimeMillis
-	// sont utilisés par un seul thread lors des collectes,
+	// globalRequestsByCounter, requestsById, dayCountersByCounter et firstCollectDoneByCounter
+	// sont utilisés par les threads de collecte des compteurs, chacun avec ses propres clés,
 	// (et la méthode centrale "collect" est synchronisée pour éviter un accès concurrent
-	// avec la mise à jour avant le rapport html)
-	private final Map<Counter, CounterRequest> globalRequestsByCounter = new HashMap<Counter, CounterRequest>();
-	private final Map<String, CounterRequest> requestsById = new HashMap<String, CounterRequest>();
+	// avec la mise à jour avant le rapport html) ; cpuTimeMillis n'est utilisé que par un seul thread
+	private final Map<Counter, CounterRequest> globalRequestsByCounter = new ConcurrentHashMap<Counter, CounterRequest>();
+	private final Map<String, CounterRequest> requestsById = new ConcurrentHashMap<String, CounterRequest>();
+	// les clés de dayCountersByCounter ne changent plus après le constructeur
 	private final Map<Counter, Counter> dayCountersByCounter = new LinkedHashMap<Counter, Counter>();
-	private final Map<Counter, Boolean> firstCollectDoneByCounter = new HashMap<Counter, Boolean>();
+	private final Map<Counter, Boolean> firstCollectDoneByCounter = new ConcurrentHashMap<Counter, Boolean>();
 	private long transactionCount;
+	// hits et somme des durées sql par dataSource lors de la collecte précédente
+	private final Map<String, long[]> sqlHitsAndDurationsByDataSource = new HashMap<String, long[]>();
 	private long cpuTimeMillis;
 	private long gcTimeMillis;
 	private long tomcatBytesReceived;
 	private long tomcatBytesSent;
 	private long lastCollectDuration;
+	private Map<String, Long> lastCollectDurationsByPhase = Collections.emptyMap();
 	private long estimatedMemorySize;
 	private long diskUsage;
 	private Date lastDateOfDeletedObsoleteFiles = new Date();
 	private boolean stopped;
 	private final boolean noDatabase = Parameters.isNoDatabase();
+	private final boolean percentilesGraphsEnabled = Boolean
+			.parseBoolean(Parameters.getParameter(Parameter.PERCENTILES_GRAPHS));
 
 	/**
 	 * Constructeur.
@@ -198,6 +239,13 @@ public class Collector { // NOPMD
 		return lastCollectDuration;
 	}
 
+	/**
+	 * @return Durées en ms des phases de la dernière collecte, par clé de traduction du nom de la phase
+	 */
+	Map<String, Long> getLastCollectDurationsByPhase() {
+		return lastCollectDurationsByPhase;
+	}
+
 	long getEstimatedMemorySize() {
 		return estimatedMemorySize;
 	}
@@ -314,13 +362,17 @@ public class Collector { // NOPMD
 
 	private long collect(List<JavaInformations> javaInformationsList) throws IOException {
 		synchronized (this) {
+			final Map<String, Long> durationsByPhase = new LinkedHashMap<String, Long>();
+			long phaseStart = System.currentTimeMillis();
 			// si pas d'informations, on ne met pas 0 : on ne met rien
 			if (!javaInformationsList.isEmpty()) {
 				collectJavaInformations(javaInformationsList);
 				collectOtherJavaInformations(javaInformationsList);
 				collectTomcatInformations(javaInformationsList);
 			}
-			long memorySize = 0;
+			phaseStart = addPhaseDuration(durationsByPhase, "collecte_donnees_systeme",
+					phaseStart);
+			final List<Counter> displayedCounters = new ArrayList<Counter>(counters.size());
 			for (final Counter counter : counters) {
 				// counter.isDisplayed() peut changer pour spring, ejb, guice ou services selon l'utilisation
 				dayCountersByCounter.get(counter).setDisplayed(counter.isDisplayed());
@@ -330,9 +382,15 @@ public class Collector { // NOPMD
 				if (counter.isDisplayed()) {
 					// si le compteur n'est pas affiché (par ex ejb), pas de collecte
 					// et pas de persistance de fichiers jrobin ou du compteur
-					memorySize += collectCounterData(counter);
+					displayedCounters.add(counter);
 				}
 			}
+			// les valeurs des courbes par requête sont enregistrées en lot après les compteurs
+			final List<RequestJRobinValue> requestJRobinValues = new ArrayList<RequestJRobinValue>();
+			final long memorySize = collectCountersData(displayedCounters, requestJRobinValues);
+			phaseStart = addPhaseDuration(durationsByPhase, "collecte_compteurs", phaseStart);
+			collectRequestJRobinValues(requestJRobinValues);
+			addPhaseDuration(durationsByPhase, "collecte_courbes_requetes", phaseStart);
 
 			final Calendar calendar = Calendar.getInstance();
 			final int currentDayOfYear = calendar.get(Calendar.DAY_OF_YEAR);
@@ -347,8 +405,98 @@ public class Collector { // NOPMD
 				}
 			}
 
+			lastCollectDurationsByPhase = Collections.unmodifiableMap(durationsByPhase);
+			return memorySize;
+		}
+	}
+
+	private static long addPhaseDuration(Map<String, Long> durationsByPhase, String phase,
+			long phaseStart) {
+		final long end = System.currentTimeMillis();
+		durationsByPhase.put(phase, Math.max(0, end - phaseStart));
+		return end;
+	}
+
+	private long collectCountersData(List<Counter> displayedCounters,
+			List<RequestJRobinValue> requestJRobinValues) throws IOException {
+		// les courbes des compteurs sont créées dans l'ordre des compteurs avant la collecte en parallèle,
+		// car c'est aussi l'ordre de leur affichage
+		for (final Counter counter : displayedCounters) {
+			if (!counter.isErrorCounter()) {
+				getCounterDataJRobins(counter);
+			}
+		}
+		long memorySize = 0;
+		if (displayedCounters.size() <= 1) {
+			for (final Counter counter : displayedCounters) {
+				memorySize += collectCounterData(counter, requestJRobinValues);
+			}
 			return memorySize;
 		}
+		// chaque compteur est collecté par une tâche du pool, avec sa propre liste de valeurs
+		final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(displayedCounters.size());
+		final List<List<RequestJRobinValue>> requestJRobinValuesByTask = new ArrayList<List<RequestJRobinValue>>(
+				displayedCounters.size());
+		for (final Counter counter : displayedCounters) {
+			final List<RequestJRobinValue> counterRequestJRobinValues = new ArrayList<RequestJRobinValue>();
+			requestJRobinValuesByTask.add(counterRequestJRobinValues);
+			tasks.add(new Callable<Long>() {
+				@Override
+				public Long call() throws IOException {
+					return collectCounterData(counter, counterRequestJRobinValues);
+				}
+			});
+		}
+		for (final Future<Long> future : getCollectPool().invokeAll(tasks)) {
+			memorySize += getCollectResult(future);
+		}
+		for (final List<RequestJRobinValue> counterRequestJRobinValues : requestJRobinValuesByTask) {
+			requestJRobinValues.addAll(counterRequestJRobinValues);
+		}
+		return memorySize;
+	}
+
+	private static long getCollectResult(Future<Long> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private void collectRequestJRobinValues(List<RequestJRobinValue> requestJRobinValues) {
+		if (requestJRobinValues.size() <= REQUEST_JROBIN_VALUES_BATCH_SIZE) {
+			addRequestJRobinValues(requestJRobinValues);
+		} else {
+			getCollectPool().invoke(new RequestJRobinValuesTask(requestJRobinValues));
+		}
+	}
+
+	private void addRequestJRobinValues(List<RequestJRobinValue> requestJRobinValues) {
+		for (final RequestJRobinValue requestJRobinValue : requestJRobinValues) {
+			// si la requête a été supprimée entre temps (trop de requêtes dans le compteur du jour),
+			// on ne recrée pas sa courbe
+			if (requestsById.containsKey(requestJRobinValue.requestId)) {
+				try {
+					getRequestJRobin(requestJRobinValue.jrobinName, requestJRobinValue.requestName)
+							.addValue(requestJRobinValue.value);
+				} catch (final IOException e) {
+					// une erreur sur une courbe n'empêche pas d'enregistrer les autres
+					LOG.warn("exception while collecting data: " + e.toString(), e);
+				}
+			}
+		}
 	}
 
 	private void collectJavaInformations(List<JavaInformations> javaInformationsList)
@@ -360,6 +508,7 @@ public class Collector { // NOPMD
 		int activeThreadCount = 0;
 		int activeConnectionCount = 0;
 		int usedConnectionCount = 0;
+		int poolWaiterCount = 0;
 
 		for (final JavaInformations javaInformations : javaInformationsList) {
 			final MemoryInformations memoryInformations = javaInformations.getMemoryInformations();
@@ -370,6 +519,7 @@ public class Collector { // NOPMD
 					activeConnectionCount);
 			usedConnectionCount = add(javaInformations.getUsedConnectionCount(),
 					usedConnectionCount);
+			poolWaiterCount = add(javaInformations.getPoolWaiterCount(), poolWaiterCount);
 
 			// il y a au moins 1 coeur
 			availableProcessors = add(Math.max(javaInformations.getAvailableProcessors(), 1),
@@ -380,6 +530,56 @@ public class Collector { // NOPMD
 		}
 		collectJRobinValues(usedMemory, processesCpuTimeMillis, availableProcessors, sessionCount,
 				activeThreadCount, activeConnectionCount, usedConnectionCount);
+		final Counter poolCounter = getCounterByName(Counter.POOL_COUNTER_NAME);
+		if (poolCounter != null && poolCounter.isDisplayed()) {
+			// collecte du nombre de threads en attente d'une connexion dans les pools des dataSources
+			getCounterJRobin("poolWaiters").addValue(poolWaiterCount);
+		}
+		if (!noDatabase) {
+			collectDataSourcesJavaInformations(javaInformationsList);
+		}
+	}
+
+	private void collectDataSourcesJavaInformations(List<JavaInformations> javaInformationsList)
+			throws IOException {
+		// statistiques par dataSource nommée, additionnées entre les JVMs dans le cas d'un cluster,
+		// alors que les jrobins globaux restent la vue agrégée de toutes les dataSources
+		final Map<String, JdbcDataSourceStatistics> statisticsByDataSource = new LinkedHashMap<String, JdbcDataSourceStatistics>();
+		for (final JavaInformations javaInformations : javaInformationsList) {
+			for (final JdbcDataSourceStatistics statistics : javaInformations
+					.getDataSourceStatisticsList()) {
+				final JdbcDataSourceStatistics sum = statisticsByDataSource
+						.get(statistics.getName());
+				if (sum == null) {
+					statisticsByDataSource.put(statistics.getName(), statistics.copy());
+				} else {
+					sum.add(statistics);
+				}
+			}
+		}
+		final double periodMinutes = periodMillis / 60000d;
+		for (final JdbcDataSourceStatistics statistics : statisticsByDataSource.values()) {
+			final String name = statistics.getName();
+			getOtherJRobin(JRobin.getDataSourceJRobinName("usedConnections", name))
+					.addValue(statistics.getUsedConnectionCount());
+			getOtherJRobin(JRobin.getDataSourceJRobinName("activeConnections", name))
+					.addValue(statistics.getActiveConnectionCount());
+			final long[] previousHitsAndDurations = sqlHitsAndDurationsByDataSource.get(name);
+			if (previousHitsAndDurations != null) {
+				// hits par minute et temps moyen des requêtes sql de cette dataSource pendant la période
+				final long hits = statistics.getSqlHits() - previousHitsAndDurations[0];
+				final long durationsSum = statistics.getSqlDurationsSum()
+						- previousHitsAndDurations[1];
+				if (hits >= 0) {
+					getOtherJRobin(JRobin.getDataSourceJRobinName("sqlHitsRate", name))
+							.addValue(hits / periodMinutes);
+					getOtherJRobin(JRobin.getDataSourceJRobinName("sqlMeanTimes", name))
+							.addValue(hits > 0 ? durationsSum / hits : 0);
+				}
+			}
+			sqlHitsAndDurationsByDataSource.put(name,
+					new long[] { statistics.getSqlHits(), statistics.getSqlDurationsSum() });
+		}
 	}
 
 	// CHECKSTYLE:OFF
@@ -397,6 +597,8 @@ public class Collector { // NOPMD
 		long sessionAgeSum = 0;
 		int threadCount = 0;
 		long databaseTransactionCount = 0;
+		int openTransactionCount = 0;
+		long longestOpenTransactionDuration = 0;
 		double systemLoadAverage = 0;
 		long unixOpenFileDescriptorCount = 0;
 		long freeDiskSpaceInTemp = Long.MAX_VALUE;
@@ -409,6 +611,12 @@ public class Collector { // NOPMD
 			threadCount = add(javaInformations.getThreadCount(), threadCount);
 			databaseTransactionCount = add(javaInformations.getTransactionCount(),
 					databaseTransactionCount);
+			openTransactionCount = add(javaInformations.getOpenTransactionCount(),
+					openTransactionCount);
+			// la valeur retenue est le maximum entre les serveurs
+			longestOpenTransactionDuration = Math.max(
+					javaInformations.getLongestOpenTransactionDuration(),
+					longestOpenTransactionDuration);
 			// il y a au moins 1 coeur
 			availableProcessors = add(Math.max(javaInformations.getAvailableProcessors(), 1),
 					availableProcessors);
@@ -469,6 +677,12 @@ public class Collector { // NOPMD
 			getOtherJRobin("transactionsRate")
 					.addValue((databaseTransactionCount - this.transactionCount) / periodMinutes);
 			this.transactionCount = databaseTransactionCount;
+			final Counter transactionCounter = getCounterByName(Counter.TRANSACTION_COUNTER_NAME);
+			if (transactionCounter != null && transactionCounter.isDisplayed()) {
+				// collecte des transactions jdbc ouvertes, qui conservent leurs verrous en base de données
+				getOtherJRobin("openTransactions").addValue(openTransactionCount);
+				getOtherJRobin("longestOpenTransaction").addValue(longestOpenTransactionDuration);
+			}
 		}
 
 		if (freeDiskSpaceInTemp != Long.MAX_VALUE) {
@@ -610,45 +824,59 @@ public class Collector { // NOPMD
 		return t1 + t2;
 	}
 
-	private long collectCounterData(Counter counter) throws IOException {
+	private long collectCounterData(Counter counter, List<RequestJRobinValue> requestJRobinValues)
+			throws IOException {
 		// counterName vaut http, sql ou ws par exemple
 		final String counterName = counter.getName();
-		final List<CounterRequest> requests = counter.getRequests();
+		final boolean modifiedRequestsOnly = isModifiedRequestsOnlyCollect(counter);
+		final List<CounterRequest> requests = counter.getRequestsForCollect(modifiedRequestsOnly);
 		if (!counter.isErrorCounter()) {
-			// on calcule les totaux depuis le départ
-			final CounterRequest newGlobalRequest = new CounterRequest(counterName + " global",
-					counterName);
-			for (final CounterRequest request : requests) {
-				// ici, pas besoin de synchronized sur request puisque ce sont des clones indépendants
-				newGlobalRequest.addHits(request);
+			final CounterRequest globalRequest = globalRequestsByCounter.get(counter);
+			final CounterRequest newGlobalRequest;
+			CounterRequest lastPeriodGlobalRequest = null;
+			if (modifiedRequestsOnly) {
+				// les totaux sur la dernière période sont la somme des requêtes modifiées
+				// moins la somme de leurs valeurs précédentes, sans clone de chaque requête
+				lastPeriodGlobalRequest = new CounterRequest(counterName + " global", counterName);
+				for (final CounterRequest request : requests) {
+					lastPeriodGlobalRequest.addHits(request);
+				}
+				for (final CounterRequest request : requests) {
+					final CounterRequest previousRequest = requestsById.get(request.getId());
+					if (previousRequest != null) {
+						lastPeriodGlobalRequest.removeHits(previousRequest);
+					}
+				}
+				newGlobalRequest = globalRequest.clone();
+				newGlobalRequest.addHits(lastPeriodGlobalRequest);
+			} else {
+				// on calcule les totaux depuis le départ
+				newGlobalRequest = new CounterRequest(counterName + " global", counterName);
+				for (final CounterRequest request : requests) {
+					// ici, pas besoin de synchronized sur request puisque ce sont des clones indépendants
+					newGlobalRequest.addHits(request);
+				}
+				if (globalRequest != null) {
+					// on clone et on soustrait les précédents totaux
+					// pour obtenir les totaux sur la dernière période
+					// rq : s'il n'y a de précédents totaux (à l'initialisation)
+					// alors on n'inscrit pas de valeurs car les nouveaux hits
+					// ne seront connus (en delta) qu'au deuxième passage
+					// (au 1er passage, globalRequest contient déjà les données lues sur disque)
+					lastPeriodGlobalRequest = newGlobalRequest.clone();
+					lastPeriodGlobalRequest.removeHits(globalRequest);
+				}
 			}
 
 			// on récupère les instances de jrobin même s'il n'y a pas de hits ou pas de précédents totaux
 			// pour être sûr qu'elles soient initialisées (si pas instanciée alors pas de courbe)
-			final JRobin hitsJRobin;
-			final JRobin meanTimesJRobin;
-			final JRobin systemErrorsJRobin;
-			if (!counter.isJspOrStrutsCounter()) {
-				hitsJRobin = getCounterJRobin(counterName + "HitsRate");
-				meanTimesJRobin = getCounterJRobin(counterName + "MeanTimes");
-				systemErrorsJRobin = getCounterJRobin(counterName + "SystemErrors");
-			} else {
-				hitsJRobin = getOtherJRobin(counterName + "HitsRate");
-				meanTimesJRobin = getOtherJRobin(counterName + "MeanTimes");
-				systemErrorsJRobin = getOtherJRobin(counterName + "SystemErrors");
-			}
-
-			final CounterRequest globalRequest = globalRequestsByCounter.get(counter);
-			if (globalRequest != null) {
-				// on clone et on soustrait les précédents totaux
-				// pour obtenir les totaux sur la dernière période
-				// rq : s'il n'y a de précédents totaux (à l'initialisation)
-				// alors on n'inscrit pas de valeurs car les nouveaux hits
-				// ne seront connus (en delta) qu'au deuxième passage
-				// (au 1er passage, globalRequest contient déjà les données lues sur disque)
-				final CounterRequest lastPeriodGlobalRequest = newGlobalRequest.clone();
-				lastPeriodGlobalRequest.removeHits(globalRequest);
+			final List<JRobin> jrobins = getCounterDataJRobins(counter);
+			final JRobin hitsJRobin = jrobins.get(0);
+			final JRobin meanTimesJRobin = jrobins.get(1);
+			final JRobin systemErrorsJRobin = jrobins.get(2);
+			final List<JRobin> percentilesJRobins = jrobins.subList(3, jrobins.size());
 
+			if (lastPeriodGlobalRequest != null) {
 				final long hits = lastPeriodGlobalRequest.getHits();
 				final long hitsParMinute = hits * 60 * 1000 / periodMillis;
 
@@ -658,6 +886,7 @@ public class Collector { // NOPMD
 				if (hits > 0) { // NOPMD
 					meanTimesJRobin.addValue(lastPeriodGlobalRequest.getMean());
 					systemErrorsJRobin.addValue(lastPeriodGlobalRequest.getSystemErrorPercentage());
+					addPercentilesValues(percentilesJRobins, lastPeriodGlobalRequest);
 
 					// s'il y a eu des requêtes, on persiste le compteur pour ne pas perdre les stats
 					// en cas de crash ou d'arrêt brutal (mais normalement ils seront aussi persistés
@@ -672,18 +901,74 @@ public class Collector { // NOPMD
 
 		// données de temps moyen pour les courbes par requête
 		final long dayCounterEstimatedMemorySize = collectCounterRequestsAndErrorsData(counter,
-				requests);
+				requests, modifiedRequestsOnly, requestJRobinValues);
 		return counter.getEstimatedMemorySize() + dayCounterEstimatedMemorySize;
 	}
 
-	private long collectCounterRequestsAndErrorsData(Counter counter, List<CounterRequest> requests)
+	private boolean isModifiedRequestsOnlyCollect(Counter counter) {
+		// après la première collecte du compteur, seules les requêtes modifiées depuis la collecte précédente
+		// sont clonées et comparées à leurs valeurs précédentes, sauf :
+		// - si le compteur a été vidé (plus de totaux précédents),
+		// - en mode heavy-hitters ou s'il y a trop de requêtes, car il faut alors connaître
+		// les requêtes évincées ou à supprimer parmi toutes les requêtes
+		return Boolean.TRUE.equals(firstCollectDoneByCounter.get(counter))
+				&& (counter.isErrorCounter() || globalRequestsByCounter.containsKey(counter))
+				&& !counter.isHeavyHittersEnabled()
+				&& counter.getRequestsCount() <= counter.getMaxRequestsCount();
+	}
+
+	/**
+	 * @return Courbes des hits, des temps moyens, des erreurs systèmes puis des centiles éventuels du compteur
+	 */
+	private List<JRobin> getCounterDataJRobins(Counter counter) throws IOException {
+		final String counterName = counter.getName();
+		final List<JRobin> result = new ArrayList<JRobin>();
+		if (!counter.isJspOrStrutsCounter()) {
+			result.add(getCounterJRobin(counterName + "HitsRate"));
+			result.add(getCounterJRobin(counterName + "MeanTimes"));
+			result.add(getCounterJRobin(counterName + "SystemErrors"));
+		} else {
+			result.add(getOtherJRobin(counterName + "HitsRate"));
+			result.add(getOtherJRobin(counterName + "MeanTimes"));
+			result.add(getOtherJRobin(counterName + "SystemErrors"));
+		}
+		// les courbes des centiles sont optionnelles et parmi les "autres courbes"
+		if (percentilesGraphsEnabled) {
+			for (final int percentile : GRAPHED_PERCENTILES) {
+				result.add(
+						getOtherJRobin(JRobin.getPercentileJRobinName(counterName, percentile)));
+			}
+		}
+		return result;
+	}
+
+	private long collectCounterRequestsAndErrorsData(Counter counter, List<CounterRequest> requests,
+			boolean modifiedRequestsOnly, List<RequestJRobinValue> requestJRobinValues)
 			throws IOException {
 		final Counter dayCounter = getCurrentDayCounter(counter);
 		final boolean firstCollectDoneForCounter = Boolean.TRUE
 				.equals(firstCollectDoneByCounter.get(counter));
 		final List<CounterRequest> filteredRequests = filterRequestsIfOverflow(counter, requests);
+		if (counter.isHeavyHittersEnabled()) {
+			addEvictedRequestsToPreviousOtherRequests(counter, filteredRequests);
+		}
+		final Set<String> percentilesGraphsRequestIds;
+		if (modifiedRequestsOnly && percentilesGraphsEnabled) {
+			// les requêtes ayant des courbes de centiles sont choisies parmi toutes les requêtes du compteur,
+			// selon leurs valeurs lors de la collecte précédente
+			final List<CounterRequest> previousRequests = new ArrayList<CounterRequest>();
+			for (final Map.Entry<String, CounterRequest> entry : requestsById.entrySet()) {
+				if (counter.isRequestIdFromThisCounter(entry.getKey())) {
+					previousRequests.add(entry.getValue());
+				}
+			}
+			percentilesGraphsRequestIds = getPercentilesGraphsRequestIds(previousRequests);
+		} else {
+			percentilesGraphsRequestIds = getPercentilesGraphsRequestIds(filteredRequests);
+		}
 		for (final CounterRequest newRequest : filteredRequests) {
-			collectCounterRequestData(dayCounter, newRequest, firstCollectDoneForCounter);
+			collectCounterRequestData(dayCounter, newRequest, firstCollectDoneForCounter,
+					percentilesGraphsRequestIds.contains(newRequest.getId()), requestJRobinValues);
 		}
 		if (dayCounter.getRequestsCount() > dayCounter.getMaxRequestsCount()) {
 			// issue 339: ne pas laisser dans dayCounter trop de requêtes si elles sont à chaque fois différentes
@@ -729,8 +1014,90 @@ public class Collector { // NOPMD
 		return result;
 	}
 
+	private void addEvictedRequestsToPreviousOtherRequests(Counter counter,
+			List<CounterRequest> requests) {
+		// en mode heavy-hitters, les hits des requêtes évincées depuis la collecte précédente
+		// ont été cumulés dans "(other requests)" : on les ajoute aussi aux valeurs précédentes
+		// de "(other requests)", pour que la différence ne compte pas une 2ème fois dans le compteur du jour
+		// les hits de ces requêtes déjà collectés
+		final Map<String, CounterRequest> requestsByIdInCounter = new HashMap<String, CounterRequest>();
+		CounterRequest otherRequest = null;
+		for (final CounterRequest request : requests) {
+			requestsByIdInCounter.put(request.getId(), request);
+			if (HeavyHitters.OTHER_REQUESTS_NAME.equals(request.getName())) {
+				otherRequest = request;
+			}
+		}
+		if (otherRequest == null) {
+			return;
+		}
+		final List<CounterRequest> evictedRequests = new ArrayList<CounterRequest>();
+		final Iterator<Map.Entry<String, CounterRequest>> it = requestsById.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, CounterRequest> entry = it.next();
+			if (counter.isRequestIdFromThisCounter(entry.getKey())) {
+				final CounterRequest previousRequest = entry.getValue();
+				final CounterRequest request = requestsByIdInCounter.get(entry.getKey());
+				// une requête évincée puis de nouveau conservée a moins de hits qu'avant
+				if (request == null || request.getHits() < previousRequest.getHits()) {
+					evictedRequests.add(previousRequest);
+					it.remove();
+					if (request == null) {
+						// les courbes d'une requête évincée ne sont plus mises à jour
+						removeRequestJRobins(entry.getKey());
+					}
+				}
+			}
+		}
+		if (!evictedRequests.isEmpty()) {
+			CounterRequest previousOtherRequest = requestsById.get(otherRequest.getId());
+			if (previousOtherRequest == null) {
+				previousOtherRequest = new CounterRequest(HeavyHitters.OTHER_REQUESTS_NAME,
+						counter.getName());
+				requestsById.put(otherRequest.getId(), previousOtherRequest);
+			}
+			for (final CounterRequest evictedRequest : evictedRequests) {
+				previousOtherRequest.addHits(evictedRequest);
+			}
+		}
+	}
+
+	private Set<String> getPercentilesGraphsRequestIds(List<CounterRequest> requests) {
+		if (!percentilesGraphsEnabled) {
+			return Collections.emptySet();
+		}
+		final String param = Parameters.getParameter(Parameter.PERCENTILES_GRAPHS_REQUESTS);
+		final int percentilesGraphsRequests = param == null ? DEFAULT_PERCENTILES_GRAPHS_REQUESTS
+				: Integer.parseInt(param);
+		if (percentilesGraphsRequests <= 0) {
+			return Collections.emptySet();
+		}
+		// les requêtes ayant le plus grand temps cumulé depuis le début,
+		// qui sont donc à peu près les mêmes d'une collecte à l'autre
+		final List<CounterRequest> orderedRequests = new ArrayList<CounterRequest>(requests);
+		Collections.sort(orderedRequests, Collections.reverseOrder(new CounterRequestComparator()));
+		final Set<String> result = new HashSet<String>();
+		for (final CounterRequest request : orderedRequests.subList(0,
+				Math.min(percentilesGraphsRequests, orderedRequests.size()))) {
+			result.add(request.getId());
+		}
+		return result;
+	}
+
+	private static void addPercentilesValues(List<JRobin> percentilesJRobins,
+			CounterRequest lastPeriodRequest) throws IOException {
+		for (int i = 0; i < percentilesJRobins.size(); i++) {
+			// la valeur du centile est calculée sur la dernière période, depuis l'histogramme en delta
+			final long value = lastPeriodRequest.getDurationsPercentile(GRAPHED_PERCENTILES[i]);
+			if (value >= 0) {
+				percentilesJRobins.get(i).addValue(value);
+			}
+		}
+	}
+
 	private void collectCounterRequestData(Counter dayCounter, CounterRequest newRequest,
-			boolean firstCollectDoneForCounter) throws IOException {
+			boolean firstCollectDoneForCounter, boolean percentilesGraphs,
+			List<RequestJRobinValue> requestJRobinValues) {
 		final String requestStorageId = newRequest.getId();
 
 		final CounterRequest request = requestsById.get(requestStorageId);
@@ -748,11 +1115,22 @@ public class Collector { // NOPMD
 					&& (!dayCounter.isErrorCounter() || dayCounter.isJobCounter())) {
 				// on ne crée jamais de graphiques pour les "jsp", "error" et "job" car peu utiles
 				// et potentiellement lourd en usage disque et en mémoire utilisée
-				final JRobin requestJRobin = getRequestJRobin(requestStorageId,
-						newRequest.getName());
 				// plus nécessaire: if (dayCounter.isErrorCounter()) requestJRobin.addValue(lastPeriodRequest.getHits());
 
-				requestJRobin.addValue(lastPeriodRequest.getMean());
+				// les fichiers jrobin des requêtes sont créés et mis à jour en lot après la collecte des compteurs
+				requestJRobinValues.add(new RequestJRobinValue(requestStorageId, requestStorageId,
+						newRequest.getName(), lastPeriodRequest.getMean()));
+				if (percentilesGraphs) {
+					for (final int percentile : GRAPHED_PERCENTILES) {
+						// la valeur du centile est calculée sur la dernière période
+						final long value = lastPeriodRequest.getDurationsPercentile(percentile);
+						if (value >= 0) {
+							requestJRobinValues.add(new RequestJRobinValue(requestStorageId,
+									JRobin.getPercentileJRobinName(requestStorageId, percentile),
+									newRequest.getName(), value));
+						}
+					}
+				}
 			}
 
 			// agrégation de la requête sur le compteur pour le jour courant
@@ -818,10 +1196,22 @@ public class Collector { // NOPMD
 	private void removeRequest(Counter counter, CounterRequest newRequest) {
 		counter.removeRequest(newRequest.getName());
 		requestsById.remove(newRequest.getId());
-		final JRobin requestJRobin = requestJRobinsById.remove(newRequest.getId());
+		removeRequestJRobins(newRequest.getId());
+	}
+
+	private void removeRequestJRobins(String requestId) {
+		SqlHtmlHighlighter.removeFromCache(requestId);
+		final JRobin requestJRobin = requestJRobinsById.remove(requestId);
 		if (requestJRobin != null) {
 			requestJRobin.deleteFile();
 		}
+		for (final int percentile : GRAPHED_PERCENTILES) {
+			final JRobin percentileJRobin = requestJRobinsById
+					.remove(JRobin.getPercentileJRobinName(requestId, percentile));
+			if (percentileJRobin != null) {
+				percentileJRobin.deleteFile();
+			}
+		}
 	}
 
 	private JRobin getRequestJRobin(String requestId, String requestName) throws IOException {
@@ -834,21 +1224,26 @@ public class Collector { // NOPMD
 	}
 
 	private JRobin getCounterJRobin(String name) throws IOException {
-		JRobin jrobin = counterJRobins.get(name);
-		if (jrobin == null) {
-			jrobin = JRobin.createInstance(getApplication(), name, null);
-			counterJRobins.put(name, jrobin);
+		// synchronisé car les compteurs sont collectés en parallèle
+		synchronized (counterJRobins) {
+			JRobin jrobin = counterJRobins.get(name);
+			if (jrobin == null) {
+				jrobin = JRobin.createInstance(getApplication(), name, null);
+				counterJRobins.put(name, jrobin);
+			}
+			return jrobin;
 		}
-		return jrobin;
 	}
 
 	private JRobin getOtherJRobin(String name) throws IOException {
-		JRobin jrobin = otherJRobins.get(name);
-		if (jrobin == null) {
-			jrobin = JRobin.createInstance(getApplication(), name, null);
-			otherJRobins.put(name, jrobin);
+		synchronized (otherJRobins) {
+			JRobin jrobin = otherJRobins.get(name);
+			if (jrobin == null) {
+				jrobin = JRobin.createInstance(getApplication(), name, null);
+				otherJRobins.put(name, jrobin);
+			}
+			return jrobin;
 		}
-		return jrobin;
 	}
 
 	JRobin getJRobin(String graphName) {
@@ -919,6 +1314,11 @@ public class Collector { // NOPMD
 			for (final CounterRequest request : requests) {
 				requestsById.remove(request.getId());
 				requestJRobinsById.remove(request.getId());
+				SqlHtmlHighlighter.removeFromCache(request.getId());
+				for (final int percentile : GRAPHED_PERCENTILES) {
+					requestJRobinsById
+							.remove(JRobin.getPercentileJRobinName(request.getId(), percentile));
+				}
 			}
 		}
 	}
@@ -937,6 +1337,7 @@ public class Collector { // NOPMD
 				counter.clear();
 			}
 			stopped = true;
+			stopCollectPool();
 			// ici on ne fait pas de nettoyage de la liste counters car cette méthode
 			// est appelée sur la webapp monitorée quand il y a un serveur de collecte
 			// et que cette liste est envoyée au serveur de collecte,
@@ -951,6 +1352,26 @@ public class Collector { // NOPMD
 		return stopped;
 	}
 
+	private ForkJoinPool getCollectPool() {
+		synchronized (collectPoolLock) {
+			if (collectPool == null) {
+				collectPool = new ForkJoinPool(COLLECT_THREADS, COLLECT_THREAD_FACTORY, null,
+						false);
+			}
+			return collectPool;
+		}
+	}
+
+	private void stopCollectPool() {
+		synchronized (collectPoolLock) {
+			if (collectPool != null) {
+				// les tâches déjà soumises par une collecte en cours sont terminées
+				collectPool.shutdown();
+				collectPool = null;
+			}
+		}
+	}
+
 	static void stopJRobin() {
 		try {
 			JRobin.stop();
@@ -974,4 +1395,47 @@ public class Collector { // NOPMD
 				+ periodMillis + ", counters=" + getCounters() + ']';
 	}
 
+	/**
+	 * Valeur à ajouter dans la courbe d'une requête.
+	 */
+	private static final class RequestJRobinValue {
+		final String requestId;
+		final String jrobinName;
+		final String requestName;
+		final double value;
+
+		RequestJRobinValue(String requestId, String jrobinName, String requestName, double value) {
+			super();
+			this.requestId = requestId;
+			this.jrobinName = jrobinName;
+			this.requestName = requestName;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Tâche enregistrant les valeurs des courbes des requêtes, découpée en sous-tâches par lots.
+	 */
+	private final class RequestJRobinValuesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final transient List<RequestJRobinValue> requestJRobinValues;
+
+		RequestJRobinValuesTask(List<RequestJRobinValue> requestJRobinValues) {
+			super();
+			this.requestJRobinValues = requestJRobinValues;
+		}
+
+		@Override
+		protected void compute() {
+			final int size = requestJRobinValues.size();
+			if (size <= REQUEST_JROBIN_VALUES_BATCH_SIZE) {
+				addRequestJRobinValues(requestJRobinValues);
+			} else {
+				invokeAll(new RequestJRobinValuesTask(requestJRobinValues.subList(0, size / 2)),
+						new RequestJRobinValuesTask(requestJRobinValues.subList(size / 2, size)));
+			}
+		}
+	}
+
 }
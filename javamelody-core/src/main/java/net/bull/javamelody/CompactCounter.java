@@ -0,0 +1,330 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forme sérialisée compacte d'un Counter, utilisée à la place de la sérialisation par défaut
+ * dans les fichiers .ser.gz et avec le format de transport "serialized" (voir TransportFormat.createObjectOutputStream).
+ *
+ * Les nombres sont écrits en entiers de taille variable (varint), les noms et identifiants de requêtes
+ * ne sont écrits qu'une fois puis référencés par leur index dans une table des chaînes,
+ * les identifiants de requêtes sont écrits en binaire (nom du counter puis les 20 octets du hash SHA-1)
+ * et les exécutions des requêtes filles sont écrites sans objets Long ni descripteurs de classes.
+ * A la lecture, readResolve retourne le Counter lu ; les fichiers écrits avec la sérialisation par défaut
+ * par les versions précédentes restent lisibles puisqu'ils contiennent la classe Counter et non celle-ci.
+ * Les tailles et nombres d'éléments lus sont vérifiés avant toute allocation, car le flux peut être corrompu
+ * ou venir du réseau (collecteur).
+ * @author Emeric Vernat
+ */
+final class CompactCounter implements Externalizable {
+	private static final long serialVersionUID = 1L;
+	private static final int VERSION = 1;
+	// tags des chaînes : null, nouvelle chaîne, nouvel identifiant de requête, puis index dans la table
+	private static final int NULL_TAG = 0;
+	private static final int NEW_STRING_TAG = 1;
+	private static final int NEW_REQUEST_ID_TAG = 2;
+	private static final int FIRST_INDEX_TAG = 3;
+	// taille d'un hash SHA-1 en octets
+	private static final int HASH_LENGTH = 20;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// tailles maximales acceptées à la lecture : nombre de requêtes (bien au-delà de Counter.MAX_REQUESTS_COUNT)
+	// et longueur en octets d'une chaîne (requête sql ou stack-trace par exemple)
+	static final int MAX_READ_REQUESTS_COUNT = 1000000;
+	static final int MAX_READ_STRING_LENGTH = 16 * 1024 * 1024;
+
+	private transient Counter counter;
+
+	/**
+	 * Sortie d'une forme compacte : varints et table des chaînes.
+	 */
+	static final class CompactOutput {
+		private final ObjectOutput output;
+		private final Map<String, Integer> indexesByString = new HashMap<String, Integer>();
+
+		CompactOutput(ObjectOutput output) {
+			super();
+			this.output = output;
+		}
+
+		void writeVarLong(long value) throws IOException {
+			// 7 bits par octet, le bit de poids fort indiquant qu'un autre octet suit
+			long remaining = value;
+			while ((remaining & ~0x7FL) != 0) {
+				output.writeByte((int) remaining & 0x7F | 0x80);
+				remaining >>>= 7;
+			}
+			output.writeByte((int) remaining);
+		}
+
+		void writeVarInt(int value) throws IOException {
+			writeVarLong(value);
+		}
+
+		void writeBoolean(boolean value) throws IOException {
+			output.writeBoolean(value);
+		}
+
+		void writeLong(long value) throws IOException {
+			output.writeLong(value);
+		}
+
+		void writeObject(Object object) throws IOException {
+			output.writeObject(object);
+		}
+
+		void writeString(String string) throws IOException {
+			if (!writeKnownString(string)) {
+				writeVarInt(NEW_STRING_TAG);
+				final byte[] bytes = string.getBytes(UTF_8);
+				writeVarInt(bytes.length);
+				output.write(bytes);
+				indexesByString.put(string, indexesByString.size());
+			}
+		}
+
+		void writeRequestId(String requestId) throws IOException {
+			if (!writeKnownString(requestId)) {
+				final int prefixLength = requestId.length() - HASH_LENGTH * 2;
+				if (prefixLength > 0 && isHexHash(requestId, prefixLength)) {
+					// identifiant construit par CounterRequest : nom du counter puis hash SHA-1 en hexadécimal
+					writeVarInt(NEW_REQUEST_ID_TAG);
+					writeString(requestId.substring(0, prefixLength));
+					for (int i = prefixLength; i < requestId.length(); i += 2) {
+						output.writeByte(Character.digit(requestId.charAt(i), 16) << 4
+								| Character.digit(requestId.charAt(i + 1), 16));
+					}
+					indexesByString.put(requestId, indexesByString.size());
+				} else {
+					writeString(requestId);
+				}
+			}
+		}
+
+		private boolean writeKnownString(String string) throws IOException {
+			if (string == null) {
+				writeVarInt(NULL_TAG);
+				return true;
+			}
+			final Integer index = indexesByString.get(string);
+			if (index != null) {
+				writeVarInt(FIRST_INDEX_TAG + index);
+				return true;
+			}
+			return false;
+		}
+
+		private static boolean isHexHash(String requestId, int prefixLength) {
+			for (int i = prefixLength; i < requestId.length(); i++) {
+				final char c = requestId.charAt(i);
+				if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Entrée d'une forme compacte : varints et table des chaînes.
+	 */
+	static final class CompactInput {
+		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+		private final ObjectInput input;
+		private final List<String> strings = new ArrayList<String>();
+
+		CompactInput(ObjectInput input) {
+			super();
+			this.input = input;
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			int shift = 0;
+			while (shift < 64) {
+				final int b = input.readUnsignedByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+				shift += 7;
+			}
+			throw new IOException("Invalid varint");
+		}
+
+		int readVarInt() throws IOException {
+			return (int) readVarLong();
+		}
+
+		/**
+		 * Lit une taille ou un nombre d'éléments, en vérifiant ses bornes avant toute allocation.
+		 * @param maxSize Valeur maximale acceptée
+		 * @return int entre 0 et maxSize
+		 * @throws IOException si la valeur lue est hors des bornes
+		 */
+		int readSize(int maxSize) throws IOException {
+			final long size = readVarLong();
+			if (size < 0 || size > maxSize) {
+				throw new IOException("Invalid size " + size + " in compact counter, maximum is "
+						+ maxSize);
+			}
+			return (int) size;
+		}
+
+		/**
+		 * Lit une taille écrite avec writeVarInt(size + 1), -1 représentant null.
+		 * @param maxSize Valeur maximale acceptée
+		 * @return int entre -1 et maxSize
+		 * @throws IOException si la valeur lue est hors des bornes
+		 */
+		int readNullableSize(int maxSize) throws IOException {
+			return readSize(maxSize + 1) - 1;
+		}
+
+		boolean readBoolean() throws IOException {
+			return input.readBoolean();
+		}
+
+		long readLong() throws IOException {
+			return input.readLong();
+		}
+
+		Object readObject() throws IOException, ClassNotFoundException {
+			return input.readObject();
+		}
+
+		String readString() throws IOException {
+			return readString(true);
+		}
+
+		private String readString(boolean requestIdAllowed) throws IOException {
+			final int tag = readSize(FIRST_INDEX_TAG + strings.size() - 1);
+			final String result;
+			switch (tag) {
+			case NULL_TAG:
+				return null;
+			case NEW_STRING_TAG:
+				final byte[] bytes = new byte[readSize(MAX_READ_STRING_LENGTH)];
+				input.readFully(bytes);
+				result = new String(bytes, UTF_8);
+				break;
+			case NEW_REQUEST_ID_TAG:
+				// le préfixe est le nom du counter : ni null ni un autre identifiant (pas de récursion)
+				final String prefix = requestIdAllowed ? readString(false) : null;
+				if (prefix == null) {
+					throw new IOException("Invalid request id in compact counter");
+				}
+				final StringBuilder sb = new StringBuilder(prefix.length() + HASH_LENGTH * 2);
+				sb.append(prefix);
+				for (int i = 0; i < HASH_LENGTH; i++) {
+					final int b = input.readUnsignedByte();
+					sb.append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+				}
+				result = sb.toString();
+				break;
+			default:
+				// index vérifié par readSize
+				return strings.get(tag - FIRST_INDEX_TAG);
+			}
+			strings.add(result);
+			return result;
+		}
+
+		String readRequestId() throws IOException {
+			return readString();
+		}
+	}
+
+	/**
+	 * Constructeur public sans paramètre, requis par Externalizable pour la lecture.
+	 */
+	public CompactCounter() {
+		super();
+	}
+
+	/**
+	 * Constructeur.
+	 * @param counter Counter à écrire
+	 */
+	CompactCounter(Counter counter) {
+		super();
+		assert counter != null;
+		this.counter = counter;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		counter.writeCompact(new CompactOutput(out));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		final int version = in.readUnsignedByte();
+		if (version > VERSION) {
+			throw new IOException("Unsupported version " + version + " of compact counter");
+		}
+		counter = Counter.readCompact(new CompactInput(in));
+	}
+
+	private Object readResolve() {
+		return counter;
+	}
+
+	/**
+	 * Ecrit des requêtes sous forme compacte, avec leur propre table des chaînes.
+	 * @param out ObjectOutput
+	 * @param requests Requêtes
+	 * @throws IOException Exception d'entrée/sortie
+	 */
+	static void writeRequests(ObjectOutput out, List<CounterRequest> requests)
+			throws IOException {
+		final CompactOutput output = new CompactOutput(out);
+		output.writeVarInt(requests.size());
+		for (final CounterRequest request : requests) {
+			request.writeCompact(output);
+		}
+	}
+
+	/**
+	 * Lit des requêtes écrites par writeRequests.
+	 * @param in ObjectInput
+	 * @return Requêtes
+	 * @throws IOException Exception d'entrée/sortie
+	 */
+	static List<CounterRequest> readRequests(ObjectInput in) throws IOException {
+		final CompactInput input = new CompactInput(in);
+		final int size = input.readSize(MAX_READ_REQUESTS_COUNT);
+		final List<CounterRequest> result = new ArrayList<CounterRequest>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(CounterRequest.readCompact(input));
+		}
+		return result;
+	}
+}
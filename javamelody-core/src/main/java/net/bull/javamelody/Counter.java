@@ -23,13 +23,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.bull.javamelody.CounterRequest.ICounterRequestContext;
+
 /**
  * Données statistiques des requêtes pour un compteur nommé comme http ou sql.
  * Ces données sont accumulées au fil du temps selon les requêtes dans l'application.
@@ -80,6 +85,14 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	 * Nom du counter des builds Jenkins.
 	 */
 	static final String BUILDS_COUNTER_NAME = "builds";
+	/**
+	 * Nom du counter des attentes de connexions jdbc dans les pools des dataSources.
+	 */
+	static final String POOL_COUNTER_NAME = "pool";
+	/**
+	 * Nom du counter des transactions jdbc.
+	 */
+	static final String TRANSACTION_COUNTER_NAME = "transaction";
 	/**
 	 * Caractère de remplacement s'il y a des paramètres *-transform-pattern.
 	 */
@@ -121,6 +134,17 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	// et le contexte serait incomplet.
 	private final transient ThreadLocal<CounterRequestContext> contextThreadLocal;
 	private transient Pattern requestTransformPattern;
+	private transient RequestNameNormalizer requestNameNormalizer;
+	private transient boolean lockFreeRecording;
+	private transient HeavyHitters heavyHitters;
+	// nombre d'exécutions d'une même requête fille par requête au-delà duquel un N+1 est suspecté (0 si désactivé)
+	private transient int nPlusOneThreshold;
+	// en format d'enregistrement "log", true si le prochain enregistrement peut être ajouté au journal
+	// (false si des requêtes ont été supprimées, car le journal ne contient que des requêtes modifiées)
+	private transient volatile boolean storageLogReady;
+	// instances des erreurs déjà enregistrées, pour n'ajouter au journal que les autres
+	// (pas selon leurs dates, car plusieurs erreurs peuvent avoir la même milliseconde)
+	private transient Set<CounterError> writtenErrors;
 
 	/**
 	 * Comparateur pour ordonner les requêtes par sommes des durées.
@@ -239,6 +263,19 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		this(name, name, iconName, childCounter.getName(), childCounter.contextThreadLocal);
 	}
 
+	/**
+	 * Crée un compteur qui partage les contextes des requêtes courantes d'un autre compteur,
+	 * pour que ses requêtes soient aussi des requêtes filles des requêtes parentes de cet autre compteur
+	 * (par exemple: les attentes de connexions du compteur pool dans les requêtes http, comme le compteur sql).
+	 * @param name Nom du compteur (par exemple: pool)
+	 * @param iconName Icône du compteur (par exemple: db.png)
+	 * @param counter Compteur dont les contextes sont partagés (par exemple: sqlCounter)
+	 * @return Counter
+	 */
+	static Counter createCounterSharingContexts(String name, String iconName, Counter counter) {
+		return new Counter(name, name, iconName, null, counter.contextThreadLocal);
+	}
+
 	private Counter(String name, String storageName, String iconName, String childCounterName,
 			ThreadLocal<CounterRequestContext> contextThreadLocal) {
 		super();
@@ -385,6 +422,78 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		this.requestTransformPattern = requestTransformPattern;
 	}
 
+	/**
+	 * Retourne la normalisation des requêtes de ce counter avant agrégation (peut être null).
+	 * @return RequestNameNormalizer
+	 */
+	RequestNameNormalizer getRequestNameNormalizer() {
+		return requestNameNormalizer;
+	}
+
+	/**
+	 * Définit la normalisation des requêtes de ce counter avant agrégation
+	 * (paramètre normalized-counters), qui remplace alors l'application directe
+	 * de requestTransformPattern à chaque requête.
+	 * @param requestNameNormalizer RequestNameNormalizer
+	 */
+	void setRequestNameNormalizer(RequestNameNormalizer requestNameNormalizer) {
+		this.requestNameNormalizer = requestNameNormalizer;
+	}
+
+	/**
+	 * Retourne true si les hits sont ajoutés sans synchronisation sur les requêtes
+	 * (paramètre lock-free-counters).
+	 * @return boolean
+	 */
+	boolean isLockFreeRecording() {
+		return lockFreeRecording;
+	}
+
+	/**
+	 * Définit si les hits sont ajoutés sans synchronisation sur les requêtes.
+	 * @param lockFreeRecording boolean
+	 */
+	void setLockFreeRecording(boolean lockFreeRecording) {
+		this.lockFreeRecording = lockFreeRecording;
+	}
+
+	/**
+	 * Retourne true si le nombre de requêtes est borné selon les requêtes les plus fréquentes,
+	 * les autres étant cumulées dans une seule requête (paramètre heavy-hitters-counters).
+	 * @return boolean
+	 */
+	boolean isHeavyHittersEnabled() {
+		return heavyHitters != null;
+	}
+
+	/**
+	 * Définit si le nombre de requêtes est borné selon les requêtes les plus fréquentes.
+	 * @param heavyHittersEnabled boolean
+	 */
+	void setHeavyHittersEnabled(boolean heavyHittersEnabled) {
+		if (heavyHittersEnabled != isHeavyHittersEnabled()) {
+			this.heavyHitters = heavyHittersEnabled ? new HeavyHitters() : null;
+		}
+	}
+
+	/**
+	 * Retourne le nombre d'exécutions d'une même requête fille lors d'une requête de ce counter
+	 * au-delà duquel la requête fille est suspectée de N+1 (paramètre n-plus-one-threshold).
+	 * @return int (0 si désactivé)
+	 */
+	int getNPlusOneThreshold() {
+		return nPlusOneThreshold;
+	}
+
+	/**
+	 * Définit le nombre d'exécutions d'une même requête fille au-delà duquel un N+1 est suspecté.
+	 * @param nPlusOneThreshold int (0 pour désactiver)
+	 */
+	void setNPlusOneThreshold(int nPlusOneThreshold) {
+		assert nPlusOneThreshold >= 0;
+		this.nPlusOneThreshold = nPlusOneThreshold;
+	}
+
 	/**
 	 * Retourne le nombre maximum de requêtes dans ce counter (entier positif).
 	 * @return int
@@ -438,6 +547,17 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		}
 	}
 
+	/**
+	 * Enlève le contexte courant du thread courant et le retourne,
+	 * pour ajouter ensuite la requête depuis un autre thread.
+	 * @return CounterRequestContext (peut être null)
+	 */
+	CounterRequestContext detachContext() {
+		final CounterRequestContext context = contextThreadLocal.get();
+		unbindContext();
+		return context;
+	}
+
 	void addRequestForCurrentContext(boolean systemError) {
 		final CounterRequestContext context = contextThreadLocal.get();
 		if (context != null) {
@@ -464,8 +584,57 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		addRequest(requestName, duration, cpuTime, systemError, null, responseSize);
 	}
 
+	/**
+	 * Ajoute une requête avec des hits fils qui ne viennent pas d'un contexte de requête courante
+	 * (par exemple: les requêtes sql d'une transaction jdbc, pour le compteur des transactions).
+	 * @param requestName Nom de la requête
+	 * @param duration Durée
+	 * @param systemError Erreur système
+	 * @param childHits Hits fils de la requête
+	 */
+	void addRequestWithChildHits(String requestName, long duration, boolean systemError,
+			ICounterRequestContext childHits) {
+		assert requestName != null;
+		assert duration >= 0;
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		final CounterRequest request = getCounterRequestForHits(aggregateRequestName, 1);
+		if (requestNameNormalizer != null) {
+			request.setSampleNameIfAbsent(requestName);
+		}
+		if (lockFreeRecording) {
+			request.addHitWithoutLock(duration, -1, systemError, -1, childHits);
+		} else {
+			synchronized (request) {
+				request.addHit(duration, -1, systemError, null, -1);
+				request.addChildHits(childHits);
+			}
+		}
+	}
+
+	/**
+	 * Ajoute une requête http depuis un autre thread que celui de la requête (paramètre async-recording),
+	 * avec le contexte racine détaché du thread de la requête par {@link #detachContext()}.
+	 * @param context Contexte détaché (peut être null)
+	 * @param requestName Nom de la requête
+	 * @param duration Durée
+	 * @param cpuTime Temps cpu
+	 * @param systemError Erreur système
+	 * @param responseSize Taille de la réponse
+	 */
+	void addRequestForDetachedContext(CounterRequestContext context, String requestName,
+			long duration, long cpuTime, boolean systemError, int responseSize) {
+		assert context == null || context.getParentContext() == null;
+		addRequest(requestName, duration, cpuTime, systemError, null, responseSize, context);
+	}
+
 	private void addRequest(String requestName, long duration, long cpuTime, boolean systemError,
 			String systemErrorStackTrace, int responseSize) {
+		addRequest(requestName, duration, cpuTime, systemError, systemErrorStackTrace,
+				responseSize, contextThreadLocal.get());
+	}
+
+	private void addRequest(String requestName, long duration, long cpuTime, boolean systemError,
+			String systemErrorStackTrace, int responseSize, CounterRequestContext context) {
 		// la méthode addRequest n'est pas synchronisée pour ne pas avoir
 		// de synchronisation globale à l'application sur cette instance d'objet
 		// ce qui pourrait faire une contention et des ralentissements,
@@ -478,21 +647,30 @@ class Counter implements Cloneable, Serializable { // NOPMD
 
 		final String aggregateRequestName = getAggregateRequestName(requestName);
 
-		final CounterRequestContext context = contextThreadLocal.get();
-		final CounterRequest request = getCounterRequestInternal(aggregateRequestName);
-		synchronized (request) {
-			// on synchronise par l'objet request pour éviter de mélanger des ajouts de hits
-			// concurrents entre plusieurs threads pour le même type de requête.
-			// Rq : on pourrait remplacer ce bloc synchronized par un synchronized
-			// sur les méthodes addHit et addChildHits dans la classe CounterRequest.
-			request.addHit(duration, cpuTime, systemError, systemErrorStackTrace, responseSize);
-
-			if (context != null) {
-				// on ajoute dans la requête parente toutes les requêtes filles du contexte
-				if (context.getParentCounter() == this) {
-					request.addChildHits(context);
+		final CounterRequest request = getCounterRequestForHits(aggregateRequestName, 1);
+		if (requestNameNormalizer != null) {
+			// on conserve un exemple de requête d'origine pour cette requête normalisée
+			request.setSampleNameIfAbsent(requestName);
+		}
+		if (lockFreeRecording && systemErrorStackTrace == null) {
+			addHitWithoutLock(request, duration, cpuTime, systemError, responseSize, context);
+		} else {
+			synchronized (request) {
+				// on synchronise par l'objet request pour éviter de mélanger des ajouts de hits
+				// concurrents entre plusieurs threads pour le même type de requête.
+				// Rq : on pourrait remplacer ce bloc synchronized par un synchronized
+				// sur les méthodes addHit et addChildHits dans la classe CounterRequest.
+				request.addHit(duration, cpuTime, systemError, systemErrorStackTrace,
+						responseSize);
+
+				if (context != null) {
+					// on ajoute dans la requête parente toutes les requêtes filles du contexte
+					if (context.getParentCounter() == this) {
+						request.addChildHits(context);
+						addSuspectedNPlusOnes(request, context);
+					}
+					request.addChildRequests(context.getChildRequestsExecutionsByRequestId());
 				}
-				request.addChildRequests(context.getChildRequestsExecutionsByRequestId());
 			}
 		}
 		// perf: on fait le reste hors du synchronized sur request
@@ -502,7 +680,10 @@ class Counter implements Cloneable, Serializable { // NOPMD
 				if (parentContext == null) {
 					// enlève du threadLocal le contexte que j'ai créé
 					// si je suis le counter parent et s'il n'y a pas de contexte parent
-					unbindContext();
+					// (sauf si le contexte a déjà été détaché du thread de la requête)
+					if (contextThreadLocal.get() == context) {
+						unbindContext();
+					}
 				} else {
 					// on ajoute une requête fille dans le contexte
 					context.addChildRequest(this, aggregateRequestName, request.getId(), duration,
@@ -529,8 +710,124 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		}
 	}
 
+	private void addHitWithoutLock(CounterRequest request, long duration, long cpuTime,
+			boolean systemError, int responseSize, CounterRequestContext context) {
+		// pas de synchronized sur request pour les sommes, qui sont accumulées dans des cellules
+		// pour éviter la contention de tous les threads sur une requête très fréquente
+		if (context != null && context.getParentCounter() == this) {
+			request.addHitWithoutLock(duration, cpuTime, systemError, responseSize, context);
+		} else {
+			request.addHitWithoutLock(duration, cpuTime, systemError, responseSize, null);
+		}
+		if (context != null) {
+			final Map<String, Long> childRequests = context.getChildRequestsExecutionsByRequestId();
+			if (!childRequests.isEmpty()) {
+				// la map des requêtes filles reste synchronisée, mais seulement s'il y a des requêtes filles
+				synchronized (request) {
+					request.addChildRequests(childRequests);
+					if (context.getParentCounter() == this) {
+						addSuspectedNPlusOnes(request, context);
+					}
+				}
+			}
+		}
+	}
+
+	private static void addSuspectedNPlusOnes(CounterRequest request,
+			CounterRequestContext context) {
+		final Map<String, String> suspectedNPlusOneNames = context
+				.getSuspectedNPlusOneNamesByRequestId();
+		if (!suspectedNPlusOneNames.isEmpty()) {
+			request.addSuspectedNPlusOnes(suspectedNPlusOneNames,
+					context.getChildRequestsExecutionsByRequestId());
+		}
+	}
+
+	/**
+	 * Ajoute à une requête les lignes lues et le temps de lecture d'un resultSet,
+	 * après la fin de l'exécution de la requête (paramètre result-set-monitoring).
+	 * @param requestName Nom de la requête (sql) avant agrégation
+	 * @param fetchedRows Nombre de lignes lues
+	 * @param fetchDurationNanos Temps de lecture en nanosecondes
+	 */
+	void addFetchedRows(String requestName, long fetchedRows, long fetchDurationNanos) {
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		// en mode heavy-hitters, rien n'est ajouté pour une requête qui n'a pas été conservée
+		final CounterRequest request = heavyHitters == null
+				? getCounterRequestInternal(aggregateRequestName)
+				: requests.get(aggregateRequestName);
+		if (request != null) {
+			synchronized (request) {
+				request.addFetchedRows(fetchedRows, fetchDurationNanos);
+			}
+		}
+	}
+
+	/**
+	 * Ajoute à une requête la taille et la durée d'exécution d'un batch (executeBatch ou executeLargeBatch),
+	 * après l'ajout du hit de cette exécution par addRequest.
+	 * @param requestName Nom de la requête (sql) avant agrégation
+	 * @param batchSize Nombre d'appels à addBatch
+	 * @param duration Durée d'exécution du batch en millisecondes
+	 */
+	void addBatch(String requestName, int batchSize, long duration) {
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		// en mode heavy-hitters, rien n'est ajouté pour une requête qui n'a pas été conservée
+		final CounterRequest request = heavyHitters == null
+				? getCounterRequestInternal(aggregateRequestName)
+				: requests.get(aggregateRequestName);
+		if (request != null) {
+			synchronized (request) {
+				request.addBatch(batchSize, duration);
+			}
+		}
+	}
+
+	/**
+	 * Ajoute à une requête une exécution lente avec les valeurs de ses paramètres bindés
+	 * (paramètre slow-sql-parameters-threshold), si elle est parmi les plus lentes de cette requête,
+	 * après l'ajout du hit de cette exécution par addRequest.
+	 * @param requestName Nom de la requête (sql) avant agrégation
+	 * @param duration Durée d'exécution en millisecondes
+	 * @param parameters Valeurs formatées des paramètres bindés
+	 */
+	void addSlowExecution(String requestName, long duration, String parameters) {
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		// en mode heavy-hitters, rien n'est ajouté pour une requête qui n'a pas été conservée
+		final CounterRequest request = heavyHitters == null
+				? getCounterRequestInternal(aggregateRequestName)
+				: requests.get(aggregateRequestName);
+		if (request != null) {
+			synchronized (request) {
+				if (request.isAmongSlowestExecutions(duration)) {
+					request.addSlowestExecution(new SlowSqlExecution(duration, parameters));
+				}
+			}
+		}
+	}
+
 	void addRequestForSystemError(String requestName, long duration, long cpuTime,
 			String stackTrace) {
+		addRequestForSystemError(requestName, duration, cpuTime, stackTrace, null);
+	}
+
+	/**
+	 * Ajoute une erreur système avec l'erreur déjà construite, depuis un autre thread que celui
+	 * de la requête (paramètre async-recording) ou avec une stack-trace partagée (paramètre lazy-stack-traces).
+	 * @param counterError Erreur
+	 * @param duration Durée
+	 * @param cpuTime Temps cpu
+	 */
+	void addRequestForSystemError(CounterError counterError, long duration, long cpuTime) {
+		// le texte d'une stack-trace partagée n'est pas calculé ici (paramètre lazy-stack-traces)
+		final String stackTrace = counterError.getSharedStackTrace() == null
+				? counterError.getStackTrace() : null;
+		addRequestForSystemError(counterError.getMessage(), duration, cpuTime, stackTrace,
+				counterError);
+	}
+
+	private void addRequestForSystemError(String requestName, long duration, long cpuTime,
+			String stackTrace, CounterError counterError) {
 		// comme la méthode addRequest, cette méthode n'est pas synchronisée pour ne pas avoir
 		// de synchronisation globale à l'application sur cette instance d'objet
 		// ce qui pourrait faire une contention et des ralentissements,
@@ -545,12 +842,22 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// contrairement à la méthode addRequest
 		assert contextThreadLocal.get() == null;
 		final String aggregateRequestName = getAggregateRequestName(requestName);
-		final CounterRequest request = getCounterRequestInternal(aggregateRequestName);
+		final CounterRequest request = getCounterRequestForHits(aggregateRequestName, 1);
+		if (requestNameNormalizer != null) {
+			request.setSampleNameIfAbsent(requestName);
+		}
 		synchronized (request) {
 			request.addHit(duration, cpuTime, true, stackTrace, -1);
+			if (counterError != null && counterError.getSharedStackTrace() != null) {
+				request.setSharedStackTrace(counterError);
+			}
 		}
 		synchronized (errors) {
-			errors.addLast(new CounterError(requestName, stackTrace));
+			if (counterError != null) {
+				errors.addLast(counterError);
+			} else {
+				errors.addLast(new CounterError(requestName, stackTrace));
+			}
 			if (errors.size() > MAX_ERRORS_COUNT) {
 				errors.removeFirst();
 			}
@@ -600,6 +907,10 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	}
 
 	private String getAggregateRequestName(String requestName) {
+		if (requestNameNormalizer != null) {
+			// normalisation sans regexp et avec cache, qui inclue l'éventuel requestTransformPattern
+			return requestNameNormalizer.normalize(requestName);
+		}
 		final String aggregateRequestName;
 		if (requestTransformPattern == null) {
 			aggregateRequestName = requestName;
@@ -631,7 +942,8 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// bien que cela ne soit à priori pas nécessaire telle qu'elle est utilisée dans CollectorServlet
 		for (final CounterRequest newRequest : newCounter.getRequests()) {
 			if (newRequest.getHits() > 0) {
-				final CounterRequest request = getCounterRequestInternal(newRequest.getName());
+				final CounterRequest request = getCounterRequestForHits(newRequest.getName(),
+						newRequest.getHits());
 				synchronized (request) {
 					request.addHits(newRequest);
 				}
@@ -668,7 +980,8 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		if (counterRequest.getHits() > 0) {
 			// clone pour être thread-safe ici
 			final CounterRequest newRequest = counterRequest.clone();
-			final CounterRequest request = getCounterRequestInternal(newRequest.getName());
+			final CounterRequest request = getCounterRequestForHits(newRequest.getName(),
+					newRequest.getHits());
 			synchronized (request) {
 				request.addHits(newRequest);
 			}
@@ -702,6 +1015,21 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	void removeRequest(String requestName) {
 		assert requestName != null;
 		requests.remove(requestName);
+		storageLogReady = false;
+		final HeavyHitters currentHeavyHitters = heavyHitters;
+		if (currentHeavyHitters != null) {
+			currentHeavyHitters.requestsRemoved();
+		}
+	}
+
+	/**
+	 * Supprime une requête évincée en mode heavy-hitters, ses hits étant cumulés dans "(other requests)".
+	 * @param requestName Nom de la requête
+	 */
+	void removeEvictedRequest(String requestName) {
+		requests.remove(requestName);
+		// le journal du format "log" ne sait pas supprimer une requête : le counter sera enregistré en entier
+		storageLogReady = false;
 	}
 
 	/**
@@ -724,12 +1052,33 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// son état peut donc être lu sans synchronisation
 		// mais toute modification de cet état ne sera pas conservée
 		final String aggregateRequestName = getAggregateRequestName(requestName);
+		if (heavyHitters != null && !requests.containsKey(aggregateRequestName)) {
+			// en mode heavy-hitters, une requête n'est ajoutée qu'avec des hits
+			return new CounterRequest(aggregateRequestName, getName());
+		}
 		final CounterRequest request = getCounterRequestInternal(aggregateRequestName);
 		synchronized (request) {
 			return request.clone();
 		}
 	}
 
+	private CounterRequest getCounterRequestForHits(String requestName, long hits) {
+		final CounterRequest request = requests.get(requestName);
+		if (request != null || heavyHitters == null) {
+			return request != null ? request : getCounterRequestInternal(requestName);
+		}
+		// en mode heavy-hitters, la requête non encore conservée n'est ajoutée que si elle est
+		// parmi les plus fréquentes, et sinon ses hits sont ajoutés à la requête "(other requests)"
+		return heavyHitters.getRequestForHits(this, requests, requestName, hits);
+	}
+
+	private void addLateHitsOfEvictedRequests() {
+		final HeavyHitters currentHeavyHitters = heavyHitters;
+		if (currentHeavyHitters != null) {
+			currentHeavyHitters.addLateHitsOfEvictedRequests(requests, getName());
+		}
+	}
+
 	private CounterRequest getCounterRequestInternal(String requestName) {
 		CounterRequest request = requests.get(requestName);
 		if (request == null) {
@@ -761,6 +1110,7 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// de manière à ce que l'appelant n'ai pas à se préoccuper des synchronisations nécessaires
 		// Rq : l'Iterator sur ConcurrentHashMap.values() est garanti ne pas lancer ConcurrentModificationException
 		// même s'il y a des ajouts concurrents
+		addLateHitsOfEvictedRequests();
 		final List<CounterRequest> result = new ArrayList<CounterRequest>(requests.size());
 		for (final CounterRequest request : requests.values()) {
 			// on synchronize sur request en cas d'ajout en parallèle d'un hit sur cette request
@@ -771,6 +1121,29 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		return result;
 	}
 
+	/**
+	 * Retourne pour la collecte les requêtes modifiées depuis l'appel précédent de cette méthode,
+	 * ou toutes les requêtes, clonées comme dans getRequests().
+	 * Avec modifiedOnly, le coût de la collecte est proportionnel au nombre de requêtes actives
+	 * et non plus au nombre total de requêtes.
+	 * @param modifiedOnly true pour ne retourner que les requêtes modifiées
+	 * @return Liste des requêtes non triées
+	 */
+	List<CounterRequest> getRequestsForCollect(boolean modifiedOnly) {
+		addLateHitsOfEvictedRequests();
+		final List<CounterRequest> result = new ArrayList<CounterRequest>();
+		for (final CounterRequest request : requests.values()) {
+			// l'indicateur de modification est remis à zéro dans tous les cas,
+			// pour que la collecte suivante ne clone que les requêtes modifiées depuis celle-ci
+			if (request.resetModified(CounterRequest.MODIFIED_FOR_COLLECT) || !modifiedOnly) {
+				synchronized (request) {
+					result.add(request.clone());
+				}
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * @return Liste des requêtes triées par durée cumulée décroissante,
 	 * 	la liste et ses objets peuvent être utilisés sans synchronized et sans crainte d'accès concurrents.
@@ -796,6 +1169,13 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		return requestList;
 	}
 
+	/**
+	 * @return true si ce counter a des requêtes courantes
+	 */
+	boolean hasRootCurrentContexts() {
+		return !rootCurrentContextsByThreadId.isEmpty();
+	}
+
 	/**
 	 * @return Liste des contextes de requêtes courantes triées par durée écoulée décroissante,
 	 * 	la liste peut être utilisée sans synchronized et sans crainte d'accès concurrents,
@@ -854,6 +1234,11 @@ class Counter implements Cloneable, Serializable { // NOPMD
 			}
 		}
 		startDate = new Date();
+		storageLogReady = false;
+		final HeavyHitters currentHeavyHitters = heavyHitters;
+		if (currentHeavyHitters != null) {
+			currentHeavyHitters.requestsRemoved();
+		}
 	}
 
 	/** {@inheritDoc} */
@@ -868,6 +1253,13 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		clone.maxRequestsCount = getMaxRequestsCount();
 		clone.displayed = isDisplayed();
 		clone.requestTransformPattern = getRequestTransformPattern();
+		clone.requestNameNormalizer = getRequestNameNormalizer();
+		clone.lockFreeRecording = isLockFreeRecording();
+		clone.nPlusOneThreshold = getNPlusOneThreshold();
+		if (heavyHitters != null) {
+			// le clone reste en mode heavy-hitters, avec un sketch qui ne sera alloué que s'il devient plein
+			clone.heavyHitters = new HeavyHitters();
+		}
 		// on ne copie pas rootCurrentContextsByThreadId car on ne fournit pas les requêtes en cours
 		// qui sont très rapidement obsolètes au serveur de collecte (et sinon cela poserait la question
 		// des clones de parentCounter, de l'agrégation, de la synchro d'horloge pour la durée
@@ -883,35 +1275,137 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		return clone;
 	}
 
+	void writeCompact(CompactCounter.CompactOutput output) throws IOException {
+		// comme pour clone(), on n'écrit ni rootCurrentContextsByThreadId ni contextThreadLocal
+		output.writeString(name);
+		output.writeString(storageName);
+		output.writeString(iconName);
+		output.writeString(childCounterName);
+		output.writeString(application);
+		output.writeBoolean(displayed);
+		output.writeLong(startDate.getTime());
+		output.writeVarInt(maxRequestsCount);
+		output.writeVarLong(estimatedMemorySize);
+		final List<CounterRequest> requestList = new ArrayList<CounterRequest>(requests.values());
+		output.writeVarInt(requestList.size());
+		for (final CounterRequest request : requestList) {
+			request.writeCompact(output);
+		}
+		if (errors != null) {
+			output.writeObject(getErrors());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Counter readCompact(CompactCounter.CompactInput input)
+			throws IOException, ClassNotFoundException {
+		final String name = input.readString();
+		final String storageName = input.readString();
+		final String iconName = input.readString();
+		final String childCounterName = input.readString();
+		final Counter counter = new Counter(name, storageName, iconName, childCounterName);
+		counter.application = input.readString();
+		counter.displayed = input.readBoolean();
+		counter.startDate = new Date(input.readLong());
+		counter.maxRequestsCount = input.readVarInt();
+		counter.estimatedMemorySize = input.readVarLong();
+		final int requestsCount = input.readSize(CompactCounter.MAX_READ_REQUESTS_COUNT);
+		for (int i = 0; i < requestsCount; i++) {
+			final CounterRequest request = CounterRequest.readCompact(input);
+			counter.requests.put(request.getName(), request);
+		}
+		if (counter.errors != null) {
+			counter.errors.addAll((List<CounterError>) input.readObject());
+		}
+		return counter;
+	}
+
 	/**
 	 * Enregistre le counter.
 	 * @throws IOException e
 	 */
 	void writeToFile() throws IOException {
+		if (storageLogReady && CounterStorage.isLogStorageFormat() && appendToStorageLog()) {
+			return;
+		}
+		// les requêtes modifiées après ce point seront ajoutées au journal lors de l'enregistrement suivant
+		for (final CounterRequest request : requests.values()) {
+			request.resetModified(CounterRequest.MODIFIED_FOR_STORAGE);
+		}
+		storageLogReady = true;
 		// on clone le counter avant de le sérialiser pour ne pas avoir de problèmes de concurrences d'accès
 		final Counter counter = this.clone();
 		// on n'écrit pas rootCurrentContextsByThreadId en fichier
 		// puisque ces données ne seront plus vraies dans quelques secondes (clear pour être sûr ici)
 		counter.rootCurrentContextsByThreadId.clear();
+		writtenErrors = createErrorsSet(counter.getErrors());
 		estimatedMemorySize = new CounterStorage(counter).writeToFile();
 	}
 
+	private boolean appendToStorageLog() throws IOException {
+		// format "log" : seules les requêtes modifiées depuis l'enregistrement précédent sont clonées
+		// et ajoutées à la fin du journal, sans sérialiser tout le counter
+		addLateHitsOfEvictedRequests();
+		final List<CounterRequest> modifiedRequests = new ArrayList<CounterRequest>();
+		for (final CounterRequest request : requests.values()) {
+			if (request.resetModified(CounterRequest.MODIFIED_FOR_STORAGE)) {
+				synchronized (request) {
+					modifiedRequests.add(request.clone());
+				}
+			}
+		}
+		final List<CounterError> currentErrors = getErrors();
+		final List<CounterError> newErrors = new ArrayList<CounterError>();
+		for (final CounterError error : currentErrors) {
+			if (writtenErrors == null || !writtenErrors.contains(error)) {
+				newErrors.add(error);
+			}
+		}
+		final boolean appended;
+		try {
+			appended = new CounterStorage(this).appendToLog(modifiedRequests, newErrors);
+		} catch (final IOException e) {
+			// le journal est peut-être incomplet, l'enregistrement suivant sera complet
+			storageLogReady = false;
+			throw e;
+		}
+		if (appended) {
+			writtenErrors = createErrorsSet(currentErrors);
+		}
+		// sinon le journal doit être compacté et le counter sera enregistré en entier
+		return appended;
+	}
+
+	private static Set<CounterError> createErrorsSet(List<CounterError> errorList) {
+		// au plus MAX_ERRORS_COUNT erreurs
+		final Set<CounterError> result = Collections
+				.newSetFromMap(new IdentityHashMap<CounterError, Boolean>());
+		result.addAll(errorList);
+		return result;
+	}
+
 	/**
 	 * Lecture du counter depuis son fichier.
 	 * @throws IOException e
 	 */
 	void readFromFile() throws IOException {
-		final Counter counter = new CounterStorage(this).readFromFile();
+		final CounterStorage counterStorage = new CounterStorage(this);
+		final Counter counter = counterStorage.readFromFile();
+		// en format "log", les prochains enregistrements sont ajoutés au journal lu s'il était complet
+		storageLogReady = counterStorage.isLogReadyForAppend();
 		if (counter != null) {
 			final Counter newCounter = clone();
 			startDate = counter.getStartDate();
 			requests.clear();
 			for (final CounterRequest request : counter.getRequests()) {
+				// les requêtes lues sont déjà dans les fichiers
+				request.resetModified(CounterRequest.MODIFIED_FOR_STORAGE);
 				requests.put(request.getName(), request);
 			}
 			if (errors != null) {
 				errors.clear();
 				errors.addAll(counter.getErrors());
+				writtenErrors = createErrorsSet(errors);
 			}
 			// on ajoute les nouvelles requêtes enregistrées avant de lire le fichier
 			// (par ex. les premières requêtes collectées par le serveur de collecte lors de l'initialisation)
@@ -17,6 +17,8 @@
  */
 package net.bull.javamelody;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 
@@ -40,31 +42,25 @@ class CounterError implements Serializable {
 	/**
 	 * Max size of error stack-trace.
 	 */
-	private static final int STACKTRACE_MAX_LENGTH = 50000;
+	static final int STACKTRACE_MAX_LENGTH = 50000;
 
 	private final long time;
 	private final String remoteUser;
 	private final String httpRequest;
 	private final String message;
 	private final String stackTrace;
+	// stack-trace partagée et calculée à la première lecture (paramètre lazy-stack-traces)
+	private transient StackTraceStore.SharedStackTrace sharedStackTrace;
+	// messages de l'exception et de ses causes pour cette erreur, non partagés
+	private transient String[] stackTraceMessages;
 
 	CounterError(String message, String stackTrace) {
 		super();
 		assert message != null;
 		this.time = System.currentTimeMillis();
-
-		if (message.length() > MESSAGE_MAX_LENGTH) {
-			// avoid possible memory errors as javamelody store 100 errors in memory
-			this.message = message.substring(0, MESSAGE_MAX_LENGTH);
-		} else {
-			this.message = message;
-		}
-
-		if (stackTrace != null && stackTrace.length() > STACKTRACE_MAX_LENGTH) {
-			this.stackTrace = stackTrace.substring(0, STACKTRACE_MAX_LENGTH);
-		} else {
-			this.stackTrace = stackTrace;
-		}
+		// avoid possible memory errors as javamelody store 100 errors in memory
+		this.message = truncate(message, MESSAGE_MAX_LENGTH);
+		this.stackTrace = truncate(stackTrace, STACKTRACE_MAX_LENGTH);
 		final HttpServletRequest currentRequest = getCurrentRequest();
 		if (currentRequest == null) {
 			this.remoteUser = null;
@@ -83,6 +79,33 @@ class CounterError implements Serializable {
 		}
 	}
 
+	/**
+	 * Constructeur pour une erreur enregistrée depuis un autre thread que celui de la requête http
+	 * (paramètre async-recording), avec les informations lues dans le thread de la requête.
+	 * @param message Message
+	 * @param stackTrace Stack trace (peut être null)
+	 * @param time Date de l'erreur en millisecondes
+	 * @param remoteUser Utilisateur (peut être null)
+	 * @param httpRequest Requête http complète (peut être null)
+	 */
+	CounterError(String message, String stackTrace, long time, String remoteUser,
+			String httpRequest) {
+		super();
+		assert message != null;
+		this.time = time;
+		this.message = truncate(message, MESSAGE_MAX_LENGTH);
+		this.stackTrace = truncate(stackTrace, STACKTRACE_MAX_LENGTH);
+		this.remoteUser = remoteUser;
+		this.httpRequest = httpRequest;
+	}
+
+	private static String truncate(String text, int maxLength) {
+		if (text != null && text.length() > maxLength) {
+			return text.substring(0, maxLength);
+		}
+		return text;
+	}
+
 	/**
 	 * Définit la requête http (peut être nulle) pour le thread courant.
 	 * @param request HttpServletRequest
@@ -129,9 +152,50 @@ class CounterError implements Serializable {
 	}
 
 	String getStackTrace() {
+		if (stackTrace == null && sharedStackTrace != null) {
+			return sharedStackTrace.getStackTrace(stackTraceMessages);
+		}
 		return stackTrace;
 	}
 
+	StackTraceStore.SharedStackTrace getSharedStackTrace() {
+		return sharedStackTrace;
+	}
+
+	/**
+	 * Définit la stack-trace partagée de cette exception, en conservant ses propres messages,
+	 * avant l'ajout de cette erreur dans un compteur.
+	 * @param throwable Exception
+	 */
+	void setSharedStackTrace(Throwable throwable) {
+		assert stackTrace == null;
+		this.sharedStackTrace = StackTraceStore.getSharedStackTrace(throwable);
+		this.stackTraceMessages = StackTraceStore.getMessages(throwable);
+	}
+
+	/**
+	 * @return Nombre d'occurrences d'erreurs de même forme depuis le démarrage,
+	 * ou -1 si la stack-trace n'est pas partagée
+	 */
+	long getStackTraceOccurrences() {
+		if (sharedStackTrace == null) {
+			return -1;
+		}
+		return sharedStackTrace.getOccurrences();
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// même forme sérialisée que defaultWriteObject, mais avec le texte de la stack-trace partagée
+		// calculé au plus tard ici, sans modifier cette erreur pendant la sérialisation
+		final ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("time", time);
+		fields.put("remoteUser", remoteUser);
+		fields.put("httpRequest", httpRequest);
+		fields.put("message", message);
+		fields.put("stackTrace", getStackTrace());
+		out.writeFields();
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public String toString() {
@@ -17,24 +17,57 @@
  */
 package net.bull.javamelody;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Données statistiques d'une requête identifiée, hors paramètres dynamiques comme un identifiant,
  * et sur la période considérée selon le pilotage du collector par l'intermédiaire counter.
  *
- * Les méthodes d'une instance de cette classe ne sont pas thread-safe.
+ * Les méthodes d'une instance de cette classe ne sont pas thread-safe, sauf addHitWithoutLock.
  * L'état d'une instance doit être accédé ou modifié par l'intermédiaire d'une instance de Counter,
  * qui gérera les accès concurrents sur les instances de cette classe.
  * @author Emeric Vernat
  */
 class CounterRequest implements Cloneable, Serializable {
+	// bornes supérieures des tranches de tailles de batch, la dernière tranche étant au-delà
+	static final int[] BATCH_SIZE_LIMITS = { 1, 10, 100, 1000 };
+	// nombre maximum de requêtes filles suspectées de N+1 conservées par requête
+	static final int MAX_SUSPECTED_N_PLUS_ONES = 20;
+
 	private static final long serialVersionUID = -4301825473892026959L;
+	private static final AtomicReferenceFieldUpdater<CounterRequest, CounterRequestAccumulator> ACCUMULATOR_UPDATER = AtomicReferenceFieldUpdater
+			.newUpdater(CounterRequest.class, CounterRequestAccumulator.class, "accumulator");
+	static final int MODIFIED_FOR_COLLECT = 1;
+	static final int MODIFIED_FOR_STORAGE = 2;
+	private static final int MODIFIED = MODIFIED_FOR_COLLECT | MODIFIED_FOR_STORAGE;
+	private static final AtomicIntegerFieldUpdater<CounterRequest> MODIFIED_UPDATER = AtomicIntegerFieldUpdater
+			.newUpdater(CounterRequest.class, "modified");
+	// identifiants déjà calculés, par nom de counter puis par nom de requête, pour ne pas recalculer
+	// le hash SHA-1 à chaque instanciation (requêtes globales à chaque collecte par exemple)
+	// cache des identifiants des requêtes par counter, sans verrou en lecture
+	private static final ConcurrentMap<String, SecondChanceCache<String, String>> IDS_BY_COUNTER_NAME = new ConcurrentHashMap<String, SecondChanceCache<String, String>>();
+	private static final int MAX_CACHED_IDS_BY_COUNTER = Counter.MAX_REQUESTS_COUNT;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest> MESSAGE_DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return getMessageDigestInstance();
+		}
+	};
 	private final String name;
 	private final String id;
 	// tous ces champs de type long sont initialisés à 0,
@@ -50,9 +83,38 @@ class CounterRequest implements Cloneable, Serializable {
 	private long responseSizesSum;
 	private long childHits;
 	private long childDurationsSum;
+	// lignes lues et temps de lecture des resultSets en nanosecondes (paramètre result-set-monitoring),
+	// en nanosecondes pour ne pas perdre les lectures de moins d'une milliseconde
+	private long fetchedRowsSum;
+	private long fetchDurationsSum;
+	// exécutions de batchs (executeBatch ou executeLargeBatch), nombre total d'appels à addBatch,
+	// durées de ces exécutions et répartition des tailles de batch selon BATCH_SIZE_LIMITS
+	private long batchHits;
+	private long batchSizesSum;
+	private long batchDurationsSum;
+	private long[] batchSizesDistribution;
+	// exécutions les plus lentes avec leurs paramètres bindés, par durée décroissante
+	// (null sauf avec le paramètre slow-sql-parameters-threshold)
+	private List<SlowSqlExecution> slowestExecutions;
 	private String stackTrace;
+	// dernière erreur si sa stack trace est partagée et calculée à la première lecture (paramètre lazy-stack-traces)
+	private transient CounterError sharedStackTraceError;
+	// exemple de description d'origine avant normalisation (null si le compteur ne normalise pas)
+	private String sampleName;
+	// en mode heavy-hitters, nombre maximum de hits comptés dans "(other requests)" avant que la requête soit conservée
+	private long hitsErrorBound;
+	// pour les centiles, enregistrement sans verrou y compris en mode lock-free-counters
+	private DurationsHistogram durationsHistogram = new DurationsHistogram();
 	@SuppressWarnings("all")
 	private Map<String, Long> childRequestsExecutionsByRequestId;
+	// requêtes filles suspectées de N+1 par id (null sauf avec le paramètre n-plus-one-threshold)
+	@SuppressWarnings("all")
+	private Map<String, SuspectedNPlusOne> suspectedNPlusOnesByRequestId;
+	// hits ajoutés sans verrou (null sauf si mode lock-free-counters), additionnés à ceux ci-dessus dans clone()
+	private transient volatile CounterRequestAccumulator accumulator;
+	// indicateurs de modification depuis la collecte précédente (voir Counter.getRequestsForCollect)
+	// et depuis l'enregistrement précédent (voir Counter.writeToFile)
+	private transient volatile int modified;
 
 	/**
 	 * Interface du contexte d'une requête en cours.
@@ -84,7 +146,14 @@ class CounterRequest implements Cloneable, Serializable {
 		assert name != null;
 		assert counterName != null;
 		this.name = name;
-		this.id = buildId(name, counterName);
+		this.id = getId(name, counterName);
+	}
+
+	// constructeur pour la lecture de la forme compacte, l'identifiant étant lu et non recalculé
+	private CounterRequest(CompactCounter.CompactInput input) throws IOException {
+		super();
+		this.name = input.readString();
+		this.id = input.readRequestId();
 	}
 
 	/**
@@ -105,22 +174,34 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Nombre d'exécution de cette requête
 	 */
 	long getHits() {
-		return hits;
+		return hits + getAccumulatedSum(CounterRequestAccumulator.HITS);
+	}
+
+	// somme d'un champ des hits accumulés sans verrou et pas encore cumulés dans les champs
+	// (paramètre lock-free-counters), pour que tous les getters soient cohérents entre eux
+	// même sur une requête qui n'est pas un clone ; sans allocation
+	private long getAccumulatedSum(int field) {
+		final CounterRequestAccumulator currentAccumulator = accumulator;
+		if (currentAccumulator != null) {
+			return currentAccumulator.sum(field);
+		}
+		return 0;
 	}
 
 	/**
 	 * @return Somme des temps d'exécution de cette requête
 	 */
 	long getDurationsSum() {
-		return durationsSum;
+		return durationsSum + getAccumulatedSum(CounterRequestAccumulator.DURATIONS_SUM);
 	}
 
 	/**
 	 * @return Moyenne des temps d'exécution
 	 */
 	int getMean() {
-		if (hits > 0) {
-			return (int) (durationsSum / hits);
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return (int) (getDurationsSum() / currentHits);
 		}
 		return -1;
 	}
@@ -145,10 +226,14 @@ class CounterRequest implements Cloneable, Serializable {
 		//      http://web.archive.org/web/20070710000323/http://www.med.umkc.edu/tlwbiostats/variability.html
 		//      http://web.archive.org/web/20050512031826/http://helios.bto.ed.ac.uk/bto/statistics/tress3.html
 		//		http://www.bmj.com/collections/statsbk/2.html
-		if (hits > 0) {
-			return (int) Math
-					.sqrt((durationsSquareSum - (double) durationsSum * durationsSum / hits)
-							/ (hits - 1));
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			final long currentDurationsSum = getDurationsSum();
+			final long currentDurationsSquareSum = durationsSquareSum
+					+ getAccumulatedSum(CounterRequestAccumulator.DURATIONS_SQUARE_SUM);
+			return (int) Math.sqrt((currentDurationsSquareSum
+					- (double) currentDurationsSum * currentDurationsSum / currentHits)
+					/ (currentHits - 1));
 		}
 		return -1;
 	}
@@ -157,22 +242,61 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Maximum des temps d'exécution de cette requête
 	 */
 	long getMaximum() {
+		final CounterRequestAccumulator currentAccumulator = accumulator;
+		if (currentAccumulator != null) {
+			return Math.max(maximum, currentAccumulator.getMaximum());
+		}
 		return maximum;
 	}
 
+	/**
+	 * @param percentile Centile entre 0 et 100, par exemple 99.9
+	 * @return Temps d'exécution à ce centile (à 12,5 % près et au plus le maximum),
+	 * ou -1 s'il n'est pas connu
+	 */
+	long getDurationsPercentile(double percentile) {
+		final long value = durationsHistogram.getValueAtPercentile(percentile);
+		if (value < 0) {
+			return -1;
+		}
+		return Math.min(value, getMaximum());
+	}
+
+	// getters des centiles affichés, pour les colonnes des tableaux de l'interface Swing
+	long getP50() {
+		return getDurationsPercentile(50);
+	}
+
+	long getP90() {
+		return getDurationsPercentile(90);
+	}
+
+	long getP99() {
+		return getDurationsPercentile(99);
+	}
+
+	long getP999() {
+		return getDurationsPercentile(99.9);
+	}
+
+	DurationsHistogram getDurationsHistogram() {
+		return durationsHistogram;
+	}
+
 	/**
 	 * @return Somme temps cpu pour l'exécution de cette requête
 	 */
 	long getCpuTimeSum() {
-		return cpuTimeSum;
+		return cpuTimeSum + getAccumulatedSum(CounterRequestAccumulator.CPU_TIME_SUM);
 	}
 
 	/**
 	 * @return Moyenne des temps cpu pour l'exécution de cette requête
 	 */
 	int getCpuTimeMean() {
-		if (hits > 0) {
-			return (int) (cpuTimeSum / hits);
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return (int) (getCpuTimeSum() / currentHits);
 		}
 		return -1;
 	}
@@ -184,8 +308,11 @@ class CounterRequest implements Cloneable, Serializable {
 		// pourcentage d'erreurs systèmes entre 0 et 100,
 		// le type de retour est float pour être mesurable
 		// car il est probable que le pourcentage soit inférieur à 1%
-		if (hits > 0) {
-			return Math.min(100f * systemErrors / hits, 100f);
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			final long currentSystemErrors = systemErrors
+					+ getAccumulatedSum(CounterRequestAccumulator.SYSTEM_ERRORS);
+			return Math.min(100f * currentSystemErrors / currentHits, 100f);
 		}
 		return 0;
 	}
@@ -194,8 +321,11 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Moyenne des tailles des réponses (http en particulier)
 	 */
 	int getResponseSizeMean() {
-		if (hits > 0) {
-			return (int) (responseSizesSum / hits);
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return (int) ((responseSizesSum
+					+ getAccumulatedSum(CounterRequestAccumulator.RESPONSE_SIZES_SUM))
+					/ currentHits);
 		}
 		return -1;
 	}
@@ -204,15 +334,17 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Booléen selon qu'il existe des requêtes filles (sql en particulier)
 	 */
 	boolean hasChildHits() {
-		return childHits > 0;
+		return childHits + getAccumulatedSum(CounterRequestAccumulator.CHILD_HITS) > 0;
 	}
 
 	/**
 	 * @return Nombre moyen d'exécutions des requêtes filles (sql en particulier)
 	 */
 	int getChildHitsMean() {
-		if (hits > 0) {
-			return (int) (childHits / hits);
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return (int) ((childHits + getAccumulatedSum(CounterRequestAccumulator.CHILD_HITS))
+					/ currentHits);
 		}
 		return -1;
 	}
@@ -221,12 +353,102 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Moyenne des temps d'exécutions des requêtes filles (sql en particulier)
 	 */
 	int getChildDurationsMean() {
-		if (hits > 0) {
-			return (int) (childDurationsSum / hits);
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return (int) ((childDurationsSum
+					+ getAccumulatedSum(CounterRequestAccumulator.CHILD_DURATIONS_SUM))
+					/ currentHits);
 		}
 		return -1;
 	}
 
+	/**
+	 * @return Booléen selon qu'il existe des lectures de resultSets (paramètre result-set-monitoring)
+	 */
+	boolean hasFetchedRows() {
+		return fetchedRowsSum > 0 || fetchDurationsSum > 0;
+	}
+
+	/**
+	 * @return Nombre moyen de lignes lues dans les resultSets par exécution (sql)
+	 */
+	long getFetchedRowsMean() {
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return fetchedRowsSum / currentHits;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Temps moyen en millisecondes de lecture des resultSets par exécution (sql)
+	 */
+	int getFetchDurationsMean() {
+		final long currentHits = getHits();
+		if (currentHits > 0) {
+			return (int) (fetchDurationsSum / currentHits / 1000000);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Booléen selon qu'il existe des exécutions de batchs (executeBatch ou executeLargeBatch)
+	 */
+	boolean hasBatches() {
+		return batchHits > 0;
+	}
+
+	/**
+	 * @return Taille moyenne des batchs (nombre d'appels à addBatch par executeBatch)
+	 */
+	long getBatchSizeMean() {
+		if (batchHits > 0) {
+			return batchSizesSum / batchHits;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Nombre de lignes exécutées par seconde dans les batchs (inverse du coût par ligne),
+	 * ou -1 si les durées des batchs sont nulles
+	 */
+	long getBatchRowsPerSecond() {
+		if (batchDurationsSum > 0) {
+			return batchSizesSum * 1000 / batchDurationsSum;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Nombres d'exécutions de batchs par tranche de taille selon {@link #BATCH_SIZE_LIMITS}
+	 * (1, 2 à 10, 11 à 100, 101 à 1000, plus de 1000)
+	 */
+	long[] getBatchSizesDistribution() {
+		if (batchSizesDistribution == null) {
+			return new long[BATCH_SIZE_LIMITS.length + 1];
+		}
+		return batchSizesDistribution.clone();
+	}
+
+	/**
+	 * @return Exécutions les plus lentes avec leurs paramètres bindés, par durée décroissante
+	 */
+	List<SlowSqlExecution> getSlowestExecutions() {
+		if (slowestExecutions == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(slowestExecutions);
+	}
+
+	static String getBatchSizeLabel(int index) {
+		if (index == 0) {
+			return String.valueOf(BATCH_SIZE_LIMITS[0]);
+		} else if (index == BATCH_SIZE_LIMITS.length) {
+			return ">" + BATCH_SIZE_LIMITS[index - 1];
+		}
+		return BATCH_SIZE_LIMITS[index - 1] + 1 + "-" + BATCH_SIZE_LIMITS[index];
+	}
+
 	/**
 	 * @return Map des nombres d'exécutions par requêtes filles
 	 */
@@ -239,6 +461,23 @@ class CounterRequest implements Cloneable, Serializable {
 		}
 	}
 
+	/**
+	 * @return Requêtes filles suspectées de N+1 (paramètre n-plus-one-threshold)
+	 */
+	List<SuspectedNPlusOne> getSuspectedNPlusOnes() {
+		if (suspectedNPlusOnesByRequestId == null) {
+			return Collections.emptyList();
+		}
+		synchronized (this) {
+			final List<SuspectedNPlusOne> result = new ArrayList<SuspectedNPlusOne>(
+					suspectedNPlusOnesByRequestId.size());
+			for (final SuspectedNPlusOne suspect : suspectedNPlusOnesByRequestId.values()) {
+				result.add(suspect.clone());
+			}
+			return result;
+		}
+	}
+
 	boolean containsChildRequest(String requestId) {
 		if (childRequestsExecutionsByRequestId == null) {
 			return false;
@@ -252,9 +491,51 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Dernière stack trace
 	 */
 	String getStackTrace() {
+		final CounterError currentSharedStackTraceError = sharedStackTraceError;
+		if (currentSharedStackTraceError != null) {
+			return currentSharedStackTraceError.getStackTrace();
+		}
 		return stackTrace;
 	}
 
+	/**
+	 * Définit la dernière stack trace par celle d'une erreur, partagée et avec ses propres messages.
+	 * @param counterError CounterError
+	 */
+	void setSharedStackTrace(CounterError counterError) {
+		assert counterError.getSharedStackTrace() != null;
+		this.sharedStackTraceError = counterError;
+		this.stackTrace = null;
+	}
+
+	/**
+	 * @return Exemple de description d'origine de cette requête avant normalisation
+	 * (empreinte sql par exemple), ou null
+	 */
+	String getSampleName() {
+		return sampleName;
+	}
+
+	/**
+	 * @return Nombre maximum de hits de cette requête qui ont été comptés dans "(other requests)"
+	 * avant qu'elle soit conservée (mode heavy-hitters), sinon 0
+	 */
+	long getHitsErrorBound() {
+		return hitsErrorBound;
+	}
+
+	void setHitsErrorBound(long hitsErrorBound) {
+		assert hitsErrorBound >= 0;
+		this.hitsErrorBound = hitsErrorBound;
+	}
+
+	void setSampleNameIfAbsent(String requestName) {
+		if (sampleName == null) {
+			// même instance que name si la normalisation n'a rien changé, pour ne pas la sérialiser 2 fois
+			sampleName = name.equals(requestName) ? name : requestName;
+		}
+	}
+
 	void addHit(long duration, long cpuTime, boolean systemError, String systemErrorStackTrace,
 			int responseSize) {
 		hits++;
@@ -263,19 +544,81 @@ class CounterRequest implements Cloneable, Serializable {
 		if (duration > maximum) {
 			maximum = duration;
 		}
+		durationsHistogram.record(duration);
 		cpuTimeSum += cpuTime;
 		if (systemError) {
 			systemErrors++;
 		}
 		if (systemErrorStackTrace != null) {
 			stackTrace = systemErrorStackTrace;
+			sharedStackTraceError = null;
 		}
 		responseSizesSum += responseSize;
+		setModified();
+	}
+
+	/**
+	 * Ajoute un hit sans synchronisation sur cette instance (mode lock-free-counters) :
+	 * les sommes sont accumulées dans des cellules et ne sont visibles qu'après clone().
+	 * @param duration Durée
+	 * @param cpuTime Temps cpu
+	 * @param systemError Erreur système
+	 * @param responseSize Taille de la réponse
+	 * @param context Contexte dont les hits fils sont à ajouter, ou null
+	 */
+	void addHitWithoutLock(long duration, long cpuTime, boolean systemError, int responseSize,
+			ICounterRequestContext context) {
+		CounterRequestAccumulator currentAccumulator = accumulator;
+		if (currentAccumulator == null) {
+			ACCUMULATOR_UPDATER.compareAndSet(this, null, new CounterRequestAccumulator());
+			currentAccumulator = accumulator;
+		}
+		durationsHistogram.record(duration);
+		if (context == null) {
+			currentAccumulator.addHit(duration, cpuTime, systemError, responseSize, 0, 0);
+		} else {
+			currentAccumulator.addHit(duration, cpuTime, systemError, responseSize,
+					context.getChildHits(), context.getChildDurationsSum());
+		}
+		setModified();
+	}
+
+	void addBatch(int batchSize, long duration) {
+		assert batchSize > 0;
+		batchHits++;
+		batchSizesSum += batchSize;
+		batchDurationsSum += duration;
+		if (batchSizesDistribution == null) {
+			batchSizesDistribution = new long[BATCH_SIZE_LIMITS.length + 1];
+		}
+		int index = 0;
+		while (index < BATCH_SIZE_LIMITS.length && batchSize > BATCH_SIZE_LIMITS[index]) {
+			index++;
+		}
+		batchSizesDistribution[index]++;
+		setModified();
+	}
+
+	boolean isAmongSlowestExecutions(long duration) {
+		return SlowSqlExecution.isAmongSlowest(slowestExecutions, duration);
+	}
+
+	void addSlowestExecution(SlowSqlExecution slowExecution) {
+		slowestExecutions = SlowSqlExecution.merge(slowestExecutions,
+				Collections.singletonList(slowExecution));
+		setModified();
+	}
+
+	void addFetchedRows(long fetchedRows, long fetchDurationNanos) {
+		fetchedRowsSum += fetchedRows;
+		fetchDurationsSum += fetchDurationNanos;
+		setModified();
 	}
 
 	void addChildHits(ICounterRequestContext context) {
 		childHits += context.getChildHits();
 		childDurationsSum += context.getChildDurationsSum();
+		setModified();
 	}
 
 	void addChildRequests(Map<String, Long> childRequests) {
@@ -302,7 +645,44 @@ class CounterRequest implements Cloneable, Serializable {
 					childRequestsExecutionsByRequestId.put(requestId, nbExecutions);
 				}
 			}
+			setModified();
+		}
+	}
+
+	/**
+	 * Ajoute les requêtes filles exécutées plus de n-plus-one-threshold fois
+	 * lors d'une exécution de cette requête.
+	 * @param childRequestNamesById Noms des requêtes filles au-delà du seuil, par id
+	 * @param childRequests Nombres d'exécutions de toutes les requêtes filles, par id
+	 */
+	void addSuspectedNPlusOnes(Map<String, String> childRequestNamesById,
+			Map<String, Long> childRequests) {
+		for (final Map.Entry<String, String> entry : childRequestNamesById.entrySet()) {
+			final String requestId = entry.getKey();
+			final SuspectedNPlusOne suspect = getOrCreateSuspectedNPlusOne(requestId,
+					entry.getValue());
+			final Long nbExecutions = childRequests.get(requestId);
+			if (suspect != null && nbExecutions != null) {
+				suspect.addHit(nbExecutions);
+			}
+		}
+		setModified();
+	}
+
+	// retourne null si le nombre maximum de requêtes filles suspectées est atteint
+	private SuspectedNPlusOne getOrCreateSuspectedNPlusOne(String requestId, String requestName) {
+		if (suspectedNPlusOnesByRequestId == null) {
+			suspectedNPlusOnesByRequestId = new LinkedHashMap<String, SuspectedNPlusOne>();
+		}
+		SuspectedNPlusOne suspect = suspectedNPlusOnesByRequestId.get(requestId);
+		if (suspect == null) {
+			if (suspectedNPlusOnesByRequestId.size() >= MAX_SUSPECTED_N_PLUS_ONES) {
+				return null;
+			}
+			suspect = new SuspectedNPlusOne(requestId, requestName);
+			suspectedNPlusOnesByRequestId.put(requestId, suspect);
 		}
+		return suspect;
 	}
 
 	void addHits(CounterRequest request) {
@@ -319,23 +699,65 @@ class CounterRequest implements Cloneable, Serializable {
 			responseSizesSum += request.responseSizesSum;
 			childHits += request.childHits;
 			childDurationsSum += request.childDurationsSum;
-			if (request.stackTrace != null) {
+			fetchedRowsSum += request.fetchedRowsSum;
+			fetchDurationsSum += request.fetchDurationsSum;
+			addBatches(request);
+			slowestExecutions = SlowSqlExecution.merge(slowestExecutions,
+					request.slowestExecutions);
+			if (request.stackTrace != null || request.sharedStackTraceError != null) {
 				stackTrace = request.stackTrace;
+				sharedStackTraceError = request.sharedStackTraceError;
 			}
+			if (sampleName == null) {
+				sampleName = request.sampleName;
+			}
+			hitsErrorBound += request.hitsErrorBound;
+			durationsHistogram.add(request.durationsHistogram);
 			addChildRequests(request.childRequestsExecutionsByRequestId);
+			addSuspectedNPlusOnes(request);
+			setModified();
+		}
+	}
+
+	// appelé après chaque modification, pour que la prochaine collecte et le prochain enregistrement
+	// clonent cette requête (lecture volatile sans écriture si la requête est déjà signalée comme modifiée)
+	private void setModified() {
+		if (modified != MODIFIED) {
+			modified = MODIFIED;
 		}
 	}
 
+	/**
+	 * Remet à zéro un indicateur de modification de cette requête.
+	 * Comme il est remis à zéro avant le clone, un hit ajouté pendant le clone sera signalé la fois suivante.
+	 * @param flag MODIFIED_FOR_COLLECT ou MODIFIED_FOR_STORAGE
+	 * @return true si la requête a été modifiée depuis l'appel précédent avec cet indicateur
+	 */
+	boolean resetModified(int flag) {
+		int current = modified;
+		while ((current & flag) != 0) {
+			if (MODIFIED_UPDATER.compareAndSet(this, current, current & ~flag)) {
+				return true;
+			}
+			current = modified;
+		}
+		return false;
+	}
+
 	void removeHits(CounterRequest request) {
 		assert request != null;
 		if (request.hits != 0) {
 			hits -= request.hits;
 			durationsSum -= request.durationsSum;
 			durationsSquareSum -= request.durationsSquareSum;
+			durationsHistogram.remove(request.durationsHistogram);
 			// on doit enlever le maximum même si on ne connaît pas le précédent maximum car sinon
 			// le maximum des périodes jour, semaine, mois, année est celui de la période tout
 			if (request.maximum >= maximum) {
-				if (hits > 0) {
+				if (hits > 0 && durationsHistogram.getTotalCount() == hits) {
+					// l'histogramme restant donne un majorant du maximum à 12,5 % près
+					maximum = Math.min(durationsHistogram.getHighestValue(), maximum);
+				} else if (hits > 0) {
 					maximum = durationsSum / hits;
 				} else {
 					maximum = -1;
@@ -346,8 +768,72 @@ class CounterRequest implements Cloneable, Serializable {
 			responseSizesSum -= request.responseSizesSum;
 			childHits -= request.childHits;
 			childDurationsSum -= request.childDurationsSum;
+			fetchedRowsSum -= request.fetchedRowsSum;
+			fetchDurationsSum -= request.fetchDurationsSum;
+			removeBatches(request);
+			hitsErrorBound = Math.max(hitsErrorBound - request.hitsErrorBound, 0);
 
 			removeChildHits(request);
+			removeSuspectedNPlusOnes(request);
+		}
+	}
+
+	private void addSuspectedNPlusOnes(CounterRequest request) {
+		if (request.suspectedNPlusOnesByRequestId != null) {
+			for (final SuspectedNPlusOne otherSuspect : request.suspectedNPlusOnesByRequestId
+					.values()) {
+				final SuspectedNPlusOne suspect = getOrCreateSuspectedNPlusOne(
+						otherSuspect.getChildRequestId(), otherSuspect.getChildRequestName());
+				if (suspect != null) {
+					suspect.addHits(otherSuspect);
+				}
+			}
+		}
+	}
+
+	private void removeSuspectedNPlusOnes(CounterRequest request) {
+		if (request.suspectedNPlusOnesByRequestId != null
+				&& suspectedNPlusOnesByRequestId != null) {
+			for (final SuspectedNPlusOne otherSuspect : request.suspectedNPlusOnesByRequestId
+					.values()) {
+				final SuspectedNPlusOne suspect = suspectedNPlusOnesByRequestId
+						.get(otherSuspect.getChildRequestId());
+				if (suspect != null) {
+					suspect.removeHits(otherSuspect);
+					if (suspect.getHits() == 0) {
+						suspectedNPlusOnesByRequestId.remove(otherSuspect.getChildRequestId());
+					}
+				}
+			}
+			if (suspectedNPlusOnesByRequestId.isEmpty()) {
+				suspectedNPlusOnesByRequestId = null;
+			}
+		}
+	}
+
+	private void addBatches(CounterRequest request) {
+		if (request.batchHits != 0) {
+			batchHits += request.batchHits;
+			batchSizesSum += request.batchSizesSum;
+			batchDurationsSum += request.batchDurationsSum;
+			if (batchSizesDistribution == null) {
+				batchSizesDistribution = new long[BATCH_SIZE_LIMITS.length + 1];
+			}
+			for (int i = 0; i < batchSizesDistribution.length; i++) {
+				batchSizesDistribution[i] += request.batchSizesDistribution[i];
+			}
+		}
+	}
+
+	private void removeBatches(CounterRequest request) {
+		if (request.batchHits != 0 && batchSizesDistribution != null) {
+			batchHits = Math.max(batchHits - request.batchHits, 0);
+			batchSizesSum = Math.max(batchSizesSum - request.batchSizesSum, 0);
+			batchDurationsSum = Math.max(batchDurationsSum - request.batchDurationsSum, 0);
+			for (int i = 0; i < batchSizesDistribution.length; i++) {
+				batchSizesDistribution[i] = Math.max(
+						batchSizesDistribution[i] - request.batchSizesDistribution[i], 0);
+			}
 		}
 	}
 
@@ -379,10 +865,29 @@ class CounterRequest implements Cloneable, Serializable {
 	public CounterRequest clone() { // NOPMD
 		try {
 			final CounterRequest clone = (CounterRequest) super.clone();
+			final CounterRequestAccumulator currentAccumulator = accumulator;
+			if (currentAccumulator != null) {
+				clone.accumulator = null;
+				clone.addAccumulatedHits(currentAccumulator);
+			}
+			clone.durationsHistogram = durationsHistogram.copy();
+			if (batchSizesDistribution != null) {
+				clone.batchSizesDistribution = batchSizesDistribution.clone();
+			}
+			if (slowestExecutions != null) {
+				clone.slowestExecutions = new ArrayList<SlowSqlExecution>(slowestExecutions);
+			}
 			if (childRequestsExecutionsByRequestId != null) {
 				// getChildRequestsExecutionsByRequestId fait déjà un clone de la map
 				clone.childRequestsExecutionsByRequestId = getChildRequestsExecutionsByRequestId();
 			}
+			if (suspectedNPlusOnesByRequestId != null) {
+				// getSuspectedNPlusOnes fait déjà un clone des requêtes filles suspectées
+				clone.suspectedNPlusOnesByRequestId = new LinkedHashMap<String, SuspectedNPlusOne>();
+				for (final SuspectedNPlusOne suspect : getSuspectedNPlusOnes()) {
+					clone.suspectedNPlusOnesByRequestId.put(suspect.getChildRequestId(), suspect);
+				}
+			}
 			return clone;
 		} catch (final CloneNotSupportedException e) {
 			// ne peut arriver puisque CounterRequest implémente Cloneable
@@ -390,23 +895,188 @@ class CounterRequest implements Cloneable, Serializable {
 		}
 	}
 
+	private void addAccumulatedHits(CounterRequestAccumulator currentAccumulator) {
+		final long[] sums = currentAccumulator.sum();
+		hits += sums[CounterRequestAccumulator.HITS];
+		durationsSum += sums[CounterRequestAccumulator.DURATIONS_SUM];
+		durationsSquareSum += sums[CounterRequestAccumulator.DURATIONS_SQUARE_SUM];
+		cpuTimeSum += sums[CounterRequestAccumulator.CPU_TIME_SUM];
+		systemErrors += sums[CounterRequestAccumulator.SYSTEM_ERRORS];
+		responseSizesSum += sums[CounterRequestAccumulator.RESPONSE_SIZES_SUM];
+		childHits += sums[CounterRequestAccumulator.CHILD_HITS];
+		childDurationsSum += sums[CounterRequestAccumulator.CHILD_DURATIONS_SUM];
+		maximum = Math.max(maximum, currentAccumulator.getMaximum());
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// le texte de la stack-trace partagée est calculé au plus tard à la sérialisation
+		final CounterError currentSharedStackTraceError = sharedStackTraceError;
+		if (currentSharedStackTraceError != null) {
+			stackTrace = currentSharedStackTraceError.getStackTrace();
+		}
+		out.defaultWriteObject();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (durationsHistogram == null) {
+			// lu depuis une version sans histogramme : les centiles ne concernent que les hits suivants
+			durationsHistogram = new DurationsHistogram();
+		}
+	}
+
+	void writeCompact(CompactCounter.CompactOutput output) throws IOException {
+		// le texte de la stack-trace partagée est calculé au plus tard à la sérialisation
+		final CounterError currentSharedStackTraceError = sharedStackTraceError;
+		if (currentSharedStackTraceError != null) {
+			stackTrace = currentSharedStackTraceError.getStackTrace();
+		}
+		output.writeString(name);
+		output.writeRequestId(id);
+		output.writeVarLong(hits);
+		output.writeVarLong(durationsSum);
+		output.writeVarLong(durationsSquareSum);
+		output.writeVarLong(maximum);
+		output.writeVarLong(cpuTimeSum);
+		output.writeVarLong(systemErrors);
+		output.writeVarLong(responseSizesSum);
+		output.writeVarLong(childHits);
+		output.writeVarLong(childDurationsSum);
+		output.writeVarLong(fetchedRowsSum);
+		output.writeVarLong(fetchDurationsSum);
+		output.writeVarLong(hitsErrorBound);
+		output.writeString(stackTrace);
+		output.writeString(sampleName);
+		output.writeVarLong(batchHits);
+		output.writeVarLong(batchSizesSum);
+		output.writeVarLong(batchDurationsSum);
+		// pour les tableaux, listes et maps : taille + 1, ou 0 si null
+		if (batchSizesDistribution == null) {
+			output.writeVarInt(0);
+		} else {
+			output.writeVarInt(batchSizesDistribution.length + 1);
+			for (final long batchSizes : batchSizesDistribution) {
+				output.writeVarLong(batchSizes);
+			}
+		}
+		if (slowestExecutions == null) {
+			output.writeVarInt(0);
+		} else {
+			output.writeVarInt(slowestExecutions.size() + 1);
+			for (final SlowSqlExecution slowExecution : slowestExecutions) {
+				slowExecution.writeCompact(output);
+			}
+		}
+		durationsHistogram.writeCompact(output);
+		if (childRequestsExecutionsByRequestId == null) {
+			output.writeVarInt(0);
+		} else {
+			output.writeVarInt(childRequestsExecutionsByRequestId.size() + 1);
+			for (final Map.Entry<String, Long> entry : childRequestsExecutionsByRequestId
+					.entrySet()) {
+				output.writeRequestId(entry.getKey());
+				output.writeVarLong(entry.getValue());
+			}
+		}
+		if (suspectedNPlusOnesByRequestId == null) {
+			output.writeVarInt(0);
+		} else {
+			output.writeVarInt(suspectedNPlusOnesByRequestId.size() + 1);
+			for (final SuspectedNPlusOne suspect : suspectedNPlusOnesByRequestId.values()) {
+				suspect.writeCompact(output);
+			}
+		}
+	}
+
+	static CounterRequest readCompact(CompactCounter.CompactInput input) throws IOException {
+		final CounterRequest request = new CounterRequest(input);
+		request.hits = input.readVarLong();
+		request.durationsSum = input.readVarLong();
+		request.durationsSquareSum = input.readVarLong();
+		request.maximum = input.readVarLong();
+		request.cpuTimeSum = input.readVarLong();
+		request.systemErrors = input.readVarLong();
+		request.responseSizesSum = input.readVarLong();
+		request.childHits = input.readVarLong();
+		request.childDurationsSum = input.readVarLong();
+		request.fetchedRowsSum = input.readVarLong();
+		request.fetchDurationsSum = input.readVarLong();
+		request.hitsErrorBound = input.readVarLong();
+		request.stackTrace = input.readString();
+		request.sampleName = input.readString();
+		request.batchHits = input.readVarLong();
+		request.batchSizesSum = input.readVarLong();
+		request.batchDurationsSum = input.readVarLong();
+		final int batchSizesDistributionLength = input
+				.readNullableSize(BATCH_SIZE_LIMITS.length + 1);
+		if (batchSizesDistributionLength >= 0) {
+			request.batchSizesDistribution = new long[batchSizesDistributionLength];
+			for (int i = 0; i < batchSizesDistributionLength; i++) {
+				request.batchSizesDistribution[i] = input.readVarLong();
+			}
+		}
+		final int slowestExecutionsCount = input
+				.readNullableSize(SlowSqlExecution.MAX_SLOWEST_EXECUTIONS);
+		if (slowestExecutionsCount >= 0) {
+			request.slowestExecutions = new ArrayList<SlowSqlExecution>(slowestExecutionsCount);
+			for (int i = 0; i < slowestExecutionsCount; i++) {
+				request.slowestExecutions.add(SlowSqlExecution.readCompact(input));
+			}
+		}
+		request.durationsHistogram.readCompact(input);
+		final int childRequestsCount = input
+				.readNullableSize(CompactCounter.MAX_READ_REQUESTS_COUNT);
+		if (childRequestsCount >= 0) {
+			request.childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < childRequestsCount; i++) {
+				final String childRequestId = input.readRequestId();
+				request.childRequestsExecutionsByRequestId.put(childRequestId,
+						input.readVarLong());
+			}
+		}
+		final int suspectedNPlusOnesCount = input.readNullableSize(MAX_SUSPECTED_N_PLUS_ONES);
+		if (suspectedNPlusOnesCount >= 0) {
+			request.suspectedNPlusOnesByRequestId = new LinkedHashMap<String, SuspectedNPlusOne>();
+			for (int i = 0; i < suspectedNPlusOnesCount; i++) {
+				final SuspectedNPlusOne suspect = SuspectedNPlusOne.readCompact(input);
+				request.suspectedNPlusOnesByRequestId.put(suspect.getChildRequestId(), suspect);
+			}
+		}
+		return request;
+	}
+
+	private static String getId(String name, String counterName) {
+		SecondChanceCache<String, String> ids = IDS_BY_COUNTER_NAME.get(counterName);
+		if (ids == null) {
+			ids = new SecondChanceCache<String, String>(MAX_CACHED_IDS_BY_COUNTER);
+			final SecondChanceCache<String, String> precedentIds = IDS_BY_COUNTER_NAME
+					.putIfAbsent(counterName, ids);
+			if (precedentIds != null) {
+				ids = precedentIds;
+			}
+		}
+		String id = ids.get(name);
+		if (id == null) {
+			// si 2 threads calculent en même temps l'id pour le même nom, le résultat est le même
+			id = buildId(name, counterName);
+			ids.put(name, id);
+		}
+		return id;
+	}
+
 	// retourne l'id supposé unique de la requête pour le stockage
 	private static String buildId(String name, String counterName) {
-		final MessageDigest messageDigest = getMessageDigestInstance();
+		// digest() réinitialise l'instance de MessageDigest, qui peut donc être réutilisée par ce thread
+		final MessageDigest messageDigest = MESSAGE_DIGEST.get();
 		messageDigest.update(name.getBytes());
 		final byte[] digest = messageDigest.digest();
 
-		final StringBuilder sb = new StringBuilder(digest.length * 2);
+		final StringBuilder sb = new StringBuilder(counterName.length() + digest.length * 2);
 		sb.append(counterName);
-		// encodage en chaîne hexadécimale,
+		// encodage en chaîne hexadécimale (en minuscules),
 		// puisque les caractères bizarres ne peuvent être utilisés sur un système de fichiers
-		int j;
 		for (final byte element : digest) {
-			j = element < 0 ? 256 + element : element;
-			if (j < 16) {
-				sb.append('0');
-			}
-			sb.append(Integer.toHexString(j));
+			sb.append(HEX_DIGITS[element >> 4 & 0xF]).append(HEX_DIGITS[element & 0xF]);
 		}
 
 		return sb.toString();
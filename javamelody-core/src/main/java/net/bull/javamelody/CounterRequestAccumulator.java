@@ -0,0 +1,169 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Accumulateur sans verrou des hits d'une requête (mode "lock-free-counters").
+ *
+ * Les sommes sont réparties dans des cellules (à la manière de LongAdder du jdk 8, non disponible en jdk 7),
+ * dont le nombre augmente en cas de contention entre threads jusqu'au nombre de processeurs.
+ * Les valeurs ne sont cumulées dans les champs de CounterRequest que lors d'un clone (collecte ou rapport),
+ * les getters de CounterRequest les additionnant sinon champ par champ et sans allocation,
+ * et le maximum est maintenu par compareAndSet.
+ * @author Emeric Vernat
+ */
+final class CounterRequestAccumulator {
+	static final int HITS = 0;
+	static final int DURATIONS_SUM = 1;
+	static final int DURATIONS_SQUARE_SUM = 2;
+	static final int CPU_TIME_SUM = 3;
+	static final int SYSTEM_ERRORS = 4;
+	static final int RESPONSE_SIZES_SUM = 5;
+	static final int CHILD_HITS = 6;
+	static final int CHILD_DURATIONS_SUM = 7;
+	static final int FIELDS_COUNT = 8;
+
+	// les valeurs sont au milieu de chaque cellule, entourées de 8 longs (64 octets) de chaque côté,
+	// pour éviter le "false sharing" entre les lignes de cache des cellules voisines
+	private static final int PADDING = 8;
+	private static final int CELL_LENGTH = PADDING + FIELDS_COUNT + PADDING;
+	private static final int MAX_CELLS = getMaxCells();
+	// sonde par thread pour choisir une cellule, changée en cas de contention
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			final int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+			return new int[] { hash == 0 ? 1 : hash };
+		}
+	};
+
+	private final AtomicReference<AtomicLongArray[]> cellsReference = new AtomicReference<AtomicLongArray[]>(
+			new AtomicLongArray[] { new AtomicLongArray(CELL_LENGTH) });
+	private final AtomicLong maximum = new AtomicLong();
+
+	void addHit(long duration, long cpuTime, boolean systemError, int responseSize,
+			long childHits, long childDurationsSum) {
+		final AtomicLongArray cell = getCellForHit(duration);
+		cell.getAndAdd(PADDING + DURATIONS_SQUARE_SUM, duration * duration);
+		cell.getAndAdd(PADDING + CPU_TIME_SUM, cpuTime);
+		if (systemError) {
+			cell.getAndIncrement(PADDING + SYSTEM_ERRORS);
+		}
+		cell.getAndAdd(PADDING + RESPONSE_SIZES_SUM, responseSize);
+		if (childHits != 0) {
+			cell.getAndAdd(PADDING + CHILD_HITS, childHits);
+			cell.getAndAdd(PADDING + CHILD_DURATIONS_SUM, childDurationsSum);
+		}
+		// hits est incrémenté en dernier et lu en premier dans sum(),
+		// pour que chaque hit compté ait toutes ses sommes correspondantes
+		cell.getAndIncrement(PADDING + HITS);
+		long currentMaximum = maximum.get();
+		while (duration > currentMaximum) {
+			if (maximum.compareAndSet(currentMaximum, duration)) {
+				break;
+			}
+			currentMaximum = maximum.get();
+		}
+	}
+
+	private AtomicLongArray getCellForHit(long duration) {
+		final int[] probe = PROBE.get();
+		AtomicLongArray[] cells = cellsReference.get();
+		AtomicLongArray cell = cells[probe[0] & cells.length - 1];
+		final long durationsSum = cell.get(PADDING + DURATIONS_SUM);
+		if (!cell.compareAndSet(PADDING + DURATIONS_SUM, durationsSum, durationsSum + duration)) {
+			// contention sur cette cellule : on change de cellule pour ce thread
+			// et on augmente si possible le nombre de cellules
+			if (cells.length < MAX_CELLS) {
+				cells = grow(cells);
+			}
+			probe[0] = nextProbe(probe[0]);
+			cell = cells[probe[0] & cells.length - 1];
+			cell.getAndAdd(PADDING + DURATIONS_SUM, duration);
+		}
+		return cell;
+	}
+
+	private AtomicLongArray[] grow(AtomicLongArray[] cells) {
+		// les cellules existantes sont conservées dans le nouveau tableau, donc aucune valeur n'est perdue
+		final AtomicLongArray[] newCells = new AtomicLongArray[cells.length * 2];
+		System.arraycopy(cells, 0, newCells, 0, cells.length);
+		for (int i = cells.length; i < newCells.length; i++) {
+			newCells[i] = new AtomicLongArray(CELL_LENGTH);
+		}
+		if (cellsReference.compareAndSet(cells, newCells)) {
+			return newCells;
+		}
+		// un autre thread a déjà augmenté le nombre de cellules
+		return cellsReference.get();
+	}
+
+	/**
+	 * @return Sommes des cellules, indexées par HITS, DURATIONS_SUM, etc
+	 */
+	long[] sum() {
+		final long[] result = new long[FIELDS_COUNT];
+		for (final AtomicLongArray cell : cellsReference.get()) {
+			for (int i = 0; i < FIELDS_COUNT; i++) {
+				result[i] += cell.get(PADDING + i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param field HITS, DURATIONS_SUM, etc
+	 * @return Somme des cellules pour ce champ, sans allocation
+	 */
+	long sum(int field) {
+		long result = 0;
+		for (final AtomicLongArray cell : cellsReference.get()) {
+			result += cell.get(PADDING + field);
+		}
+		return result;
+	}
+
+	long getMaximum() {
+		return maximum.get();
+	}
+
+	int getCellsCount() {
+		return cellsReference.get().length;
+	}
+
+	private static int nextProbe(int probe) {
+		// xorshift
+		int result = probe ^ probe << 13;
+		result ^= result >>> 17;
+		result ^= result << 5;
+		return result;
+	}
+
+	private static int getMaxCells() {
+		final int availableProcessors = Runtime.getRuntime().availableProcessors();
+		int result = 1;
+		while (result < availableProcessors) {
+			result <<= 1;
+		}
+		return result;
+	}
+}
@@ -37,8 +37,11 @@ class CounterRequestAggregation {
 	private final int severeThreshold;
 	private final boolean responseSizeDisplayed;
 	private final boolean childHitsDisplayed;
+	private final boolean fetchedRowsDisplayed;
+	private final boolean batchesDisplayed;
 	private final boolean timesDisplayed;
 	private final boolean cpuTimesDisplayed;
+	private final boolean percentilesDisplayed;
 	private final CounterRequest warningRequest;
 	private final CounterRequest severeRequest;
 
@@ -64,8 +67,14 @@ class CounterRequestAggregation {
 		// (pour les requêtes sql par exemple)
 		this.responseSizeDisplayed = globalRequest.getResponseSizeMean() >= 0;
 		this.childHitsDisplayed = globalRequest.hasChildHits();
+		// lignes lues dans les resultSets, si le paramètre result-set-monitoring est ou a été actif
+		this.fetchedRowsDisplayed = globalRequest.hasFetchedRows();
+		this.batchesDisplayed = globalRequest.hasBatches();
 		this.timesDisplayed = globalRequest.getMean() >= 0;
 		this.cpuTimesDisplayed = globalRequest.getCpuTimeMean() >= 0;
+		// pas de centiles si les requêtes ont été lues depuis une version sans histogramme
+		this.percentilesDisplayed = timesDisplayed
+				&& globalRequest.getDurationsPercentile(50) >= 0;
 
 		// globalMean et globalStandardDeviation sont utilisées pour déterminer
 		// les seuils des couleurs des moyennes dans le tableau quand les paramètres
@@ -138,6 +147,14 @@ class CounterRequestAggregation {
 		return childHitsDisplayed;
 	}
 
+	boolean isFetchedRowsDisplayed() {
+		return fetchedRowsDisplayed;
+	}
+
+	boolean isBatchesDisplayed() {
+		return batchesDisplayed;
+	}
+
 	boolean isTimesDisplayed() {
 		return timesDisplayed;
 	}
@@ -146,6 +163,10 @@ class CounterRequestAggregation {
 		return cpuTimesDisplayed;
 	}
 
+	boolean isPercentilesDisplayed() {
+		return percentilesDisplayed;
+	}
+
 	List<CounterRequest> getRequestsAggregatedOrFilteredByClassName(String requestId) {
 		final List<CounterRequest> requestsAggregatedByClassName = getRequestsAggregatedByClassName();
 		final List<CounterRequest> requestList;
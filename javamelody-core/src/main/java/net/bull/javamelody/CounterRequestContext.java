@@ -52,6 +52,8 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 	private int childDurationsSum;
 	@SuppressWarnings("all")
 	private Map<String, Long> childRequestsExecutionsByRequestId;
+	// noms des requêtes filles exécutées plus de n-plus-one-threshold fois, par id (N+1 suspecté)
+	private transient Map<String, String> suspectedNPlusOneNamesByRequestId;
 
 	CounterRequestContext(Counter parentCounter, CounterRequestContext parentContext,
 			String requestName, String completeRequestName, String remoteUser, long startCpuTime) {
@@ -178,6 +180,17 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 		return childRequestsExecutionsByRequestId;
 	}
 
+	/**
+	 * @return Noms des requêtes filles exécutées plus de n-plus-one-threshold fois
+	 * dans ce contexte, par id
+	 */
+	Map<String, String> getSuspectedNPlusOneNamesByRequestId() {
+		if (suspectedNPlusOneNamesByRequestId == null) {
+			return Collections.emptyMap();
+		}
+		return suspectedNPlusOneNamesByRequestId;
+	}
+
 	int getTotalChildHits() {
 		// childHits de ce contexte plus tous ceux des contextes fils,
 		// il vaut mieux appeler cette méthode sur un clone du contexte pour avoir un résultat stable
@@ -248,13 +261,13 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 		// pour drill-down on conserve pour chaque requête mère, les requêtes filles appelées et le
 		// nombre d'exécutions pour chacune
 		if (parentContext == null) {
-			addChildRequestForDrillDown(requestId);
+			addChildRequestForDrillDown(request, requestId);
 		} else {
-			parentContext.addChildRequestForDrillDown(requestId);
+			parentContext.addChildRequestForDrillDown(request, requestId);
 		}
 	}
 
-	private void addChildRequestForDrillDown(String requestId) {
+	private void addChildRequestForDrillDown(String request, String requestId) {
 		if (childRequestsExecutionsByRequestId == null) {
 			childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>();
 		}
@@ -265,6 +278,15 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 			nbExecutions += 1;
 		}
 		childRequestsExecutionsByRequestId.put(requestId, nbExecutions);
+
+		final int nPlusOneThreshold = parentCounter.getNPlusOneThreshold();
+		if (nPlusOneThreshold > 0 && nbExecutions == nPlusOneThreshold + 1L) {
+			// seuil dépassé une première fois : la requête fille est suspectée de N+1
+			if (suspectedNPlusOneNamesByRequestId == null) {
+				suspectedNPlusOneNamesByRequestId = new LinkedHashMap<String, String>();
+			}
+			suspectedNPlusOneNamesByRequestId.put(requestId, request);
+		}
 	}
 
 	void closeChildContext() {
@@ -19,28 +19,72 @@ package net.bull.javamelody;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Classe chargée de l'enregistrement et de la lecture d'un counter.
+ *
+ * Avec le paramètre storage-format à "log", le fichier .ser.gz complet n'est pas réécrit à chaque fois :
+ * les requêtes modifiées depuis l'enregistrement précédent sont ajoutées à la fin d'un journal (extension .log),
+ * dont chaque enregistrement a sa taille et son CRC32 ; le journal est compacté dans le fichier .ser.gz
+ * quand il devient plus gros que celui-ci, ou quand des requêtes ont été supprimées.
+ * A la lecture, les enregistrements sont rejoués jusqu'au premier enregistrement incomplet
+ * (arrêt brutal pendant l'écriture), et le journal n'est utilisé que s'il correspond au fichier .ser.gz.
+ *
+ * Le fichier .ser.gz n'est jamais réécrit sur place : il est écrit dans un fichier temporaire (extension .tmp)
+ * synchronisé sur le disque, puis renommé de manière atomique, et la génération précédente est conservée
+ * (extension .bak). Le fichier commence par un en-tête avec version, taille et CRC32 des données compressées,
+ * et si le fichier est illisible, c'est la génération précédente qui est lue.
  * @author Emeric Vernat
  */
 class CounterStorage {
 	private static final int DEFAULT_OBSOLETE_STATS_DAYS = 365;
+	private static final String LOG_STORAGE_FORMAT = "log";
+	private static final String LOG_EXTENSION = ".log";
+	// en-tête du journal : identifiant, puis taille et date du fichier .ser.gz auquel le journal s'applique
+	// (identifiant "JML2" depuis que les requêtes du journal sont écrites sous forme compacte)
+	private static final int LOG_MAGIC = 0x4A4D4C32;
+	private static final int LOG_HEADER_LENGTH = 4 + 8 + 8;
+	// taille de chaque enregistrement du journal, puis CRC32
+	private static final int LOG_RECORD_HEADER_LENGTH = 4 + 4;
+	// taille en dessous de laquelle le journal n'est pas compacté, même si le fichier .ser.gz est plus petit
+	private static final long MIN_LOG_LENGTH_FOR_COMPACTION = 64 * 1024;
+	private static final String TMP_EXTENSION = ".tmp";
+	private static final String BACKUP_EXTENSION = ".bak";
+	// en-tête du fichier .ser.gz : identifiant, version, puis taille et CRC32 des données compressées
+	// (les fichiers des versions précédentes commencent directement par l'identifiant gzip 0x1f8b)
+	private static final int FILE_MAGIC = 0x4A4D5347;
+	private static final int FILE_VERSION = 1;
+	private static final int FILE_HEADER_LENGTH = 4 + 4 + 4 + 4;
 	private static boolean storageDisabled;
 	private final Counter counter;
+	private boolean logReadyForAppend;
 
 	/**
 	 * Constructeur.
@@ -71,23 +115,136 @@ class CounterStorage {
 		if (!directory.mkdirs() && !directory.exists()) {
 			throw new IOException("JavaMelody directory can't be created: " + directory.getPath());
 		}
-		final FileOutputStream out = new FileOutputStream(file);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final CounterResponseStream counterOutput = new CounterResponseStream(
+				new GZIPOutputStream(bytes));
+		final ObjectOutputStream counterObjectOutput = TransportFormat
+				.createObjectOutputStream(counterOutput);
 		try {
-			final CounterResponseStream counterOutput = new CounterResponseStream(
-					new GZIPOutputStream(new BufferedOutputStream(out)));
-			final ObjectOutputStream output = new ObjectOutputStream(counterOutput);
+			counterObjectOutput.writeObject(counter);
+		} finally {
+			// ce close libère les ressources du ObjectOutputStream et du GZIPOutputStream
+			counterObjectOutput.close();
+		}
+		final int dataLength = counterOutput.getDataLength();
+		writeFileAtomically(file, bytes.toByteArray());
+		final File logFile = getLogFile();
+		if (isLogStorageFormat()) {
+			// nouveau journal vide, qui s'applique au fichier qui vient d'être écrit
+			// (si arrêt brutal avant, l'ancien journal ne correspond plus à ce fichier et sera ignoré)
+			final DataOutputStream output = new DataOutputStream(new FileOutputStream(logFile));
 			try {
-				output.writeObject(counter);
+				output.writeInt(LOG_MAGIC);
+				output.writeLong(file.length());
+				output.writeLong(file.lastModified());
 			} finally {
-				// ce close libère les ressources du ObjectOutputStream et du GZIPOutputStream
 				output.close();
 			}
-			// retourne la taille sérialisée non compressée,
-			// qui est une estimation pessimiste de l'occupation mémoire
-			return counterOutput.getDataLength();
+		} else if (logFile.exists() && !logFile.delete()) {
+			LOG.debug("Counter log file can't be deleted: " + logFile.getPath());
+		}
+		// retourne la taille sérialisée non compressée,
+		// qui est une estimation pessimiste de l'occupation mémoire
+		return dataLength;
+	}
+
+	private static void writeFileAtomically(File file, byte[] data) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		final File tmpFile = new File(file.getPath() + TMP_EXTENSION);
+		final FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+			output.writeInt(FILE_MAGIC);
+			output.writeInt(FILE_VERSION);
+			output.writeInt(data.length);
+			output.writeInt((int) crc.getValue());
+			output.write(data);
+			output.flush();
+			// synchronisation sur le disque avant le renommage,
+			// pour que le fichier renommé soit complet même en cas d'arrêt brutal du système
+			out.getFD().sync();
 		} finally {
 			out.close();
 		}
+		if (file.exists()) {
+			// la génération précédente est conservée pour être lue si le nouveau fichier est illisible,
+			// par un lien physique ou sinon une copie, pour que le fichier existe toujours
+			// et que le remplacement ci-dessous soit un seul renommage atomique
+			createBackupFile(file);
+		}
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void createBackupFile(File file) throws IOException {
+		final Path backupPath = getBackupFile(file).toPath();
+		Files.deleteIfExists(backupPath);
+		try {
+			Files.createLink(backupPath, file.toPath());
+		} catch (final UnsupportedOperationException e) {
+			copyToBackupFile(file, backupPath);
+		} catch (final IOException e) {
+			// liens physiques non supportés par ce système de fichiers par exemple
+			copyToBackupFile(file, backupPath);
+		}
+	}
+
+	private static void copyToBackupFile(File file, Path backupPath) throws IOException {
+		// la date de modification est conservée, pour que l'en-tête du journal corresponde à la copie
+		Files.copy(file.toPath(), backupPath, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.COPY_ATTRIBUTES);
+	}
+
+	/**
+	 * Ajoute à la fin du journal des requêtes modifiées et des erreurs (paramètre storage-format à "log").
+	 * @param requests Requêtes modifiées depuis l'enregistrement précédent
+	 * @param errors Erreurs ajoutées depuis l'enregistrement précédent
+	 * @return false si le journal doit être compacté, c'est-à-dire si le counter doit être enregistré en entier
+	 * @throws IOException Exception d'entrée/sortie
+	 */
+	boolean appendToLog(List<CounterRequest> requests, List<CounterError> errors)
+			throws IOException {
+		if (storageDisabled) {
+			return true;
+		}
+		final File file = getFile();
+		final File logFile = getLogFile();
+		if (!file.exists() || !logFile.exists()
+				|| logFile.length() > Math.max(file.length(), MIN_LOG_LENGTH_FOR_COMPACTION)
+				|| !isLogHeaderValid(file, logFile)) {
+			return false;
+		}
+		if (requests.isEmpty() && errors.isEmpty()) {
+			return true;
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream recordOutput = new ObjectOutputStream(
+				new DeflaterOutputStream(bytes));
+		try {
+			recordOutput.writeLong(counter.getStartDate().getTime());
+			CompactCounter.writeRequests(recordOutput, requests);
+			recordOutput.writeObject(new ArrayList<CounterError>(errors));
+		} finally {
+			recordOutput.close();
+		}
+		final byte[] record = bytes.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(record);
+		final DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(logFile, true)));
+		try {
+			output.writeInt(record.length);
+			output.writeInt((int) crc.getValue());
+			output.write(record);
+		} finally {
+			output.close();
+		}
+		return true;
 	}
 
 	/**
@@ -100,33 +257,190 @@ class CounterStorage {
 			return null;
 		}
 		final File file = getFile();
+		final File backupFile = getBackupFile(file);
 		if (file.exists()) {
-			final FileInputStream in = new FileInputStream(file);
+			final Counter result;
 			try {
-				final ObjectInputStream input = TransportFormat
-						.createObjectInputStream(new GZIPInputStream(new BufferedInputStream(in)));
-				try {
-					// on retourne l'instance du counter lue
-					return (Counter) input.readObject();
-				} finally {
-					// ce close libère les ressources du ObjectInputStream et du GZIPInputStream
-					input.close();
+				result = readCounterFile(file);
+			} catch (final IOException e) {
+				if (!backupFile.exists()) {
+					throw e;
 				}
-			} catch (final ClassNotFoundException e) {
-				throw new IOException(e.getMessage(), e);
-			} finally {
-				in.close();
+				// fichier illisible (écrit sur place par une version précédente lors d'un arrêt brutal par exemple) :
+				// on lit la génération précédente
+				LOG.info("read of a counter file failed, reading the previous one: " + file.getPath(),
+						e);
+				return readBackupFile(backupFile);
+			}
+			// on rejoue l'éventuel journal des requêtes modifiées depuis l'écriture de ce fichier
+			final File logFile = getLogFile();
+			if (logFile.exists() && isLogHeaderValid(file, logFile)) {
+				logReadyForAppend = replayLog(logFile, result);
 			}
+			// on retourne l'instance du counter lue
+			return result;
+		} else if (backupFile.exists()) {
+			// fichier supprimé sans la génération précédente
+			return readBackupFile(backupFile);
 		}
 		// ou on retourne null si le fichier n'existe pas
 		return null;
 	}
 
+	private Counter readBackupFile(File backupFile) throws IOException {
+		final Counter result = readCounterFile(backupFile);
+		// le journal correspond à la génération précédente si l'écriture du nouveau fichier
+		// n'a pas été suivie de celle du nouveau journal : on le rejoue alors, mais sans y ajouter ensuite
+		// car son en-tête ne correspond pas au fichier qui sera écrit (logReadyForAppend reste false)
+		final File logFile = getLogFile();
+		if (logFile.exists() && isLogHeaderValid(backupFile, logFile)) {
+			replayLog(logFile, result);
+		}
+		return result;
+	}
+
+	private static Counter readCounterFile(File file) throws IOException {
+		final DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			input.mark(FILE_HEADER_LENGTH);
+			final byte[] data;
+			if (input.readInt() == FILE_MAGIC) {
+				final int version = input.readInt();
+				if (version > FILE_VERSION) {
+					throw new IOException("Unsupported version " + version + " of counter file "
+							+ file.getPath());
+				}
+				final int length = input.readInt();
+				final int checksum = input.readInt();
+				if (length < 0 || length > file.length() - FILE_HEADER_LENGTH) {
+					throw new IOException("Incomplete counter file " + file.getPath());
+				}
+				data = new byte[length];
+				input.readFully(data);
+				final CRC32 crc = new CRC32();
+				crc.update(data);
+				if ((int) crc.getValue() != checksum) {
+					throw new IOException("Invalid checksum of counter file " + file.getPath());
+				}
+				return readCounter(new ByteArrayInputStream(data));
+			}
+			// fichier sans en-tête d'une version précédente
+			input.reset();
+			return readCounter(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static Counter readCounter(InputStream in) throws IOException {
+		final ObjectInputStream input = TransportFormat
+				.createObjectInputStream(new GZIPInputStream(in));
+		try {
+			return (Counter) input.readObject();
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			// ce close libère les ressources du ObjectInputStream et du GZIPInputStream
+			input.close();
+		}
+	}
+
+	/**
+	 * @return true si le journal lu par readFromFile était complet et si le format est "log",
+	 * c'est-à-dire si les prochains enregistrements peuvent y être ajoutés
+	 */
+	boolean isLogReadyForAppend() {
+		return logReadyForAppend && isLogStorageFormat();
+	}
+
+	private static boolean replayLog(File logFile, Counter counter) throws IOException {
+		final long logLength = logFile.length();
+		final DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(logFile)));
+		try {
+			input.readFully(new byte[LOG_HEADER_LENGTH]);
+			long position = LOG_HEADER_LENGTH;
+			while (position < logLength) {
+				if (logLength - position < LOG_RECORD_HEADER_LENGTH) {
+					return false;
+				}
+				final int length = input.readInt();
+				final int checksum = input.readInt();
+				position += LOG_RECORD_HEADER_LENGTH;
+				if (length <= 0 || length > logLength - position) {
+					// enregistrement incomplet, écrit lors d'un arrêt brutal
+					return false;
+				}
+				final byte[] record = new byte[length];
+				input.readFully(record);
+				position += length;
+				final CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != checksum) {
+					return false;
+				}
+				applyLogRecord(record, counter);
+			}
+			return true;
+		} finally {
+			input.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void applyLogRecord(byte[] record, Counter counter) throws IOException {
+		final ObjectInputStream input = TransportFormat
+				.createObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(record)));
+		try {
+			counter.setStartDate(new Date(input.readLong()));
+			for (final CounterRequest request : CompactCounter.readRequests(input)) {
+				// l'enregistrement contient l'état complet de la requête, qui remplace l'état précédent
+				counter.removeRequest(request.getName());
+				counter.addHits(request);
+			}
+			final List<CounterError> errors = (List<CounterError>) input.readObject();
+			if (!errors.isEmpty()) {
+				counter.addErrors(errors);
+			}
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static boolean isLogHeaderValid(File file, File logFile) throws IOException {
+		if (logFile.length() < LOG_HEADER_LENGTH) {
+			return false;
+		}
+		final DataInputStream input = new DataInputStream(new FileInputStream(logFile));
+		try {
+			return input.readInt() == LOG_MAGIC && input.readLong() == file.length()
+					&& input.readLong() == file.lastModified();
+		} finally {
+			input.close();
+		}
+	}
+
+	static boolean isLogStorageFormat() {
+		return LOG_STORAGE_FORMAT.equalsIgnoreCase(Parameters.getParameter(Parameter.STORAGE_FORMAT));
+	}
+
 	private File getFile() {
 		final File storageDirectory = Parameters.getStorageDirectory(counter.getApplication());
 		return new File(storageDirectory, counter.getStorageName() + ".ser.gz");
 	}
 
+	private static File getBackupFile(File file) {
+		return new File(file.getPath() + BACKUP_EXTENSION);
+	}
+
+	private File getLogFile() {
+		final File storageDirectory = Parameters.getStorageDirectory(counter.getApplication());
+		return new File(storageDirectory, counter.getStorageName() + LOG_EXTENSION);
+	}
+
 	static long deleteObsoleteCounterFiles(String application) {
 		final Calendar nowMinusOneYearAndADay = Calendar.getInstance();
 		nowMinusOneYearAndADay.add(Calendar.DAY_OF_YEAR, -getObsoleteStatsDays());
@@ -172,7 +486,9 @@ class CounterStorage {
 			/** {@inheritDoc} */
 			@Override
 			public boolean accept(File dir, String fileName) {
-				return fileName.endsWith(".ser.gz");
+				return fileName.endsWith(".ser.gz") || fileName.endsWith(LOG_EXTENSION)
+						|| fileName.endsWith(".ser.gz" + BACKUP_EXTENSION)
+						|| fileName.endsWith(".ser.gz" + TMP_EXTENSION);
 			}
 		};
 		final File[] files = storageDir.listFiles(filenameFilter);
@@ -371,8 +371,10 @@ class DatabaseInformations implements Serializable {
 		// (donc les requêtes "explain ..." seront ignorées dans JdbcWrapper)
 		int i = 1;
 		String request = sqlRequest;
-		if (Parameters.getParameter(Parameter.SQL_TRANSFORM_PATTERN) != null) {
-			// si les requêtes SQL peuvent avoir été transformées par SQL_TRANSFORM_PATTERN,
+		if (Parameters.getParameter(Parameter.SQL_TRANSFORM_PATTERN) != null
+				|| Parameters.isCounterNormalized(Counter.SQL_COUNTER_NAME)) {
+			// si les requêtes SQL peuvent avoir été transformées par SQL_TRANSFORM_PATTERN
+			// ou normalisées par NORMALIZED_COUNTERS,
 			// alors on remplace le '$' par '?' en espérant avec un plan d'exécution même simplifié
 			// (sinon, il serait impossible d'avoir un plan d'exécution pour certaines requêtes SQL
 			// transformées par SQL_TRANSFORM_PATTERN)
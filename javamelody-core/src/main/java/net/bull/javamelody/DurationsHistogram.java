@@ -0,0 +1,278 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Histogramme des temps d'exécution d'une requête, avec des intervalles logarithmiques
+ * à la manière de HdrHistogram, pour calculer les centiles (p50, p90, p99, p99.9).
+ *
+ * Les temps de 0 à 7 ms ont chacun leur intervalle, puis chaque puissance de 2 est découpée
+ * en 8 intervalles, soit une erreur relative d'au plus 12,5 % sur les centiles.
+ * La mémoire est fixe et réduite : les intervalles d'une puissance de 2 ne sont alloués
+ * qu'au premier temps dans cette puissance de 2.
+ * L'enregistrement d'un temps est sans verrou, et les histogrammes s'additionnent et se soustraient
+ * comme les autres sommes de CounterRequest. Seuls les intervalles non vides sont sérialisés.
+ * @author Emeric Vernat
+ */
+final class DurationsHistogram implements Serializable {
+	/**
+	 * Centiles affichés dans les rapports.
+	 */
+	static final double[] DISPLAYED_PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private static final long serialVersionUID = 1L;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS_COUNT = 1 << SUB_BUCKET_BITS;
+	// au-delà de 2^35 ms (plus d'un an), les temps sont comptés dans le dernier intervalle
+	private static final int OCTAVES_COUNT = 34;
+	private static final int BUCKETS_COUNT = OCTAVES_COUNT * SUB_BUCKETS_COUNT;
+
+	private transient AtomicReferenceArray<AtomicLongArray> octaves = new AtomicReferenceArray<AtomicLongArray>(
+			OCTAVES_COUNT);
+
+	/**
+	 * @param percentile Centile, par exemple 99.9
+	 * @return Libellé du centile, par exemple "p99.9"
+	 */
+	static String getPercentileLabel(double percentile) {
+		if (percentile == Math.rint(percentile)) {
+			return "p" + (long) percentile;
+		}
+		return "p" + percentile;
+	}
+
+	void record(long duration) {
+		increment(getBucketIndex(duration), 1);
+	}
+
+	void add(DurationsHistogram histogram) {
+		for (int octave = 0; octave < OCTAVES_COUNT; octave++) {
+			final AtomicLongArray counts = histogram.octaves.get(octave);
+			if (counts != null) {
+				for (int i = 0; i < SUB_BUCKETS_COUNT; i++) {
+					final long count = counts.get(i);
+					if (count != 0) {
+						increment(octave * SUB_BUCKETS_COUNT + i, count);
+					}
+				}
+			}
+		}
+	}
+
+	void remove(DurationsHistogram histogram) {
+		for (int octave = 0; octave < OCTAVES_COUNT; octave++) {
+			final AtomicLongArray removedCounts = histogram.octaves.get(octave);
+			final AtomicLongArray counts = octaves.get(octave);
+			if (removedCounts != null && counts != null) {
+				for (int i = 0; i < SUB_BUCKETS_COUNT; i++) {
+					// pas de compte négatif si l'histogramme n'a pas toutes les valeurs retirées
+					// (CounterRequest lu depuis une version sans histogramme par exemple)
+					counts.set(i, Math.max(counts.get(i) - removedCounts.get(i), 0));
+				}
+			}
+		}
+	}
+
+	DurationsHistogram copy() {
+		final DurationsHistogram result = new DurationsHistogram();
+		result.add(this);
+		return result;
+	}
+
+	long getTotalCount() {
+		long result = 0;
+		for (int octave = 0; octave < OCTAVES_COUNT; octave++) {
+			final AtomicLongArray counts = octaves.get(octave);
+			if (counts != null) {
+				for (int i = 0; i < SUB_BUCKETS_COUNT; i++) {
+					result += counts.get(i);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param percentile Centile entre 0 et 100, par exemple 99.9
+	 * @return Plus grand temps de l'intervalle contenant ce centile, ou -1 si l'histogramme est vide
+	 */
+	long getValueAtPercentile(double percentile) {
+		assert percentile >= 0 && percentile <= 100;
+		final long totalCount = getTotalCount();
+		if (totalCount == 0) {
+			return -1;
+		}
+		final long countAtPercentile = Math.max((long) Math.ceil(percentile * totalCount / 100),
+				1);
+		long count = 0;
+		for (int octave = 0; octave < OCTAVES_COUNT; octave++) {
+			final AtomicLongArray counts = octaves.get(octave);
+			if (counts != null) {
+				for (int i = 0; i < SUB_BUCKETS_COUNT; i++) {
+					count += counts.get(i);
+					if (count >= countAtPercentile) {
+						return getHighestValueInBucket(octave * SUB_BUCKETS_COUNT + i);
+					}
+				}
+			}
+		}
+		// les comptes ont changé pendant le parcours (enregistrements concurrents)
+		return getHighestValue();
+	}
+
+	/**
+	 * @return Plus grand temps de l'intervalle non vide le plus haut, ou -1 si l'histogramme est vide
+	 */
+	long getHighestValue() {
+		for (int octave = OCTAVES_COUNT - 1; octave >= 0; octave--) {
+			final AtomicLongArray counts = octaves.get(octave);
+			if (counts != null) {
+				for (int i = SUB_BUCKETS_COUNT - 1; i >= 0; i--) {
+					if (counts.get(i) != 0) {
+						return getHighestValueInBucket(octave * SUB_BUCKETS_COUNT + i);
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void increment(int bucketIndex, long count) {
+		final int octave = bucketIndex >>> SUB_BUCKET_BITS;
+		AtomicLongArray counts = octaves.get(octave);
+		if (counts == null) {
+			octaves.compareAndSet(octave, null, new AtomicLongArray(SUB_BUCKETS_COUNT));
+			counts = octaves.get(octave);
+		}
+		counts.getAndAdd(bucketIndex & SUB_BUCKETS_COUNT - 1, count);
+	}
+
+	static int getBucketIndex(long duration) {
+		if (duration < SUB_BUCKETS_COUNT) {
+			// temps négatif impossible en principe, compté avec 0
+			return (int) Math.max(duration, 0);
+		}
+		// puissance de 2 du temps, puis intervalle dans cette puissance de 2 selon les bits suivants
+		final int exponent = 63 - Long.numberOfLeadingZeros(duration);
+		final int octave = exponent - SUB_BUCKET_BITS + 1;
+		if (octave >= OCTAVES_COUNT) {
+			return BUCKETS_COUNT - 1;
+		}
+		final int subBucket = (int) (duration >>> exponent - SUB_BUCKET_BITS)
+				& SUB_BUCKETS_COUNT - 1;
+		return octave * SUB_BUCKETS_COUNT + subBucket;
+	}
+
+	static long getHighestValueInBucket(int bucketIndex) {
+		final int octave = bucketIndex >>> SUB_BUCKET_BITS;
+		final int subBucket = bucketIndex & SUB_BUCKETS_COUNT - 1;
+		if (octave == 0) {
+			return subBucket;
+		}
+		return ((long) (SUB_BUCKETS_COUNT + subBucket + 1) << octave - 1) - 1;
+	}
+
+	void writeCompact(CompactCounter.CompactOutput output) throws IOException {
+		// nombre d'intervalles non vides, puis écart d'index avec l'intervalle précédent et compte de chacun
+		int nonEmptyBucketsCount = 0;
+		final long[] counts = getBucketCounts();
+		for (final long count : counts) {
+			if (count != 0) {
+				nonEmptyBucketsCount++;
+			}
+		}
+		output.writeVarInt(nonEmptyBucketsCount);
+		int previousIndex = 0;
+		for (int i = 0; i < BUCKETS_COUNT; i++) {
+			if (counts[i] != 0) {
+				output.writeVarInt(i - previousIndex);
+				output.writeVarLong(counts[i]);
+				previousIndex = i;
+			}
+		}
+	}
+
+	void readCompact(CompactCounter.CompactInput input) throws IOException {
+		final int nonEmptyBucketsCount = input.readSize(BUCKETS_COUNT);
+		int bucketIndex = 0;
+		for (int i = 0; i < nonEmptyBucketsCount; i++) {
+			bucketIndex += input.readVarInt();
+			final long count = input.readVarLong();
+			if (bucketIndex >= 0 && bucketIndex < BUCKETS_COUNT) {
+				increment(bucketIndex, count);
+			}
+		}
+	}
+
+	private long[] getBucketCounts() {
+		final long[] counts = new long[BUCKETS_COUNT];
+		for (int i = 0; i < BUCKETS_COUNT; i++) {
+			final AtomicLongArray octaveCounts = octaves.get(i >>> SUB_BUCKET_BITS);
+			if (octaveCounts != null) {
+				counts[i] = octaveCounts.get(i & SUB_BUCKETS_COUNT - 1);
+			}
+		}
+		return counts;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		// nombre d'intervalles non vides, puis index et compte de chacun
+		int nonEmptyBucketsCount = 0;
+		final long[] counts = getBucketCounts();
+		for (final long count : counts) {
+			if (count != 0) {
+				nonEmptyBucketsCount++;
+			}
+		}
+		out.writeShort(nonEmptyBucketsCount);
+		for (int i = 0; i < BUCKETS_COUNT; i++) {
+			if (counts[i] != 0) {
+				out.writeShort(i);
+				out.writeLong(counts[i]);
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		octaves = new AtomicReferenceArray<AtomicLongArray>(OCTAVES_COUNT);
+		final int nonEmptyBucketsCount = in.readShort();
+		for (int i = 0; i < nonEmptyBucketsCount; i++) {
+			final int bucketIndex = in.readShort();
+			final long count = in.readLong();
+			if (bucketIndex >= 0 && bucketIndex < BUCKETS_COUNT) {
+				increment(bucketIndex, count);
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[totalCount=" + getTotalCount() + ", p50="
+				+ getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99) + ']';
+	}
+}
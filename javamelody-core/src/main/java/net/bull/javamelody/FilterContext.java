@@ -40,6 +40,7 @@ public class FilterContext {
 	private final Timer timer;
 	private final SamplingProfiler samplingProfiler;
 	private final TimerTask collectTimerTask;
+	private final AsyncRecorder asyncRecorder;
 	private static FilterContext filterContext;
 
 	private static final class CollectTimerTask extends TimerTask {
@@ -53,6 +54,8 @@ public class FilterContext {
 		/** {@inheritDoc} */
 		@Override
 		public void run() {
+			// les propriétés systèmes ont pu être modifiées depuis la collecte précédente
+			Parameters.parametersChanged();
 			// il ne doit pas y avoir d'erreur dans cette task
 			collector.collectLocalContextWithoutErrors();
 		}
@@ -110,6 +113,7 @@ public class FilterContext {
 			final String application = Parameters.getCurrentApplication();
 			this.collector = new Collector(application, counters, this.samplingProfiler);
 			this.collectTimerTask = new CollectTimerTask(collector);
+			this.asyncRecorder = initAsyncRecorder();
 
 			initCollect();
 
@@ -127,6 +131,8 @@ public class FilterContext {
 	private static List<Counter> initCounters() {
 		// liaison des compteurs : les contextes par thread du sqlCounter ont pour parent le httpCounter
 		final Counter sqlCounter = JdbcWrapper.SINGLETON.getSqlCounter();
+		final Counter poolCounter = JdbcWrapper.SINGLETON.getPoolCounter();
+		final Counter transactionCounter = JdbcWrapper.SINGLETON.getTransactionCounter();
 		final Counter httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png", sqlCounter);
 		final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, "error.png");
 		errorCounter.setMaxRequestsCount(250);
@@ -143,21 +149,37 @@ public class FilterContext {
 		final List<Counter> counters;
 		if (JobInformations.QUARTZ_AVAILABLE) {
 			final Counter jobCounter = JobGlobalListener.getJobCounter();
-			counters = Arrays.asList(httpCounter, sqlCounter, jpaCounter, ejbCounter, springCounter,
-					guiceCounter, servicesCounter, strutsCounter, jsfCounter, jspCounter,
-					errorCounter, logCounter, jobCounter);
+			counters = Arrays.asList(httpCounter, sqlCounter, poolCounter, transactionCounter,
+					jpaCounter, ejbCounter, springCounter, guiceCounter, servicesCounter,
+					strutsCounter, jsfCounter, jspCounter, errorCounter, logCounter, jobCounter);
 		} else {
-			counters = Arrays.asList(httpCounter, sqlCounter, jpaCounter, ejbCounter, springCounter,
-					guiceCounter, servicesCounter, strutsCounter, jsfCounter, jspCounter,
-					errorCounter, logCounter);
+			counters = Arrays.asList(httpCounter, sqlCounter, poolCounter, transactionCounter,
+					jpaCounter, ejbCounter, springCounter, guiceCounter, servicesCounter,
+					strutsCounter, jsfCounter, jspCounter, errorCounter, logCounter);
 		}
 
 		setRequestTransformPatterns(counters);
+		if (Boolean.parseBoolean(Parameters.getParameter(Parameter.LOCK_FREE_COUNTERS))) {
+			for (final Counter counter : counters) {
+				counter.setLockFreeRecording(true);
+			}
+		}
+		for (final Counter counter : counters) {
+			counter.setHeavyHittersEnabled(Parameters.isCounterWithHeavyHitters(counter.getName()));
+		}
+		final String nPlusOneThreshold = Parameters.getParameter(Parameter.N_PLUS_ONE_THRESHOLD);
+		if (nPlusOneThreshold != null) {
+			for (final Counter counter : counters) {
+				counter.setNPlusOneThreshold(Integer.parseInt(nPlusOneThreshold.trim()));
+			}
+		}
 		final String displayedCounters = Parameters.getParameter(Parameter.DISPLAYED_COUNTERS);
 		if (displayedCounters == null) {
 			// par défaut, les compteurs http, sql, error et log (et ceux qui sont utilisés) sont affichés
 			httpCounter.setDisplayed(true);
 			sqlCounter.setDisplayed(!Parameters.isNoDatabase());
+			poolCounter.setDisplayed(poolCounter.isUsed());
+			transactionCounter.setDisplayed(transactionCounter.isUsed());
 			errorCounter.setDisplayed(true);
 			logCounter.setDisplayed(true);
 			jpaCounter.setDisplayed(jpaCounter.isUsed());
@@ -185,6 +207,15 @@ public class FilterContext {
 						Pattern.MULTILINE | Pattern.DOTALL);
 				counter.setRequestTransformPattern(pattern);
 			}
+			if ((Counter.SQL_COUNTER_NAME.equals(counter.getName())
+					|| Counter.TRANSACTION_COUNTER_NAME.equals(counter.getName()))
+					&& Boolean.parseBoolean(Parameters.getParameter(Parameter.SQL_FINGERPRINT))) {
+				counter.setRequestNameNormalizer(
+						new RequestNameNormalizer(counter.getRequestTransformPattern(), true));
+			} else if (Parameters.isCounterNormalized(counter.getName())) {
+				counter.setRequestNameNormalizer(
+						new RequestNameNormalizer(counter.getRequestTransformPattern()));
+			}
 		}
 	}
 
@@ -253,6 +284,15 @@ public class FilterContext {
 		}
 	}
 
+	private static AsyncRecorder initAsyncRecorder() {
+		if (Boolean.parseBoolean(Parameters.getParameter(Parameter.ASYNC_RECORDING))) {
+			final AsyncRecorder recorder = new AsyncRecorder(AsyncRecorder.DEFAULT_CAPACITY);
+			recorder.start();
+			return recorder;
+		}
+		return null;
+	}
+
 	private SamplingProfiler initSamplingProfiler() {
 		if (Parameters.getParameter(Parameter.SAMPLING_SECONDS) != null) {
 			final SamplingProfiler sampler;
@@ -365,6 +405,10 @@ public class FilterContext {
 	}
 
 	void destroy() {
+		if (asyncRecorder != null) {
+			// les requêtes en attente sont enregistrées avant le rapport et la persistance des compteurs
+			asyncRecorder.stop();
+		}
 		try {
 			try {
 				if (collector != null) {
@@ -401,6 +445,7 @@ public class FilterContext {
 			}
 			Collector.stopJRobin();
 			Collector.detachVirtualMachine();
+			StackTraceStore.clear();
 		}
 	}
 
@@ -436,6 +481,10 @@ public class FilterContext {
 		return collector;
 	}
 
+	AsyncRecorder getAsyncRecorder() {
+		return asyncRecorder;
+	}
+
 	Timer getTimer() {
 		return timer;
 	}
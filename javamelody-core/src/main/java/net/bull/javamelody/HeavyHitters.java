@@ -0,0 +1,390 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Mode "heavy hitters" d'un compteur (paramètre heavy-hitters-counters), pour borner strictement
+ * la mémoire même si les requêtes sont toutes différentes (sql non bindé par exemple).
+ *
+ * Selon l'algorithme Space-Saving, le compteur conserve au plus maxRequestsCount requêtes,
+ * dont la requête "(other requests)". Quand le compteur est plein, une nouvelle requête
+ * ne remplace la requête conservée la moins fréquente que si sa fréquence estimée est plus grande.
+ * Cette fréquence est estimée par un sketch count-min, de mémoire fixe et alloué seulement
+ * quand le compteur est plein. Les hits des requêtes non conservées ou évincées sont cumulés
+ * dans la requête "(other requests)" au lieu d'être perdus, et chaque requête conservée indique
+ * le nombre maximum de ses hits qui ont été comptés dans "(other requests)" avant qu'elle soit conservée.
+ *
+ * La requête conservée la moins fréquente est trouvée avec un tas (en O(log n)) dont les fréquences
+ * sont des minorants, mises à jour seulement quand la requête arrive en tête du tas.
+ * Les hits ajoutés à une requête évincée par les threads qui avaient obtenu son instance juste avant
+ * l'éviction sont reportés dans "(other requests)" par {@link #addLateHitsOfEvictedRequests}.
+ *
+ * Cette classe n'intervient que pour une requête non encore conservée, jamais pour les hits
+ * des requêtes déjà conservées. Quand le compteur est plein, le cas le plus fréquent (une requête
+ * peu fréquente qui n'est pas admise) est sans verrou : mise à jour du sketch par compare-and-set
+ * et lecture volatile du minorant, le verrou n'étant pris que pour une admission ou une éviction.
+ * Quand autant de requêtes ont été évincées que le compteur peut en conserver, les compteurs du sketch
+ * sont divisés par 2 : sans ce vieillissement, les fréquences estimées des nouvelles requêtes augmentent
+ * avec le nombre de requêtes différentes jusqu'à dépasser celles des requêtes conservées, qui seraient alors
+ * évincées à presque chaque nouvelle requête. Avec ce vieillissement et les mises à jour concurrentes du sketch,
+ * le nombre de hits comptés dans "(other requests)" indiqué par une requête conservée est une estimation.
+ * @author Emeric Vernat
+ */
+final class HeavyHitters {
+	/**
+	 * Nom de la requête cumulant les hits des requêtes non conservées.
+	 */
+	static final String OTHER_REQUESTS_NAME = "(other requests)";
+
+	private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+	// durée pendant laquelle les hits tardifs d'une requête évincée sont reportés dans "(other requests)"
+	private static final long EVICTED_REQUESTS_RETENTION_MILLIS = 60 * 1000;
+	private static final int MAX_EVICTED_REQUESTS = 1000;
+
+	// compteurs du sketch count-min, en SEEDS.length lignes de même nombre (puissance de 2) de colonnes,
+	// null tant que le compteur n'est pas plein
+	private volatile AtomicIntegerArray sketch;
+	// minorant de la fréquence estimée de la requête conservée la moins fréquente,
+	// pour ne pas parcourir les requêtes à chaque nouvelle requête peu fréquente
+	private volatile long minEstimate;
+	// nombre de requêtes évincées depuis le dernier vieillissement du sketch
+	private int evictionsSinceAging;
+	// requêtes conservées (sauf "(other requests)") par fréquence estimée minorée croissante,
+	// null tant que le compteur n'est pas plein ou après une suppression de requêtes par le counter
+	private PriorityQueue<RequestEstimate> requestEstimates;
+	private final List<EvictedRequest> evictedRequests = new ArrayList<EvictedRequest>();
+
+	/**
+	 * Requête conservée avec un minorant de sa fréquence estimée
+	 * (la fréquence d'une requête conservée ne fait qu'augmenter).
+	 */
+	private static final class RequestEstimate {
+		final CounterRequest request;
+		long estimate;
+
+		RequestEstimate(CounterRequest request) {
+			super();
+			this.request = request;
+			this.estimate = getEstimate(request);
+		}
+	}
+
+	/**
+	 * Comparateur par fréquence estimée croissante.
+	 */
+	private static final class RequestEstimateComparator implements Comparator<RequestEstimate> {
+		RequestEstimateComparator() {
+			super();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int compare(RequestEstimate estimate1, RequestEstimate estimate2) {
+			if (estimate1.estimate < estimate2.estimate) {
+				return -1;
+			} else if (estimate1.estimate > estimate2.estimate) {
+				return 1;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Requête évincée, avec l'état déjà reporté dans "(other requests)".
+	 */
+	private static final class EvictedRequest {
+		final CounterRequest request;
+		final long evictionTime;
+		CounterRequest reportedRequest;
+
+		EvictedRequest(CounterRequest request, CounterRequest reportedRequest) {
+			super();
+			this.request = request;
+			this.reportedRequest = reportedRequest;
+			this.evictionTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Retourne la requête à laquelle ajouter des hits pour une requête non conservée dans le compteur :
+	 * la requête de ce nom si elle est admise (en évinçant si besoin la moins fréquente),
+	 * ou sinon la requête "(other requests)".
+	 * @param counter Compteur
+	 * @param requests Requêtes du compteur
+	 * @param requestName Nom de la requête
+	 * @param hits Nombre de hits à ajouter
+	 * @return CounterRequest
+	 */
+	CounterRequest getRequestForHits(Counter counter,
+			ConcurrentMap<String, CounterRequest> requests, String requestName, long hits) {
+		final AtomicIntegerArray currentSketch = sketch;
+		if (currentSketch != null && requests.size() >= counter.getMaxRequestsCount()
+				&& !OTHER_REQUESTS_NAME.equals(requestName)) {
+			final CounterRequest otherRequest = requests.get(OTHER_REQUESTS_NAME);
+			if (otherRequest != null) {
+				// sans verrou, car presque toutes les requêtes sont dans ce cas si elles sont toutes différentes
+				final long estimate = increment(currentSketch, requestName, hits);
+				if (estimate <= minEstimate) {
+					return otherRequest;
+				}
+				return getRequestForHits(counter, requests, requestName, hits, estimate);
+			}
+		}
+		return getRequestForHits(counter, requests, requestName, hits, -1);
+	}
+
+	// estimatedFrequency est la fréquence estimée si les hits ont déjà été ajoutés dans le sketch, sinon -1
+	private synchronized CounterRequest getRequestForHits(Counter counter,
+			ConcurrentMap<String, CounterRequest> requests, String requestName, long hits,
+			long estimatedFrequency) {
+		final CounterRequest request = requests.get(requestName);
+		if (request != null) {
+			return request;
+		}
+		final String counterName = counter.getName();
+		final int maxRequestsCount = counter.getMaxRequestsCount();
+		final CounterRequest otherRequest = getOtherRequest(requests, counterName);
+		if (OTHER_REQUESTS_NAME.equals(requestName)) {
+			return otherRequest;
+		}
+		if (requests.size() < maxRequestsCount) {
+			// le compteur n'est pas plein : la requête est conservée
+			// (avec les hits déjà estimés si le sketch existe)
+			final long estimate = sketch == null ? hits
+					: increment(requestName, hits, estimatedFrequency);
+			return putRequest(requests, requestName, counterName, estimate - hits);
+		}
+		if (requestEstimates == null) {
+			initRequestEstimates(requests);
+		}
+		if (sketch == null) {
+			allocateSketch(maxRequestsCount);
+		}
+		final long estimate = increment(requestName, hits, estimatedFrequency);
+		if (estimate <= minEstimate) {
+			return otherRequest;
+		}
+		final RequestEstimate leastFrequent = peekLeastFrequent(requests);
+		if (leastFrequent == null) {
+			return otherRequest;
+		}
+		minEstimate = leastFrequent.estimate;
+		if (estimate <= leastFrequent.estimate) {
+			return otherRequest;
+		}
+		// la requête la moins fréquente est évincée et ses hits sont cumulés dans "(other requests)"
+		requestEstimates.poll();
+		final CounterRequest leastFrequentRequest = leastFrequent.request;
+		counter.removeEvictedRequest(leastFrequentRequest.getName());
+		final CounterRequest evictedRequest;
+		synchronized (leastFrequentRequest) {
+			evictedRequest = leastFrequentRequest.clone();
+		}
+		synchronized (otherRequest) {
+			otherRequest.addHits(evictedRequest);
+		}
+		evictedRequests.add(new EvictedRequest(leastFrequentRequest, evictedRequest));
+		if (evictedRequests.size() > MAX_EVICTED_REQUESTS) {
+			addLateHits(evictedRequests.remove(0), otherRequest);
+		}
+		evictionsSinceAging++;
+		if (evictionsSinceAging >= maxRequestsCount) {
+			evictionsSinceAging = 0;
+			ageSketch();
+		}
+		return putRequest(requests, requestName, counterName, estimate - hits);
+	}
+
+	/**
+	 * Reporte dans "(other requests)" les hits ajoutés aux requêtes évincées depuis leur éviction,
+	 * par les threads qui avaient obtenu l'instance de la requête juste avant l'éviction.
+	 * Appelée avant la lecture des requêtes du compteur (collecte, rapports, enregistrement).
+	 * @param requests Requêtes du compteur
+	 * @param counterName Nom du compteur
+	 */
+	synchronized void addLateHitsOfEvictedRequests(ConcurrentMap<String, CounterRequest> requests,
+			String counterName) {
+		if (evictedRequests.isEmpty()) {
+			return;
+		}
+		final CounterRequest otherRequest = getOtherRequest(requests, counterName);
+		final long now = System.currentTimeMillis();
+		final Iterator<EvictedRequest> it = evictedRequests.iterator();
+		while (it.hasNext()) {
+			final EvictedRequest evictedRequest = it.next();
+			addLateHits(evictedRequest, otherRequest);
+			if (now - evictedRequest.evictionTime > EVICTED_REQUESTS_RETENTION_MILLIS) {
+				// plus aucun thread n'a encore cette instance entre son obtention et l'ajout du hit
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Indique que des requêtes ont été supprimées ou remplacées hors de cette classe
+	 * (le tas des fréquences sera reconstruit si besoin).
+	 */
+	synchronized void requestsRemoved() {
+		requestEstimates = null;
+	}
+
+	private static void addLateHits(EvictedRequest evictedRequest, CounterRequest otherRequest) {
+		final CounterRequest request;
+		synchronized (evictedRequest.request) {
+			request = evictedRequest.request.clone();
+		}
+		if (request.getHits() > evictedRequest.reportedRequest.getHits()) {
+			final CounterRequest lateHits = request.clone();
+			lateHits.removeHits(evictedRequest.reportedRequest);
+			synchronized (otherRequest) {
+				otherRequest.addHits(lateHits);
+			}
+			evictedRequest.reportedRequest = request;
+		}
+	}
+
+	private CounterRequest putRequest(ConcurrentMap<String, CounterRequest> requests,
+			String requestName, String counterName, long hitsErrorBound) {
+		final CounterRequest request = new CounterRequest(requestName, counterName);
+		request.setHitsErrorBound(hitsErrorBound);
+		requests.put(requestName, request);
+		if (requestEstimates != null) {
+			requestEstimates.add(new RequestEstimate(request));
+		}
+		return request;
+	}
+
+	private void initRequestEstimates(ConcurrentMap<String, CounterRequest> requests) {
+		requestEstimates = new PriorityQueue<RequestEstimate>(Math.max(requests.size(), 1),
+				new RequestEstimateComparator());
+		for (final CounterRequest request : requests.values()) {
+			if (!OTHER_REQUESTS_NAME.equals(request.getName())) {
+				requestEstimates.add(new RequestEstimate(request));
+			}
+		}
+	}
+
+	private RequestEstimate peekLeastFrequent(ConcurrentMap<String, CounterRequest> requests) {
+		RequestEstimate result = requestEstimates.peek();
+		while (result != null) {
+			if (requests.get(result.request.getName()) != result.request) {
+				// requête qui n'est plus dans le compteur
+				requestEstimates.poll();
+			} else {
+				final long estimate = getEstimate(result.request);
+				if (estimate == result.estimate) {
+					// les autres fréquences sont des minorants plus grands : c'est bien la moins fréquente
+					return result;
+				}
+				// minorant dépassé : la requête est replacée dans le tas selon sa fréquence actuelle
+				requestEstimates.poll();
+				result.estimate = estimate;
+				requestEstimates.add(result);
+			}
+			result = requestEstimates.peek();
+		}
+		return null;
+	}
+
+	private static CounterRequest getOtherRequest(ConcurrentMap<String, CounterRequest> requests,
+			String counterName) {
+		CounterRequest otherRequest = requests.get(OTHER_REQUESTS_NAME);
+		if (otherRequest == null) {
+			otherRequest = new CounterRequest(OTHER_REQUESTS_NAME, counterName);
+			requests.put(OTHER_REQUESTS_NAME, otherRequest);
+		}
+		return otherRequest;
+	}
+
+	private static long getEstimate(CounterRequest request) {
+		// fréquence estimée d'une requête conservée, selon Space-Saving
+		return request.getHits() + request.getHitsErrorBound();
+	}
+
+	private void allocateSketch(int maxRequestsCount) {
+		// le sketch a au moins autant de colonnes que de requêtes conservées, soit 256 Ko pour 10000 requêtes
+		int width = 1;
+		while (width < maxRequestsCount) {
+			width <<= 1;
+		}
+		sketch = new AtomicIntegerArray(SEEDS.length * width);
+	}
+
+	// divise par 2 les compteurs du sketch, y compris pendant leurs mises à jour sans verrou
+	private void ageSketch() {
+		final AtomicIntegerArray currentSketch = sketch;
+		for (int i = 0; i < currentSketch.length(); i++) {
+			int value = currentSketch.get(i);
+			while (!currentSketch.compareAndSet(i, value, value >> 1)) {
+				value = currentSketch.get(i);
+			}
+		}
+	}
+
+	private long increment(String requestName, long hits, long estimatedFrequency) {
+		if (estimatedFrequency >= 0) {
+			// hits déjà ajoutés dans le sketch sans verrou
+			return estimatedFrequency;
+		}
+		return increment(sketch, requestName, hits);
+	}
+
+	// ajoute des hits dans le sketch (en "conservative update") et retourne la fréquence estimée,
+	// sans verrou : entre des threads concurrents, un compteur n'est augmenté que par compare-and-set
+	// et des hits simultanés de la même requête peuvent n'être comptés qu'une fois (estimation approchée)
+	private static long increment(AtomicIntegerArray countMinSketch, String requestName,
+			long hits) {
+		final int widthMask = countMinSketch.length() / SEEDS.length - 1;
+		final int hash = requestName.hashCode();
+		long estimate = Long.MAX_VALUE;
+		for (int i = 0; i < SEEDS.length; i++) {
+			estimate = Math.min(estimate, countMinSketch.get(getIndex(hash, i, widthMask)));
+		}
+		final long newEstimate = Math.min(estimate + hits, Integer.MAX_VALUE);
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int index = getIndex(hash, i, widthMask);
+			int value = countMinSketch.get(index);
+			while (value < newEstimate
+					&& !countMinSketch.compareAndSet(index, value, (int) newEstimate)) {
+				value = countMinSketch.get(index);
+			}
+		}
+		return newEstimate;
+	}
+
+	private static int getIndex(int hash, int row, int widthMask) {
+		final int h = hash * SEEDS[row];
+		return row * (widthMask + 1) + ((h ^ h >>> 16) & widthMask);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public synchronized String toString() {
+		return getClass().getSimpleName() + "[sketchAllocated=" + (sketch != null)
+				+ ", minEstimate=" + minEstimate + ", evictedRequests=" + evictedRequests.size()
+				+ ']';
+	}
+}
@@ -869,11 +869,29 @@ class HtmlCoreReport extends HtmlAbstractReport {
 		writeln(END_DIV);
 	}
 
+	private void writeCollectDurationsByPhase() throws IOException {
+		final Map<String, Long> durationsByPhase = collector.getLastCollectDurationsByPhase();
+		if (durationsByPhase.isEmpty()) {
+			return;
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String, Long> entry : durationsByPhase.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append('#').append(entry.getKey()).append("#: ").append(entry.getValue())
+					.append(" #ms#");
+		}
+		write(" (" + sb + ')');
+	}
+
 	private void writeDurationAndOverhead() throws IOException {
 		final long displayDuration = System.currentTimeMillis() - start;
 		writeln("<a name='bottom'></a>");
 		writeln("<br/><div style='font-size: 11px;'>");
-		writeln("#temps_derniere_collecte#: " + collector.getLastCollectDuration() + " #ms#<br/>");
+		write("#temps_derniere_collecte#: " + collector.getLastCollectDuration() + " #ms#");
+		writeCollectDurationsByPhase();
+		writeln("<br/>");
 		writeln("#temps_affichage#: " + displayDuration + " #ms#<br/>");
 		writeln("#Estimation_overhead_memoire#: < "
 				+ (collector.getEstimatedMemorySize() / 1024 / 1024 + 1) + " #Mo#");
@@ -20,6 +20,7 @@ package net.bull.javamelody;
 import java.io.IOException;
 import java.io.Writer;
 import java.text.DateFormat;
+import java.text.DecimalFormat;
 import java.util.List;
 
 /**
@@ -30,6 +31,7 @@ class HtmlCounterErrorReport extends HtmlAbstractReport {
 	private final Counter counter;
 	private final DateFormat dateTimeFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT,
 			DateFormat.MEDIUM, I18N.getCurrentLocale());
+	private final DecimalFormat integerFormat = I18N.createIntegerFormat();
 
 	HtmlCounterErrorReport(Counter counter, Writer writer) {
 		super(writer);
@@ -100,6 +102,12 @@ class HtmlCounterErrorReport extends HtmlAbstractReport {
 			write("</td><td>"); // pas wrappedText ici, sinon bug de largeur du tooltip sous IE11 en résolution réduite
 			writeln("<a class='tooltip'>");
 			writeln("<em>");
+			final long stackTraceOccurrences = error.getStackTraceOccurrences();
+			if (stackTraceOccurrences > 1) {
+				// stack-trace partagée par les erreurs de même forme (paramètre lazy-stack-traces)
+				writeln(getFormattedString("occurrences_stack_trace",
+						integerFormat.format(stackTraceOccurrences)) + "<br/>");
+			}
 			// writeDirectly pour ne pas gérer de traductions si la stack-trace contient '#'
 			writeDirectly(htmlEncode(error.getStackTrace()));
 			writeln("</em>");
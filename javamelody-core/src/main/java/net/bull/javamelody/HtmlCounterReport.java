@@ -19,6 +19,7 @@ package net.bull.javamelody;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,7 +28,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 /**
  * Partie du rapport html pour un compteur.
@@ -35,9 +35,7 @@ import java.util.regex.Pattern;
  */
 class HtmlCounterReport extends HtmlAbstractReport {
 	private static final int MAX_REQUEST_NAME_LENGTH = 5000;
-	private static final Pattern SQL_KEYWORDS_PATTERN = Pattern.compile(
-			"\\b(select|from|where|order by|group by|update|delete|insert into|values)\\b",
-			Pattern.CASE_INSENSITIVE);
+	private static final int MAX_DISPLAYED_SUSPECTED_N_PLUS_ONES = 100;
 	private final Counter counter;
 	private final Range range;
 	private final CounterRequestAggregation counterRequestAggregation;
@@ -116,11 +114,15 @@ class HtmlCounterReport extends HtmlAbstractReport {
 				writeRequest(request);
 
 				if (JdbcWrapper.SINGLETON.getSqlCounter().isRequestIdFromThisCounter(graphName)
-						&& !request.getName().toLowerCase(Locale.ENGLISH).startsWith("alter ")) {
+						&& !request.getName().toLowerCase(Locale.ENGLISH).startsWith("alter ")
+						&& !HeavyHitters.OTHER_REQUESTS_NAME.equals(request.getName())) {
 					// inutile d'essayer d'avoir le plan d'exécution des requêtes sql
-					// telles que "alter session set ..." (cf issue 152)
+					// telles que "alter session set ..." (cf issue 152) ou "(other requests)"
 					writeSqlRequestExplainPlan(collector, collectorServer, request);
 				}
+				if (!request.getSlowestExecutions().isEmpty()) {
+					writeSlowestExecutions(request.getSlowestExecutions());
+				}
 			}
 			if (isGraphDisplayed(collector, request)) {
 				writeln("<table summary=''><tr><td>");
@@ -144,8 +146,10 @@ class HtmlCounterReport extends HtmlAbstractReport {
 				writeln("#graph_units#");
 				writeln("</div></td></tr></table>");
 				writeln("</div>");
-				writeln("<div align='right'><a href='?part=lastValue&amp;graph="
-						+ urlEncode(graphName) + "' title=\"#Lien_derniere_valeur#\">_</a></div>");
+				writeln("<div align='right'>");
+				writePercentilesGraphsLinks(collector, graphName);
+				writeln("<a href='?part=lastValue&amp;graph=" + urlEncode(graphName)
+						+ "' title=\"#Lien_derniere_valeur#\">_</a></div>");
 
 				writeGraphDetailScript(graphName);
 			}
@@ -158,6 +162,26 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			}
 		}
 
+		private void writePercentilesGraphsLinks(Collector collector, String graphName)
+				throws IOException {
+			// liens vers les courbes des centiles d'une requête ou d'un compteur (paramètre percentiles-graphs)
+			final String meanTimesSuffix = "MeanTimes";
+			final String name;
+			if (graphName.endsWith(meanTimesSuffix)) {
+				name = graphName.substring(0, graphName.length() - meanTimesSuffix.length());
+			} else {
+				name = graphName;
+			}
+			for (final int percentile : Collector.GRAPHED_PERCENTILES) {
+				final String percentileGraphName = JRobin.getPercentileJRobinName(name,
+						percentile);
+				if (collector.getJRobin(percentileGraphName) != null) {
+					writeln("<a href='?part=graph&amp;graph=" + urlEncode(percentileGraphName)
+							+ "'>p" + percentile + "</a>&nbsp;&nbsp;");
+				}
+			}
+		}
+
 		private boolean isGraphDisplayed(Collector collector, CounterRequest request) {
 			return request == null || getCounterByRequestId(request) != null
 					&& isRequestGraphDisplayed(getCounterByRequestId(request))
@@ -191,6 +215,29 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			}
 		}
 
+		private void writeSlowestExecutions(List<SlowSqlExecution> slowestExecutions)
+				throws IOException {
+			// paramètres bindés des exécutions les plus lentes (paramètre slow-sql-parameters-threshold)
+			final DateFormat dateTimeFormat = I18N.createDateAndTimeFormat();
+			writeln("<b>#Executions_les_plus_lentes#</b>");
+			final HtmlTable table = new HtmlTable();
+			table.beginTable(getString("Executions_les_plus_lentes"));
+			write("<th class='sorttable_numeric'>#Duree_ecoulee#</th><th class='sorttable_date'>#Date#</th>");
+			write("<th>#Parametres_bindes#</th>");
+			for (final SlowSqlExecution slowExecution : slowestExecutions) {
+				table.nextRow();
+				write("<td align='right'>");
+				write(integerFormat.format(slowExecution.getDuration()));
+				write("</td><td align='right'>");
+				write(dateTimeFormat.format(slowExecution.getDate()));
+				write("</td><td class='wrappedText'>");
+				writeDirectly(htmlEncodeButNotSpace(slowExecution.getParameters()));
+				write("</td>");
+			}
+			table.endTable();
+			writeln("<hr/>");
+		}
+
 		void writeRequestUsages(Collector collector, String requestId) throws IOException {
 			assert requestId != null;
 			counters = collector.getRangeCounters(range);
@@ -287,6 +334,11 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write("<td class='wrappedText'>");
 			writeCounterIcon(request);
 			writeDirectly(htmlEncodeRequestName(request.getId(), request.getName()));
+			final String sampleName = request.getSampleName();
+			if (sampleName != null && !sampleName.equals(request.getName())) {
+				write("<br/><br/><b>#Exemple_de_requete#</b><br/>");
+				writeDirectly(htmlEncodeSampleName(request.getId(), sampleName));
+			}
 			if (hasChildren) {
 				writeln("</td><td>&nbsp;");
 			}
@@ -498,6 +550,13 @@ class HtmlCounterReport extends HtmlAbstractReport {
 				isRequestGraphDisplayed(counter), true, false);
 		writeln("</div>");
 
+		// 3 bis. requêtes filles suspectées de N+1 (non visible par défaut)
+		if (hasSuspectedNPlusOnes(requests)) {
+			writeln("<div id='nPlusOne" + counterName + "' style='display: none;'>");
+			writeSuspectedNPlusOnes(requests);
+			writeln("</div>");
+		}
+
 		// 4. logs (non visible par défaut)
 		if (isErrorCounter()) {
 			writeln("<div id='logs" + counterName + "' style='display: none;'><div>");
@@ -533,6 +592,15 @@ class HtmlCounterReport extends HtmlAbstractReport {
 		writeln(getFormattedString(nbKey, integerFormat.format(hitsParMinute),
 				integerFormat.format(requests.size())));
 		final String separator = "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;";
+		final AsyncRecorder asyncRecorder = AsyncRecorder.getCurrentRecorder();
+		if (asyncRecorder != null && Counter.HTTP_COUNTER_NAME.equals(counterName)) {
+			// compteurs de l'enregistrement asynchrone dans cette JVM (paramètre async-recording)
+			writeln(separator);
+			writeln(getFormattedString("enregistrement_asynchrone",
+					integerFormat.format(asyncRecorder.getRecordedCount()),
+					integerFormat.format(asyncRecorder.getPendingCount()),
+					integerFormat.format(asyncRecorder.getDroppedCount())));
+		}
 		if (counter.isBusinessFacadeCounter()) {
 			writeln(separator);
 			writeln("<a href='?part=counterSummaryPerClass&amp;counter=" + counterName
@@ -545,6 +613,10 @@ class HtmlCounterReport extends HtmlAbstractReport {
 		}
 		writeln(separator);
 		writeShowHideLink("details" + counterName, "#Details#");
+		if (hasSuspectedNPlusOnes(requests)) {
+			writeln(separator);
+			writeShowHideLink("nPlusOne" + counterName, "#N_plus_un_suspectes#");
+		}
 		if (isErrorCounter()) {
 			writeln(separator);
 			writeShowHideLink("logs" + counterName, "#Dernieres_erreurs#");
@@ -561,6 +633,51 @@ class HtmlCounterReport extends HtmlAbstractReport {
 		writeln("</div>");
 	}
 
+	private static boolean hasSuspectedNPlusOnes(List<CounterRequest> requests) {
+		for (final CounterRequest request : requests) {
+			if (!request.getSuspectedNPlusOnes().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeSuspectedNPlusOnes(List<CounterRequest> requests) throws IOException {
+		// requêtes filles exécutées plus de n-plus-one-threshold fois par exécution de la requête,
+		// par requête dans l'ordre du tableau des détails
+		final HtmlTable table = new HtmlTable();
+		table.beginTable(getString("N_plus_un_suspectes"));
+		write("<th>#Requete#</th><th>#Requete_fille#</th><th class='sorttable_numeric'>#Hits#</th>");
+		write("<th class='sorttable_numeric'>#Executions_par_hit#</th>");
+		write("<th class='sorttable_numeric'>#Executions_max_par_hit#</th>");
+		int displayed = 0;
+		for (final CounterRequest request : requests) {
+			final List<SuspectedNPlusOne> suspects = request.getSuspectedNPlusOnes();
+			Collections.sort(suspects, new SuspectedNPlusOne.SuspectedNPlusOneComparator());
+			for (final SuspectedNPlusOne suspect : suspects) {
+				if (displayed >= MAX_DISPLAYED_SUSPECTED_N_PLUS_ONES) {
+					table.endTable();
+					return;
+				}
+				table.nextRow();
+				write("<td class='wrappedText'>");
+				writeRequestName(request.getId(), request.getName(), false, true, false);
+				write("</td><td class='wrappedText'>");
+				writeRequestName(suspect.getChildRequestId(), suspect.getChildRequestName(),
+						false, true, false);
+				write("</td><td align='right'>");
+				write(integerFormat.format(suspect.getHits()));
+				write("</td><td align='right'>");
+				write(integerFormat.format(suspect.getChildExecutionsPerHit()));
+				write("</td><td align='right'>");
+				write(integerFormat.format(suspect.getMaximumChildExecutions()));
+				write("</td>");
+				displayed++;
+			}
+		}
+		table.endTable();
+	}
+
 	private void writeNoRequests() throws IOException {
 		if (isJobCounter()) {
 			writeln("#Aucun_job#");
@@ -625,6 +742,12 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write("<th class='sorttable_numeric'>#Temps_moyen#</th>");
 			write("<th class='sorttable_numeric'>#Temps_max#</th>");
 			write("<th class='sorttable_numeric'>#Ecart_type#</th>");
+			if (counterRequestAggregation.isPercentilesDisplayed()) {
+				for (final double percentile : DurationsHistogram.DISPLAYED_PERCENTILES) {
+					write("<th class='sorttable_numeric'>"
+							+ DurationsHistogram.getPercentileLabel(percentile) + "</th>");
+				}
+			}
 		} else {
 			write("<th class='sorttable_numeric'>#Hits#</th>");
 		}
@@ -644,6 +767,27 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write("</th><th class='sorttable_numeric'>"
 					+ getFormattedString("temps_fils_moyen", childCounterName) + "</th>");
 		}
+		if (counterRequestAggregation.isFetchedRowsDisplayed()) {
+			write("<th class='sorttable_numeric'>#Lignes_lues_moyennes#</th>");
+			write("<th class='sorttable_numeric'>#Temps_lecture_moyen#</th>");
+		}
+		if (counterRequestAggregation.isBatchesDisplayed()) {
+			write("<th class='sorttable_numeric'>#Taille_moyenne_batch#</th>");
+			write("<th class='sorttable_numeric'>#Lignes_par_seconde_batch#</th>");
+		}
+	}
+
+	private void writeHits(CounterRequest request) throws IOException {
+		final long hitsErrorBound = request.getHitsErrorBound();
+		if (hitsErrorBound > 0) {
+			// mode heavy-hitters : des hits de cette requête ont pu être comptés dans "(other requests)"
+			write("<span title='" + getFormattedString("hits_error_bound",
+					integerFormat.format(hitsErrorBound), HeavyHitters.OTHER_REQUESTS_NAME) + "'>");
+			write(integerFormat.format(request.getHits()));
+			write("&nbsp;+</span>");
+		} else {
+			write(integerFormat.format(request.getHits()));
+		}
 	}
 
 	private void writeRequest(CounterRequest request, boolean includeGraph,
@@ -657,7 +801,7 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write(nextColumn);
 			writePercentage(request.getDurationsSum(), globalRequest.getDurationsSum());
 			write(nextColumn);
-			write(integerFormat.format(request.getHits()));
+			writeHits(request);
 			write(nextColumn);
 			final int mean = request.getMean();
 			write("<span class='");
@@ -669,9 +813,12 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write(integerFormat.format(request.getMaximum()));
 			write(nextColumn);
 			write(integerFormat.format(request.getStandardDeviation()));
+			if (counterRequestAggregation.isPercentilesDisplayed()) {
+				writePercentiles(request, nextColumn);
+			}
 		} else {
 			write(nextColumn);
-			write(integerFormat.format(request.getHits()));
+			writeHits(request);
 		}
 		if (counterRequestAggregation.isCpuTimesDisplayed()) {
 			write(nextColumn);
@@ -698,9 +845,59 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write(nextColumn);
 			write(integerFormat.format(request.getChildDurationsMean()));
 		}
+		if (counterRequestAggregation.isFetchedRowsDisplayed()) {
+			write(nextColumn);
+			write(integerFormat.format(request.getFetchedRowsMean()));
+			write(nextColumn);
+			write(integerFormat.format(request.getFetchDurationsMean()));
+		}
+		if (counterRequestAggregation.isBatchesDisplayed()) {
+			writeBatches(request, nextColumn);
+		}
 		write("</td>");
 	}
 
+	private void writeBatches(CounterRequest request, String nextColumn) throws IOException {
+		write(nextColumn);
+		if (request.hasBatches()) {
+			// répartition des tailles de batch dans l'info-bulle
+			final long[] batchSizesDistribution = request.getBatchSizesDistribution();
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < batchSizesDistribution.length; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				sb.append(CounterRequest.getBatchSizeLabel(i)).append(" : ")
+						.append(integerFormat.format(batchSizesDistribution[i]));
+			}
+			write("<span title='" + htmlEncodeButNotSpace(
+					getFormattedString("repartition_tailles_batch", sb.toString())) + "'>");
+			write(integerFormat.format(request.getBatchSizeMean()));
+			write("</span>");
+		} else {
+			write("&nbsp;");
+		}
+		write(nextColumn);
+		final long batchRowsPerSecond = request.getBatchRowsPerSecond();
+		if (batchRowsPerSecond >= 0) {
+			write(integerFormat.format(batchRowsPerSecond));
+		} else {
+			write("&nbsp;");
+		}
+	}
+
+	private void writePercentiles(CounterRequest request, String nextColumn) throws IOException {
+		for (final double percentile : DurationsHistogram.DISPLAYED_PERCENTILES) {
+			write(nextColumn);
+			final long value = request.getDurationsPercentile(percentile);
+			if (value >= 0) {
+				write(integerFormat.format(value));
+			} else {
+				write("&nbsp;");
+			}
+		}
+	}
+
 	void writeRequestName(String requestId, String requestName, boolean includeGraph,
 			boolean includeDetailLink, boolean includeSummaryPerClassLink) throws IOException {
 		if (includeGraph) {
@@ -759,19 +956,31 @@ class HtmlCounterReport extends HtmlAbstractReport {
 
 	/**
 	 * Encode le nom d'une requête pour affichage en html, sans encoder les espaces en nbsp (insécables),
-	 * et highlight les mots clés SQL.
+	 * et highlight les mots clés SQL (html conservé en cache par {@link SqlHtmlHighlighter}).
 	 * @param requestId Id de la requête
 	 * @param requestName Nom de la requête à encoder
 	 * @return String
 	 */
 	static String htmlEncodeRequestName(String requestId, String requestName) {
 		if (requestId.startsWith(Counter.SQL_COUNTER_NAME)) {
-			final String htmlEncoded = htmlEncodeButNotSpace(requestName);
 			// highlight SQL keywords
-			return SQL_KEYWORDS_PATTERN.matcher(htmlEncoded)
-					.replaceAll("<span class='sqlKeyword'>$1</span>");
+			return SqlHtmlHighlighter.getHighlightedHtml(requestId, requestName);
 		}
 
 		return htmlEncodeButNotSpace(requestName);
 	}
+
+	/**
+	 * Encode un exemple de requête d'origine pour affichage en html, comme htmlEncodeRequestName
+	 * mais sans cache : l'exemple a le même id que la requête normalisée.
+	 * @param requestId Id de la requête normalisée
+	 * @param sampleName Exemple de requête d'origine
+	 * @return String
+	 */
+	private static String htmlEncodeSampleName(String requestId, String sampleName) {
+		if (requestId.startsWith(Counter.SQL_COUNTER_NAME)) {
+			return SqlHtmlHighlighter.highlight(sampleName);
+		}
+		return htmlEncodeButNotSpace(sampleName);
+	}
 }
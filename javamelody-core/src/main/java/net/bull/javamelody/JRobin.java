@@ -59,6 +59,8 @@ final class JRobin {
 	private static final int HOUR = 60 * 60;
 	private static final int DAY = 24 * HOUR;
 	private static final int DEFAULT_OBSOLETE_GRAPHS_DAYS = 90;
+	private static final String PERCENTILE_TIMES_SUFFIX = "Times";
+	private static final String DATA_SOURCE_INFIX = "_ds_";
 
 	// pool of open RRD files
 	private final RrdDbPool rrdPool = getRrdDbPool();
@@ -420,12 +422,64 @@ final class JRobin {
 		return name;
 	}
 
+	/**
+	 * @param name Nom d'un compteur ou identifiant d'une requête
+	 * @param percentile Centile, par exemple 99
+	 * @return Nom du jrobin des centiles des temps, par exemple "httpP99Times"
+	 */
+	static String getPercentileJRobinName(String name, int percentile) {
+		return name + 'P' + percentile + PERCENTILE_TIMES_SUFFIX;
+	}
+
+	/**
+	 * @param name Nom d'un jrobin global, par exemple "usedConnections"
+	 * @param dataSourceName Nom d'une dataSource (nom jndi ou nom du bean Spring)
+	 * @return Nom du jrobin pour cette dataSource, par exemple "usedConnections_ds_jdbc_MyDataSource"
+	 */
+	static String getDataSourceJRobinName(String name, String dataSourceName) {
+		// le nom du jrobin est utilisé comme nom de fichier et dans les urls des graphiques
+		return name + DATA_SOURCE_INFIX + dataSourceName.replaceAll("[^A-Za-z0-9_]", "_");
+	}
+
+	// centile si ce jrobin est une courbe de centiles des temps, 0 sinon
+	private int getPercentile() {
+		if (!name.endsWith(PERCENTILE_TIMES_SUFFIX)) {
+			return 0;
+		}
+		final int end = name.length() - PERCENTILE_TIMES_SUFFIX.length();
+		int start = end;
+		while (start > 0 && Character.isDigit(name.charAt(start - 1))) {
+			start--;
+		}
+		if (start == end || start == 0 || name.charAt(start - 1) != 'P') {
+			return 0;
+		}
+		return Integer.parseInt(name.substring(start, end));
+	}
+
 	private String getDataSourceName() {
 		// RrdDef.addDatasource n'accepte pas un nom de datasource supérieur à 20 caractères
 		return name.substring(0, Math.min(20, name.length()));
 	}
 
 	String getLabel() {
+		final int dataSourceIndex = requestName == null ? name.indexOf(DATA_SOURCE_INFIX) : -1;
+		if (dataSourceIndex > 0) {
+			// c'est un jrobin d'une dataSource issu de JavaInformations
+			return I18N.getString(name.substring(0, dataSourceIndex)) + " ("
+					+ name.substring(dataSourceIndex + DATA_SOURCE_INFIX.length()) + ')';
+		}
+		final int percentile = getPercentile();
+		if (percentile != 0) {
+			final String percentileLabel = "p" + percentile;
+			if (requestName == null) {
+				final String counterName = name.substring(0,
+						name.length() - getPercentileJRobinName("", percentile).length());
+				return I18N.getFormattedString("Centile_temps_de", percentileLabel, counterName);
+			}
+			return I18N.getFormattedString("Centile_temps_de", percentileLabel,
+					requestName.substring(0, Math.min(30, requestName.length())));
+		}
 		if (requestName == null) {
 			// c'est un jrobin global issu soit de JavaInformations soit d'un Counter dans le Collector
 			return I18N.getString(getName());
@@ -61,9 +61,14 @@ class JavaInformations implements Serializable { // NOPMD
 	private final long sessionAgeSum;
 	private final int activeThreadCount;
 	private final int usedConnectionCount;
+	private final int poolWaiterCount;
 	private final int maxConnectionCount;
 	private final int activeConnectionCount;
 	private final long transactionCount;
+	private final int openTransactionCount;
+	private final long longestOpenTransactionDuration;
+	// statistiques par dataSource nommée (null si données d'une version précédente)
+	private final List<JdbcDataSourceStatistics> dataSourceStatisticsList;
 	private final long processCpuTimeMillis;
 	private final double systemLoadAverage;
 	private final double systemCpuLoad;
@@ -140,9 +145,13 @@ class JavaInformations implements Serializable { // NOPMD
 		sessionAgeSum = SessionListener.getSessionAgeSum();
 		activeThreadCount = JdbcWrapper.getActiveThreadCount();
 		usedConnectionCount = JdbcWrapper.getUsedConnectionCount();
+		poolWaiterCount = JdbcWrapper.getPoolWaiterCount();
 		activeConnectionCount = JdbcWrapper.getActiveConnectionCount();
 		maxConnectionCount = JdbcWrapper.getMaxConnectionCount();
 		transactionCount = JdbcWrapper.getTransactionCount();
+		openTransactionCount = JdbcTransaction.getOpenTransactionCount();
+		longestOpenTransactionDuration = JdbcTransaction.getLongestOpenTransactionDuration();
+		dataSourceStatisticsList = JdbcDataSourceStatistics.getAllStatistics();
 		systemLoadAverage = buildSystemLoadAverage();
 		systemCpuLoad = buildSystemCpuLoad();
 		processCpuTimeMillis = buildProcessCpuTimeMillis();
@@ -533,6 +542,10 @@ class JavaInformations implements Serializable { // NOPMD
 		return usedConnectionCount;
 	}
 
+	int getPoolWaiterCount() {
+		return poolWaiterCount;
+	}
+
 	int getActiveConnectionCount() {
 		return activeConnectionCount;
 	}
@@ -545,6 +558,21 @@ class JavaInformations implements Serializable { // NOPMD
 		return transactionCount;
 	}
 
+	int getOpenTransactionCount() {
+		return openTransactionCount;
+	}
+
+	long getLongestOpenTransactionDuration() {
+		return longestOpenTransactionDuration;
+	}
+
+	List<JdbcDataSourceStatistics> getDataSourceStatisticsList() {
+		if (dataSourceStatisticsList == null) {
+			return Collections.emptyList();
+		}
+		return dataSourceStatisticsList;
+	}
+
 	double getUsedConnectionPercentage() {
 		if (maxConnectionCount > 0) {
 			return 100d * usedConnectionCount / maxConnectionCount;
@@ -0,0 +1,786 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * Wrapper d'un callableStatement jdbc, utilisé par {@link JdbcWrapper} à la place d'un proxy
+ * (voir {@link JdbcStatementWrapper}).<br>
+ * Les méthodes déléguées sont générées à partir des interfaces de java.sql en JDBC 4.2 (jdk 1.8) :
+ * les méthodes ajoutées dans une version plus récente de JDBC ne sont donc pas déléguées
+ * et gardent leur implémentation par défaut de l'interface.
+ * @author Emeric Vernat
+ */
+final class JdbcCallableStatementWrapper extends JdbcPreparedStatementWrapper
+		implements CallableStatement {
+	private final CallableStatement callableStatement;
+
+	JdbcCallableStatementWrapper(JdbcWrapper jdbcWrapper, String query,
+			CallableStatement callableStatement, JdbcDataSourceStatistics dataSourceStatistics,
+			JdbcTransaction transaction, JdbcOpenResultSets connectionResultSets) {
+		super(jdbcWrapper, query, callableStatement, dataSourceStatistics, transaction,
+				connectionResultSets);
+		this.callableStatement = callableStatement;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(int parameterIndex, int sqlType) throws SQLException {
+		callableStatement.registerOutParameter(parameterIndex, sqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(int parameterIndex, int sqlType, int scale) throws SQLException {
+		callableStatement.registerOutParameter(parameterIndex, sqlType, scale);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean wasNull() throws SQLException {
+		return callableStatement.wasNull();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getString(int parameterIndex) throws SQLException {
+		return callableStatement.getString(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getBoolean(int parameterIndex) throws SQLException {
+		return callableStatement.getBoolean(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public byte getByte(int parameterIndex) throws SQLException {
+		return callableStatement.getByte(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public short getShort(int parameterIndex) throws SQLException {
+		return callableStatement.getShort(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getInt(int parameterIndex) throws SQLException {
+		return callableStatement.getInt(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLong(int parameterIndex) throws SQLException {
+		return callableStatement.getLong(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public float getFloat(int parameterIndex) throws SQLException {
+		return callableStatement.getFloat(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public double getDouble(int parameterIndex) throws SQLException {
+		return callableStatement.getDouble(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Deprecated
+	@Override
+	public BigDecimal getBigDecimal(int parameterIndex, int scale) throws SQLException {
+		return callableStatement.getBigDecimal(parameterIndex, scale);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public byte[] getBytes(int parameterIndex) throws SQLException {
+		return callableStatement.getBytes(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Date getDate(int parameterIndex) throws SQLException {
+		return callableStatement.getDate(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Time getTime(int parameterIndex) throws SQLException {
+		return callableStatement.getTime(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Timestamp getTimestamp(int parameterIndex) throws SQLException {
+		return callableStatement.getTimestamp(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Object getObject(int parameterIndex) throws SQLException {
+		return callableStatement.getObject(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public BigDecimal getBigDecimal(int parameterIndex) throws SQLException {
+		return callableStatement.getBigDecimal(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Object getObject(int parameterIndex, Map<String,Class<?>> map) throws SQLException {
+		return callableStatement.getObject(parameterIndex, map);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Ref getRef(int parameterIndex) throws SQLException {
+		return callableStatement.getRef(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Blob getBlob(int parameterIndex) throws SQLException {
+		return callableStatement.getBlob(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Clob getClob(int parameterIndex) throws SQLException {
+		return callableStatement.getClob(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Array getArray(int parameterIndex) throws SQLException {
+		return callableStatement.getArray(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Date getDate(int parameterIndex, Calendar cal) throws SQLException {
+		return callableStatement.getDate(parameterIndex, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Time getTime(int parameterIndex, Calendar cal) throws SQLException {
+		return callableStatement.getTime(parameterIndex, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Timestamp getTimestamp(int parameterIndex, Calendar cal) throws SQLException {
+		return callableStatement.getTimestamp(parameterIndex, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(int parameterIndex, int sqlType, String typeName) throws SQLException {
+		callableStatement.registerOutParameter(parameterIndex, sqlType, typeName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(String parameterName, int sqlType) throws SQLException {
+		callableStatement.registerOutParameter(parameterName, sqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(String parameterName, int sqlType, int scale) throws SQLException {
+		callableStatement.registerOutParameter(parameterName, sqlType, scale);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(String parameterName, int sqlType, String typeName) throws SQLException {
+		callableStatement.registerOutParameter(parameterName, sqlType, typeName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public URL getURL(int parameterIndex) throws SQLException {
+		return callableStatement.getURL(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setURL(String parameterName, URL val) throws SQLException {
+		callableStatement.setURL(parameterName, val);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNull(String parameterName, int sqlType) throws SQLException {
+		callableStatement.setNull(parameterName, sqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBoolean(String parameterName, boolean x) throws SQLException {
+		callableStatement.setBoolean(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setByte(String parameterName, byte x) throws SQLException {
+		callableStatement.setByte(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setShort(String parameterName, short x) throws SQLException {
+		callableStatement.setShort(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setInt(String parameterName, int x) throws SQLException {
+		callableStatement.setInt(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setLong(String parameterName, long x) throws SQLException {
+		callableStatement.setLong(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFloat(String parameterName, float x) throws SQLException {
+		callableStatement.setFloat(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDouble(String parameterName, double x) throws SQLException {
+		callableStatement.setDouble(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBigDecimal(String parameterName, BigDecimal x) throws SQLException {
+		callableStatement.setBigDecimal(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setString(String parameterName, String x) throws SQLException {
+		callableStatement.setString(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBytes(String parameterName, byte[] x) throws SQLException {
+		callableStatement.setBytes(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDate(String parameterName, Date x) throws SQLException {
+		callableStatement.setDate(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTime(String parameterName, Time x) throws SQLException {
+		callableStatement.setTime(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTimestamp(String parameterName, Timestamp x) throws SQLException {
+		callableStatement.setTimestamp(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(String parameterName, InputStream x, int length) throws SQLException {
+		callableStatement.setAsciiStream(parameterName, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(String parameterName, InputStream x, int length) throws SQLException {
+		callableStatement.setBinaryStream(parameterName, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(String parameterName, Object x, int targetSqlType, int scale) throws SQLException {
+		callableStatement.setObject(parameterName, x, targetSqlType, scale);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(String parameterName, Object x, int targetSqlType) throws SQLException {
+		callableStatement.setObject(parameterName, x, targetSqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(String parameterName, Object x) throws SQLException {
+		callableStatement.setObject(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(String parameterName, Reader reader, int length) throws SQLException {
+		callableStatement.setCharacterStream(parameterName, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDate(String parameterName, Date x, Calendar cal) throws SQLException {
+		callableStatement.setDate(parameterName, x, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTime(String parameterName, Time x, Calendar cal) throws SQLException {
+		callableStatement.setTime(parameterName, x, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTimestamp(String parameterName, Timestamp x, Calendar cal) throws SQLException {
+		callableStatement.setTimestamp(parameterName, x, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNull(String parameterName, int sqlType, String typeName) throws SQLException {
+		callableStatement.setNull(parameterName, sqlType, typeName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getString(String parameterName) throws SQLException {
+		return callableStatement.getString(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getBoolean(String parameterName) throws SQLException {
+		return callableStatement.getBoolean(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public byte getByte(String parameterName) throws SQLException {
+		return callableStatement.getByte(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public short getShort(String parameterName) throws SQLException {
+		return callableStatement.getShort(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getInt(String parameterName) throws SQLException {
+		return callableStatement.getInt(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLong(String parameterName) throws SQLException {
+		return callableStatement.getLong(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public float getFloat(String parameterName) throws SQLException {
+		return callableStatement.getFloat(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public double getDouble(String parameterName) throws SQLException {
+		return callableStatement.getDouble(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public byte[] getBytes(String parameterName) throws SQLException {
+		return callableStatement.getBytes(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Date getDate(String parameterName) throws SQLException {
+		return callableStatement.getDate(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Time getTime(String parameterName) throws SQLException {
+		return callableStatement.getTime(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Timestamp getTimestamp(String parameterName) throws SQLException {
+		return callableStatement.getTimestamp(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Object getObject(String parameterName) throws SQLException {
+		return callableStatement.getObject(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public BigDecimal getBigDecimal(String parameterName) throws SQLException {
+		return callableStatement.getBigDecimal(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Object getObject(String parameterName, Map<String,Class<?>> map) throws SQLException {
+		return callableStatement.getObject(parameterName, map);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Ref getRef(String parameterName) throws SQLException {
+		return callableStatement.getRef(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Blob getBlob(String parameterName) throws SQLException {
+		return callableStatement.getBlob(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Clob getClob(String parameterName) throws SQLException {
+		return callableStatement.getClob(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Array getArray(String parameterName) throws SQLException {
+		return callableStatement.getArray(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Date getDate(String parameterName, Calendar cal) throws SQLException {
+		return callableStatement.getDate(parameterName, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Time getTime(String parameterName, Calendar cal) throws SQLException {
+		return callableStatement.getTime(parameterName, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Timestamp getTimestamp(String parameterName, Calendar cal) throws SQLException {
+		return callableStatement.getTimestamp(parameterName, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public URL getURL(String parameterName) throws SQLException {
+		return callableStatement.getURL(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public RowId getRowId(int parameterIndex) throws SQLException {
+		return callableStatement.getRowId(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public RowId getRowId(String parameterName) throws SQLException {
+		return callableStatement.getRowId(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setRowId(String parameterName, RowId x) throws SQLException {
+		callableStatement.setRowId(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNString(String parameterName, String value) throws SQLException {
+		callableStatement.setNString(parameterName, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNCharacterStream(String parameterName, Reader value, long length) throws SQLException {
+		callableStatement.setNCharacterStream(parameterName, value, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(String parameterName, NClob value) throws SQLException {
+		callableStatement.setNClob(parameterName, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(String parameterName, Reader reader, long length) throws SQLException {
+		callableStatement.setClob(parameterName, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(String parameterName, InputStream inputStream, long length) throws SQLException {
+		callableStatement.setBlob(parameterName, inputStream, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(String parameterName, Reader reader, long length) throws SQLException {
+		callableStatement.setNClob(parameterName, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public NClob getNClob(int parameterIndex) throws SQLException {
+		return callableStatement.getNClob(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public NClob getNClob(String parameterName) throws SQLException {
+		return callableStatement.getNClob(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSQLXML(String parameterName, SQLXML xmlObject) throws SQLException {
+		callableStatement.setSQLXML(parameterName, xmlObject);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLXML getSQLXML(int parameterIndex) throws SQLException {
+		return callableStatement.getSQLXML(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLXML getSQLXML(String parameterName) throws SQLException {
+		return callableStatement.getSQLXML(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getNString(int parameterIndex) throws SQLException {
+		return callableStatement.getNString(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getNString(String parameterName) throws SQLException {
+		return callableStatement.getNString(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Reader getNCharacterStream(int parameterIndex) throws SQLException {
+		return callableStatement.getNCharacterStream(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Reader getNCharacterStream(String parameterName) throws SQLException {
+		return callableStatement.getNCharacterStream(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Reader getCharacterStream(int parameterIndex) throws SQLException {
+		return callableStatement.getCharacterStream(parameterIndex);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Reader getCharacterStream(String parameterName) throws SQLException {
+		return callableStatement.getCharacterStream(parameterName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(String parameterName, Blob x) throws SQLException {
+		callableStatement.setBlob(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(String parameterName, Clob x) throws SQLException {
+		callableStatement.setClob(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(String parameterName, InputStream x, long length) throws SQLException {
+		callableStatement.setAsciiStream(parameterName, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(String parameterName, InputStream x, long length) throws SQLException {
+		callableStatement.setBinaryStream(parameterName, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(String parameterName, Reader reader, long length) throws SQLException {
+		callableStatement.setCharacterStream(parameterName, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(String parameterName, InputStream x) throws SQLException {
+		callableStatement.setAsciiStream(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(String parameterName, InputStream x) throws SQLException {
+		callableStatement.setBinaryStream(parameterName, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(String parameterName, Reader reader) throws SQLException {
+		callableStatement.setCharacterStream(parameterName, reader);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNCharacterStream(String parameterName, Reader value) throws SQLException {
+		callableStatement.setNCharacterStream(parameterName, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(String parameterName, Reader reader) throws SQLException {
+		callableStatement.setClob(parameterName, reader);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(String parameterName, InputStream inputStream) throws SQLException {
+		callableStatement.setBlob(parameterName, inputStream);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(String parameterName, Reader reader) throws SQLException {
+		callableStatement.setNClob(parameterName, reader);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public <T> T getObject(int parameterIndex, Class<T> type) throws SQLException {
+		return callableStatement.getObject(parameterIndex, type);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public <T> T getObject(String parameterName, Class<T> type) throws SQLException {
+		return callableStatement.getObject(parameterName, type);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(String parameterName, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+		callableStatement.setObject(parameterName, x, targetSqlType, scaleOrLength);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(String parameterName, Object x, SQLType targetSqlType) throws SQLException {
+		callableStatement.setObject(parameterName, x, targetSqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(int parameterIndex, SQLType sqlType) throws SQLException {
+		callableStatement.registerOutParameter(parameterIndex, sqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(int parameterIndex, SQLType sqlType, int scale) throws SQLException {
+		callableStatement.registerOutParameter(parameterIndex, sqlType, scale);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(int parameterIndex, SQLType sqlType, String typeName) throws SQLException {
+		callableStatement.registerOutParameter(parameterIndex, sqlType, typeName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(String parameterName, SQLType sqlType) throws SQLException {
+		callableStatement.registerOutParameter(parameterName, sqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(String parameterName, SQLType sqlType, int scale) throws SQLException {
+		callableStatement.registerOutParameter(parameterName, sqlType, scale);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void registerOutParameter(String parameterName, SQLType sqlType, String typeName) throws SQLException {
+		callableStatement.registerOutParameter(parameterName, sqlType, typeName);
+	}
+}
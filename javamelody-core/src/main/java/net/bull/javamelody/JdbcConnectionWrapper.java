@@ -0,0 +1,453 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * Wrapper d'une connexion jdbc, utilisé par {@link JdbcWrapper} à la place d'un proxy
+ * lorsque la connexion n'implémente que des interfaces standards de java.sql.<br>
+ * Contrairement au proxy, les méthodes sont appelées directement, sans Method.invoke,
+ * sans boxing et sans tableau d'arguments. Comme dans le proxy, les statements créés sont
+ * instrumentés et la fermeture de la connexion est comptée, les autres méthodes sont simplement déléguées.<br>
+ * Les méthodes déléguées sont générées à partir des interfaces de java.sql en JDBC 4.2 (jdk 1.8) :
+ * les méthodes ajoutées dans une version plus récente de JDBC ne sont donc pas déléguées
+ * et gardent leur implémentation par défaut de l'interface.
+ * @author Emeric Vernat
+ */
+final class JdbcConnectionWrapper implements Connection {
+	private final JdbcWrapper jdbcWrapper;
+	private final Connection connection;
+	// statistiques de la dataSource nommée d'où vient la connexion (peut être null)
+	private final JdbcDataSourceStatistics dataSourceStatistics;
+	// transaction de la connexion (null si le counter sql n'est pas affiché)
+	private final JdbcTransaction transaction;
+	// resultSets mesurés et pas encore comptés des statements de la connexion
+	private final JdbcOpenResultSets openResultSets = new JdbcOpenResultSets(null);
+	private boolean alreadyClosed;
+
+	JdbcConnectionWrapper(JdbcWrapper jdbcWrapper, Connection connection,
+			JdbcDataSourceStatistics dataSourceStatistics, JdbcTransaction transaction) {
+		super();
+		assert jdbcWrapper != null;
+		assert connection != null;
+		this.jdbcWrapper = jdbcWrapper;
+		this.connection = connection;
+		this.dataSourceStatistics = dataSourceStatistics;
+		this.transaction = transaction;
+	}
+
+	Connection getConnection() {
+		return connection;
+	}
+
+	private Statement createStatementProxy(String query, Statement statement) {
+		if (statement == null) {
+			return null;
+		}
+		return jdbcWrapper.createStatementProxy(query, statement, dataSourceStatistics,
+				transaction, openResultSets);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean equals(Object obj) {
+		// comme pour le proxy, equals est transparent pour les proxys et wrappers de connexion (cf issue 78)
+		return obj != null && connection.equals(JdbcWrapper.getWrappedConnection(obj));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int hashCode() {
+		return connection.hashCode();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return connection.toString();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() throws SQLException {
+		try {
+			connection.close();
+		} finally {
+			if (!alreadyClosed) {
+				// la fermeture de la connexion ferme ses statements et leurs resultSets
+				openResultSets.recordFetches();
+				if (transaction != null) {
+					// fermeture sans commit : la transaction est en général annulée
+					transaction.end(true);
+				}
+				jdbcWrapper.removeUsedConnection(connection, dataSourceStatistics);
+				alreadyClosed = true;
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return connection.unwrap(iface);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return connection.isWrapperFor(iface);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Statement createStatement() throws SQLException {
+		return createStatementProxy(null, connection.createStatement());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return (PreparedStatement) createStatementProxy(sql, connection.prepareStatement(sql));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CallableStatement prepareCall(String sql) throws SQLException {
+		return (CallableStatement) createStatementProxy(sql, connection.prepareCall(sql));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String nativeSQL(String sql) throws SQLException {
+		return connection.nativeSQL(sql);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		connection.setAutoCommit(autoCommit);
+		if (transaction != null) {
+			transaction.autoCommitChanged(autoCommit);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		return connection.getAutoCommit();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void commit() throws SQLException {
+		boolean systemError = true;
+		try {
+			connection.commit();
+			systemError = false;
+		} finally {
+			if (transaction != null) {
+				transaction.end(systemError);
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void rollback() throws SQLException {
+		connection.rollback();
+		if (transaction != null) {
+			transaction.end(true);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isClosed() throws SQLException {
+		return connection.isClosed();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		return connection.getMetaData();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		connection.setReadOnly(readOnly);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		return connection.isReadOnly();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCatalog(String catalog) throws SQLException {
+		connection.setCatalog(catalog);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getCatalog() throws SQLException {
+		return connection.getCatalog();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTransactionIsolation(int level) throws SQLException {
+		connection.setTransactionIsolation(level);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		return connection.getTransactionIsolation();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return connection.getWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearWarnings() throws SQLException {
+		connection.clearWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+		return createStatementProxy(null, connection.createStatement(resultSetType, resultSetConcurrency));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		return (PreparedStatement) createStatementProxy(sql, connection.prepareStatement(sql, resultSetType, resultSetConcurrency));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		return (CallableStatement) createStatementProxy(sql, connection.prepareCall(sql, resultSetType, resultSetConcurrency));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String,Class<?>> getTypeMap() throws SQLException {
+		return connection.getTypeMap();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTypeMap(Map<String,Class<?>> map) throws SQLException {
+		connection.setTypeMap(map);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setHoldability(int holdability) throws SQLException {
+		connection.setHoldability(holdability);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getHoldability() throws SQLException {
+		return connection.getHoldability();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		return connection.setSavepoint();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Savepoint setSavepoint(String name) throws SQLException {
+		return connection.setSavepoint(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void rollback(Savepoint savepoint) throws SQLException {
+		connection.rollback(savepoint);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+		connection.releaseSavepoint(savepoint);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return createStatementProxy(null, connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return (PreparedStatement) createStatementProxy(sql, connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return (CallableStatement) createStatementProxy(sql, connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		return (PreparedStatement) createStatementProxy(sql, connection.prepareStatement(sql, autoGeneratedKeys));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+		return (PreparedStatement) createStatementProxy(sql, connection.prepareStatement(sql, columnIndexes));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+		return (PreparedStatement) createStatementProxy(sql, connection.prepareStatement(sql, columnNames));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Clob createClob() throws SQLException {
+		return connection.createClob();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Blob createBlob() throws SQLException {
+		return connection.createBlob();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public NClob createNClob() throws SQLException {
+		return connection.createNClob();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		return connection.createSQLXML();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isValid(int timeout) throws SQLException {
+		return connection.isValid(timeout);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClientInfo(String name, String value) throws SQLClientInfoException {
+		connection.setClientInfo(name, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClientInfo(Properties properties) throws SQLClientInfoException {
+		connection.setClientInfo(properties);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getClientInfo(String name) throws SQLException {
+		return connection.getClientInfo(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		return connection.getClientInfo();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+		return connection.createArrayOf(typeName, elements);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+		return connection.createStruct(typeName, attributes);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		connection.setSchema(schema);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSchema() throws SQLException {
+		return connection.getSchema();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		connection.abort(executor);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		connection.setNetworkTimeout(executor, milliseconds);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		return connection.getNetworkTimeout();
+	}
+}
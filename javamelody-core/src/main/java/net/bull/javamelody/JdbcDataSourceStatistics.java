@@ -0,0 +1,175 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistiques jdbc d'une dataSource nommée (nom jndi ou nom du bean Spring) : connexions utilisées,
+ * connexions actives et requêtes sql exécutées, en plus des statistiques globales de {@link JdbcWrapper}
+ * qui restent la vue agrégée de toutes les dataSources.
+ *
+ * Les requêtes sql restent agrégées dans le seul compteur sql, pour ne pas multiplier les requêtes,
+ * et ces statistiques sont collectées dans des courbes par dataSource.
+ * Le nombre de dataSources suivies est borné.
+ * @author Emeric Vernat
+ */
+final class JdbcDataSourceStatistics implements Serializable {
+	static final int MAX_DATA_SOURCES = 20;
+	private static final long serialVersionUID = 2857109381614562247L;
+	private static final ConcurrentMap<String, JdbcDataSourceStatistics> STATISTICS_BY_NAME = new ConcurrentHashMap<String, JdbcDataSourceStatistics>();
+
+	private final String name;
+	private final AtomicInteger usedConnectionCount = new AtomicInteger();
+	private final AtomicInteger activeConnectionCount = new AtomicInteger();
+	// hits, somme des durées et erreurs systèmes des requêtes sql depuis le démarrage
+	private final AtomicLong sqlHits = new AtomicLong();
+	private final AtomicLong sqlDurationsSum = new AtomicLong();
+	private final AtomicLong sqlSystemErrors = new AtomicLong();
+
+	private JdbcDataSourceStatistics(String name) {
+		super();
+		assert name != null;
+		this.name = name;
+	}
+
+	/**
+	 * Retourne les statistiques d'une dataSource, créées au premier appel.
+	 * @param name Nom de la dataSource
+	 * @return JdbcDataSourceStatistics, ou null si le nombre maximum de dataSources est atteint
+	 */
+	static JdbcDataSourceStatistics getInstance(String name) {
+		assert name != null;
+		final JdbcDataSourceStatistics statistics = STATISTICS_BY_NAME.get(name);
+		if (statistics != null) {
+			return statistics;
+		}
+		if (STATISTICS_BY_NAME.size() >= MAX_DATA_SOURCES) {
+			return null;
+		}
+		final JdbcDataSourceStatistics newStatistics = new JdbcDataSourceStatistics(name);
+		final JdbcDataSourceStatistics previousStatistics = STATISTICS_BY_NAME.putIfAbsent(name,
+				newStatistics);
+		if (previousStatistics != null) {
+			return previousStatistics;
+		}
+		return newStatistics;
+	}
+
+	/**
+	 * @return Copies des statistiques de toutes les dataSources, par exemple pour {@link JavaInformations}
+	 */
+	static List<JdbcDataSourceStatistics> getAllStatistics() {
+		final List<JdbcDataSourceStatistics> result = new ArrayList<JdbcDataSourceStatistics>(
+				STATISTICS_BY_NAME.size());
+		for (final JdbcDataSourceStatistics statistics : STATISTICS_BY_NAME.values()) {
+			result.add(statistics.copy());
+		}
+		return result;
+	}
+
+	JdbcDataSourceStatistics copy() {
+		final JdbcDataSourceStatistics result = new JdbcDataSourceStatistics(name);
+		result.add(this);
+		return result;
+	}
+
+	static void clearAll() {
+		STATISTICS_BY_NAME.clear();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getUsedConnectionCount() {
+		return usedConnectionCount.get();
+	}
+
+	int getActiveConnectionCount() {
+		return activeConnectionCount.get();
+	}
+
+	long getSqlHits() {
+		return sqlHits.get();
+	}
+
+	long getSqlDurationsSum() {
+		return sqlDurationsSum.get();
+	}
+
+	long getSqlSystemErrors() {
+		return sqlSystemErrors.get();
+	}
+
+	void connectionUsed() {
+		usedConnectionCount.incrementAndGet();
+	}
+
+	void connectionReleased() {
+		usedConnectionCount.decrementAndGet();
+	}
+
+	void executionStarted() {
+		activeConnectionCount.incrementAndGet();
+	}
+
+	/**
+	 * Fin de l'exécution d'une requête sql.
+	 * @param start Heure de début retournée par {@link JdbcWrapper#startExecute(String)},
+	 * ou -1 si la requête n'est pas enregistrée dans le counter sql
+	 * @param systemError Erreur système
+	 */
+	void executionEnded(long start, boolean systemError) {
+		activeConnectionCount.decrementAndGet();
+		if (start != -1) {
+			sqlDurationsSum.addAndGet(Math.max(System.currentTimeMillis() - start, 0));
+			if (systemError) {
+				sqlSystemErrors.incrementAndGet();
+			}
+			sqlHits.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Ajoute les valeurs d'autres statistiques de la même dataSource (autre JVM d'un cluster par exemple).
+	 * @param statistics JdbcDataSourceStatistics
+	 */
+	void add(JdbcDataSourceStatistics statistics) {
+		assert name.equals(statistics.name);
+		usedConnectionCount.addAndGet(statistics.getUsedConnectionCount());
+		activeConnectionCount.addAndGet(statistics.getActiveConnectionCount());
+		sqlHits.addAndGet(statistics.getSqlHits());
+		sqlDurationsSum.addAndGet(statistics.getSqlDurationsSum());
+		sqlSystemErrors.addAndGet(statistics.getSqlSystemErrors());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[name=" + name + ", usedConnectionCount="
+				+ getUsedConnectionCount() + ", activeConnectionCount="
+				+ getActiveConnectionCount() + ", sqlHits=" + getSqlHits() + ']';
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ResultSets mesurés (paramètre result-set-monitoring) et pas encore comptés d'un statement
+ * ou d'une connexion jdbc.<br>
+ * Un resultSet lu partiellement et non fermé par l'application est ainsi compté à la fermeture
+ * de son statement ou de sa connexion, qui ferment aussi le resultSet selon l'API JDBC.
+ * Les resultSets d'un statement sont aussi ceux de sa connexion.
+ * @author Emeric Vernat
+ */
+final class JdbcOpenResultSets {
+	// resultSets de la connexion, si ce sont ceux d'un statement (peut être null)
+	private final JdbcOpenResultSets connectionResultSets;
+	// ensemble par identité car equals et hashCode sont ceux du resultSet wrappé,
+	// créé seulement au premier resultSet mesuré
+	private Set<JdbcResultSetWrapper> resultSets;
+
+	JdbcOpenResultSets(JdbcOpenResultSets connectionResultSets) {
+		super();
+		this.connectionResultSets = connectionResultSets;
+	}
+
+	void add(JdbcResultSetWrapper resultSetWrapper) {
+		synchronized (this) {
+			if (resultSets == null) {
+				resultSets = Collections.newSetFromMap(
+						new IdentityHashMap<JdbcResultSetWrapper, Boolean>());
+			}
+			resultSets.add(resultSetWrapper);
+		}
+		if (connectionResultSets != null) {
+			connectionResultSets.add(resultSetWrapper);
+		}
+	}
+
+	void remove(JdbcResultSetWrapper resultSetWrapper) {
+		synchronized (this) {
+			if (resultSets != null) {
+				resultSets.remove(resultSetWrapper);
+			}
+		}
+		if (connectionResultSets != null) {
+			connectionResultSets.remove(resultSetWrapper);
+		}
+	}
+
+	/**
+	 * Ajoute au counter les lignes lues des resultSets pas encore comptés,
+	 * lors de la fermeture du statement ou de la connexion.
+	 */
+	void recordFetches() {
+		final List<JdbcResultSetWrapper> openResultSets;
+		synchronized (this) {
+			if (resultSets == null || resultSets.isEmpty()) {
+				return;
+			}
+			openResultSets = new ArrayList<JdbcResultSetWrapper>(resultSets);
+			resultSets.clear();
+		}
+		// hors synchronized, car recordFetch retire le resultSet de ceux de la connexion
+		for (final JdbcResultSetWrapper resultSetWrapper : openResultSets) {
+			resultSetWrapper.recordFetch();
+		}
+	}
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+
+/**
+ * Wrapper d'un preparedStatement jdbc, utilisé par {@link JdbcWrapper} à la place d'un proxy
+ * (voir {@link JdbcStatementWrapper}).<br>
+ * Les méthodes déléguées sont générées à partir des interfaces de java.sql en JDBC 4.2 (jdk 1.8) :
+ * les méthodes ajoutées dans une version plus récente de JDBC ne sont donc pas déléguées
+ * et gardent leur implémentation par défaut de l'interface.
+ * @author Emeric Vernat
+ */
+class JdbcPreparedStatementWrapper extends JdbcStatementWrapper implements PreparedStatement {
+	private final PreparedStatement preparedStatement;
+	// paramètres bindés (null sauf avec le paramètre slow-sql-parameters-threshold)
+	private final SqlBindParameters bindParameters;
+
+	JdbcPreparedStatementWrapper(JdbcWrapper jdbcWrapper, String query,
+			PreparedStatement preparedStatement, JdbcDataSourceStatistics dataSourceStatistics,
+			JdbcTransaction transaction, JdbcOpenResultSets connectionResultSets) {
+		super(jdbcWrapper, query, preparedStatement, dataSourceStatistics, transaction,
+				connectionResultSets);
+		this.preparedStatement = preparedStatement;
+		this.bindParameters = jdbcWrapper.createBindParameters();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet executeQuery() throws SQLException {
+		final String requestName = getRequestName(null);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final ResultSet result = preparedStatement.executeQuery();
+			systemError = false;
+			return createResultSetProxy(requestName, result);
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError, bindParameters);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate() throws SQLException {
+		final String requestName = getRequestName(null);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final int result = preparedStatement.executeUpdate();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError, bindParameters);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNull(int parameterIndex, int sqlType) throws SQLException {
+		preparedStatement.setNull(parameterIndex, sqlType);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, null);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+		preparedStatement.setBoolean(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setByte(int parameterIndex, byte x) throws SQLException {
+		preparedStatement.setByte(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setShort(int parameterIndex, short x) throws SQLException {
+		preparedStatement.setShort(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setInt(int parameterIndex, int x) throws SQLException {
+		preparedStatement.setInt(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setLong(int parameterIndex, long x) throws SQLException {
+		preparedStatement.setLong(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFloat(int parameterIndex, float x) throws SQLException {
+		preparedStatement.setFloat(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDouble(int parameterIndex, double x) throws SQLException {
+		preparedStatement.setDouble(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+		preparedStatement.setBigDecimal(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setString(int parameterIndex, String x) throws SQLException {
+		preparedStatement.setString(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+		preparedStatement.setBytes(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDate(int parameterIndex, Date x) throws SQLException {
+		preparedStatement.setDate(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTime(int parameterIndex, Time x) throws SQLException {
+		preparedStatement.setTime(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+		preparedStatement.setTimestamp(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		preparedStatement.setAsciiStream(parameterIndex, x, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Deprecated
+	@Override
+	public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		preparedStatement.setUnicodeStream(parameterIndex, x, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		preparedStatement.setBinaryStream(parameterIndex, x, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearParameters() throws SQLException {
+		preparedStatement.clearParameters();
+		if (bindParameters != null) {
+			bindParameters.clear();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+		preparedStatement.setObject(parameterIndex, x, targetSqlType);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x) throws SQLException {
+		preparedStatement.setObject(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute() throws SQLException {
+		final String requestName = getRequestName(null);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final boolean result = preparedStatement.execute();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError, bindParameters);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void addBatch() throws SQLException {
+		preparedStatement.addBatch();
+		incrementBatchSize();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+		preparedStatement.setCharacterStream(parameterIndex, reader, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setRef(int parameterIndex, Ref x) throws SQLException {
+		preparedStatement.setRef(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(int parameterIndex, Blob x) throws SQLException {
+		preparedStatement.setBlob(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(int parameterIndex, Clob x) throws SQLException {
+		preparedStatement.setClob(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setArray(int parameterIndex, Array x) throws SQLException {
+		preparedStatement.setArray(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSetMetaData getMetaData() throws SQLException {
+		return preparedStatement.getMetaData();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+		preparedStatement.setDate(parameterIndex, x, cal);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+		preparedStatement.setTime(parameterIndex, x, cal);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+		preparedStatement.setTimestamp(parameterIndex, x, cal);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+		preparedStatement.setNull(parameterIndex, sqlType, typeName);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, null);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setURL(int parameterIndex, URL x) throws SQLException {
+		preparedStatement.setURL(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ParameterMetaData getParameterMetaData() throws SQLException {
+		return preparedStatement.getParameterMetaData();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setRowId(int parameterIndex, RowId x) throws SQLException {
+		preparedStatement.setRowId(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNString(int parameterIndex, String value) throws SQLException {
+		preparedStatement.setNString(parameterIndex, value);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, value);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+		preparedStatement.setNCharacterStream(parameterIndex, value, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, value);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(int parameterIndex, NClob value) throws SQLException {
+		preparedStatement.setNClob(parameterIndex, value);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, value);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+		preparedStatement.setClob(parameterIndex, reader, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+		preparedStatement.setBlob(parameterIndex, inputStream, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, inputStream);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+		preparedStatement.setNClob(parameterIndex, reader, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+		preparedStatement.setSQLXML(parameterIndex, xmlObject);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, xmlObject);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+		preparedStatement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+		preparedStatement.setAsciiStream(parameterIndex, x, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+		preparedStatement.setBinaryStream(parameterIndex, x, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+		preparedStatement.setCharacterStream(parameterIndex, reader, length);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+		preparedStatement.setAsciiStream(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+		preparedStatement.setBinaryStream(parameterIndex, x);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+		preparedStatement.setCharacterStream(parameterIndex, reader);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+		preparedStatement.setNCharacterStream(parameterIndex, value);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, value);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(int parameterIndex, Reader reader) throws SQLException {
+		preparedStatement.setClob(parameterIndex, reader);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+		preparedStatement.setBlob(parameterIndex, inputStream);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, inputStream);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+		preparedStatement.setNClob(parameterIndex, reader);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, reader);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+		preparedStatement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException {
+		preparedStatement.setObject(parameterIndex, x, targetSqlType);
+		if (bindParameters != null) {
+			bindParameters.set(parameterIndex, x);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate() throws SQLException {
+		final String requestName = getRequestName(null);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final long result = preparedStatement.executeLargeUpdate();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError, bindParameters);
+		}
+	}
+}
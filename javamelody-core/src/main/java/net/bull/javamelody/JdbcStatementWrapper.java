@@ -0,0 +1,652 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * Wrapper d'un statement jdbc, utilisé par {@link JdbcWrapper} à la place d'un proxy
+ * lorsque le statement n'implémente que des interfaces standards de java.sql.<br>
+ * Contrairement au proxy, les méthodes sont appelées directement, sans Method.invoke,
+ * sans boxing et sans tableau d'arguments. Comme dans le proxy, seules les méthodes executeXxx
+ * sont instrumentées et les autres méthodes sont simplement déléguées au statement.<br>
+ * Les méthodes déléguées sont générées à partir des interfaces de java.sql en JDBC 4.2 (jdk 1.8) :
+ * les méthodes ajoutées dans une version plus récente de JDBC ne sont donc pas déléguées
+ * et gardent leur implémentation par défaut de l'interface.
+ * @author Emeric Vernat
+ */
+class JdbcStatementWrapper implements Statement {
+	private final JdbcWrapper jdbcWrapper;
+	private final Statement statement;
+	// statistiques de la dataSource nommée de la connexion (peut être null)
+	private final JdbcDataSourceStatistics dataSourceStatistics;
+	// transaction de la connexion (peut être null)
+	private final JdbcTransaction transaction;
+	private String requestName;
+	// nombre d'appels à addBatch depuis la dernière exécution du batch
+	private int batchSize;
+	// resultSets mesurés et pas encore comptés, pour les compter à la fermeture du statement
+	private final JdbcOpenResultSets openResultSets;
+
+	JdbcStatementWrapper(JdbcWrapper jdbcWrapper, String query, Statement statement,
+			JdbcDataSourceStatistics dataSourceStatistics, JdbcTransaction transaction,
+			JdbcOpenResultSets connectionResultSets) {
+		super();
+		assert jdbcWrapper != null;
+		assert statement != null;
+		this.jdbcWrapper = jdbcWrapper;
+		this.requestName = query;
+		this.statement = statement;
+		this.dataSourceStatistics = dataSourceStatistics;
+		this.transaction = transaction;
+		this.openResultSets = new JdbcOpenResultSets(connectionResultSets);
+	}
+
+	final JdbcWrapper getJdbcWrapper() {
+		return jdbcWrapper;
+	}
+
+	final ResultSet createResultSetProxy(String sql, ResultSet resultSet) {
+		return jdbcWrapper.createResultSetProxy(sql, resultSet, openResultSets);
+	}
+
+	final long startExecute(String sql) {
+		final long start = jdbcWrapper.startExecute(sql);
+		if (dataSourceStatistics != null) {
+			dataSourceStatistics.executionStarted();
+		}
+		return start;
+	}
+
+	final void endExecute(String sql, long start, boolean systemError) {
+		jdbcWrapper.endExecute(sql, start, systemError);
+		executionEnded(sql, start, systemError);
+	}
+
+	final void endExecute(String sql, long start, boolean systemError, int executedBatchSize) {
+		jdbcWrapper.endExecute(sql, start, systemError, executedBatchSize);
+		executionEnded(sql, start, systemError);
+	}
+
+	final void endExecute(String sql, long start, boolean systemError,
+			SqlBindParameters bindParameters) {
+		jdbcWrapper.endExecute(sql, start, systemError, bindParameters);
+		executionEnded(sql, start, systemError);
+	}
+
+	private void executionEnded(String sql, long start, boolean systemError) {
+		if (dataSourceStatistics != null) {
+			dataSourceStatistics.executionEnded(start, systemError);
+		}
+		if (transaction != null) {
+			transaction.statementExecuted(sql, start);
+		}
+	}
+
+	final String getRequestName(String sql) {
+		if (sql != null) {
+			// la méthode est du type executeQuery(String), executeUpdate(String, ...), execute(String)
+			// ou addBatch(String), alors la requête sql est le premier argument (et pas query).
+			// Rq : on ne conserve que la dernière requête de addBatch, comme dans le proxy.
+			requestName = sql;
+		}
+		// si on n'a pas trouvé la requête, on prend "null"
+		requestName = String.valueOf(requestName);
+		return requestName;
+	}
+
+	final void incrementBatchSize() {
+		batchSize++;
+	}
+
+	private int getAndResetBatchSize() {
+		// le batch est vidé par son exécution, même en cas d'erreur
+		final int result = batchSize;
+		batchSize = 0;
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean equals(Object obj) {
+		return statement.equals(obj);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int hashCode() {
+		return statement.hashCode();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return statement.toString();
+	}
+
+	// Rq : comme dans le proxy, unwrap est appelée sur le statement initial
+	// pour qu'il retourne lui-même ou son objet wrappé (OracleStatement...)
+
+	/** {@inheritDoc} */
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return statement.unwrap(iface);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return statement.isWrapperFor(iface);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet executeQuery(String sql) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final ResultSet result = statement.executeQuery(sql);
+			systemError = false;
+			return createResultSetProxy(requestName, result);
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() throws SQLException {
+		try {
+			statement.close();
+		} finally {
+			// la fermeture du statement ferme ses resultSets, même lus partiellement
+			openResultSets.recordFetches();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getMaxFieldSize() throws SQLException {
+		return statement.getMaxFieldSize();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setMaxFieldSize(int max) throws SQLException {
+		statement.setMaxFieldSize(max);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getMaxRows() throws SQLException {
+		return statement.getMaxRows();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setMaxRows(int max) throws SQLException {
+		statement.setMaxRows(max);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setEscapeProcessing(boolean enable) throws SQLException {
+		statement.setEscapeProcessing(enable);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getQueryTimeout() throws SQLException {
+		return statement.getQueryTimeout();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) throws SQLException {
+		statement.setQueryTimeout(seconds);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void cancel() throws SQLException {
+		statement.cancel();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return statement.getWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearWarnings() throws SQLException {
+		statement.clearWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCursorName(String name) throws SQLException {
+		statement.setCursorName(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet getResultSet() throws SQLException {
+		// resultSet de la dernière méthode execute(String sql), compté avec cette requête
+		return createResultSetProxy(getRequestName(null), statement.getResultSet());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getUpdateCount() throws SQLException {
+		return statement.getUpdateCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getMoreResults() throws SQLException {
+		return statement.getMoreResults();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFetchDirection(int direction) throws SQLException {
+		statement.setFetchDirection(direction);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getFetchDirection() throws SQLException {
+		return statement.getFetchDirection();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFetchSize(int rows) throws SQLException {
+		statement.setFetchSize(rows);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getFetchSize() throws SQLException {
+		return statement.getFetchSize();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getResultSetConcurrency() throws SQLException {
+		return statement.getResultSetConcurrency();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getResultSetType() throws SQLException {
+		return statement.getResultSetType();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void addBatch(String sql) throws SQLException {
+		// la requête sql de addBatch(String) sera utilisée lors de l'appel à executeBatch()
+		getRequestName(sql);
+		statement.addBatch(sql);
+		incrementBatchSize();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearBatch() throws SQLException {
+		statement.clearBatch();
+		batchSize = 0;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int[] executeBatch() throws SQLException {
+		final String requestName = getRequestName(null);
+		final int currentBatchSize = getAndResetBatchSize();
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final int[] result = statement.executeBatch();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError, currentBatchSize);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Connection getConnection() throws SQLException {
+		return statement.getConnection();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getMoreResults(int current) throws SQLException {
+		return statement.getMoreResults(current);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet getGeneratedKeys() throws SQLException {
+		return statement.getGeneratedKeys();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql, autoGeneratedKeys);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql, columnIndexes);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql, columnNames);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql, autoGeneratedKeys);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql, columnIndexes);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql, String[] columnNames) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql, columnNames);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getResultSetHoldability() throws SQLException {
+		return statement.getResultSetHoldability();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isClosed() throws SQLException {
+		return statement.isClosed();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setPoolable(boolean poolable) throws SQLException {
+		statement.setPoolable(poolable);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isPoolable() throws SQLException {
+		return statement.isPoolable();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void closeOnCompletion() throws SQLException {
+		statement.closeOnCompletion();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isCloseOnCompletion() throws SQLException {
+		return statement.isCloseOnCompletion();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLargeUpdateCount() throws SQLException {
+		return statement.getLargeUpdateCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setLargeMaxRows(long max) throws SQLException {
+		statement.setLargeMaxRows(max);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLargeMaxRows() throws SQLException {
+		return statement.getLargeMaxRows();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long[] executeLargeBatch() throws SQLException {
+		final String requestName = getRequestName(null);
+		final int currentBatchSize = getAndResetBatchSize();
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final long[] result = statement.executeLargeBatch();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError, currentBatchSize);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql, autoGeneratedKeys);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql, columnIndexes);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+		final String requestName = getRequestName(sql);
+		final long start = startExecute(requestName);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql, columnNames);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			endExecute(requestName, start, systemError);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.bull.javamelody.CounterRequest.ICounterRequestContext;
+
+/**
+ * Transaction jdbc d'une connexion instrumentée par {@link JdbcWrapper}.
+ *
+ * Une transaction commence à la première requête sql exécutée hors du mode auto-commit
+ * et se termine par commit, rollback, setAutoCommit(true) ou par la fermeture de la connexion.
+ * Sa durée est alors enregistrée dans le compteur des transactions, avec pour nom
+ * la première requête sql de la transaction et avec ses requêtes sql comme hits fils
+ * (nombre et temps des requêtes sql par transaction).
+ * Un rollback ou une fermeture de la connexion sans commit sont comptés comme des erreurs.
+ *
+ * Les transactions ouvertes sont suivies pour les graphiques des transactions en cours et de la
+ * plus longue d'entre elles, car une transaction longue conserve ses verrous en base de données.
+ * Une instance est utilisée par une seule connexion, donc par un seul thread à la fois,
+ * et elle est réutilisée pour les transactions successives de la connexion.
+ * @author Emeric Vernat
+ */
+final class JdbcTransaction implements ICounterRequestContext {
+	// on limite la taille pour éviter une saturation mémoire si des connexions ne sont jamais fermées
+	private static final int MAX_OPEN_TRANSACTIONS = 500;
+	private static final Set<JdbcTransaction> OPEN_TRANSACTIONS = Collections
+			.newSetFromMap(new ConcurrentHashMap<JdbcTransaction, Boolean>());
+
+	private final Counter transactionCounter;
+	private final Connection connection;
+	// mode auto-commit de la connexion, null tant qu'il n'est pas connu
+	private Boolean autoCommit;
+	// lue par le thread de collecte pour la plus longue transaction ouverte
+	private volatile long startTime = -1;
+	private String firstRequestName;
+	private int statementCount;
+	private int sqlDurationsSum;
+
+	JdbcTransaction(Counter transactionCounter, Connection connection) {
+		super();
+		assert transactionCounter != null;
+		assert connection != null;
+		this.transactionCounter = transactionCounter;
+		this.connection = connection;
+	}
+
+	/**
+	 * Fin de l'exécution d'une requête sql sur la connexion.
+	 * @param requestName Requête sql
+	 * @param start Heure de début retournée par {@link JdbcWrapper#startExecute(String)},
+	 * ou -1 si la requête n'est pas enregistrée dans le counter sql
+	 */
+	void statementExecuted(String requestName, long start) {
+		if (isAutoCommit()) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final long statementStart = start != -1 ? start : now;
+		if (startTime == -1) {
+			firstRequestName = requestName;
+			startTime = statementStart;
+			if (OPEN_TRANSACTIONS.size() < MAX_OPEN_TRANSACTIONS) {
+				OPEN_TRANSACTIONS.add(this);
+			}
+		}
+		statementCount++;
+		sqlDurationsSum += (int) Math.max(now - statementStart, 0);
+	}
+
+	/**
+	 * Appel réussi de setAutoCommit sur la connexion.
+	 * @param newAutoCommit Nouveau mode auto-commit
+	 */
+	void autoCommitChanged(boolean newAutoCommit) {
+		if (newAutoCommit) {
+			// setAutoCommit(true) valide la transaction en cours
+			end(false);
+		}
+		autoCommit = newAutoCommit;
+	}
+
+	/**
+	 * Fin de la transaction en cours s'il y en a une, par commit, rollback ou fermeture de la connexion.
+	 * @param systemError true si rollback, fermeture sans commit ou échec du commit
+	 */
+	void end(boolean systemError) {
+		final long start = startTime;
+		if (start == -1) {
+			return;
+		}
+		OPEN_TRANSACTIONS.remove(this);
+		final long duration = Math.max(System.currentTimeMillis() - start, 0);
+		if (!transactionCounter.isUsed()) {
+			transactionCounter.setUsed(true);
+			if (!Parameters.isCounterHidden(transactionCounter.getName())) {
+				transactionCounter.setDisplayed(true);
+			}
+		}
+		if (transactionCounter.isDisplayed()) {
+			transactionCounter.addRequestWithChildHits(firstRequestName, duration, systemError,
+					this);
+		}
+		startTime = -1;
+		firstRequestName = null;
+		statementCount = 0;
+		sqlDurationsSum = 0;
+	}
+
+	private boolean isAutoCommit() {
+		if (autoCommit == null) {
+			try {
+				autoCommit = connection.getAutoCommit();
+			} catch (final SQLException e) {
+				// connexion fermée par exemple, la requête sql sera de toute façon en erreur
+				return true;
+			}
+		}
+		return autoCommit;
+	}
+
+	boolean isOpen() {
+		return startTime != -1;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getChildHits() {
+		return statementCount;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getChildDurationsSum() {
+		return sqlDurationsSum;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String, Long> getChildRequestsExecutionsByRequestId() {
+		return Collections.emptyMap();
+	}
+
+	static int getOpenTransactionCount() {
+		return OPEN_TRANSACTIONS.size();
+	}
+
+	/**
+	 * @return Durée en millisecondes de la plus longue transaction ouverte, ou 0 s'il n'y en a pas
+	 */
+	static long getLongestOpenTransactionDuration() {
+		final long now = System.currentTimeMillis();
+		long result = 0;
+		for (final JdbcTransaction transaction : OPEN_TRANSACTIONS) {
+			final long start = transaction.startTime;
+			if (start != -1) {
+				result = Math.max(result, now - start);
+			}
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[open=" + isOpen() + ", firstRequestName="
+				+ firstRequestName + ", statementCount=" + statementCount + ']';
+	}
+}
@@ -22,8 +22,11 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
@@ -57,6 +60,7 @@ public final class JdbcWrapper {
 	// au lieu d'utiliser int avec des synchronized partout, on utilise AtomicInteger
 	static final AtomicInteger ACTIVE_CONNECTION_COUNT = new AtomicInteger();
 	static final AtomicInteger USED_CONNECTION_COUNT = new AtomicInteger();
+	static final AtomicInteger POOL_WAITER_COUNT = new AtomicInteger();
 	static final AtomicLong TRANSACTION_COUNT = new AtomicLong();
 	static final AtomicInteger ACTIVE_THREAD_COUNT = new AtomicInteger();
 	static final AtomicInteger RUNNING_BUILD_COUNT = new AtomicInteger();
@@ -67,6 +71,10 @@ public final class JdbcWrapper {
 
 	// Cette variable sqlCounter conserve un état qui est global au filtre et à l'application (donc thread-safe).
 	private final Counter sqlCounter;
+	// temps d'attente de getConnection dans les dataSources, requêtes filles des requêtes http comme sql
+	private final Counter poolCounter;
+	// durées des transactions jdbc, avec leurs requêtes sql comme requêtes filles
+	private final Counter transactionCounter;
 	private ServletContext servletContext;
 	private boolean connectionInformationsEnabled;
 	private boolean jboss;
@@ -97,13 +105,30 @@ public final class JdbcWrapper {
 		// sans notre proxy pour pouvoir appeler les méthodes non standard du driver par ex.
 		private String requestName;
 		private final Statement statement;
-
-		StatementInvocationHandler(String query, Statement statement) {
+		// nombre d'appels à addBatch depuis la dernière exécution du batch
+		private int batchSize;
+		// paramètres bindés d'un preparedStatement (null sauf avec le paramètre slow-sql-parameters-threshold)
+		private final SqlBindParameters bindParameters;
+		// statistiques de la dataSource nommée de la connexion (peut être null)
+		private final JdbcDataSourceStatistics dataSourceStatistics;
+		// transaction de la connexion (peut être null)
+		private final JdbcTransaction transaction;
+		// resultSets mesurés et pas encore comptés, pour les compter à la fermeture du statement
+		private final JdbcOpenResultSets openResultSets;
+
+		StatementInvocationHandler(String query, Statement statement,
+				JdbcDataSourceStatistics dataSourceStatistics, JdbcTransaction transaction,
+				JdbcOpenResultSets connectionResultSets) {
 			super();
 			assert statement != null;
 
 			this.requestName = query;
 			this.statement = statement;
+			this.dataSourceStatistics = dataSourceStatistics;
+			this.transaction = transaction;
+			this.openResultSets = new JdbcOpenResultSets(connectionResultSets);
+			this.bindParameters = statement instanceof PreparedStatement ? createBindParameters()
+					: null;
 		}
 
 		/** {@inheritDoc} */
@@ -126,19 +151,54 @@ public final class JdbcWrapper {
 				// si on n'a pas trouvé la requête, on prend "null"
 				requestName = String.valueOf(requestName);
 
-				return doExecute(requestName, statement, method, args);
-			} else if ("addBatch".equals(methodName) && isFirstArgAString(args)) {
-				// Bien que déconseillée la méthode est addBatch(String),
-				// la requête sql est alors le premier argument
-				// (elle sera utilisée lors de l'appel à executeBatch())
-
-				// Rq : on ne conserve que la dernière requête de addBatch.
-				// Rq : si addBatch(String) est appelée, puis que executeUpdate(String)
-				// la requête du batch est correctement ignorée ci-dessus.
-				// Rq : si connection.prepareStatement(String).addBatch(String) puis executeUpdate()
-				// sont appelées (et pas executeBatch()) alors la requête conservée est
-				// faussement celle du batch mais l'application cloche grave.
-				requestName = (String) args[0];
+				if ("executeBatch".equals(methodName) || "executeLargeBatch".equals(methodName)) {
+					// le batch est vidé par son exécution, même en cas d'erreur
+					final int currentBatchSize = batchSize;
+					batchSize = 0;
+					return doExecute(requestName, statement, method, args, currentBatchSize,
+							bindParameters, dataSourceStatistics, transaction, openResultSets);
+				}
+				return doExecute(requestName, statement, method, args, -1, bindParameters,
+						dataSourceStatistics, transaction, openResultSets);
+			} else if ("getResultSet".equals(methodName)) {
+				// resultSet de la dernière méthode execute(String sql), compté avec cette requête
+				return createResultSetProxy(String.valueOf(requestName),
+						(ResultSet) method.invoke(statement, args), openResultSets);
+			} else if ("close".equals(methodName)) {
+				try {
+					return method.invoke(statement, args);
+				} finally {
+					// la fermeture du statement ferme ses resultSets, même lus partiellement
+					openResultSets.recordFetches();
+				}
+			} else if ("addBatch".equals(methodName)) {
+				if (isFirstArgAString(args)) {
+					// Bien que déconseillée la méthode est addBatch(String),
+					// la requête sql est alors le premier argument
+					// (elle sera utilisée lors de l'appel à executeBatch())
+
+					// Rq : on ne conserve que la dernière requête de addBatch.
+					// Rq : si addBatch(String) est appelée, puis que executeUpdate(String)
+					// la requête du batch est correctement ignorée ci-dessus.
+					// Rq : si connection.prepareStatement(String).addBatch(String) puis executeUpdate()
+					// sont appelées (et pas executeBatch()) alors la requête conservée est
+					// faussement celle du batch mais l'application cloche grave.
+					requestName = (String) args[0];
+				}
+				final Object result = method.invoke(statement, args);
+				batchSize++;
+				return result;
+			} else if ("clearBatch".equals(methodName)) {
+				batchSize = 0;
+			} else if (bindParameters != null && methodName.startsWith("set")
+					&& isBindParameterArgs(args)) {
+				// méthode du type setInt(int parameterIndex, int x) ou setNull(int parameterIndex, int sqlType)
+				final Object result = method.invoke(statement, args);
+				bindParameters.set((Integer) args[0],
+						"setNull".equals(methodName) ? null : args[1]);
+				return result;
+			} else if (bindParameters != null && "clearParameters".equals(methodName)) {
+				bindParameters.clear();
 			}
 
 			// ce n'est pas une méthode executeXxx du Statement
@@ -148,6 +208,41 @@ public final class JdbcWrapper {
 		private boolean isFirstArgAString(Object[] args) {
 			return args != null && args.length > 0 && args[0] instanceof String;
 		}
+
+		private boolean isBindParameterArgs(Object[] args) {
+			// les méthodes setXxx(int) du statement comme setFetchSize n'ont qu'un argument,
+			// et les méthodes setXxx(String parameterName, ...) du callableStatement ne sont pas capturées
+			return args != null && args.length >= 2 && args[0] instanceof Integer;
+		}
+	}
+
+	/**
+	 * Handler de proxy d'un resultSet jdbc implémentant des interfaces non standards du driver,
+	 * qui délègue next() et close() à un {@link JdbcResultSetWrapper} (paramètre result-set-monitoring).
+	 */
+	private static class ResultSetInvocationHandler implements InvocationHandler {
+		private final JdbcResultSetWrapper resultSetWrapper;
+
+		ResultSetInvocationHandler(JdbcResultSetWrapper resultSetWrapper) {
+			super();
+			assert resultSetWrapper != null;
+			this.resultSetWrapper = resultSetWrapper;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String methodName = method.getName();
+			final boolean noArgs = args == null || args.length == 0;
+			// == for perf (strings interned: == is ok)
+			if ("next" == methodName && noArgs) { // NOPMD
+				return resultSetWrapper.next();
+			} else if ("close" == methodName && noArgs) { // NOPMD
+				resultSetWrapper.close();
+				return null;
+			}
+			return method.invoke(resultSetWrapper.getResultSet(), args);
+		}
 	}
 
 	/**
@@ -155,24 +250,25 @@ public final class JdbcWrapper {
 	 */
 	private class ConnectionInvocationHandler implements InvocationHandler {
 		private final Connection connection;
+		// statistiques de la dataSource nommée d'où vient la connexion (peut être null)
+		private final JdbcDataSourceStatistics dataSourceStatistics;
+		// transaction de la connexion (null si le counter sql n'est pas affiché)
+		private final JdbcTransaction transaction;
+		// resultSets mesurés et pas encore comptés des statements de la connexion
+		private final JdbcOpenResultSets openResultSets = new JdbcOpenResultSets(null);
 		private boolean alreadyClosed;
 
-		ConnectionInvocationHandler(Connection connection) {
+		ConnectionInvocationHandler(Connection connection,
+				JdbcDataSourceStatistics dataSourceStatistics) {
 			super();
 			assert connection != null;
 			this.connection = connection;
+			this.dataSourceStatistics = dataSourceStatistics;
+			this.transaction = createTransaction(connection);
 		}
 
 		void init() {
-			// on limite la taille pour éviter une éventuelle saturation mémoire
-			if (isConnectionInformationsEnabled()
-					&& USED_CONNECTION_INFORMATIONS.size() < MAX_USED_CONNECTION_INFORMATIONS) {
-				USED_CONNECTION_INFORMATIONS.put(
-						ConnectionInformations.getUniqueIdOfConnection(connection),
-						new ConnectionInformations());
-			}
-			USED_CONNECTION_COUNT.incrementAndGet();
-			TRANSACTION_COUNT.incrementAndGet();
+			addUsedConnection(connection, dataSourceStatistics);
 		}
 
 		/** {@inheritDoc} */
@@ -185,8 +281,19 @@ public final class JdbcWrapper {
 			} else if (isHashCodeMethod(methodName, args)) {
 				return connection.hashCode();
 			}
+			boolean systemError = true;
 			try {
 				Object result = method.invoke(connection, args);
+				systemError = false;
+				if (transaction != null) {
+					if ("commit".equals(methodName) || "rollback".equals(methodName)
+							&& (args == null || args.length == 0)) {
+						// rollback(Savepoint) ne termine pas la transaction
+						transaction.end("rollback".equals(methodName));
+					} else if ("setAutoCommit".equals(methodName)) {
+						transaction.autoCommitChanged((Boolean) args[0]);
+					}
+				}
 				if (result instanceof Statement) {
 					final String requestName;
 					if ("prepareStatement".equals(methodName) || "prepareCall".equals(methodName)) {
@@ -196,14 +303,23 @@ public final class JdbcWrapper {
 					} else {
 						requestName = null;
 					}
-					result = createStatementProxy(requestName, (Statement) result);
+					result = createStatementProxy(requestName, (Statement) result,
+							dataSourceStatistics, transaction, openResultSets);
 				}
 				return result;
 			} finally {
+				if (systemError && transaction != null && "commit".equals(methodName)) {
+					// échec du commit
+					transaction.end(true);
+				}
 				if ("close".equals(methodName) && !alreadyClosed) {
-					USED_CONNECTION_COUNT.decrementAndGet();
-					USED_CONNECTION_INFORMATIONS
-							.remove(ConnectionInformations.getUniqueIdOfConnection(connection));
+					// la fermeture de la connexion ferme ses statements et leurs resultSets
+					openResultSets.recordFetches();
+					if (transaction != null) {
+						// fermeture sans commit : la transaction est en général annulée
+						transaction.end(true);
+					}
+					removeUsedConnection(connection, dataSourceStatistics);
 					alreadyClosed = true;
 				}
 			}
@@ -212,18 +328,7 @@ public final class JdbcWrapper {
 		private boolean areConnectionsEquals(Object object) {
 			// Special case if what we're being passed is one of our proxies (specifically a connection proxy)
 			// This way the equals call is truely transparent for our proxies (cf issue 78)
-			if (Proxy.isProxyClass(object.getClass())) {
-				final InvocationHandler invocationHandler = Proxy.getInvocationHandler(object);
-				if (invocationHandler instanceof DelegatingInvocationHandler) {
-					final DelegatingInvocationHandler d = (DelegatingInvocationHandler) invocationHandler;
-					if (d.getDelegate() instanceof ConnectionInvocationHandler) {
-						final ConnectionInvocationHandler c = (ConnectionInvocationHandler) d
-								.getDelegate();
-						return connection.equals(c.connection);
-					}
-				}
-			}
-			return connection.equals(object);
+			return connection.equals(getWrappedConnection(object));
 		}
 	}
 
@@ -297,6 +402,10 @@ public final class JdbcWrapper {
 		super();
 		assert sqlCounter != null;
 		this.sqlCounter = sqlCounter;
+		this.poolCounter = Counter.createCounterSharingContexts(Counter.POOL_COUNTER_NAME,
+				"db.png", sqlCounter);
+		this.transactionCounter = new Counter(Counter.TRANSACTION_COUNTER_NAME,
+				Counter.TRANSACTION_COUNTER_NAME, "db.png", sqlCounter.getName());
 		// servletContext reste null pour l'instant
 		this.servletContext = null;
 		connectionInformationsEnabled = Parameters.isSystemActionsEnabled()
@@ -316,6 +425,56 @@ public final class JdbcWrapper {
 				&& !Parameters.isNoDatabase();
 	}
 
+	static Object getWrappedConnection(Object object) {
+		if (object instanceof JdbcConnectionWrapper) {
+			return ((JdbcConnectionWrapper) object).getConnection();
+		} else if (Proxy.isProxyClass(object.getClass())) {
+			final InvocationHandler invocationHandler = Proxy.getInvocationHandler(object);
+			if (invocationHandler instanceof DelegatingInvocationHandler) {
+				final DelegatingInvocationHandler d = (DelegatingInvocationHandler) invocationHandler;
+				if (d.getDelegate() instanceof ConnectionInvocationHandler) {
+					final ConnectionInvocationHandler c = (ConnectionInvocationHandler) d
+							.getDelegate();
+					return c.connection;
+				}
+			}
+		}
+		return object;
+	}
+
+	void addUsedConnection(Connection connection) {
+		addUsedConnection(connection, null);
+	}
+
+	void addUsedConnection(Connection connection, JdbcDataSourceStatistics dataSourceStatistics) {
+		// on limite la taille pour éviter une éventuelle saturation mémoire
+		if (isConnectionInformationsEnabled()
+				&& USED_CONNECTION_INFORMATIONS.size() < MAX_USED_CONNECTION_INFORMATIONS) {
+			USED_CONNECTION_INFORMATIONS.put(
+					ConnectionInformations.getUniqueIdOfConnection(connection),
+					new ConnectionInformations());
+		}
+		USED_CONNECTION_COUNT.incrementAndGet();
+		TRANSACTION_COUNT.incrementAndGet();
+		if (dataSourceStatistics != null) {
+			dataSourceStatistics.connectionUsed();
+		}
+	}
+
+	void removeUsedConnection(Connection connection) {
+		removeUsedConnection(connection, null);
+	}
+
+	void removeUsedConnection(Connection connection,
+			JdbcDataSourceStatistics dataSourceStatistics) {
+		USED_CONNECTION_COUNT.decrementAndGet();
+		if (dataSourceStatistics != null) {
+			dataSourceStatistics.connectionReleased();
+		}
+		USED_CONNECTION_INFORMATIONS
+				.remove(ConnectionInformations.getUniqueIdOfConnection(connection));
+	}
+
 	static int getUsedConnectionCount() {
 		return USED_CONNECTION_COUNT.get();
 	}
@@ -324,6 +483,10 @@ public final class JdbcWrapper {
 		return ACTIVE_CONNECTION_COUNT.get();
 	}
 
+	static int getPoolWaiterCount() {
+		return POOL_WAITER_COUNT.get();
+	}
+
 	static long getTransactionCount() {
 		return TRANSACTION_COUNT.get();
 	}
@@ -351,6 +514,14 @@ public final class JdbcWrapper {
 		return sqlCounter;
 	}
 
+	Counter getPoolCounter() {
+		return poolCounter;
+	}
+
+	Counter getTransactionCounter() {
+		return transactionCounter;
+	}
+
 	boolean isConnectionInformationsEnabled() {
 		return connectionInformationsEnabled;
 	}
@@ -376,56 +547,154 @@ public final class JdbcWrapper {
 		JdbcWrapperHelper.registerSpringDataSource(name, dataSource);
 	}
 
-	Object doExecute(String requestName, Statement statement, Method method, Object[] args)
+	Object doExecute(String requestName, Statement statement, Method method, Object[] args,
+			int batchSize, SqlBindParameters bindParameters,
+			JdbcDataSourceStatistics dataSourceStatistics, JdbcTransaction transaction,
+			JdbcOpenResultSets openResultSets)
 			throws IllegalAccessException, InvocationTargetException {
 		assert requestName != null;
 		assert statement != null;
 		assert method != null;
 
-		// on ignore les requêtes explain exécutées par DatabaseInformations
-		if (!sqlCounter.isDisplayed() || requestName.startsWith("explain ")) {
-			ACTIVE_CONNECTION_COUNT.incrementAndGet();
-			try {
-				return method.invoke(statement, args);
-			} finally {
-				ACTIVE_CONNECTION_COUNT.decrementAndGet();
-			}
+		final long start = startExecute(requestName);
+		if (dataSourceStatistics != null) {
+			dataSourceStatistics.executionStarted();
 		}
-
-		final long start = System.currentTimeMillis();
 		boolean systemError = true;
 		try {
-			ACTIVE_CONNECTION_COUNT.incrementAndGet();
-
-			// note perf: selon un paramètre current-sql(/requests)-disabled,
-			// on pourrait ici ne pas binder un nouveau contexte à chaque requête sql
-			sqlCounter.bindContext(requestName, requestName, null, -1);
-
 			final Object result = method.invoke(statement, args);
 			systemError = false;
+			if (result instanceof ResultSet) {
+				return createResultSetProxy(requestName, (ResultSet) result, openResultSets);
+			}
 			return result;
 		} catch (final InvocationTargetException e) {
 			if (e.getCause() instanceof SQLException) {
-				final int errorCode = ((SQLException) e.getCause()).getErrorCode();
-				if (errorCode >= 20000 && errorCode < 30000) {
-					// Dans Oracle par exemple, les erreurs 20000 à 30000 sont standardisées
-					// comme étant des erreurs lancées par l'application dans des procédures stockées
-					// pour être traitées comme des erreurs de saisies ou comme des règles de gestion.
-					// Ce ne sont donc pas des erreurs systèmes.
-					systemError = false;
-				}
+				systemError = isSystemError((SQLException) e.getCause());
 			}
 			throw e;
 		} finally {
-			// Rq : on n'utilise pas la création du statement et l'appel à la méthode close du statement
-			// comme début et fin d'une connexion active, car en fonction de l'application
-			// la méthode close du statement peut ne jamais être appelée
-			// (par exemple, seule la méthode close de la connection peut être appelée ce qui ferme aussi le statement)
+			endExecute(requestName, start, systemError, batchSize, bindParameters);
+			if (dataSourceStatistics != null) {
+				dataSourceStatistics.executionEnded(start, systemError);
+			}
+			if (transaction != null) {
+				transaction.statementExecuted(requestName, start);
+			}
+		}
+	}
+
+	/**
+	 * Crée le suivi des transactions d'une connexion, si le counter sql est affiché.
+	 * @param connection Connection
+	 * @return JdbcTransaction ou null
+	 */
+	JdbcTransaction createTransaction(Connection connection) {
+		if (isSqlMonitoringDisabled()) {
+			return null;
+		}
+		return new JdbcTransaction(transactionCounter, connection);
+	}
+
+	/**
+	 * Début de l'exécution d'une requête sql, par le proxy ou par le wrapper d'un statement.
+	 * @param requestName Requête sql
+	 * @return Heure de début de l'exécution, ou -1 si la requête n'est pas enregistrée dans le counter sql
+	 */
+	long startExecute(String requestName) {
+		assert requestName != null;
+		// Rq : on n'utilise pas la création du statement et l'appel à la méthode close du statement
+		// comme début et fin d'une connexion active, car en fonction de l'application
+		// la méthode close du statement peut ne jamais être appelée
+		// (par exemple, seule la méthode close de la connection peut être appelée ce qui ferme aussi le statement)
+		ACTIVE_CONNECTION_COUNT.incrementAndGet();
+		// on ignore les requêtes explain exécutées par DatabaseInformations
+		if (!sqlCounter.isDisplayed() || requestName.startsWith("explain ")) {
+			return -1;
+		}
+		final long start = System.currentTimeMillis();
+		// note perf: selon un paramètre current-sql(/requests)-disabled,
+		// on pourrait ici ne pas binder un nouveau contexte à chaque requête sql
+		sqlCounter.bindContext(requestName, requestName, null, -1);
+		return start;
+	}
+
+	/**
+	 * Fin de l'exécution d'une requête sql, commencée par {@link #startExecute(String)}.
+	 * @param requestName Requête sql
+	 * @param start Heure de début retournée par startExecute
+	 * @param systemError Erreur système
+	 */
+	void endExecute(String requestName, long start, boolean systemError) {
+		endExecute(requestName, start, systemError, -1);
+	}
+
+	/**
+	 * Fin de l'exécution d'une requête sql ou d'un batch, commencée par {@link #startExecute(String)}.
+	 * @param requestName Requête sql
+	 * @param start Heure de début retournée par startExecute
+	 * @param systemError Erreur système
+	 * @param batchSize Nombre d'appels à addBatch pour executeBatch ou executeLargeBatch, ou -1 sinon
+	 */
+	void endExecute(String requestName, long start, boolean systemError, int batchSize) {
+		endExecute(requestName, start, systemError, batchSize, null);
+	}
+
+	/**
+	 * Fin de l'exécution d'un preparedStatement, commencée par {@link #startExecute(String)}.
+	 * @param requestName Requête sql
+	 * @param start Heure de début retournée par startExecute
+	 * @param systemError Erreur système
+	 * @param bindParameters Paramètres bindés du preparedStatement (null si non capturés)
+	 */
+	void endExecute(String requestName, long start, boolean systemError,
+			SqlBindParameters bindParameters) {
+		endExecute(requestName, start, systemError, -1, bindParameters);
+	}
+
+	private void endExecute(String requestName, long start, boolean systemError, int batchSize,
+			SqlBindParameters bindParameters) {
+		ACTIVE_CONNECTION_COUNT.decrementAndGet();
+		if (start != -1) {
 			// Rq : pas de temps cpu pour les requêtes sql car c'est 0 ou quasiment 0
-			ACTIVE_CONNECTION_COUNT.decrementAndGet();
 			final long duration = Math.max(System.currentTimeMillis() - start, 0);
 			sqlCounter.addRequest(requestName, duration, -1, systemError, -1);
+			if (batchSize > 0 && !systemError) {
+				// un batch est compté comme un seul hit, donc on ajoute la taille du batch
+				// pour le coût par ligne et la répartition des tailles de batch
+				sqlCounter.addBatch(requestName, batchSize, duration);
+			}
+			if (bindParameters != null && duration >= bindParameters.getThreshold()
+					&& bindParameters.getParametersCount() > 0) {
+				// les valeurs ne sont formatées que pour les exécutions lentes
+				sqlCounter.addSlowExecution(requestName, duration,
+						bindParameters.format(requestName,
+								Parameters.getSlowSqlParametersMaskedColumns(),
+								Parameters.isSlowSqlParametersMaskUnknownColumns()));
+			}
+		}
+	}
+
+	/**
+	 * Retourne les paramètres bindés à capturer pour un nouveau preparedStatement,
+	 * si le paramètre slow-sql-parameters-threshold est défini.
+	 * @return SqlBindParameters ou null
+	 */
+	SqlBindParameters createBindParameters() {
+		final long threshold = Parameters.getSlowSqlParametersThreshold();
+		if (threshold < 0 || !sqlCounter.isDisplayed()) {
+			return null;
 		}
+		return new SqlBindParameters(threshold);
+	}
+
+	static boolean isSystemError(SQLException e) {
+		final int errorCode = e.getErrorCode();
+		// Dans Oracle par exemple, les erreurs 20000 à 30000 sont standardisées
+		// comme étant des erreurs lancées par l'application dans des procédures stockées
+		// pour être traitées comme des erreurs de saisies ou comme des règles de gestion.
+		// Ce ne sont donc pas des erreurs systèmes.
+		return errorCode < 20000 || errorCode >= 30000;
 	}
 
 	boolean rebindDataSources() {
@@ -795,6 +1064,17 @@ public final class JdbcWrapper {
 	public DataSource createDataSourceProxy(String name, final DataSource dataSource) {
 		assert dataSource != null;
 		JdbcWrapperHelper.pullDataSourceProperties(name, dataSource);
+		// les attentes de connexions sont comptées par dataSource dans le compteur pool
+		final String poolRequestName = name != null ? name : dataSource.getClass().getName();
+		poolCounter.setUsed(true);
+		if (!Parameters.isCounterHidden(poolCounter.getName())) {
+			poolCounter.setDisplayed(true);
+		}
+		// connexions et requêtes sql comptées aussi par dataSource nommée,
+		// en plus des statistiques globales qui restent la vue agrégée
+		final JdbcDataSourceStatistics dataSourceStatistics = name != null
+				? JdbcDataSourceStatistics.getInstance(name)
+				: null;
 		final InvocationHandler invocationHandler = new AbstractInvocationHandler<DataSource>(
 				dataSource) {
 			private static final long serialVersionUID = 1L;
@@ -802,9 +1082,14 @@ public final class JdbcWrapper {
 			/** {@inheritDoc} */
 			@Override
 			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-				Object result = method.invoke(dataSource, args);
+				Object result;
+				if ("getConnection".equals(method.getName())) {
+					result = doGetConnection(poolRequestName, dataSource, method, args);
+				} else {
+					result = method.invoke(dataSource, args);
+				}
 				if (result instanceof Connection) {
-					result = createConnectionProxy((Connection) result);
+					result = createConnectionProxy((Connection) result, dataSourceStatistics);
 				}
 				return result;
 			}
@@ -812,6 +1097,39 @@ public final class JdbcWrapper {
 		return createProxy(dataSource, invocationHandler);
 	}
 
+	Object doGetConnection(String poolRequestName, DataSource dataSource, Method method,
+			Object[] args) throws IllegalAccessException, InvocationTargetException {
+		// temps d'attente d'une connexion du pool, par exemple lorsque toutes les connexions sont utilisées
+		POOL_WAITER_COUNT.incrementAndGet();
+		final long start;
+		if (Parameters.isMonitoringDisabled() || !poolCounter.isDisplayed()) {
+			start = -1;
+		} else {
+			start = System.currentTimeMillis();
+			// contexte fils de la requête http en cours, comme pour une requête sql,
+			// pour voir l'attente dans les requêtes en cours et dans le détail de la requête http
+			poolCounter.bindContext(poolRequestName, poolRequestName, null, -1);
+		}
+		boolean systemError = true;
+		try {
+			final Object result = method.invoke(dataSource, args);
+			systemError = false;
+			return result;
+		} catch (final InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException) {
+				// par exemple, timeout d'attente d'une connexion si le pool est épuisé
+				systemError = isSystemError((SQLException) e.getCause());
+			}
+			throw e;
+		} finally {
+			POOL_WAITER_COUNT.decrementAndGet();
+			if (start != -1) {
+				final long duration = Math.max(System.currentTimeMillis() - start, 0);
+				poolCounter.addRequest(poolRequestName, duration, -1, systemError, -1);
+			}
+		}
+	}
+
 	Connection createConnectionProxyOrRewrapIfJBossOrGlassfish(Connection connection)
 			throws IllegalAccessException {
 		if (jboss || glassfish) {
@@ -827,14 +1145,38 @@ public final class JdbcWrapper {
 	 * @return Connection
 	 */
 	public Connection createConnectionProxy(Connection connection) {
+		return createConnectionProxy(connection, null);
+	}
+
+	/**
+	 * Crée un proxy d'une connexion jdbc venant d'une dataSource nommée.
+	 * @param connection Connection
+	 * @param dataSourceStatistics Statistiques de la dataSource (peut être null)
+	 * @return Connection
+	 */
+	Connection createConnectionProxy(Connection connection,
+			JdbcDataSourceStatistics dataSourceStatistics) {
 		assert connection != null;
 		// même si le counter sql n'est pas affiché on crée un proxy de la connexion
 		// pour avoir les graphiques USED_CONNECTION_COUNT et ACTIVE_CONNECTION_COUNT (cf issue 160)
-		if (isMonitoringDisabled()) {
+		// le paramètre est lu dans l'instantané des paramètres, qui est recalculé à l'initialisation
+		// du servletContext (au départ il n'est pas forcément défini si c'est un driver jdbc sans dataSource)
+		if (Parameters.isMonitoringDisabled()) {
 			return connection;
 		}
+		if (isProxyAlready(connection)) {
+			return connection;
+		}
+		if (jonas || JdbcWrapperHelper.hasOnlyJdbcInterfaces(connection.getClass())) {
+			// wrapper sans réflexion si aucune interface non standard du driver n'est à conserver
+			// (si jonas, on ne garde de toute façon que l'interface java.sql.Connection, voir ci-dessous)
+			final Connection result = new JdbcConnectionWrapper(this, connection,
+					dataSourceStatistics, createTransaction(connection));
+			addUsedConnection(connection, dataSourceStatistics);
+			return result;
+		}
 		final ConnectionInvocationHandler invocationHandler = new ConnectionInvocationHandler(
-				connection);
+				connection, dataSourceStatistics);
 		final Connection result;
 		if (jonas) {
 			// si jonas, on ne garde que l'interface java.sql.Connection
@@ -852,16 +1194,16 @@ public final class JdbcWrapper {
 	}
 
 	boolean isSqlMonitoringDisabled() {
-		return isMonitoringDisabled() || !sqlCounter.isDisplayed();
+		return Parameters.isMonitoringDisabled() || !sqlCounter.isDisplayed();
 	}
 
-	private static boolean isMonitoringDisabled() {
-		// on doit réévaluer ici le paramètre, car au départ le servletContext
-		// n'est pas forcément défini si c'est un driver jdbc sans dataSource
-		return Boolean.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
+	Statement createStatementProxy(String query, Statement statement) {
+		return createStatementProxy(query, statement, null, null, null);
 	}
 
-	Statement createStatementProxy(String query, Statement statement) {
+	Statement createStatementProxy(String query, Statement statement,
+			JdbcDataSourceStatistics dataSourceStatistics, JdbcTransaction transaction,
+			JdbcOpenResultSets connectionResultSets) {
 		assert statement != null;
 		// Si un proxy de connexion a été créé dans un driver jdbc et que par la suite le
 		// servletContext a un paramètre désactivant le monitoring, alors ce n'est pas grave
@@ -871,11 +1213,69 @@ public final class JdbcWrapper {
 		// Rq : on ne réévalue pas le paramètre ici pour raison de performances sur la recherche
 		// dans les paramètres du système, du contexte et du filtre alors que dans 99.999999999%
 		// des exécutions il n'y a pas le paramètre.
+		if (isProxyAlready(statement)) {
+			return statement;
+		}
+		if (JdbcWrapperHelper.hasOnlyJdbcInterfaces(statement.getClass())) {
+			// wrapper sans réflexion si aucune interface non standard du driver n'est à conserver
+			if (statement instanceof CallableStatement) {
+				return new JdbcCallableStatementWrapper(this, query,
+						(CallableStatement) statement, dataSourceStatistics, transaction,
+						connectionResultSets);
+			} else if (statement instanceof PreparedStatement) {
+				return new JdbcPreparedStatementWrapper(this, query,
+						(PreparedStatement) statement, dataSourceStatistics, transaction,
+						connectionResultSets);
+			}
+			return new JdbcStatementWrapper(this, query, statement, dataSourceStatistics,
+					transaction, connectionResultSets);
+		}
 		final InvocationHandler invocationHandler = new StatementInvocationHandler(query,
-				statement);
+				statement, dataSourceStatistics, transaction, connectionResultSets);
 		return createProxy(statement, invocationHandler);
 	}
 
+	/**
+	 * Retourne le resultSet avec la mesure des lignes lues et du temps de lecture
+	 * si le paramètre result-set-monitoring est actif, ou sinon le resultSet lui-même.
+	 * @param requestName Requête sql exécutée
+	 * @param resultSet ResultSet (peut être null)
+	 * @return ResultSet
+	 */
+	ResultSet createResultSetProxy(String requestName, ResultSet resultSet) {
+		return createResultSetProxy(requestName, resultSet, null);
+	}
+
+	/**
+	 * Retourne le resultSet avec la mesure des lignes lues et du temps de lecture
+	 * si le paramètre result-set-monitoring est actif, ou sinon le resultSet lui-même.
+	 * @param requestName Requête sql exécutée
+	 * @param resultSet ResultSet (peut être null)
+	 * @param openResultSets ResultSets ouverts du statement, pour compter ce resultSet
+	 * à la fermeture du statement ou de la connexion (peut être null)
+	 * @return ResultSet
+	 */
+	ResultSet createResultSetProxy(String requestName, ResultSet resultSet,
+			JdbcOpenResultSets openResultSets) {
+		assert requestName != null;
+		if (resultSet == null || !sqlCounter.isDisplayed() || requestName.startsWith("explain ")
+				|| !Boolean.parseBoolean(
+						Parameters.getParameterFromSnapshot(Parameter.RESULT_SET_MONITORING))) {
+			return resultSet;
+		}
+		final JdbcResultSetWrapper resultSetWrapper = new JdbcResultSetWrapper(sqlCounter,
+				requestName, resultSet, openResultSets);
+		if (openResultSets != null) {
+			openResultSets.add(resultSetWrapper);
+		}
+		if (JdbcWrapperHelper.hasOnlyJdbcInterfaces(resultSet.getClass())) {
+			// wrapper sans réflexion si aucune interface non standard du driver n'est à conserver
+			return resultSetWrapper;
+		}
+		// sinon proxy implémentant toutes les interfaces du resultSet (OracleResultSet...)
+		return createProxy(resultSet, new ResultSetInvocationHandler(resultSetWrapper));
+	}
+
 	static boolean isEqualsMethod(Object methodName, Object[] args) {
 		// == for perf (strings interned: == is ok)
 		return "equals" == methodName && args != null && args.length == 1; // NOPMD
@@ -904,10 +1304,20 @@ public final class JdbcWrapper {
 
 	private static boolean isProxyAlready(Object object) {
 		return Proxy.isProxyClass(object.getClass()) && Proxy.getInvocationHandler(object)
-				.getClass().getName().equals(DelegatingInvocationHandler.class.getName());
+				.getClass().getName().equals(DelegatingInvocationHandler.class.getName())
+				|| isWrapperAlready(object);
 		// utilisation de Proxy.getInvocationHandler(object).getClass().getName().equals(DelegatingInvocationHandler.class.getName())
 		// et non de Proxy.getInvocationHandler(object) instanceof DelegatingInvocationHandler
 		// pour issue 97 (classLoaders différents pour les classes DelegatingInvocationHandler)
 	}
 
+	private static boolean isWrapperAlready(Object object) {
+		// comparaison des noms de classes pour la même raison que ci-dessus (issue 97)
+		final String className = object.getClass().getName();
+		return className.equals(JdbcConnectionWrapper.class.getName())
+				|| className.equals(JdbcStatementWrapper.class.getName())
+				|| className.equals(JdbcPreparedStatementWrapper.class.getName())
+				|| className.equals(JdbcCallableStatementWrapper.class.getName());
+	}
+
 }
@@ -17,12 +17,19 @@
  */
 package net.bull.javamelody;
 
+import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Wrapper;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -57,6 +64,14 @@ final class JdbcWrapperHelper {
 
 	private static final Map<Class<?>, Constructor<?>> PROXY_CACHE = Collections
 			.synchronizedMap(new WeakHashMap<Class<?>, Constructor<?>>());
+	private static final Map<Class<?>, Boolean> JDBC_INTERFACES_ONLY_CACHE = Collections
+			.synchronizedMap(new WeakHashMap<Class<?>, Boolean>());
+	// interfaces implémentées par les wrappers jdbc sans réflexion
+	// (sauf Serializable, qui n'a pas d'intérêt pour une connexion, un statement ou un resultSet
+	// mais qui est implémentée par exemple par java.lang.reflect.Proxy)
+	private static final List<Class<?>> JDBC_INTERFACES = Arrays.<Class<?>> asList(
+			Connection.class, Statement.class, PreparedStatement.class, CallableStatement.class,
+			ResultSet.class, Wrapper.class, AutoCloseable.class, Serializable.class);
 
 	/**
 	 * Propriétés des BasicDataSources si elles viennent de Tomcat-DBCP ou de DBCP seul.
@@ -533,6 +548,25 @@ final class JdbcWrapperHelper {
 
 	static void clearProxyCache() {
 		PROXY_CACHE.clear();
+		JDBC_INTERFACES_ONLY_CACHE.clear();
+	}
+
+	/**
+	 * Indique si les objets de cette classe peuvent être remplacés par un wrapper jdbc sans réflexion
+	 * (JdbcConnectionWrapper, JdbcStatementWrapper...) au lieu d'un proxy : c'est le cas
+	 * si la classe n'implémente aucune interface non standard, par exemple OracleConnection,
+	 * qui serait perdue par le wrapper alors que le proxy implémente toutes les interfaces de l'objet.
+	 * @param objectClass Classe de la connexion, du statement ou du resultSet
+	 * @return boolean
+	 */
+	static boolean hasOnlyJdbcInterfaces(Class<?> objectClass) {
+		Boolean result = JDBC_INTERFACES_ONLY_CACHE.get(objectClass);
+		if (result == null) {
+			final Class<?>[] interfaces = getObjectInterfaces(objectClass, null);
+			result = JDBC_INTERFACES.containsAll(Arrays.asList(interfaces));
+			JDBC_INTERFACES_ONLY_CACHE.put(objectClass, result);
+		}
+		return result;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -29,8 +29,6 @@ import javax.persistence.Query;
  * @author Emeric Vernat
  */
 public final class JpaWrapper {
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 	private static final Counter JPA_COUNTER = MonitoringProxy.getJpaCounter();
 
 	private JpaWrapper() {
@@ -48,7 +46,7 @@ public final class JpaWrapper {
 	 */
 	public static EntityManagerFactory createEntityManagerFactoryProxy(
 			final EntityManagerFactory entityManagerFactory) {
-		if (DISABLED || !JPA_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !JPA_COUNTER.isDisplayed()) {
 			return entityManagerFactory;
 		}
 		// on veut monitorer seulement les EntityManager retournés par les deux méthodes createEntityManager
@@ -57,7 +55,7 @@ public final class JpaWrapper {
 	}
 
 	static EntityManager createEntityManagerProxy(final EntityManager entityManager) {
-		if (DISABLED || !JPA_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !JPA_COUNTER.isDisplayed()) {
 			return entityManager;
 		}
 		return JdbcWrapper.createProxy(entityManager, new EntityManagerHandler(entityManager));
@@ -28,8 +28,6 @@ import javax.faces.event.ActionListener;
 public class JsfActionListener implements ActionListener {
 	private static final Counter JSF_COUNTER = MonitoringProxy.getJsfCounter();
 	private static final boolean COUNTER_HIDDEN = Parameters.isCounterHidden(JSF_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 	private final ActionListener delegateActionListener;
 
 	/**
@@ -50,7 +48,7 @@ public class JsfActionListener implements ActionListener {
 	@Override
 	public void processAction(ActionEvent event) { // throws FacesException
 		// cette méthode est appelée par JSF RI (Mojarra)
-		if (DISABLED || !JSF_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !JSF_COUNTER.isDisplayed()) {
 			delegateActionListener.processAction(event);
 			return;
 		}
@@ -36,8 +36,6 @@ final class JspWrapper implements InvocationHandler {
 	private static final Counter JSP_COUNTER = new Counter(Counter.JSP_COUNTER_NAME, "jsp.png",
 			JdbcWrapper.SINGLETON.getSqlCounter());
 	private static final boolean COUNTER_HIDDEN = Parameters.isCounterHidden(JSP_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 
 	private final String path;
 	private final RequestDispatcher requestDispatcher;
@@ -109,7 +107,7 @@ final class JspWrapper implements InvocationHandler {
 
 	static HttpServletRequest createHttpRequestWrapper(HttpServletRequest request,
 			HttpServletResponse response) {
-		if (DISABLED || COUNTER_HIDDEN) {
+		if (Parameters.isMonitoringDisabled() || COUNTER_HIDDEN) {
 			return request;
 		}
 		if (Parameters.getServletContext().getMajorVersion() >= 3) {
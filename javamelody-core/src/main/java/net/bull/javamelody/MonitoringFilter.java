@@ -57,13 +57,80 @@ public class MonitoringFilter implements Filter {
 
 	private boolean monitoringDisabled;
 	private boolean logEnabled;
+	private boolean lazyStackTraces;
 	private Pattern urlExcludePattern;
 	private FilterContext filterContext;
+	private AsyncRecorder asyncRecorder;
 	private HttpAuth httpAuth;
 	private FilterConfig filterConfig;
 	private String monitoringUrl;
 	private boolean servletApi2;
 
+	/**
+	 * Évènement immuable d'une requête http terminée, publié par le thread de la requête
+	 * et enregistré dans les compteurs par le thread de l'enregistrement asynchrone.
+	 */
+	private static final class HttpRequestRecord implements Runnable {
+		private final Counter httpCounter;
+		private final Counter errorCounter;
+		private final CounterRequestContext context;
+		private final String requestName;
+		private final long duration;
+		private final long cpuUsedMillis;
+		private final int responseSize;
+		private final int status;
+		private final Throwable systemException;
+		private final boolean lazyStackTrace;
+		private final boolean systemError;
+		// requête complète et utilisateur seulement en cas d'erreur système
+		private final String completeRequestName;
+		private final String remoteUser;
+		private final long time = System.currentTimeMillis();
+
+		HttpRequestRecord(Counter httpCounter, Counter errorCounter, CounterRequestContext context,
+				String requestName, long duration, long cpuUsedMillis, int responseSize,
+				int status, Throwable systemException, boolean lazyStackTrace, boolean systemError,
+				String completeRequestName, String remoteUser) {
+			super();
+			this.httpCounter = httpCounter;
+			this.errorCounter = errorCounter;
+			this.context = context;
+			this.requestName = requestName;
+			this.duration = duration;
+			this.cpuUsedMillis = cpuUsedMillis;
+			this.responseSize = responseSize;
+			this.status = status;
+			this.systemException = systemException;
+			this.lazyStackTrace = lazyStackTrace;
+			this.systemError = systemError;
+			this.completeRequestName = completeRequestName;
+			this.remoteUser = remoteUser;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void run() {
+			if (systemException != null && lazyStackTrace) {
+				final CounterError counterError = new CounterError(systemException.toString(),
+						null, time, remoteUser, completeRequestName);
+				counterError.setSharedStackTrace(systemException);
+				errorCounter.addRequestForSystemError(counterError, duration, cpuUsedMillis);
+			} else if (systemException != null) {
+				final StringWriter stackTrace = new StringWriter(200);
+				systemException.printStackTrace(new PrintWriter(stackTrace));
+				errorCounter.addRequestForSystemError(
+						new CounterError(systemException.toString(), stackTrace.toString(), time,
+								remoteUser, completeRequestName),
+						duration, cpuUsedMillis);
+			} else if (systemError) {
+				errorCounter.addRequestForSystemError(new CounterError("Error" + status, null,
+						time, remoteUser, completeRequestName), duration, cpuUsedMillis);
+			}
+			httpCounter.addRequestForDetachedContext(context, requestName, duration,
+					cpuUsedMillis, systemError, responseSize);
+		}
+	}
+
 	/**
 	 * Constructeur.
 	 */
@@ -115,8 +182,11 @@ public class MonitoringFilter implements Filter {
 		final Collector collector = filterContext.getCollector();
 		this.httpCounter = collector.getCounterByName(Counter.HTTP_COUNTER_NAME);
 		this.errorCounter = collector.getCounterByName(Counter.ERROR_COUNTER_NAME);
+		this.asyncRecorder = filterContext.getAsyncRecorder();
 
 		logEnabled = Boolean.parseBoolean(Parameters.getParameter(Parameter.LOG));
+		lazyStackTraces = Boolean
+				.parseBoolean(Parameters.getParameter(Parameter.LAZY_STACK_TRACES));
 		if (Parameters.getParameter(Parameter.URL_EXCLUDE_PATTERN) != null) {
 			// lance une PatternSyntaxException si la syntaxe du pattern est invalide
 			urlExcludePattern = Pattern
@@ -144,6 +214,7 @@ public class MonitoringFilter implements Filter {
 			// nettoyage avant le retrait de la webapp au cas où celui-ci ne suffise pas
 			httpCounter = null;
 			errorCounter = null;
+			asyncRecorder = null;
 			urlExcludePattern = null;
 			filterConfig = null;
 			filterContext = null;
@@ -231,34 +302,54 @@ public class MonitoringFilter implements Filter {
 
 				putUserInfoInSession(httpRequest);
 
-				if (systemException != null) {
-					systemError = true;
-					final StringWriter stackTrace = new StringWriter(200);
-					systemException.printStackTrace(new PrintWriter(stackTrace));
-					errorCounter.addRequestForSystemError(systemException.toString(), duration,
-							cpuUsedMillis, stackTrace.toString());
-				} else if (wrappedResponse.getCurrentStatus() >= HttpServletResponse.SC_BAD_REQUEST
-						&& wrappedResponse
-								.getCurrentStatus() != HttpServletResponse.SC_UNAUTHORIZED) {
-					// SC_UNAUTHORIZED (401) is not an error, it is the first handshake of a Basic (or Digest) Auth (issue 455)
-					systemError = true;
-					errorCounter.addRequestForSystemError(
-							"Error" + wrappedResponse.getCurrentStatus(), duration, cpuUsedMillis,
-							null);
-				}
+				final int status = wrappedResponse.getCurrentStatus();
+				// SC_UNAUTHORIZED (401) is not an error, it is the first handshake of a Basic (or Digest) Auth (issue 455)
+				systemError = systemException != null
+						|| status >= HttpServletResponse.SC_BAD_REQUEST
+								&& status != HttpServletResponse.SC_UNAUTHORIZED;
 
 				// taille du flux sortant
 				final int responseSize = wrappedResponse.getDataLength();
 				// nom identifiant la requête
-				if (wrappedResponse.getCurrentStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				if (status == HttpServletResponse.SC_NOT_FOUND) {
 					// Sécurité : si status http est 404, alors requestName est Error404
 					// pour éviter de saturer la mémoire avec potentiellement beaucoup d'url différentes
 					requestName = "Error404";
 				}
 
-				// on enregistre la requête dans les statistiques
-				httpCounter.addRequest(requestName, duration, cpuUsedMillis, systemError,
-						responseSize);
+				if (asyncRecorder != null) {
+					// le thread de la requête publie seulement un évènement et l'agrégation dans les compteurs,
+					// y compris le rendu de la stack-trace, est faite par le thread de l'enregistrement asynchrone
+					// (les informations de la requête http pour les erreurs sont lues avant,
+					// car la requête ne doit plus être utilisée une fois la réponse terminée)
+					asyncRecorder.record(new HttpRequestRecord(httpCounter, errorCounter,
+							httpCounter.detachContext(), requestName, duration, cpuUsedMillis,
+							responseSize, status, systemException, lazyStackTraces, systemError,
+							systemError ? completeRequestName : null,
+							systemError ? httpRequest.getRemoteUser() : null));
+				} else {
+					if (systemException != null && lazyStackTraces) {
+						// seulement un hash et une recherche dans une map pour une exception déjà rencontrée,
+						// le texte de la stack-trace étant calculé à la première lecture
+						final CounterError counterError = new CounterError(
+								systemException.toString(), null);
+						counterError.setSharedStackTrace(systemException);
+						errorCounter.addRequestForSystemError(counterError, duration,
+								cpuUsedMillis);
+					} else if (systemException != null) {
+						final StringWriter stackTrace = new StringWriter(200);
+						systemException.printStackTrace(new PrintWriter(stackTrace));
+						errorCounter.addRequestForSystemError(systemException.toString(), duration,
+								cpuUsedMillis, stackTrace.toString());
+					} else if (systemError) {
+						errorCounter.addRequestForSystemError("Error" + status, duration,
+								cpuUsedMillis, null);
+					}
+
+					// on enregistre la requête dans les statistiques
+					httpCounter.addRequest(requestName, duration, cpuUsedMillis, systemError,
+							responseSize);
+				}
 				// on log sur Log4J ou java.util.logging dans la catégorie correspond au nom du filtre dans web.xml
 				log(httpRequest, requestName, duration, systemError, responseSize);
 			} finally {
@@ -33,8 +33,6 @@ public class MonitoringGuiceInterceptor implements MethodInterceptor, Serializab
 	private static final Counter GUICE_COUNTER = MonitoringProxy.getGuiceCounter();
 	private static final boolean COUNTER_HIDDEN = Parameters
 			.isCounterHidden(GUICE_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 
 	/**
 	 * Constructeur.
@@ -58,7 +56,7 @@ public class MonitoringGuiceInterceptor implements MethodInterceptor, Serializab
 	@Override
 	public Object invoke(MethodInvocation invocation) throws Throwable {
 		// cette méthode est appelée par guice aop
-		if (DISABLED || !GUICE_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !GUICE_COUNTER.isDisplayed()) {
 			return invocation.proceed();
 		}
 		// nom identifiant la requête
@@ -36,8 +36,6 @@ public class MonitoringInterceptor implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private static final Counter EJB_COUNTER = MonitoringProxy.getEjbCounter();
 	private static final boolean COUNTER_HIDDEN = Parameters.isCounterHidden(EJB_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 
 	/**
 	 * Constructeur.
@@ -60,7 +58,7 @@ public class MonitoringInterceptor implements Serializable {
 	@AroundInvoke
 	public Object intercept(InvocationContext context) throws Exception { // NOPMD
 		// cette méthode est appelée par le conteneur ejb grâce à l'annotation AroundInvoke
-		if (DISABLED || !EJB_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !EJB_COUNTER.isDisplayed()) {
 			return context.proceed();
 		}
 		// nom identifiant la requête
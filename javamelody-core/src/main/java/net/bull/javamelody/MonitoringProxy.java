@@ -65,8 +65,6 @@ public final class MonitoringProxy implements InvocationHandler, Serializable {
 
 	private static final boolean COUNTER_HIDDEN = Parameters
 			.isCounterHidden(SERVICES_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 	@SuppressWarnings("all")
 	private final Object facade;
 	private final String name;
@@ -153,7 +151,7 @@ public final class MonitoringProxy implements InvocationHandler, Serializable {
 	 */
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-		if (DISABLED || !SERVICES_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !SERVICES_COUNTER.isDisplayed()) {
 			return method.invoke(facade, args);
 		}
 		// nom identifiant la requête
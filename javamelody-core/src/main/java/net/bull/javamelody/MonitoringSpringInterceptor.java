@@ -34,8 +34,6 @@ public class MonitoringSpringInterceptor implements MethodInterceptor, Serializa
 	private static final Counter SPRING_COUNTER = MonitoringProxy.getSpringCounter();
 	private static final boolean COUNTER_HIDDEN = Parameters
 			.isCounterHidden(SPRING_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 
 	/**
 	 * Constructeur.
@@ -61,7 +59,7 @@ public class MonitoringSpringInterceptor implements MethodInterceptor, Serializa
 	@Override
 	public Object invoke(MethodInvocation invocation) throws Throwable {
 		// cette méthode est appelée par spring aop
-		if (DISABLED || !SPRING_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !SPRING_COUNTER.isDisplayed()) {
 			return invocation.proceed();
 		}
 		// nom identifiant la requête
@@ -36,12 +36,32 @@ public enum Parameter {
 	 */
 	OBSOLETE_GRAPHS_DAYS("obsolete-graphs-days"),
 
+	/**
+	 * Active les courbes des centiles 95 et 99 des temps d'exécution (false par défaut),
+	 * calculés à chaque collecte depuis les histogrammes des requêtes pour chaque compteur,
+	 * par exemple "httpP99Times" pour part=graph ou part=lastValue (munin, nagios).
+	 */
+	PERCENTILES_GRAPHS("percentiles-graphs"),
+
+	/**
+	 * Nombre de requêtes de chaque compteur, parmi celles dont le temps cumulé est le plus grand,
+	 * ayant aussi leurs courbes des centiles 95 et 99 si percentiles-graphs est actif (10 par défaut).
+	 */
+	PERCENTILES_GRAPHS_REQUESTS("percentiles-graphs-requests"),
+
 	/**
 	 * Nombre de jours avant qu'un fichier de statistiques (extension .ser.gz),
 	 * soit considéré comme obsolète et soit supprimé automatiquement, à minuit (365 par défaut, soit 1 an).
 	 */
 	OBSOLETE_STATS_DAYS("obsolete-stats-days"),
 
+	/**
+	 * Format d'enregistrement des compteurs : "serialized" (par défaut) pour réécrire à chaque fois
+	 * le fichier .ser.gz complet, ou "log" pour ajouter seulement les requêtes modifiées
+	 * à la fin d'un journal (extension .log), compacté de temps en temps dans le fichier .ser.gz.
+	 */
+	STORAGE_FORMAT("storage-format"),
+
 	/**
 	 * Période en secondes du sampling pour trouver les hotspots (null par défaut : pas de sampling).
 	 * Une valeur de 10 est recommandée (c'est-à-dire 10 secondes) pour ne pas entraîner d'overhead,
@@ -94,6 +114,18 @@ public enum Parameter {
 	 */
 	SQL_TRANSFORM_PATTERN("sql-transform-pattern"),
 
+	/**
+	 * Expression régulière (null par défaut) pour transformer le nom de la dataSource
+	 * dans le compteur des attentes de connexions jdbc des pools.
+	 */
+	POOL_TRANSFORM_PATTERN("pool-transform-pattern"),
+
+	/**
+	 * Expression régulière (null par défaut) pour transformer la première requête sql
+	 * qui nomme une transaction dans le compteur des transactions jdbc.
+	 */
+	TRANSACTION_TRANSFORM_PATTERN("transaction-transform-pattern"),
+
 	/**
 	 * Expression régulière (null par défaut) pour transformer la description d'une méthode ejb3.
 	 */
@@ -150,12 +182,92 @@ public enum Parameter {
 	 */
 	JSP_TRANSFORM_PATTERN("jsp-transform-pattern"),
 
+	/**
+	 * Liste des compteurs séparés par des virgules, par exemple "http,sql" (null par défaut),
+	 * dont les descriptions des requêtes sont normalisées avant agrégation, sans expression régulière :
+	 * les nombres, UUIDs, identifiants hexadécimaux et chaînes littérales entre quotes sont remplacés
+	 * par '$'. L'éventuel paramètre *-transform-pattern du compteur est appliqué en plus après
+	 * la normalisation, et les résultats sont conservés dans un cache borné.
+	 */
+	NORMALIZED_COUNTERS("normalized-counters"),
+
+	/**
+	 * Liste des compteurs séparés par des virgules, par exemple "sql" (null par défaut),
+	 * dont le nombre de requêtes est strictement borné (10000 par défaut) :
+	 * seules les requêtes les plus fréquentes sont conservées, selon l'algorithme Space-Saving,
+	 * et les hits des autres requêtes sont cumulés dans la requête "(other requests)".
+	 */
+	HEAVY_HITTERS_COUNTERS("heavy-hitters-counters"),
+
 	/**
 	 * Compteurs affichés: mettre "http,sql,error,log,ejb" pour afficher les ejb3
 	 * ou "http,sql,error,log,spring" pour afficher les beans spring ("http,sql,error,log" par défaut).
 	 */
 	DISPLAYED_COUNTERS("displayed-counters"),
 
+	/**
+	 * Active l'enregistrement des hits sans verrou dans les compteurs, par cellules réparties
+	 * entre les threads, pour éviter la contention sur les requêtes très fréquentes
+	 * avec de nombreux coeurs (false par défaut).
+	 */
+	LOCK_FREE_COUNTERS("lock-free-counters"),
+
+	/**
+	 * Active l'enregistrement asynchrone des requêtes http (false par défaut) : le thread
+	 * de la requête publie seulement un évènement dans une file sans verrou et un thread dédié
+	 * fait l'agrégation dans les compteurs http et error, y compris le rendu des stack-traces.
+	 * Si la file est pleine, l'évènement est ignoré et compté dans le rapport.
+	 */
+	ASYNC_RECORDING("async-recording"),
+
+	/**
+	 * Active les stack-traces partagées des erreurs systèmes http (false par défaut) : le texte
+	 * de la stack-trace n'est pas calculé pour chaque requête en erreur mais une seule fois par forme d'exception,
+	 * à la première lecture (rapport ou persistance), avec le nombre d'occurrences de cette forme.
+	 */
+	LAZY_STACK_TRACES("lazy-stack-traces"),
+
+	/**
+	 * Active la mesure des lectures des resultSets jdbc (false par défaut) : nombre de lignes lues
+	 * et temps de lecture jusqu'à la fermeture du resultSet, ajoutés à la requête sql exécutée.
+	 */
+	RESULT_SET_MONITORING("result-set-monitoring"),
+
+	/**
+	 * Seuil en millisecondes (null par défaut, donc désactivé) au-delà duquel les valeurs des paramètres
+	 * bindés (setXxx) d'une requête sql sont conservées, pour les exécutions les plus lentes de chaque requête.
+	 */
+	SLOW_SQL_PARAMETERS_THRESHOLD("slow-sql-parameters-threshold"),
+
+	/**
+	 * Expression régulière des noms de colonnes dont les valeurs des paramètres bindés sont masquées
+	 * ("(?i).*(password|passwd|pwd|secret|token|credential|card|iban|ssn).*" par défaut)
+	 * si le paramètre slow-sql-parameters-threshold est défini.
+	 */
+	SLOW_SQL_PARAMETERS_MASKED_COLUMNS("slow-sql-parameters-masked-columns"),
+
+	/**
+	 * Masquage des valeurs des paramètres bindés dont la colonne n'est pas déduite du texte de la requête,
+	 * par exemple paramètres d'appel de procédure, arguments de fonction ou listes "in" (true par défaut)
+	 * si le paramètre slow-sql-parameters-threshold est défini.
+	 */
+	SLOW_SQL_PARAMETERS_MASK_UNKNOWN_COLUMNS("slow-sql-parameters-mask-unknown-columns"),
+
+	/**
+	 * Nombre d'exécutions d'une même requête fille (sql par exemple) lors d'une exécution
+	 * d'une requête parente (http par exemple) au-delà duquel la requête fille est suspectée
+	 * d'être un problème de requêtes "N+1" (null par défaut, donc désactivé).
+	 */
+	N_PLUS_ONE_THRESHOLD("n-plus-one-threshold"),
+
+	/**
+	 * Active l'agrégation des requêtes sql par empreinte (false par défaut) : les nombres et chaînes
+	 * littérales des requêtes non bindées sont remplacés par '?' et les listes "in (1, 2, 3)" par "in (?)"
+	 * avant agrégation, en conservant un exemple de requête d'origine par empreinte.
+	 * Les transactions jdbc, nommées par leur première requête sql, sont alors aussi agrégées par empreinte.
+	 */
+	SQL_FINGERPRINT("sql-fingerprint"),
+
 	/**
 	 * Liste des noms de rapports personnalisés (null par défaut).<br/>
 	 */
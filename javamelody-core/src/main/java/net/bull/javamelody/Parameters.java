@@ -29,11 +29,14 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
@@ -66,6 +69,92 @@ public final class Parameters {
 	private static String lastConnectUrl;
 	private static Properties lastConnectInfo;
 	private static boolean dnsLookupsDisabled;
+	// instantané des paramètres pour les chemins critiques, recalculé seulement si les paramètres ont pu changer
+	private static volatile ParametersSnapshot parametersSnapshot;
+
+	/**
+	 * Instantané des valeurs de tous les paramètres, non modifiable.
+	 */
+	private static final class ParametersSnapshot {
+		private final Map<Parameter, String> values = new EnumMap<Parameter, String>(
+				Parameter.class);
+		private final boolean monitoringDisabled;
+		// paramètres slow-sql-parameters-* analysés une seule fois par instantané et non à chaque requête sql
+		private final long slowSqlParametersThreshold;
+		private final Pattern slowSqlParametersMaskedColumns;
+		private final boolean slowSqlParametersMaskUnknownColumns;
+
+		ParametersSnapshot() {
+			super();
+			for (final Parameter parameter : Parameter.values()) {
+				final String value = getParameter(parameter);
+				if (value != null) {
+					values.put(parameter, value);
+				}
+			}
+			monitoringDisabled = Boolean.parseBoolean(values.get(Parameter.DISABLED));
+			slowSqlParametersThreshold = parseSlowSqlParametersThreshold(
+					values.get(Parameter.SLOW_SQL_PARAMETERS_THRESHOLD));
+			slowSqlParametersMaskedColumns = compileSlowSqlParametersMaskedColumns(
+					values.get(Parameter.SLOW_SQL_PARAMETERS_MASKED_COLUMNS));
+			final String maskUnknownColumns = values
+					.get(Parameter.SLOW_SQL_PARAMETERS_MASK_UNKNOWN_COLUMNS);
+			slowSqlParametersMaskUnknownColumns = maskUnknownColumns == null
+					|| Boolean.parseBoolean(maskUnknownColumns.trim());
+		}
+
+		private static long parseSlowSqlParametersThreshold(String threshold) {
+			if (threshold == null) {
+				return -1;
+			}
+			try {
+				final long result = Long.parseLong(threshold.trim());
+				if (result < 0) {
+					throw new NumberFormatException("negative threshold");
+				}
+				return result;
+			} catch (final NumberFormatException e) {
+				// une valeur invalide ne doit pas faire échouer les requêtes sql de l'application
+				LOG.warn("invalid value of parameter "
+						+ Parameter.SLOW_SQL_PARAMETERS_THRESHOLD.getCode() + ": " + threshold
+						+ ", bind parameters of slow sql executions are not captured", e);
+				return -1;
+			}
+		}
+
+		private static Pattern compileSlowSqlParametersMaskedColumns(String maskedColumns) {
+			if (maskedColumns != null) {
+				try {
+					return Pattern.compile(maskedColumns);
+				} catch (final PatternSyntaxException e) {
+					LOG.warn("invalid value of parameter "
+							+ Parameter.SLOW_SQL_PARAMETERS_MASKED_COLUMNS.getCode() + ": "
+							+ maskedColumns + ", default value used", e);
+				}
+			}
+			return Pattern.compile(SqlBindParameters.DEFAULT_MASKED_COLUMNS);
+		}
+
+		String getValue(Parameter parameter) {
+			return values.get(parameter);
+		}
+
+		boolean isMonitoringDisabled() {
+			return monitoringDisabled;
+		}
+
+		long getSlowSqlParametersThreshold() {
+			return slowSqlParametersThreshold;
+		}
+
+		Pattern getSlowSqlParametersMaskedColumns() {
+			return slowSqlParametersMaskedColumns;
+		}
+
+		boolean isSlowSqlParametersMaskUnknownColumns() {
+			return slowSqlParametersMaskUnknownColumns;
+		}
+	}
 
 	private Parameters() {
 		super();
@@ -76,6 +165,8 @@ public final class Parameters {
 		if (config != null) {
 			final ServletContext context = config.getServletContext();
 			initialize(context);
+		} else {
+			parametersChanged();
 		}
 	}
 
@@ -87,6 +178,7 @@ public final class Parameters {
 		servletContext = context;
 
 		dnsLookupsDisabled = Boolean.parseBoolean(getParameter(Parameter.DNS_LOOKUPS_DISABLED));
+		parametersChanged();
 	}
 
 	static void initJdbcDriverParameters(String connectUrl, Properties connectInfo) {
@@ -444,6 +536,37 @@ public final class Parameters {
 		return true;
 	}
 
+	/**
+	 * Retourne true si le paramètre normalized-counters contient le compteur dont le nom est paramètre.
+	 * @param counterName Nom du compteur
+	 * @return boolean
+	 */
+	static boolean isCounterNormalized(String counterName) {
+		return isCounterInParameter(Parameter.NORMALIZED_COUNTERS, counterName);
+	}
+
+	/**
+	 * Retourne true si le paramètre heavy-hitters-counters contient le compteur dont le nom est paramètre.
+	 * @param counterName Nom du compteur
+	 * @return boolean
+	 */
+	static boolean isCounterWithHeavyHitters(String counterName) {
+		return isCounterInParameter(Parameter.HEAVY_HITTERS_COUNTERS, counterName);
+	}
+
+	private static boolean isCounterInParameter(Parameter parameter, String counterName) {
+		final String counterNames = getParameter(parameter);
+		if (counterNames == null) {
+			return false;
+		}
+		for (final String name : counterNames.split(",")) {
+			if (counterName.equalsIgnoreCase(name.trim())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * @return Nom de l'application courante et nom du sous-répertoire de stockage dans une application monitorée.
 	 */
@@ -527,6 +650,78 @@ public final class Parameters {
 		return getParameterByName(name);
 	}
 
+	/**
+	 * Valeur d'un paramètre lue dans l'instantané des paramètres, pour les chemins critiques en performance
+	 * (à chaque connexion jdbc, à chaque appel de méthode monitorée...).
+	 * Contrairement à {@link #getParameter(Parameter)}, il n'y a alors ni lecture des propriétés systèmes
+	 * ni lecture des paramètres du contexte ou du filtre, mais seulement la lecture d'un champ volatile.
+	 * L'instantané est recalculé par {@link #parametersChanged()}.
+	 * @param parameter Enum du paramètre
+	 * @return valeur du paramètre ou null si pas de paramètre défini
+	 */
+	static String getParameterFromSnapshot(Parameter parameter) {
+		assert parameter != null;
+		return getParametersSnapshot().getValue(parameter);
+	}
+
+	/**
+	 * Booléen selon que le paramètre disabled vaut true, lu dans l'instantané des paramètres.
+	 * @return boolean
+	 */
+	static boolean isMonitoringDisabled() {
+		return getParametersSnapshot().isMonitoringDisabled();
+	}
+
+	/**
+	 * Seuil du paramètre slow-sql-parameters-threshold, lu dans l'instantané des paramètres.
+	 * @return seuil en millisecondes, ou -1 si le paramètre n'est pas défini ou s'il est invalide
+	 */
+	static long getSlowSqlParametersThreshold() {
+		return getParametersSnapshot().getSlowSqlParametersThreshold();
+	}
+
+	/**
+	 * Expression régulière compilée du paramètre slow-sql-parameters-masked-columns,
+	 * ou celle par défaut si le paramètre n'est pas défini ou s'il est invalide.
+	 * @return Pattern
+	 */
+	static Pattern getSlowSqlParametersMaskedColumns() {
+		return getParametersSnapshot().getSlowSqlParametersMaskedColumns();
+	}
+
+	/**
+	 * Booléen selon le paramètre slow-sql-parameters-mask-unknown-columns (true par défaut).
+	 * @return boolean
+	 */
+	static boolean isSlowSqlParametersMaskUnknownColumns() {
+		return getParametersSnapshot().isSlowSqlParametersMaskUnknownColumns();
+	}
+
+	/**
+	 * Notification que les paramètres ont pu changer : initialisation du filtre ou du listener,
+	 * attribut "javamelody.*" du contexte de servlet ajouté, modifié ou supprimé,
+	 * et à chaque collecte pour prendre en compte les propriétés systèmes éventuellement modifiées.
+	 */
+	static synchronized void parametersChanged() {
+		parametersSnapshot = new ParametersSnapshot();
+	}
+
+	private static ParametersSnapshot getParametersSnapshot() {
+		final ParametersSnapshot snapshot = parametersSnapshot;
+		if (snapshot == null) {
+			return initParametersSnapshot();
+		}
+		return snapshot;
+	}
+
+	private static synchronized ParametersSnapshot initParametersSnapshot() {
+		// synchronized avec parametersChanged pour ne pas remplacer un instantané plus récent
+		if (parametersSnapshot == null) {
+			parametersSnapshot = new ParametersSnapshot();
+		}
+		return parametersSnapshot;
+	}
+
 	static String getParameterByName(String parameterName) {
 		assert parameterName != null;
 		final String globalName = PARAMETER_SYSTEM_PREFIX + parameterName;
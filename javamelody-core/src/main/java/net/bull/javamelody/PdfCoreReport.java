@@ -419,10 +419,27 @@ class PdfCoreReport extends PdfAbstractReport {
 		return false;
 	}
 
+	private String getCollectDurationsByPhase() {
+		final Map<String, Long> durationsByPhase = collector.getLastCollectDurationsByPhase();
+		if (durationsByPhase.isEmpty()) {
+			return "";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String, Long> entry : durationsByPhase.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(getString(entry.getKey())).append(": ").append(entry.getValue()).append(' ')
+					.append(getString("ms"));
+		}
+		return " (" + sb + ')';
+	}
+
 	private void writeDurationAndOverhead() throws DocumentException {
 		final long displayDuration = System.currentTimeMillis() - start;
 		final String tmp = "\n\n" + getString("temps_derniere_collecte") + ": "
-				+ collector.getLastCollectDuration() + ' ' + getString("ms") + '\n'
+				+ collector.getLastCollectDuration() + ' ' + getString("ms")
+				+ getCollectDurationsByPhase() + '\n'
 				+ getString("temps_affichage") + ": " + displayDuration + ' ' + getString("ms")
 				+ '\n' + getString("Estimation_overhead_memoire") + ": < "
 				+ (collector.getEstimatedMemorySize() / 1024 / 1024 + 1) + ' ' + getString("Mo")
@@ -178,6 +178,11 @@ class PdfCounterReport extends PdfAbstractTableReport {
 			headers.add(getString("Temps_moyen"));
 			headers.add(getString("Temps_max"));
 			headers.add(getString("Ecart_type"));
+			if (counterRequestAggregation.isPercentilesDisplayed()) {
+				for (final double percentile : DurationsHistogram.DISPLAYED_PERCENTILES) {
+					headers.add(DurationsHistogram.getPercentileLabel(percentile));
+				}
+			}
 		} else {
 			headers.add(getString("Hits"));
 		}
@@ -195,6 +200,14 @@ class PdfCounterReport extends PdfAbstractTableReport {
 			headers.add(getFormattedString("hits_fils_moyens", childCounterName));
 			headers.add(getFormattedString("temps_fils_moyen", childCounterName));
 		}
+		if (counterRequestAggregation.isFetchedRowsDisplayed()) {
+			headers.add(getString("Lignes_lues_moyennes"));
+			headers.add(getString("Temps_lecture_moyen"));
+		}
+		if (counterRequestAggregation.isBatchesDisplayed()) {
+			headers.add(getString("Taille_moyenne_batch"));
+			headers.add(getString("Lignes_par_seconde_batch"));
+		}
 		return headers;
 	}
 
@@ -241,6 +254,12 @@ class PdfCounterReport extends PdfAbstractTableReport {
 			addCell(new Phrase(integerFormat.format(mean), getSlaFont(mean)));
 			addCell(integerFormat.format(request.getMaximum()));
 			addCell(integerFormat.format(request.getStandardDeviation()));
+			if (counterRequestAggregation.isPercentilesDisplayed()) {
+				for (final double percentile : DurationsHistogram.DISPLAYED_PERCENTILES) {
+					final long value = request.getDurationsPercentile(percentile);
+					addCell(value >= 0 ? integerFormat.format(value) : "");
+				}
+			}
 		} else {
 			addCell(integerFormat.format(request.getHits()));
 		}
@@ -259,6 +278,16 @@ class PdfCounterReport extends PdfAbstractTableReport {
 			addCell(integerFormat.format(request.getChildHitsMean()));
 			addCell(integerFormat.format(request.getChildDurationsMean()));
 		}
+		if (counterRequestAggregation.isFetchedRowsDisplayed()) {
+			addCell(integerFormat.format(request.getFetchedRowsMean()));
+			addCell(integerFormat.format(request.getFetchDurationsMean()));
+		}
+		if (counterRequestAggregation.isBatchesDisplayed()) {
+			final long batchSizeMean = request.getBatchSizeMean();
+			addCell(batchSizeMean >= 0 ? integerFormat.format(batchSizeMean) : "");
+			final long batchRowsPerSecond = request.getBatchRowsPerSecond();
+			addCell(batchRowsPerSecond >= 0 ? integerFormat.format(batchRowsPerSecond) : "");
+		}
 	}
 
 	private void writeRequestGraph(CounterRequest request) throws BadElementException, IOException {
@@ -190,7 +190,9 @@ class PeriodCounterFactory {
 		result.setApplication(currentDayCounter.getApplication());
 		result.setDisplayed(currentDayCounter.isDisplayed());
 		result.setRequestTransformPattern(currentDayCounter.getRequestTransformPattern());
+		result.setRequestNameNormalizer(currentDayCounter.getRequestNameNormalizer());
 		result.setMaxRequestsCount(currentDayCounter.getMaxRequestsCount());
+		result.setHeavyHittersEnabled(currentDayCounter.isHeavyHittersEnabled());
 		return result;
 	}
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.regex.Pattern;
+
+/**
+ * Normalisation des descriptions des requêtes avant agrégation (paramètre normalized-counters),
+ * sans expression régulière : les nombres, les UUIDs, les identifiants hexadécimaux
+ * et les chaînes littérales entre quotes sont remplacés par '$' en un seul parcours de la chaîne.
+ *
+ * Les résultats sont conservés dans un cache borné par description de requête,
+ * pour que l'appel sur une requête déjà rencontrée ne fasse aucune allocation.
+ * Lorsque le cache est plein, les descriptions non utilisées depuis le balayage précédent sont retirées
+ * (algorithme "seconde chance" de {@link SecondChanceCache}), et non le cache entier.
+ * Un pattern de transformation (paramètre *-transform-pattern) peut être appliqué en plus
+ * après la normalisation, et son résultat est alors aussi conservé dans le cache.
+ * Ce pattern ne devrait pas contenir de groupe répété comme "(A|B)*", qui rend la recherche récursive
+ * (StackOverflowError sur une longue description) et le retour arrière exponentiel :
+ * un tel pattern est signalé dans le log dès la création, et une StackOverflowError est alors interceptée
+ * comme pour un compteur sans normalisation (la description est agrégée sans ce pattern).
+ * Pour le compteur sql avec le paramètre sql-fingerprint, la normalisation est l'empreinte sql
+ * calculée par {@link SqlFingerprint}.
+ * @author Emeric Vernat
+ */
+final class RequestNameNormalizer {
+	static final int MAX_CACHED_NAMES = Counter.MAX_REQUESTS_COUNT;
+	// longueur minimale d'un identifiant hexadécimal (sinon "cafe1" serait remplacé)
+	private static final int MIN_HEX_ID_LENGTH = 8;
+	private static final int UUID_LENGTH = 36;
+	private static final String TRANSFORM_REPLACEMENT = "\\" + Counter.TRANSFORM_REPLACEMENT_CHAR;
+	// nombre maximum de répétitions d'un groupe dans le pattern de transformation
+	private static final int MAX_GROUP_REPETITIONS = 100;
+
+	private final Pattern transformPattern;
+	private final boolean sqlFingerprint;
+	private final SecondChanceCache<String, String> aggregateNamesByName = new SecondChanceCache<String, String>(
+			MAX_CACHED_NAMES);
+
+	/**
+	 * Constructeur.
+	 * @param transformPattern Expression régulière appliquée après normalisation (peut être null)
+	 */
+	RequestNameNormalizer(Pattern transformPattern) {
+		this(transformPattern, false);
+	}
+
+	/**
+	 * Constructeur.
+	 * @param transformPattern Expression régulière appliquée après normalisation (peut être null)
+	 * @param sqlFingerprint true pour normaliser des requêtes sql selon {@link SqlFingerprint}
+	 */
+	RequestNameNormalizer(Pattern transformPattern, boolean sqlFingerprint) {
+		super();
+		if (transformPattern != null) {
+			try {
+				checkTransformPattern(transformPattern.pattern());
+			} catch (final IllegalArgumentException e) {
+				// même configuration acceptée avec ou sans normalisation, avec seulement un avertissement
+				LOG.warn(e.getMessage(), e);
+			}
+		}
+		this.transformPattern = transformPattern;
+		this.sqlFingerprint = sqlFingerprint;
+	}
+
+	Pattern getTransformPattern() {
+		return transformPattern;
+	}
+
+	String normalize(String requestName) {
+		final String cachedName = aggregateNamesByName.get(requestName);
+		if (cachedName != null) {
+			return cachedName;
+		}
+		String result;
+		if (sqlFingerprint) {
+			result = SqlFingerprint.fingerprint(requestName);
+		} else {
+			result = normalizeWithoutCache(requestName);
+		}
+		if (transformPattern != null) {
+			try {
+				result = transformPattern.matcher(result).replaceAll(TRANSFORM_REPLACEMENT);
+			} catch (final StackOverflowError e) {
+				// comme dans Counter.getAggregateRequestName sans normalisation :
+				// regexp can throw StackOverflowError for (A|B)*
+				// see https://github.com/javamelody/javamelody/issues/480
+				LOG.warn(e.toString(), e);
+			}
+		}
+		aggregateNamesByName.put(requestName, result);
+		return result;
+	}
+
+	/**
+	 * Vérifie que le pattern de transformation n'a pas de groupe répété sans borne, comme "(A|B)*",
+	 * "(a+)+" ou "(ab){2,}" : la répétition d'un groupe est récursive dans java.util.regex
+	 * (StackOverflowError pour une longue description, cf issue 480) et c'est elle qui permet
+	 * un retour arrière exponentiel. Les classes de caractères répétées comme "[0-9]+" ou ".*" sont acceptées.
+	 * @param regex Expression régulière
+	 * @throws IllegalArgumentException si le pattern a un groupe répété
+	 * (signalé dans le log à la création du RequestNameNormalizer)
+	 */
+	static void checkTransformPattern(String regex) {
+		final int length = regex.length();
+		int charClassDepth = 0;
+		int i = 0;
+		while (i < length) {
+			final char c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 < length && regex.charAt(i + 1) == 'Q') {
+					// séquence littérale \Q...\E
+					final int end = regex.indexOf("\\E", i + 2);
+					i = end == -1 ? length : end + 2;
+				} else {
+					i += 2;
+				}
+				continue;
+			}
+			if (c == '[') {
+				charClassDepth++;
+			} else if (c == ']' && charClassDepth > 0) {
+				charClassDepth--;
+			} else if (c == ')' && charClassDepth == 0 && isUnboundedRepetition(regex, i + 1)) {
+				throw new IllegalArgumentException("A repeated group like (A|B)* in a transform "
+						+ "pattern can throw StackOverflowError and backtrack exponentially, "
+						+ "use a repeated character class like [0-9]+ instead: " + regex);
+			}
+			i++;
+		}
+	}
+
+	private static boolean isUnboundedRepetition(String regex, int index) {
+		if (index >= regex.length()) {
+			return false;
+		}
+		final char c = regex.charAt(index);
+		if (c == '*' || c == '+') {
+			return true;
+		}
+		if (c == '{') {
+			final int end = regex.indexOf('}', index);
+			if (end == -1) {
+				return false;
+			}
+			final String bounds = regex.substring(index + 1, end);
+			final int comma = bounds.indexOf(',');
+			final String max = comma == -1 ? bounds : bounds.substring(comma + 1).trim();
+			try {
+				return max.isEmpty() || Integer.parseInt(max) > MAX_GROUP_REPETITIONS;
+			} catch (final NumberFormatException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	int getCachedNamesCount() {
+		return aggregateNamesByName.size();
+	}
+
+	static String normalizeWithoutCache(String requestName) {
+		final int length = requestName.length();
+		// le StringBuilder n'est créé qu'au premier remplacement,
+		// et la chaîne d'origine est retournée s'il n'y a rien à remplacer
+		StringBuilder sb = null;
+		int i = 0;
+		while (i < length) {
+			final char c = requestName.charAt(i);
+			final int end;
+			if (c == '\'') {
+				end = getEndOfQuotedLiteral(requestName, i);
+			} else if (isAlphanumeric(c) && (i == 0 || !isAlphanumeric(requestName.charAt(i - 1)))) {
+				end = getEndOfVariableToken(requestName, i);
+			} else {
+				end = -1;
+			}
+			if (end == -1) {
+				if (sb != null) {
+					sb.append(c);
+				}
+				i++;
+			} else {
+				if (sb == null) {
+					sb = new StringBuilder(length);
+					sb.append(requestName, 0, i);
+				}
+				sb.append(Counter.TRANSFORM_REPLACEMENT_CHAR);
+				i = end;
+			}
+		}
+		if (sb == null) {
+			return requestName;
+		}
+		return sb.toString();
+	}
+
+	// retourne l'index après la fin de la chaîne littérale, ou -1 si elle n'est pas terminée
+	private static int getEndOfQuotedLiteral(String requestName, int start) {
+		final int length = requestName.length();
+		int i = start + 1;
+		while (i < length) {
+			if (requestName.charAt(i) == '\'') {
+				if (i + 1 < length && requestName.charAt(i + 1) == '\'') {
+					// quote échappée par une autre quote
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	// retourne l'index après la fin du mot s'il est variable (nombre, uuid, identifiant hexa), ou -1 sinon
+	private static int getEndOfVariableToken(String requestName, int start) {
+		final int length = requestName.length();
+		if (start + UUID_LENGTH <= length && isUuid(requestName, start)
+				&& (start + UUID_LENGTH == length
+						|| !isAlphanumeric(requestName.charAt(start + UUID_LENGTH)))) {
+			return start + UUID_LENGTH;
+		}
+		boolean digits = true;
+		boolean hexDigits = true;
+		boolean containsDigit = false;
+		int i = start;
+		while (i < length) {
+			final char c = requestName.charAt(i);
+			if (!isAlphanumeric(c)) {
+				break;
+			}
+			if (c >= '0' && c <= '9') {
+				containsDigit = true;
+			} else {
+				digits = false;
+				if (!isHexLetter(c)) {
+					hexDigits = false;
+				}
+			}
+			i++;
+		}
+		if (digits || hexDigits && containsDigit && i - start >= MIN_HEX_ID_LENGTH) {
+			return i;
+		}
+		return -1;
+	}
+
+	private static boolean isUuid(String requestName, int start) {
+		// format 8-4-4-4-12, par exemple 123e4567-e89b-12d3-a456-426655440000
+		for (int i = 0; i < UUID_LENGTH; i++) {
+			final char c = requestName.charAt(start + i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-') {
+					return false;
+				}
+			} else if (!(c >= '0' && c <= '9' || isHexLetter(c))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isHexLetter(char c) {
+		return c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+
+	private static boolean isAlphanumeric(char c) {
+		return c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[transformPattern=" + transformPattern
+				+ ", sqlFingerprint=" + sqlFingerprint + ", cachedNamesCount=" + getCachedNamesCount() + ']';
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache borné sans verrou en lecture, pour les descriptions normalisées, les ids
+ * et le html des requêtes.
+ *
+ * Lorsque le cache est plein, les entrées non utilisées depuis le balayage précédent sont retirées
+ * (algorithme "seconde chance"), et non le cache entier : les entrées utilisées régulièrement restent
+ * dans le cache même si les autres clés sont toutes différentes (sql non bindé par exemple).
+ * Une lecture ne fait une écriture que pour la première utilisation d'une entrée depuis le balayage précédent.
+ * @param <K> Type des clés
+ * @param <V> Type des valeurs
+ * @author Emeric Vernat
+ */
+final class SecondChanceCache<K, V> {
+	private final int maxSize;
+	private final ConcurrentMap<K, CachedValue<V>> cachedValuesByKey = new ConcurrentHashMap<K, CachedValue<V>>();
+
+	/**
+	 * Valeur dans le cache.
+	 * @param <V> Type de la valeur
+	 */
+	private static final class CachedValue<V> {
+		final V value;
+		// bit de "seconde chance" : valeur utilisée depuis le balayage précédent du cache
+		volatile boolean referenced;
+
+		CachedValue(V value) {
+			super();
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Constructeur.
+	 * @param maxSize Nombre maximum d'entrées
+	 */
+	SecondChanceCache(int maxSize) {
+		super();
+		assert maxSize > 0;
+		this.maxSize = maxSize;
+	}
+
+	V get(K key) {
+		final CachedValue<V> cachedValue = cachedValuesByKey.get(key);
+		if (cachedValue == null) {
+			return null;
+		}
+		if (!cachedValue.referenced) {
+			// écriture seulement si nécessaire, pour ne pas invalider le cache cpu des autres threads
+			cachedValue.referenced = true;
+		}
+		return cachedValue.value;
+	}
+
+	void put(K key, V value) {
+		assert value != null;
+		if (cachedValuesByKey.size() >= maxSize) {
+			evictUnreferencedValues();
+		}
+		cachedValuesByKey.put(key, new CachedValue<V>(value));
+	}
+
+	void remove(K key) {
+		cachedValuesByKey.remove(key);
+	}
+
+	int size() {
+		return cachedValuesByKey.size();
+	}
+
+	void clear() {
+		cachedValuesByKey.clear();
+	}
+
+	private synchronized void evictUnreferencedValues() {
+		// cache plein : on retire un quart des entrées, en commençant par celles non utilisées
+		// depuis le balayage précédent, pour que le coût du balayage soit réparti sur les insertions suivantes ;
+		// au second passage, toutes ont perdu leur seconde chance
+		final int targetSize = maxSize - maxSize / 4;
+		for (int pass = 0; pass < 2 && cachedValuesByKey.size() > targetSize; pass++) {
+			final Iterator<CachedValue<V>> iterator = cachedValuesByKey.values().iterator();
+			while (iterator.hasNext() && cachedValuesByKey.size() > targetSize) {
+				final CachedValue<V> cachedValue = iterator.next();
+				if (cachedValue.referenced) {
+					cachedValue.referenced = false;
+				} else {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[maxSize=" + maxSize + ", size=" + size() + ']';
+	}
+}
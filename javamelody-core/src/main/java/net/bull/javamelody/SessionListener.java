@@ -30,6 +30,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.ServletContextAttributeEvent;
+import javax.servlet.ServletContextAttributeListener;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.http.HttpSession;
@@ -40,12 +42,13 @@ import javax.servlet.http.HttpSessionListener;
 /**
  * Listener de session http pour le monitoring.
  * C'est la classe de ce listener qui doit être déclarée dans le fichier web.xml de la webapp.
- * Ce listener fait également listener de contexte de servlet
+ * Ce listener fait également listener de contexte de servlet,
+ * listener des attributs du contexte de servlet (pour les paramètres "javamelody.*")
  * et listener de passivation/activation de sessions.
  * @author Emeric Vernat
  */
 public class SessionListener implements HttpSessionListener, HttpSessionActivationListener,
-		ServletContextListener, Serializable {
+		ServletContextListener, ServletContextAttributeListener, Serializable {
 	static final String CSRF_TOKEN_SESSION_NAME = "javamelody." + TOKEN_PARAMETER;
 	private static final String SESSION_ACTIVATION_KEY = "javamelody.sessionActivation";
 	private static final long serialVersionUID = -1624944319058843901L;
@@ -321,6 +324,32 @@ public class SessionListener implements HttpSessionListener, HttpSessionActivati
 		LOG.debug("JavaMelody listener destroy done");
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public void attributeAdded(ServletContextAttributeEvent event) {
+		servletContextAttributeChanged(event);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void attributeRemoved(ServletContextAttributeEvent event) {
+		servletContextAttributeChanged(event);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void attributeReplaced(ServletContextAttributeEvent event) {
+		servletContextAttributeChanged(event);
+	}
+
+	private void servletContextAttributeChanged(ServletContextAttributeEvent event) {
+		// issue 463: un paramètre peut être défini par servletContext.setAttribute("javamelody.disabled", "true"),
+		// l'instantané des paramètres est alors recalculé
+		if (instanceEnabled && event.getName().startsWith(Parameters.PARAMETER_SYSTEM_PREFIX)) {
+			Parameters.parametersChanged();
+		}
+	}
+
 	// Rq : avec les sessions, on pourrait faire des statistiques sur la durée moyenne des sessions
 	// (System.currentTimeMillis() - event.getSession().getCreationTime())
 	// ou le délai entre deux requêtes http par utilisateur
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Exécution lente d'une requête sql avec les valeurs de ses paramètres bindés
+ * (paramètre slow-sql-parameters-threshold), conservée parmi les plus lentes de sa requête.
+ * @author Emeric Vernat
+ */
+final class SlowSqlExecution implements Serializable {
+	// nombre d'exécutions les plus lentes conservées par requête
+	static final int MAX_SLOWEST_EXECUTIONS = 5;
+
+	private static final long serialVersionUID = 8219347650913846402L;
+
+	private final long duration;
+	private final Date date;
+	private final String parameters;
+
+	/**
+	 * Comparateur des exécutions par durée décroissante.
+	 */
+	static final class SlowSqlExecutionComparator
+			implements Comparator<SlowSqlExecution>, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/** {@inheritDoc} */
+		@Override
+		public int compare(SlowSqlExecution execution1, SlowSqlExecution execution2) {
+			if (execution1.getDuration() > execution2.getDuration()) {
+				return -1;
+			} else if (execution1.getDuration() < execution2.getDuration()) {
+				return 1;
+			}
+			return 0;
+		}
+	}
+
+	SlowSqlExecution(long duration, String parameters) {
+		super();
+		assert parameters != null;
+		this.duration = duration;
+		this.date = new Date();
+		this.parameters = parameters;
+	}
+
+	private SlowSqlExecution(long duration, Date date, String parameters) {
+		super();
+		this.duration = duration;
+		this.date = date;
+		this.parameters = parameters;
+	}
+
+	long getDuration() {
+		return duration;
+	}
+
+	Date getDate() {
+		return date;
+	}
+
+	String getParameters() {
+		return parameters;
+	}
+
+	void writeCompact(CompactCounter.CompactOutput output) throws IOException {
+		output.writeVarLong(duration);
+		output.writeLong(date.getTime());
+		output.writeString(parameters);
+	}
+
+	static SlowSqlExecution readCompact(CompactCounter.CompactInput input) throws IOException {
+		final long duration = input.readVarLong();
+		final Date date = new Date(input.readLong());
+		final String parameters = input.readString();
+		return new SlowSqlExecution(duration, date, parameters);
+	}
+
+	/**
+	 * Fusionne deux listes d'exécutions lentes en ne gardant que les plus lentes, sans doublon
+	 * (les deltas de la collecte contiennent les mêmes exécutions que les périodes déjà collectées).
+	 * @param executions Liste des exécutions (peut être null)
+	 * @param otherExecutions Liste des exécutions à ajouter (peut être null)
+	 * @return Liste triée par durée décroissante, ou null si vide
+	 */
+	static List<SlowSqlExecution> merge(List<SlowSqlExecution> executions,
+			List<SlowSqlExecution> otherExecutions) {
+		if (otherExecutions == null || otherExecutions.isEmpty()) {
+			return executions;
+		}
+		final List<SlowSqlExecution> result;
+		if (executions == null) {
+			result = new ArrayList<SlowSqlExecution>(MAX_SLOWEST_EXECUTIONS + 1);
+		} else {
+			result = new ArrayList<SlowSqlExecution>(executions);
+		}
+		for (final SlowSqlExecution execution : otherExecutions) {
+			if (!result.contains(execution)) {
+				result.add(execution);
+			}
+		}
+		Collections.sort(result, new SlowSqlExecutionComparator());
+		while (result.size() > MAX_SLOWEST_EXECUTIONS) {
+			result.remove(result.size() - 1);
+		}
+		return result;
+	}
+
+	/**
+	 * @param executions Liste des exécutions les plus lentes triée par durée décroissante (peut être null)
+	 * @param executionDuration Durée d'une nouvelle exécution
+	 * @return true si une nouvelle exécution de cette durée serait conservée dans la liste
+	 */
+	static boolean isAmongSlowest(List<SlowSqlExecution> executions, long executionDuration) {
+		return executions == null || executions.size() < MAX_SLOWEST_EXECUTIONS
+				|| executions.get(executions.size() - 1).getDuration() < executionDuration;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null || getClass() != obj.getClass()) {
+			return false;
+		}
+		final SlowSqlExecution other = (SlowSqlExecution) obj;
+		return duration == other.duration && date.equals(other.date)
+				&& parameters.equals(other.parameters);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int hashCode() {
+		return (int) (duration ^ duration >>> 32) * 31 + parameters.hashCode();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[duration=" + duration + ", date=" + date
+				+ ", parameters=" + parameters + ']';
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Valeurs des paramètres bindés (méthodes setXxx) d'un statement jdbc, pour la capture des exécutions
+ * les plus lentes de chaque requête sql (paramètre slow-sql-parameters-threshold).
+ *
+ * Les valeurs ne sont pas formatées lors des appels à setXxx mais seulement si l'exécution est lente,
+ * et leur nombre est borné. Les valeurs des colonnes dont le nom correspond au paramètre
+ * slow-sql-parameters-masked-columns (mots de passe, numéros de carte...) sont masquées,
+ * la colonne de chaque '?' étant déduite du texte de la requête ("password = ?", "insert into t (password) values (?)").
+ * Par défaut, les valeurs dont la colonne n'est pas déduite (appel de procédure, argument de fonction, liste "in"...)
+ * sont aussi masquées, car elles peuvent contenir de telles données.
+ * Les méthodes d'une instance ne sont pas thread-safe, comme celles d'un statement jdbc.
+ * @author Emeric Vernat
+ */
+final class SqlBindParameters {
+	static final String DEFAULT_MASKED_COLUMNS = "(?i).*(password|passwd|pwd|secret|token|credential|card|iban|ssn).*";
+	static final String MASK = "***";
+	// nombre maximum de paramètres conservés par statement
+	static final int MAX_PARAMETERS = 100;
+	// longueur maximum d'une valeur formatée (chaîne de caractères par exemple)
+	static final int MAX_VALUE_LENGTH = 100;
+	private static final Pattern INSERT_PATTERN = Pattern.compile(
+			"(?is)\\s*insert\\s+into\\s+[^(\\s]+\\s*\\(([^)]*)\\)\\s*values\\s*\\((.*)\\)\\s*");
+
+	private final long threshold;
+	private Object[] values;
+	// index du plus grand paramètre bindé
+	private int parametersCount;
+
+	/**
+	 * Constructeur.
+	 * @param threshold Seuil en millisecondes au-delà duquel une exécution est conservée
+	 */
+	SqlBindParameters(long threshold) {
+		super();
+		this.threshold = threshold;
+	}
+
+	long getThreshold() {
+		return threshold;
+	}
+
+	int getParametersCount() {
+		return parametersCount;
+	}
+
+	/**
+	 * Conserve la valeur d'un paramètre bindé, sans la formater.
+	 * @param parameterIndex Index du paramètre à partir de 1
+	 * @param value Valeur (peut être null pour setNull)
+	 */
+	void set(int parameterIndex, Object value) {
+		if (parameterIndex < 1) {
+			return;
+		}
+		if (parameterIndex > parametersCount) {
+			parametersCount = parameterIndex;
+		}
+		if (parameterIndex > MAX_PARAMETERS) {
+			return;
+		}
+		if (values == null) {
+			values = new Object[Math.max(parameterIndex, 8)];
+		} else if (parameterIndex > values.length) {
+			values = Arrays.copyOf(values,
+					Math.min(Math.max(parameterIndex, values.length * 2), MAX_PARAMETERS));
+		}
+		values[parameterIndex - 1] = value;
+	}
+
+	void clear() {
+		if (values != null) {
+			Arrays.fill(values, null);
+		}
+		parametersCount = 0;
+	}
+
+	/**
+	 * Formate les valeurs des paramètres, par exemple "1=12, 2='abc', 3=***".
+	 * @param sql Requête sql, pour déduire les noms de colonnes des valeurs à masquer
+	 * @param maskedColumnsPattern Expression régulière des noms de colonnes masquées (null pour ne rien masquer)
+	 * @param maskUnknownColumns Masquage des valeurs dont la colonne n'est pas déduite, si maskedColumnsPattern non null
+	 * @return String
+	 */
+	String format(String sql, Pattern maskedColumnsPattern, boolean maskUnknownColumns) {
+		final int count = Math.min(parametersCount, MAX_PARAMETERS);
+		final List<String> columns = maskedColumnsPattern == null ? null
+				: getParameterColumns(sql);
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(i + 1).append('=');
+			final String column = columns != null && i < columns.size() ? columns.get(i) : null;
+			if (columns != null && (column == null ? maskUnknownColumns
+					: maskedColumnsPattern.matcher(column).matches())) {
+				sb.append(MASK);
+			} else {
+				sb.append(formatValue(values == null || i >= values.length ? null : values[i]));
+			}
+		}
+		if (parametersCount > count) {
+			sb.append(", ...");
+		}
+		return sb.toString();
+	}
+
+	static String formatValue(Object value) {
+		if (value == null) {
+			return "null";
+		} else if (value instanceof String || value instanceof Character) {
+			final String string = value.toString();
+			if (string.length() > MAX_VALUE_LENGTH) {
+				return '\'' + string.substring(0, MAX_VALUE_LENGTH) + "...'";
+			}
+			return '\'' + string + '\'';
+		} else if (value instanceof Number || value instanceof Boolean || value instanceof Date) {
+			return value.toString();
+		} else if (value instanceof byte[]) {
+			return "byte[" + ((byte[]) value).length + ']';
+		}
+		// flux, blob, clob, objets divers : on n'appelle pas toString() qui pourrait lire le contenu
+		return '(' + value.getClass().getSimpleName() + ')';
+	}
+
+	/**
+	 * Noms des colonnes de chaque '?' de la requête, dans l'ordre des paramètres.
+	 * @param sql Requête sql
+	 * @return Liste contenant null pour un paramètre dont la colonne n'est pas déduite
+	 */
+	static List<String> getParameterColumns(String sql) {
+		final List<String> result = new ArrayList<String>();
+		final Matcher insertMatcher = INSERT_PATTERN.matcher(sql);
+		if (insertMatcher.matches()) {
+			final String[] insertColumns = insertMatcher.group(1).split(",");
+			final List<String> insertValues = splitValues(insertMatcher.group(2));
+			for (int k = 0; k < insertValues.size(); k++) {
+				final String value = insertValues.get(k).trim();
+				if ("?".equals(value)) {
+					result.add(k < insertColumns.length ? getColumnName(insertColumns[k]) : null);
+				} else {
+					// expression contenant éventuellement des paramètres, sans colonne connue
+					final int parameters = getQuestionMarkIndexes(value).size();
+					for (int j = 0; j < parameters; j++) {
+						result.add(null);
+					}
+				}
+			}
+			return result;
+		}
+		for (final int index : getQuestionMarkIndexes(sql)) {
+			result.add(getColumnBefore(sql, index));
+		}
+		return result;
+	}
+
+	private static List<Integer> getQuestionMarkIndexes(String sql) {
+		final List<Integer> result = new ArrayList<Integer>();
+		boolean inLiteral = false;
+		for (int i = 0; i < sql.length(); i++) {
+			final char c = sql.charAt(i);
+			if (c == '\'') {
+				inLiteral = !inLiteral;
+			} else if (c == '?' && !inLiteral) {
+				result.add(i);
+			}
+		}
+		return result;
+	}
+
+	// découpe les valeurs d'un insert selon les virgules hors parenthèses et hors chaînes littérales
+	private static List<String> splitValues(String values) {
+		final List<String> result = new ArrayList<String>();
+		int depth = 0;
+		boolean inLiteral = false;
+		int start = 0;
+		for (int i = 0; i < values.length(); i++) {
+			final char c = values.charAt(i);
+			if (c == '\'') {
+				inLiteral = !inLiteral;
+			} else if (!inLiteral && c == '(') {
+				depth++;
+			} else if (!inLiteral && c == ')') {
+				depth--;
+			} else if (!inLiteral && depth == 0 && c == ',') {
+				result.add(values.substring(start, i));
+				start = i + 1;
+			}
+		}
+		result.add(values.substring(start));
+		return result;
+	}
+
+	// colonne comparée au '?' à cet index, par exemple "u.password" dans "u.password = ?"
+	// ou "name" dans "name like ?", ou null si non trouvée
+	private static String getColumnBefore(String sql, int questionMarkIndex) {
+		final int operatorEnd = skipWhitespacesBefore(sql, questionMarkIndex);
+		int i = operatorEnd;
+		while (i > 0 && "=<>!".indexOf(sql.charAt(i - 1)) != -1) {
+			i--;
+		}
+		boolean comparison = i < operatorEnd;
+		i = skipWhitespacesBefore(sql, i);
+		String word = getWordBefore(sql, i);
+		if (!comparison && "like".equalsIgnoreCase(word)) {
+			comparison = true;
+			i = skipWhitespacesBefore(sql, i - word.length());
+			word = getWordBefore(sql, i);
+		}
+		if (!comparison || word.isEmpty() || Character.isDigit(word.charAt(0))) {
+			return null;
+		}
+		return getColumnName(word);
+	}
+
+	private static int skipWhitespacesBefore(String sql, int index) {
+		int i = index;
+		while (i > 0 && Character.isWhitespace(sql.charAt(i - 1))) {
+			i--;
+		}
+		return i;
+	}
+
+	private static String getWordBefore(String sql, int index) {
+		int i = index;
+		while (i > 0) {
+			final char c = sql.charAt(i - 1);
+			if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '"') {
+				break;
+			}
+			i--;
+		}
+		return sql.substring(i, index);
+	}
+
+	// nom de colonne sans table ni guillemets
+	private static String getColumnName(String qualifiedName) {
+		String result = qualifiedName.trim().replace("\"", "");
+		final int dotIndex = result.lastIndexOf('.');
+		if (dotIndex != -1) {
+			result = result.substring(dotIndex + 1);
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[threshold=" + threshold + ", parametersCount="
+				+ parametersCount + ']';
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+/**
+ * Empreinte d'une requête sql (paramètre sql-fingerprint), calculée avant agrégation dans le compteur sql
+ * pour que les requêtes non bindées ne diffèrent plus par leurs valeurs :
+ * les nombres et chaînes littérales sont remplacés par '?', les listes de valeurs "in (1, 2, 3)"
+ * par "in (?)" et les suites d'espaces par un seul espace, en un seul parcours et sans expression régulière.
+ *
+ * Les identifiants entre guillemets, les commentaires et les paramètres bindés sont conservés,
+ * et l'empreinte reste ainsi une requête valide pour obtenir le plan d'exécution.
+ * @author Emeric Vernat
+ */
+final class SqlFingerprint {
+	private static final char PLACEHOLDER = '?';
+
+	private SqlFingerprint() {
+		super();
+	}
+
+	/**
+	 * @param sql Requête sql
+	 * @return Empreinte de la requête, ou la même instance de String si elle est déjà normalisée
+	 */
+	static String fingerprint(String sql) {
+		final int length = sql.length();
+		final StringBuilder sb = new StringBuilder(length);
+		int i = 0;
+		while (i < length) {
+			final char c = sql.charAt(i);
+			final char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+			if (Character.isWhitespace(c)) {
+				i = getEndOfWhitespaces(sql, i);
+				if (sb.length() > 0 && i < length && sb.charAt(sb.length() - 1) != '\n') {
+					sb.append(' ');
+				}
+			} else if (c == '\'') {
+				final int end = getEndOfQuoted(sql, i, '\'');
+				if (end == -1) {
+					// chaîne non terminée : requête tronquée ou invalide, on la garde telle quelle
+					sb.append(sql, i, length);
+					i = length;
+				} else {
+					sb.append(PLACEHOLDER);
+					i = end;
+				}
+			} else if (c == '"' || c == '`') {
+				// identifiant entre guillemets
+				final int end = getEndOfQuoted(sql, i, c);
+				final int copyEnd = end == -1 ? length : end;
+				sb.append(sql, i, copyEnd);
+				i = copyEnd;
+			} else if (c == '-' && next == '-' || c == '/' && next == '*') {
+				// commentaire, conservé car il peut contenir des hints
+				final int end = getEndOfComment(sql, i);
+				sb.append(sql, i, end);
+				i = end;
+			} else if (isIdentifierPart(c)
+					&& (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+				i = appendWord(sql, i, sb);
+			} else if (c == '.' && isDigit(next)
+					&& (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+				// nombre tel que ".5"
+				sb.append(PLACEHOLDER);
+				i = getEndOfNumber(sql, i);
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		if (sb.length() == length && sql.contentEquals(sb)) {
+			return sql;
+		}
+		return sb.toString();
+	}
+
+	private static int appendWord(String sql, int start, StringBuilder sb) {
+		final int length = sql.length();
+		if (isDigit(sql.charAt(start))) {
+			final int end = getEndOfNumber(sql, start);
+			if (end == length || !isIdentifierPart(sql.charAt(end))) {
+				sb.append(PLACEHOLDER);
+				return end;
+			}
+		}
+		int end = start + 1;
+		while (end < length && isIdentifierPart(sql.charAt(end))) {
+			end++;
+		}
+		if (end - start == 1 && end < length && sql.charAt(end) == '\''
+				&& "NnEeXxBb".indexOf(sql.charAt(start)) != -1) {
+			// chaîne littérale préfixée, telle que N'abc' ou X'1F'
+			final int endOfQuoted = getEndOfQuoted(sql, end, '\'');
+			if (endOfQuoted != -1) {
+				sb.append(PLACEHOLDER);
+				return endOfQuoted;
+			}
+		}
+		sb.append(sql, start, end);
+		if (end - start == 2 && (sql.charAt(start) == 'i' || sql.charAt(start) == 'I')
+				&& (sql.charAt(start + 1) == 'n' || sql.charAt(start + 1) == 'N')) {
+			// "in (1, 2, 3)" devient "in (?)", quel que soit le nombre de valeurs
+			final int openParenthesis = getEndOfWhitespaces(sql, end);
+			if (openParenthesis < length && sql.charAt(openParenthesis) == '(') {
+				final int endOfList = getEndOfValuesList(sql, openParenthesis);
+				if (endOfList != -1) {
+					sb.append(" (").append(PLACEHOLDER).append(')');
+					return endOfList;
+				}
+			}
+		}
+		return end;
+	}
+
+	// retourne l'index après la parenthèse fermante si la liste ne contient que des valeurs, ou -1 sinon
+	private static int getEndOfValuesList(String sql, int openParenthesis) {
+		final int length = sql.length();
+		int i = openParenthesis + 1;
+		while (true) {
+			i = getEndOfWhitespaces(sql, i);
+			if (i >= length) {
+				return -1;
+			}
+			final char c = sql.charAt(i);
+			if (c == '\'') {
+				i = getEndOfQuoted(sql, i, '\'');
+			} else if (c == PLACEHOLDER) {
+				i++;
+			} else {
+				int numberStart = i;
+				if ((c == '-' || c == '+') && i + 1 < length) {
+					numberStart++;
+				}
+				final char first = sql.charAt(numberStart);
+				if (isDigit(first) || first == '.' && numberStart + 1 < length
+						&& isDigit(sql.charAt(numberStart + 1))) {
+					i = getEndOfNumber(sql, numberStart);
+				} else {
+					return -1;
+				}
+			}
+			if (i == -1) {
+				return -1;
+			}
+			i = getEndOfWhitespaces(sql, i);
+			if (i >= length) {
+				return -1;
+			}
+			if (sql.charAt(i) == ')') {
+				return i + 1;
+			} else if (sql.charAt(i) != ',') {
+				return -1;
+			}
+			i++;
+		}
+	}
+
+	private static int getEndOfNumber(String sql, int start) {
+		final int length = sql.length();
+		int i = start;
+		if (i + 1 < length && sql.charAt(i) == '0'
+				&& (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+			// nombre hexadécimal
+			i += 2;
+			while (i < length && Character.digit(sql.charAt(i), 16) != -1) {
+				i++;
+			}
+			return i;
+		}
+		while (i < length && isDigit(sql.charAt(i))) {
+			i++;
+		}
+		if (i < length && sql.charAt(i) == '.') {
+			i++;
+			while (i < length && isDigit(sql.charAt(i))) {
+				i++;
+			}
+		}
+		if (i + 1 < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+			// exposant, tel que 1.5e-3
+			int exponent = i + 1;
+			if (sql.charAt(exponent) == '-' || sql.charAt(exponent) == '+') {
+				exponent++;
+			}
+			if (exponent < length && isDigit(sql.charAt(exponent))) {
+				i = exponent;
+				while (i < length && isDigit(sql.charAt(i))) {
+					i++;
+				}
+			}
+		}
+		return i;
+	}
+
+	// retourne l'index après la fin de la chaîne ou de l'identifiant entre quotes, ou -1 s'il n'est pas terminé
+	private static int getEndOfQuoted(String sql, int start, char quote) {
+		final int length = sql.length();
+		int i = start + 1;
+		while (i < length) {
+			if (sql.charAt(i) == quote) {
+				if (i + 1 < length && sql.charAt(i + 1) == quote) {
+					// quote échappée par une autre quote
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	private static int getEndOfComment(String sql, int start) {
+		if (sql.charAt(start) == '-') {
+			// la fin de ligne est conservée avec le commentaire
+			final int endOfLine = sql.indexOf('\n', start);
+			return endOfLine == -1 ? sql.length() : endOfLine + 1;
+		}
+		final int endOfComment = sql.indexOf("*/", start + 2);
+		return endOfComment == -1 ? sql.length() : endOfComment + 2;
+	}
+
+	private static int getEndOfWhitespaces(String sql, int start) {
+		final int length = sql.length();
+		int i = start;
+		while (i < length && Character.isWhitespace(sql.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+	}
+}
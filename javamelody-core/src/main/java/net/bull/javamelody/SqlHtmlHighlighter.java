@@ -0,0 +1,155 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+/**
+ * Encodage html des requêtes sql avec mise en évidence des mots clés sql, pour {@link HtmlCounterReport}.
+ *
+ * Le texte est encodé et les mots clés sont entourés d'un span en un seul parcours de la requête,
+ * sans expression régulière, avec le même résultat que l'encodage html
+ * de {@link HtmlAbstractReport#htmlEncodeButNotSpace(String)} suivi du remplacement des mots clés.
+ * Le html est conservé dans un cache borné par id de requête entre les affichages des rapports
+ * (avec l'éviction "seconde chance" de {@link SecondChanceCache} quand il est plein),
+ * et il est retiré du cache lorsque la requête est supprimée du compteur.
+ * Un exemple de requête d'origine (empreinte sql) n'est pas mis en cache, car il a le même id que la requête.
+ * @author Emeric Vernat
+ */
+final class SqlHtmlHighlighter {
+	static final int MAX_CACHED_REQUESTS = Counter.MAX_REQUESTS_COUNT;
+	private static final String[] KEYWORDS = { "select", "from", "where", "order by", "group by",
+			"update", "delete", "insert into", "values", };
+	private static final String SPAN_BEGIN = "<span class='sqlKeyword'>";
+	private static final String SPAN_END = "</span>";
+	private static final SecondChanceCache<String, HighlightedRequest> HIGHLIGHTED_REQUESTS_BY_ID = new SecondChanceCache<String, HighlightedRequest>(
+			MAX_CACHED_REQUESTS);
+
+	private static final class HighlightedRequest {
+		private final String requestName;
+		private final String html;
+
+		HighlightedRequest(String requestName, String html) {
+			super();
+			this.requestName = requestName;
+			this.html = html;
+		}
+	}
+
+	private SqlHtmlHighlighter() {
+		super();
+	}
+
+	/**
+	 * Retourne le html d'une requête sql, depuis le cache si la requête a déjà été affichée.
+	 * @param requestId Id de la requête
+	 * @param requestName Requête sql (éventuellement tronquée pour l'affichage)
+	 * @return String
+	 */
+	static String getHighlightedHtml(String requestId, String requestName) {
+		final HighlightedRequest cached = HIGHLIGHTED_REQUESTS_BY_ID.get(requestId);
+		// la requête peut être tronquée pour l'affichage, d'où la vérification du texte
+		if (cached != null && (cached.requestName == requestName // NOPMD
+				|| cached.requestName.equals(requestName))) {
+			return cached.html;
+		}
+		final String html = highlight(requestName);
+		HIGHLIGHTED_REQUESTS_BY_ID.put(requestId, new HighlightedRequest(requestName, html));
+		return html;
+	}
+
+	/**
+	 * Retire une requête du cache, lorsqu'elle est supprimée de son compteur.
+	 * @param requestId Id de la requête
+	 */
+	static void removeFromCache(String requestId) {
+		HIGHLIGHTED_REQUESTS_BY_ID.remove(requestId);
+	}
+
+	static int getCachedRequestsCount() {
+		return HIGHLIGHTED_REQUESTS_BY_ID.size();
+	}
+
+	/**
+	 * Encode une requête sql pour affichage en html, sans encoder les espaces en nbsp,
+	 * et entoure les mots clés sql d'un span de classe "sqlKeyword".
+	 * @param sql Requête sql
+	 * @return String
+	 */
+	static String highlight(String sql) {
+		final int length = sql.length();
+		final StringBuilder sb = new StringBuilder(length + length / 4);
+		int i = 0;
+		while (i < length) {
+			final char c = sql.charAt(i);
+			if (c >= 'A' && c <= 'z' && (i == 0 || !isWordChar(sql.charAt(i - 1)))) {
+				final int end = getEndOfKeyword(sql, i);
+				if (end != -1) {
+					sb.append(SPAN_BEGIN).append(sql, i, end).append(SPAN_END);
+					i = end;
+					continue;
+				}
+			}
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '\n':
+				sb.append("<br/>");
+				break;
+			default:
+				sb.append(c);
+				break;
+			}
+			i++;
+		}
+		return sb.toString();
+	}
+
+	// retourne l'index après la fin du mot clé commençant à start, ou -1 s'il n'y a pas de mot clé
+	private static int getEndOfKeyword(String sql, int start) {
+		for (final String keyword : KEYWORDS) {
+			final int end = start + keyword.length();
+			if (sql.regionMatches(true, start, keyword, 0, keyword.length())
+					&& (end == sql.length() || !isWordChar(sql.charAt(end)))
+					&& isAsciiCaseOnly(sql, start, end)) {
+				return end;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isAsciiCaseOnly(String sql, int start, int end) {
+		// regionMatches ignore aussi la casse des caractères non ascii, contrairement à l'ancien pattern
+		for (int i = start; i < end; i++) {
+			if (sql.charAt(i) > 'z') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isWordChar(char c) {
+		// même définition que \b dans java.util.regex
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stack-traces partagées des erreurs systèmes (paramètre lazy-stack-traces).
+ *
+ * Les exceptions sont regroupées par "forme" : classes des exceptions et des causes, profondeurs et premiers éléments
+ * (les plus proches de l'erreur) de leurs stack-traces, mais pas leurs messages. Pour une forme déjà rencontrée, l'enregistrement d'une erreur ne coûte qu'un calcul
+ * de hash et une recherche dans une map, et une seule exception est conservée par forme avec le nombre d'occurrences.
+ * Le texte des éléments des stack-traces n'est calculé qu'à la première lecture (affichage du rapport ou persistance
+ * des compteurs, hors du thread de la requête) puis il est partagé par toutes les erreurs de même forme.
+ * Les messages de l'exception et de ses causes ne sont pas partagés : chaque erreur conserve les siens,
+ * car ils peuvent contenir des données propres à une requête (identifiants ou valeurs sql par exemple).
+ * @author Emeric Vernat
+ */
+final class StackTraceStore {
+	static final int MAX_SHARED_STACK_TRACES = 1000;
+	// profondeur maximale des causes pour le calcul du hash (les causes peuvent être cycliques)
+	private static final int MAX_CAUSES_DEPTH = 20;
+	// nombre maximal d'éléments de chaque stack-trace pris en compte dans le hash : les premiers éléments situent l'erreur,
+	// et la profondeur de la stack-trace distingue en plus les appelants différents
+	private static final int MAX_HASHED_FRAMES = 16;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private static final ConcurrentMap<Long, SharedStackTrace> SHARED_STACK_TRACES_BY_HASH = new ConcurrentHashMap<Long, SharedStackTrace>();
+
+	/**
+	 * Stack-trace partagée par les erreurs de même forme, dont le texte des éléments est calculé à la première lecture.
+	 */
+	static final class SharedStackTrace {
+		private final AtomicLong occurrences = new AtomicLong();
+		// exception conservée jusqu'au calcul du texte
+		private Throwable throwable;
+		// texte des éléments de l'exception puis de chacune de ses causes, sans les messages
+		private String[] frames;
+
+		SharedStackTrace(Throwable throwable) {
+			super();
+			assert throwable != null;
+			this.throwable = throwable;
+		}
+
+		private synchronized String[] getFrames() {
+			if (frames == null) {
+				frames = renderFrames(throwable);
+				throwable = null;
+			}
+			return frames;
+		}
+
+		/**
+		 * Texte de la stack-trace d'une erreur de cette forme, comme printStackTrace
+		 * mais avec les éléments partagés (tronqué comme pour CounterError).
+		 * @param messages Messages de l'exception et de ses causes pour cette erreur (cf getMessages)
+		 * @return String
+		 */
+		String getStackTrace(String[] messages) {
+			final String[] currentFrames = getFrames();
+			final int count = Math.min(messages.length, currentFrames.length);
+			final StringBuilder sb = new StringBuilder(200);
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					sb.append("Caused by: ");
+				}
+				sb.append(messages[i]).append(LINE_SEPARATOR).append(currentFrames[i]);
+			}
+			if (sb.length() > CounterError.STACKTRACE_MAX_LENGTH) {
+				return sb.substring(0, CounterError.STACKTRACE_MAX_LENGTH);
+			}
+			return sb.toString();
+		}
+
+		synchronized boolean isRendered() {
+			return frames != null;
+		}
+
+		long getOccurrences() {
+			return occurrences.get();
+		}
+
+		long incrementOccurrences() {
+			return occurrences.incrementAndGet();
+		}
+	}
+
+	private StackTraceStore() {
+		super();
+	}
+
+	/**
+	 * Retourne la stack-trace partagée pour la forme de cette exception, en incrémentant ses occurrences.
+	 * @param throwable Exception
+	 * @return SharedStackTrace
+	 */
+	static SharedStackTrace getSharedStackTrace(Throwable throwable) {
+		final Long hash = hash(throwable);
+		SharedStackTrace sharedStackTrace = SHARED_STACK_TRACES_BY_HASH.get(hash);
+		if (sharedStackTrace == null) {
+			sharedStackTrace = new SharedStackTrace(throwable);
+			if (SHARED_STACK_TRACES_BY_HASH.size() < MAX_SHARED_STACK_TRACES) {
+				final SharedStackTrace previous = SHARED_STACK_TRACES_BY_HASH.putIfAbsent(hash,
+						sharedStackTrace);
+				if (previous != null) {
+					sharedStackTrace = previous;
+				}
+			}
+			// sinon, trop de formes différentes : la stack-trace n'est pas partagée
+		}
+		sharedStackTrace.incrementOccurrences();
+		return sharedStackTrace;
+	}
+
+	/**
+	 * Retourne les messages (toString) de l'exception et de ses causes, propres à chaque erreur.
+	 * @param throwable Exception
+	 * @return String[]
+	 */
+	static String[] getMessages(Throwable throwable) {
+		final List<String> messages = new ArrayList<String>();
+		Throwable cause = throwable;
+		while (cause != null && messages.size() < MAX_CAUSES_DEPTH) {
+			final String message = cause.toString();
+			if (message.length() > CounterError.STACKTRACE_MAX_LENGTH) {
+				messages.add(message.substring(0, CounterError.STACKTRACE_MAX_LENGTH));
+			} else {
+				messages.add(message);
+			}
+			cause = cause.getCause();
+		}
+		return messages.toArray(new String[messages.size()]);
+	}
+
+	private static String[] renderFrames(Throwable throwable) {
+		final List<String> result = new ArrayList<String>();
+		StackTraceElement[] enclosingElements = new StackTraceElement[0];
+		Throwable cause = throwable;
+		while (cause != null && result.size() < MAX_CAUSES_DEPTH) {
+			final StackTraceElement[] elements = cause.getStackTrace();
+			// éléments en commun avec l'exception englobante, résumés comme dans Throwable.printStackTrace
+			int m = elements.length - 1;
+			int n = enclosingElements.length - 1;
+			while (m >= 0 && n >= 0 && elements[m].equals(enclosingElements[n])) {
+				m--;
+				n--;
+			}
+			final int framesInCommon = elements.length - 1 - m;
+			final StringBuilder sb = new StringBuilder(200);
+			for (int i = 0; i <= m; i++) {
+				sb.append("\tat ").append(elements[i]).append(LINE_SEPARATOR);
+			}
+			if (framesInCommon != 0) {
+				sb.append("\t... ").append(framesInCommon).append(" more").append(LINE_SEPARATOR);
+			}
+			result.add(sb.toString());
+			enclosingElements = elements;
+			cause = cause.getCause();
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	static long hash(Throwable throwable) {
+		// hash sur 64 bits, pour que des collisions entre des formes différentes soient improbables
+		long hash = 1125899906842597L;
+		Throwable cause = throwable;
+		int depth = 0;
+		while (cause != null && depth < MAX_CAUSES_DEPTH) {
+			hash = 31 * hash + cause.getClass().getName().hashCode();
+			// un seul appel à getStackTrace(), qui copie le tableau à chaque appel
+			final StackTraceElement[] elements = cause.getStackTrace();
+			hash = 31 * hash + elements.length;
+			final int hashedFrames = Math.min(elements.length, MAX_HASHED_FRAMES);
+			for (int i = 0; i < hashedFrames; i++) {
+				hash = 31 * hash + elements[i].hashCode();
+			}
+			cause = cause.getCause();
+			depth++;
+		}
+		return hash;
+	}
+
+	static int getSharedStackTracesCount() {
+		return SHARED_STACK_TRACES_BY_HASH.size();
+	}
+
+	static void clear() {
+		SHARED_STACK_TRACES_BY_HASH.clear();
+	}
+}
@@ -31,8 +31,6 @@ public final class StrutsInterceptor extends AbstractInterceptor {
 	private static final Counter STRUTS_COUNTER = MonitoringProxy.getStrutsCounter();
 	private static final boolean COUNTER_HIDDEN = Parameters
 			.isCounterHidden(STRUTS_COUNTER.getName());
-	private static final boolean DISABLED = Boolean
-			.parseBoolean(Parameters.getParameter(Parameter.DISABLED));
 
 	/**
 	 * Constructeur.
@@ -55,7 +53,7 @@ public final class StrutsInterceptor extends AbstractInterceptor {
 	@Override
 	public String intercept(ActionInvocation invocation) throws Exception { // NOPMD
 		// cette méthode est appelée par struts
-		if (DISABLED || !STRUTS_COUNTER.isDisplayed()) {
+		if (Parameters.isMonitoringDisabled() || !STRUTS_COUNTER.isDisplayed()) {
 			return invocation.invoke();
 		}
 		boolean systemError = false;
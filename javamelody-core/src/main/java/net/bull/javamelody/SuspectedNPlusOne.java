@@ -0,0 +1,155 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * Requête fille exécutée plus de n-plus-one-threshold fois lors d'une même exécution
+ * de sa requête parente (problème de requêtes "N+1" suspecté), par exemple une requête sql
+ * exécutée dans une boucle d'une requête http.
+ *
+ * Les méthodes d'une instance de cette classe ne sont pas thread-safe,
+ * l'instance étant modifiée sous le verrou de sa {@link CounterRequest}.
+ * @author Emeric Vernat
+ */
+final class SuspectedNPlusOne implements Cloneable, Serializable {
+	private static final long serialVersionUID = -3208174556410235841L;
+
+	private final String childRequestId;
+	private final String childRequestName;
+	// exécutions concernées de la requête parente
+	private long hits;
+	// exécutions de la requête fille lors de ces exécutions de la requête parente
+	private long childExecutions;
+	private long maximumChildExecutions;
+
+	/**
+	 * Comparateur par nombre d'exécutions de la requête fille par hit décroissant.
+	 */
+	static final class SuspectedNPlusOneComparator
+			implements Comparator<SuspectedNPlusOne>, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/** {@inheritDoc} */
+		@Override
+		public int compare(SuspectedNPlusOne suspect1, SuspectedNPlusOne suspect2) {
+			final long executionsPerHit1 = suspect1.getChildExecutionsPerHit();
+			final long executionsPerHit2 = suspect2.getChildExecutionsPerHit();
+			if (executionsPerHit1 > executionsPerHit2) {
+				return -1;
+			} else if (executionsPerHit1 < executionsPerHit2) {
+				return 1;
+			}
+			return 0;
+		}
+	}
+
+	SuspectedNPlusOne(String childRequestId, String childRequestName) {
+		super();
+		assert childRequestId != null;
+		assert childRequestName != null;
+		this.childRequestId = childRequestId;
+		this.childRequestName = childRequestName;
+	}
+
+	String getChildRequestId() {
+		return childRequestId;
+	}
+
+	String getChildRequestName() {
+		return childRequestName;
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getChildExecutions() {
+		return childExecutions;
+	}
+
+	long getMaximumChildExecutions() {
+		return maximumChildExecutions;
+	}
+
+	long getChildExecutionsPerHit() {
+		if (hits > 0) {
+			return childExecutions / hits;
+		}
+		return 0;
+	}
+
+	void addHit(long executions) {
+		hits++;
+		childExecutions += executions;
+		if (executions > maximumChildExecutions) {
+			maximumChildExecutions = executions;
+		}
+	}
+
+	void addHits(SuspectedNPlusOne suspect) {
+		hits += suspect.hits;
+		childExecutions += suspect.childExecutions;
+		if (suspect.maximumChildExecutions > maximumChildExecutions) {
+			maximumChildExecutions = suspect.maximumChildExecutions;
+		}
+	}
+
+	void removeHits(SuspectedNPlusOne suspect) {
+		hits = Math.max(hits - suspect.hits, 0);
+		childExecutions = Math.max(childExecutions - suspect.childExecutions, 0);
+	}
+
+	void writeCompact(CompactCounter.CompactOutput output) throws IOException {
+		output.writeRequestId(childRequestId);
+		output.writeString(childRequestName);
+		output.writeVarLong(hits);
+		output.writeVarLong(childExecutions);
+		output.writeVarLong(maximumChildExecutions);
+	}
+
+	static SuspectedNPlusOne readCompact(CompactCounter.CompactInput input) throws IOException {
+		final SuspectedNPlusOne result = new SuspectedNPlusOne(input.readRequestId(),
+				input.readString());
+		result.hits = input.readVarLong();
+		result.childExecutions = input.readVarLong();
+		result.maximumChildExecutions = input.readVarLong();
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SuspectedNPlusOne clone() { // NOPMD
+		try {
+			return (SuspectedNPlusOne) super.clone();
+		} catch (final CloneNotSupportedException e) {
+			// ne peut arriver puisque SuspectedNPlusOne implémente Cloneable
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[childRequestName=" + childRequestName + ", hits="
+				+ hits + ", childExecutions=" + childExecutions + ']';
+	}
+}
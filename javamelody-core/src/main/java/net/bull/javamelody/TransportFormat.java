@@ -168,6 +168,28 @@ enum TransportFormat {
 		}
 	}
 
+	private static class MyObjectOutputStream extends ObjectOutputStream {
+		MyObjectOutputStream(OutputStream output) throws IOException {
+			super(output);
+			try {
+				enableReplaceObject(true);
+			} catch (final SecurityException e) {
+				// sans la permission enableSubstitution, les counters ont la sérialisation par défaut
+				LOG.debug(e.toString(), e);
+			}
+		}
+
+		// les counters sont écrits sous forme compacte, sauf s'ils ont des requêtes courantes
+		// (les counters clonés ou stockés n'en ont pas)
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj instanceof Counter && !((Counter) obj).hasRootCurrentContexts()) {
+				return new CompactCounter((Counter) obj);
+			}
+			return obj;
+		}
+	}
+
 	private final String code; // NOPMD
 	private final String mimeType; // NOPMD
 
@@ -241,7 +263,7 @@ enum TransportFormat {
 		final BufferedOutputStream bufferedOutput = new BufferedOutputStream(output);
 		switch (this) {
 		case SERIALIZED:
-			final ObjectOutputStream out = new ObjectOutputStream(bufferedOutput);
+			final ObjectOutputStream out = createObjectOutputStream(bufferedOutput);
 			try {
 				out.writeObject(nonNullSerializable);
 			} finally {
@@ -294,4 +316,8 @@ enum TransportFormat {
 	static ObjectInputStream createObjectInputStream(InputStream input) throws IOException {
 		return new MyObjectInputStream(input);
 	}
+
+	static ObjectOutputStream createObjectOutputStream(OutputStream output) throws IOException {
+		return new MyObjectOutputStream(output);
+	}
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe AsyncRecorder.
+ * @author Emeric Vernat
+ */
+public class TestAsyncRecorder {
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testRecord() throws InterruptedException {
+		final AsyncRecorder asyncRecorder = new AsyncRecorder(1000);
+		assertEquals("capacity", 1024, asyncRecorder.getCapacity());
+		asyncRecorder.start();
+		try {
+			assertSame("currentRecorder", asyncRecorder, AsyncRecorder.getCurrentRecorder());
+			final AtomicInteger count = new AtomicInteger();
+			final Runnable event = new Runnable() {
+				@Override
+				public void run() {
+					count.incrementAndGet();
+				}
+			};
+			final Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int j = 0; j < 1000; j++) {
+							recordWithRetry(asyncRecorder, event);
+						}
+					}
+				});
+				threads[i].start();
+			}
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+			// un évènement qui lance une exception n'arrête pas le thread consommateur
+			recordWithRetry(asyncRecorder, new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalStateException("test");
+				}
+			});
+			recordWithRetry(asyncRecorder, event);
+		} finally {
+			asyncRecorder.stop();
+		}
+		assertNull("currentRecorder", AsyncRecorder.getCurrentRecorder());
+		assertEquals("pendingCount", 0, asyncRecorder.getPendingCount());
+		assertEquals("recordedCount", 4002, asyncRecorder.getRecordedCount());
+		assertFalse("record after stop", asyncRecorder.record(new Runnable() {
+			@Override
+			public void run() {
+				// rien
+			}
+		}));
+		assertTrue("toString", asyncRecorder.toString().contains("recordedCount="));
+	}
+
+	static void recordWithRetry(AsyncRecorder asyncRecorder, Runnable event) {
+		// si le buffer est plein, on attend que le thread consommateur avance
+		while (!asyncRecorder.record(event)) {
+			Thread.yield();
+		}
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testDropped() throws InterruptedException {
+		final AsyncRecorder asyncRecorder = new AsyncRecorder(4);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		asyncRecorder.start();
+		try {
+			// le thread consommateur est bloqué par le 1er évènement, puis le buffer est rempli
+			asyncRecorder.record(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						blocked.await();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			started.await();
+			final Runnable event = new Runnable() {
+				@Override
+				public void run() {
+					// rien
+				}
+			};
+			for (int i = 0; i < 4; i++) {
+				assertTrue("record", asyncRecorder.record(event));
+			}
+			assertFalse("buffer full", asyncRecorder.record(event));
+			assertEquals("droppedCount", 1, asyncRecorder.getDroppedCount());
+			assertEquals("pendingCount", 4, asyncRecorder.getPendingCount());
+		} finally {
+			blocked.countDown();
+			asyncRecorder.stop();
+		}
+		assertEquals("recordedCount", 5, asyncRecorder.getRecordedCount());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testDetachedContext() throws IOException {
+		final Counter sqlCounter = new Counter("sql", "db.png");
+		final Counter httpCounter = new Counter("http", "dbweb.png", sqlCounter);
+		final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+		httpCounter.bindContext("http request", "complete http request", null, -1);
+		sqlCounter.bindContextIncludingCpu("sql request");
+		sqlCounter.addRequest("sql request", 10, -1, false, -1);
+		final CounterRequestContext context = httpCounter.detachContext();
+		assertNull("context unbound", httpCounter.detachContext());
+		assertTrue("no current context", httpCounter.getOrderedRootCurrentContexts().isEmpty());
+
+		final AsyncRecorder asyncRecorder = new AsyncRecorder(16);
+		asyncRecorder.start();
+		try {
+			asyncRecorder.record(new Runnable() {
+				@Override
+				public void run() {
+					httpCounter.addRequestForDetachedContext(context, "http request", 100, 5,
+							true, 1000);
+					errorCounter.addRequestForSystemError(new CounterError("Error500", null,
+							1234, "user", "complete http request"), 100, 5);
+				}
+			});
+		} finally {
+			asyncRecorder.stop();
+		}
+		final CounterRequest request = httpCounter.getCounterRequestByName("http request");
+		assertEquals("hits", 1, request.getHits());
+		assertEquals("childHitsMean", 1, request.getChildHitsMean());
+		assertEquals("systemErrorPercentage", 100, request.getSystemErrorPercentage(), 0);
+		final List<CounterError> errors = errorCounter.getErrors();
+		assertEquals("errors", 1, errors.size());
+		assertEquals("error time", 1234, errors.get(0).getTime());
+		assertEquals("error remoteUser", "user", errors.get(0).getRemoteUser());
+		assertEquals("error httpRequest", "complete http request",
+				errors.get(0).getHttpRequest());
+		assertEquals("error hits", 1,
+				errorCounter.getCounterRequestByName("Error500").getHits());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testHtmlReport() throws IOException {
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png");
+		counter.addRequest("test", 100, 10, false, 1000);
+		final Collector collector = new Collector("test", Collections.singletonList(counter));
+		final List<JavaInformations> javaInformationsList = Collections
+				.singletonList(new JavaInformations(null, true));
+		final AsyncRecorder asyncRecorder = new AsyncRecorder(16);
+		asyncRecorder.start();
+		try {
+			final StringWriter writer = new StringWriter();
+			new HtmlReport(collector, null, javaInformationsList, Period.TOUT, writer).toHtml();
+			assertTrue("async recording", writer.toString().contains("Asynchronous recording"));
+		} finally {
+			asyncRecorder.stop();
+		}
+	}
+}
@@ -220,6 +220,213 @@ public class TestCollector {
 		assertNull("getJRobin null", collector.getJRobin("n'importe quoi"));
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectPercentilesGraphs() throws IOException {
+		setProperty(Parameter.PERCENTILES_GRAPHS, "true");
+		setProperty(Parameter.PERCENTILES_GRAPHS_REQUESTS, "1");
+		try {
+			final Counter counter = createCounter();
+			final Collector collector = new Collector(TEST, Collections.singletonList(counter));
+			counter.addRequest("test percentiles", 100, 0, false, 1000);
+			counter.addRequest("test percentiles 2", 10, 0, false, 1000);
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			for (int i = 0; i < 100; i++) {
+				counter.addRequest("test percentiles", i < 90 ? 100 : 1000, 0, false, 1000);
+				counter.addRequest("test percentiles 2", 10, 0, false, 1000);
+			}
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			final String requestId = counter.getCounterRequestByName("test percentiles").getId();
+			final String otherRequestId = counter.getCounterRequestByName("test percentiles 2")
+					.getId();
+			for (final int percentile : Collector.GRAPHED_PERCENTILES) {
+				final JRobin counterJRobin = collector
+						.getJRobin(JRobin.getPercentileJRobinName(counter.getName(), percentile));
+				assertNotNull("counter percentile", counterJRobin);
+				assertEquals("label", "p" + percentile + " times (ms) of http",
+						counterJRobin.getLabel());
+				final JRobin requestJRobin = collector
+						.getJRobin(JRobin.getPercentileJRobinName(requestId, percentile));
+				assertNotNull("request percentile", requestJRobin);
+				assertEquals("label", "p" + percentile + " times (ms) of test percentiles",
+						requestJRobin.getLabel());
+				assertNull("not in top requests", collector
+						.getJRobin(JRobin.getPercentileJRobinName(otherRequestId, percentile)));
+				counterJRobin.deleteFile();
+				requestJRobin.deleteFile();
+			}
+			collector.clearCounter(counter.getName());
+			assertNull("clearCounter", collector.getJRobin(
+					JRobin.getPercentileJRobinName(requestId, Collector.GRAPHED_PERCENTILES[0])));
+		} finally {
+			setProperty(Parameter.PERCENTILES_GRAPHS, null);
+			setProperty(Parameter.PERCENTILES_GRAPHS_REQUESTS, null);
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testCollectPoolOfEachCollector() {
+		final List<Collector> collectors = new ArrayList<Collector>();
+		for (int i = 0; i < 2; i++) {
+			final Counter httpCounter = createCounter();
+			final Counter sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+			httpCounter.setDisplayed(true);
+			sqlCounter.setDisplayed(true);
+			httpCounter.addRequest("test http", 10, 0, false, 1000);
+			sqlCounter.addRequest("select 1", 10, 0, false, -1);
+			collectors.add(new Collector(TEST + i, Arrays.asList(httpCounter, sqlCounter)));
+		}
+		final List<JavaInformations> javaInformationsList = Collections
+				.singletonList(new JavaInformations(null, false));
+		collectors.get(0).collectWithoutErrors(javaInformationsList);
+		// l'arrêt d'un collector (destroy d'un filtre) n'arrête pas la collecte en parallèle d'un autre
+		collectors.get(0).stop();
+		final Collector collector = collectors.get(1);
+		collector.collectWithoutErrors(javaInformationsList);
+		assertTrue("collected", collector.getLastCollectDurationsByPhase()
+				.containsKey("collecte_courbes_requetes"));
+		collector.stop();
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectCountersInParallel() throws IOException {
+		final Counter httpCounter = createCounter();
+		final Counter sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		final Counter ejbCounter = new Counter("ejb", null);
+		final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+		final List<Counter> counters = Arrays.asList(httpCounter, sqlCounter, ejbCounter,
+				errorCounter);
+		for (final Counter counter : counters) {
+			counter.setDisplayed(true);
+		}
+		final Collector collector = new Collector(TEST, counters);
+		assertTrue("getLastCollectDurationsByPhase",
+				collector.getLastCollectDurationsByPhase().isEmpty());
+		final int requestsCount = 250;
+		for (int i = 0; i < requestsCount; i++) {
+			sqlCounter.addRequest("select " + i, 10, 0, false, -1);
+		}
+		httpCounter.addRequest("test http", 10, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+		for (int i = 0; i < requestsCount; i++) {
+			sqlCounter.addRequest("select " + i, 20, 0, false, -1);
+			sqlCounter.addRequest("select " + i, 20, 0, false, -1);
+		}
+		httpCounter.addRequest("test http", 10, 0, false, 1000);
+		httpCounter.addRequest("test http", 10, 0, false, 1000);
+		ejbCounter.addRequest("test ejb", 10, 0, false, -1);
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+
+		assertEquals("getLastCollectDurationsByPhase",
+				Arrays.asList("collecte_donnees_systeme", "collecte_compteurs",
+						"collecte_courbes_requetes"),
+				new ArrayList<String>(collector.getLastCollectDurationsByPhase().keySet()));
+		// les courbes des compteurs sont dans l'ordre des compteurs, malgré la collecte en parallèle
+		final List<String> counterJRobinNames = new ArrayList<String>();
+		for (final JRobin jrobin : collector.getCounterJRobins()) {
+			counterJRobinNames.add(jrobin.getName());
+		}
+		assertEquals("getCounterJRobins", Arrays.asList("httpHitsRate", "httpMeanTimes",
+				"httpSystemErrors", "sqlHitsRate", "sqlMeanTimes", "sqlSystemErrors",
+				"ejbHitsRate", "ejbMeanTimes", "ejbSystemErrors"),
+				counterJRobinNames.subList(counterJRobinNames.indexOf("httpHitsRate"),
+						counterJRobinNames.size()));
+		final Counter sqlDayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				sqlCounter.getName());
+		assertEquals("sql day counter", requestsCount, sqlDayCounter.getRequestsCount());
+		for (final CounterRequest request : sqlCounter.getRequests()) {
+			final JRobin requestJRobin = collector.getJRobin(request.getId());
+			assertNotNull("request jrobin", requestJRobin);
+			assertEquals("request hits in day counter", 2,
+					sqlDayCounter.getCounterRequestByName(request.getName()).getHits());
+			requestJRobin.deleteFile();
+		}
+		assertNotNull("http request jrobin", collector
+				.getJRobin(httpCounter.getCounterRequestByName("test http").getId()));
+		for (final JRobin jrobin : collector.getCounterJRobins()) {
+			jrobin.deleteFile();
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectModifiedRequestsOnly() throws IOException {
+		final Counter counter = createCounter();
+		final Collector collector = new Collector(TEST, Collections.singletonList(counter));
+		counter.addRequest("test modified 1", 100, 0, false, 1000);
+		counter.addRequest("test modified 2", 100, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+		// après la première collecte, seules les requêtes modifiées sont collectées
+		counter.addRequest("test modified 1", 300, 0, true, 1000);
+		counter.addRequest("test modified 3", 100, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+		counter.addRequest("test modified 1", 200, 0, false, 1000);
+		counter.addRequest("test modified 1", 200, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+
+		final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				counter.getName());
+		final CounterRequest dayRequest1 = dayCounter.getCounterRequestByName("test modified 1");
+		assertEquals("hits 1", 3, dayRequest1.getHits());
+		assertEquals("durations sum 1", 700, dayRequest1.getDurationsSum());
+		assertEquals("system errors 1", 100d / 3, dayRequest1.getSystemErrorPercentage(), 0.01);
+		assertEquals("hits 2", 0, dayCounter.getCounterRequestByName("test modified 2").getHits());
+		assertEquals("hits 3", 1, dayCounter.getCounterRequestByName("test modified 3").getHits());
+		assertNotNull("request jrobin", collector
+				.getJRobin(counter.getCounterRequestByName("test modified 1").getId()));
+		for (final JRobin jrobin : collector.getCounterJRobins()) {
+			jrobin.deleteFile();
+		}
+		collector.clearCounter(counter.getName());
+		// après clearCounter, la collecte suivante porte sur toutes les requêtes
+		counter.addRequest("test modified 1", 100, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.singletonList(new JavaInformations(null, false)));
+		assertEquals("hits after clear", 4, collector.getRangeCounter(Period.JOUR.getRange(),
+				counter.getName()).getCounterRequestByName("test modified 1").getHits());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectDataSourcesGraphs() throws IOException {
+		JdbcDataSourceStatistics.clearAll();
+		try {
+			final JdbcDataSourceStatistics statistics = JdbcDataSourceStatistics
+					.getInstance("jdbc/test ds");
+			final Collector collector = new Collector(TEST,
+					Collections.singletonList(createCounter()));
+			statistics.connectionUsed();
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			statistics.executionStarted();
+			statistics.executionEnded(System.currentTimeMillis(), false);
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			statistics.connectionReleased();
+			for (final String name : Arrays.asList("usedConnections", "activeConnections",
+					"sqlHitsRate", "sqlMeanTimes")) {
+				final JRobin jrobin = collector
+						.getJRobin(JRobin.getDataSourceJRobinName(name, "jdbc/test ds"));
+				assertNotNull(name, jrobin);
+				assertEquals("getName", name + "_ds_jdbc_test_ds", jrobin.getName());
+				jrobin.deleteFile();
+			}
+			assertEquals("getLabel", "Used jdbc connections (jdbc_test_ds)", collector
+					.getJRobin(JRobin.getDataSourceJRobinName("usedConnections", "jdbc/test ds"))
+					.getLabel());
+		} finally {
+			JdbcDataSourceStatistics.clearAll();
+		}
+	}
+
 	/** Test.
 	 * @throws JMException e */
 	@Test
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.CompactCounter.CompactInput;
+import net.bull.javamelody.CompactCounter.CompactOutput;
+
+/**
+ * Test unitaire de la classe CompactCounter.
+ * @author Emeric Vernat
+ */
+public class TestCompactCounter {
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	private static Counter createCounter(int requestsCount) {
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter counter = new Counter("http", null, sqlCounter);
+		counter.setApplication("test compact counter");
+		final Map<String, Long> childRequests = new LinkedHashMap<String, Long>();
+		final Map<String, String> childRequestNamesById = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 10; i++) {
+			final String childRequestName = "select * from table" + i;
+			final String childRequestId = new CounterRequest(childRequestName, "sql").getId();
+			childRequests.put(childRequestId, (long) i + 1);
+			childRequestNamesById.put(childRequestId, childRequestName);
+		}
+		for (int i = 0; i < requestsCount; i++) {
+			final CounterRequest request = new CounterRequest("/request" + i + " GET",
+					counter.getName());
+			request.addHit(100 + i, 50, i % 10 == 0, "stack-trace", 1000);
+			request.addHit(2000, 60, false, null, 2000);
+			request.addChildRequests(childRequests);
+			request.addSuspectedNPlusOnes(childRequestNamesById, childRequests);
+			counter.addHits(request);
+		}
+		return counter;
+	}
+
+	private static Counter writeAndRead(Counter counter)
+			throws IOException, ClassNotFoundException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TransportFormat.SERIALIZED.writeSerializableTo(counter, output);
+		return (Counter) TransportFormat.SERIALIZED
+				.readSerializableFrom(new ByteArrayInputStream(output.toByteArray()));
+	}
+
+	private static void assertRequestEquals(CounterRequest expected, CounterRequest actual) {
+		assertEquals("name", expected.getName(), actual.getName());
+		assertEquals("id", expected.getId(), actual.getId());
+		assertEquals("hits", expected.getHits(), actual.getHits());
+		assertEquals("durationsSum", expected.getDurationsSum(), actual.getDurationsSum());
+		assertEquals("maximum", expected.getMaximum(), actual.getMaximum());
+		assertEquals("cpuTimeMean", expected.getCpuTimeMean(), actual.getCpuTimeMean());
+		assertEquals("systemErrors", expected.getSystemErrorPercentage(),
+				actual.getSystemErrorPercentage(), 0.001);
+		assertEquals("stackTrace", expected.getStackTrace(), actual.getStackTrace());
+		assertEquals("childRequests", expected.getChildRequestsExecutionsByRequestId(),
+				actual.getChildRequestsExecutionsByRequestId());
+		assertEquals("suspectedNPlusOnes", expected.getSuspectedNPlusOnes().toString(),
+				actual.getSuspectedNPlusOnes().toString());
+		assertEquals("p99", expected.getDurationsHistogram().getValueAtPercentile(99),
+				actual.getDurationsHistogram().getValueAtPercentile(99));
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e */
+	@Test
+	public void testWriteAndRead() throws IOException, ClassNotFoundException {
+		final Counter counter = createCounter(20);
+		final Counter after = writeAndRead(counter);
+		assertEquals("counter", counter.toString(), after.toString());
+		assertEquals("application", counter.getApplication(), after.getApplication());
+		assertEquals("childCounterName", counter.getChildCounterName(),
+				after.getChildCounterName());
+		assertEquals("startDate", counter.getStartDate(), after.getStartDate());
+		final List<CounterRequest> requests = counter.getRequests();
+		assertEquals("requests", requests.size(), after.getRequestsCount());
+		for (final CounterRequest request : requests) {
+			assertRequestEquals(request, after.getCounterRequestByName(request.getName()));
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e */
+	@Test
+	public void testWriteAndReadSqlAndErrors() throws IOException, ClassNotFoundException {
+		final Counter sqlCounter = new Counter("sql", null);
+		sqlCounter.addRequest("insert into table values (?)", 100, 50, false, -1);
+		sqlCounter.addBatch("insert into table values (?)", 150, 900);
+		sqlCounter.addSlowExecution("insert into table values (?)", 100, "[1, 'a']");
+		sqlCounter.addFetchedRows("insert into table values (?)", 10, 1000);
+		final Counter sqlCounterAfter = writeAndRead(sqlCounter);
+		final CounterRequest request = sqlCounter.getRequests().get(0);
+		final CounterRequest requestAfter = sqlCounterAfter.getRequests().get(0);
+		assertRequestEquals(request, requestAfter);
+		assertEquals("batchSizeMean", request.getBatchSizeMean(),
+				requestAfter.getBatchSizeMean());
+		assertArrayEquals("batchSizesDistribution", request.getBatchSizesDistribution(),
+				requestAfter.getBatchSizesDistribution());
+		assertEquals("slowestExecutions", request.getSlowestExecutions().get(0).getParameters(),
+				requestAfter.getSlowestExecutions().get(0).getParameters());
+		assertEquals("slowestExecutions", request.getSlowestExecutions().get(0).getDate(),
+				requestAfter.getSlowestExecutions().get(0).getDate());
+		assertEquals("fetchedRowsMean", request.getFetchedRowsMean(),
+				requestAfter.getFetchedRowsMean());
+
+		final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+		errorCounter.addErrors(Collections.singletonList(new CounterError("error", null)));
+		errorCounter.addRequestForSystemError("error", -1, -1, null);
+		final Counter errorCounterAfter = writeAndRead(errorCounter);
+		assertEquals("errors", errorCounter.getErrorsCount(), errorCounterAfter.getErrorsCount());
+		assertEquals("errors", errorCounter.getErrors().get(0).getMessage(),
+				errorCounterAfter.getErrors().get(0).getMessage());
+		assertNull("stackTrace", errorCounterAfter.getErrors().get(0).getStackTrace());
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e */
+	@Test
+	public void testReadDefaultSerialization() throws IOException, ClassNotFoundException {
+		// flux ou fichier écrit par une version précédente, sans la forme compacte
+		final Counter counter = createCounter(20);
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(output);
+		try {
+			out.writeObject(counter);
+		} finally {
+			out.close();
+		}
+		final Counter after = (Counter) TransportFormat.SERIALIZED
+				.readSerializableFrom(new ByteArrayInputStream(output.toByteArray()));
+		assertEquals("requests", counter.getRequestsCount(), after.getRequestsCount());
+		for (final CounterRequest request : counter.getRequests()) {
+			assertRequestEquals(request, after.getCounterRequestByName(request.getName()));
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCompactSize() throws IOException {
+		final Counter counter = createCounter(200);
+		final ByteArrayOutputStream defaultOutput = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(defaultOutput);
+		try {
+			out.writeObject(counter);
+		} finally {
+			out.close();
+		}
+		final ByteArrayOutputStream compactOutput = new ByteArrayOutputStream();
+		TransportFormat.SERIALIZED.writeSerializableTo(counter, compactOutput);
+		assertTrue("compact size " + compactOutput.size() + " / " + defaultOutput.size(),
+				compactOutput.size() * 2 < defaultOutput.size());
+	}
+
+	private static ObjectInputStream createInput(int... varInts) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		try {
+			final CompactOutput output = new CompactOutput(out);
+			for (final int varInt : varInts) {
+				output.writeVarInt(varInt);
+			}
+		} finally {
+			out.close();
+		}
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	private static void assertInvalidString(int... varInts) {
+		try {
+			new CompactInput(createInput(varInts)).readString();
+			fail("invalid string");
+		} catch (final IOException e) {
+			assertNotNull("IOException", e);
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testReadInvalidSizes() {
+		try {
+			CompactCounter.readRequests(createInput(Integer.MAX_VALUE));
+			fail("invalid requests count");
+		} catch (final IOException e) {
+			assertNotNull("IOException", e);
+		}
+		// nouvelle chaîne trop longue
+		assertInvalidString(1, CompactCounter.MAX_READ_STRING_LENGTH + 1);
+		// longueur négative
+		assertInvalidString(1, -1);
+		// identifiant de requête dont le préfixe est un autre identifiant ou null
+		assertInvalidString(2, 2);
+		assertInvalidString(2, 0);
+		// index hors de la table des chaînes
+		assertInvalidString(3);
+	}
+}
@@ -30,6 +30,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -181,6 +184,82 @@ public class TestCounter {
 		counterRequest.removeHits(counterRequest2);
 	}
 
+	/** Test. */
+	@Test
+	public void testAddFetchedRows() {
+		counter.addRequest("select 1", 100, -1, false, -1);
+		counter.addRequest("select 1", 50, -1, false, -1);
+		CounterRequest request = counter.getCounterRequestByName("select 1");
+		assertFalse("hasFetchedRows", request.hasFetchedRows());
+		counter.addFetchedRows("select 1", 1000, 30000000);
+		counter.addFetchedRows("select 1", 200, 10000000);
+		request = counter.getCounterRequestByName("select 1");
+		assertTrue("hasFetchedRows", request.hasFetchedRows());
+		assertEquals("getFetchedRowsMean", 600, request.getFetchedRowsMean());
+		assertEquals("getFetchDurationsMean", 20, request.getFetchDurationsMean());
+		final CounterRequest sum = new CounterRequest("select 1", counter.getName());
+		sum.addHits(request);
+		sum.addHits(request);
+		assertEquals("addHits", 600, sum.getFetchedRowsMean());
+		sum.removeHits(request);
+		assertEquals("removeHits", 20, sum.getFetchDurationsMean());
+		assertEquals("no hit", -1,
+				new CounterRequest("select 2", counter.getName()).getFetchedRowsMean());
+	}
+
+	/** Test. */
+	@Test
+	public void testAddBatch() {
+		counter.addRequest("insert 1", 100, -1, false, -1);
+		counter.addBatch("insert 1", 1, 100);
+		counter.addRequest("insert 1", 100, -1, false, -1);
+		counter.addBatch("insert 1", 5000, 900);
+		counter.addRequest("insert 1", 10, -1, false, -1);
+		final CounterRequest request = counter.getCounterRequestByName("insert 1");
+		assertTrue("hasBatches", request.hasBatches());
+		assertEquals("getBatchSizeMean", 2500, request.getBatchSizeMean());
+		assertEquals("getBatchRowsPerSecond", 5001, request.getBatchRowsPerSecond());
+		final long[] distribution = request.getBatchSizesDistribution();
+		assertEquals("distribution 1", 1, distribution[0]);
+		assertEquals("distribution >1000", 1, distribution[4]);
+		assertEquals("distribution 11-100", 0, distribution[2]);
+		final CounterRequest sum = new CounterRequest("insert 1", counter.getName());
+		sum.addHits(request);
+		sum.addHits(request);
+		assertEquals("addHits", 2, sum.getBatchSizesDistribution()[0]);
+		sum.removeHits(request);
+		assertEquals("removeHits", 1, sum.getBatchSizesDistribution()[0]);
+		assertEquals("removeHits", 2500, sum.getBatchSizeMean());
+		final CounterRequest noBatch = new CounterRequest("select 1", counter.getName());
+		assertFalse("hasBatches", noBatch.hasBatches());
+		assertEquals("getBatchRowsPerSecond", -1, noBatch.getBatchRowsPerSecond());
+		assertEquals("getBatchSizeLabel", "1", CounterRequest.getBatchSizeLabel(0));
+		assertEquals("getBatchSizeLabel", "11-100", CounterRequest.getBatchSizeLabel(2));
+		assertEquals("getBatchSizeLabel", ">1000", CounterRequest.getBatchSizeLabel(4));
+	}
+
+	/** Test.
+	 * @throws NoSuchAlgorithmException e */
+	@Test
+	public void testCounterRequestId() throws NoSuchAlgorithmException {
+		final String requestName = "select * from test";
+		final CounterRequest request = new CounterRequest(requestName, "sql");
+		final byte[] digest = MessageDigest.getInstance("SHA-1").digest(requestName.getBytes());
+		// l'identifiant est utilisé pour les noms des fichiers rrd et ne doit pas changer
+		final String expectedId = "sql" + String.format("%040x", new BigInteger(1, digest));
+		assertEquals("id", expectedId, request.getId());
+		assertSame("cached id", request.getId(),
+				new CounterRequest(requestName, "sql").getId());
+		assertNotSame("id of other counter", request.getId(),
+				new CounterRequest(requestName, "http").getId());
+		// un id utilisé régulièrement reste dans le cache même si les autres requêtes sont toutes différentes
+		for (int i = 0; i < 2 * Counter.MAX_REQUESTS_COUNT; i++) {
+			new CounterRequest(requestName + i, "sql").getId();
+			assertSame("cached id after evictions", request.getId(),
+					new CounterRequest(requestName, "sql").getId());
+		}
+	}
+
 	/** Test. */
 	@Test
 	public void testRemoveRequest() {
@@ -371,6 +450,108 @@ public class TestCounter {
 		assertEquals("request", counterRequest.toString(), requests.get(0).toString());
 	}
 
+	/** Test. */
+	@Test
+	public void testGetRequestsForCollect() {
+		counter.unbindContext();
+		counter.addRequest("test 1", 100, 50, false, 1000);
+		counter.addRequest("test 2", 100, 50, false, 1000);
+		assertEquals("all requests", 2, counter.getRequestsForCollect(false).size());
+		assertEquals("no modified request", 0, counter.getRequestsForCollect(true).size());
+		counter.addRequest("test 2", 200, 50, false, 1000);
+		final List<CounterRequest> modifiedRequests = counter.getRequestsForCollect(true);
+		assertEquals("modified requests", 1, modifiedRequests.size());
+		assertEquals("modified request", "test 2", modifiedRequests.get(0).getName());
+		assertEquals("modified request hits", 2, modifiedRequests.get(0).getHits());
+		assertEquals("modified requests reset", 0, counter.getRequestsForCollect(true).size());
+		counter.addFetchedRows("test 1", 10, 1000);
+		assertEquals("fetched rows", 1, counter.getRequestsForCollect(true).size());
+		// getRequests ne change pas les requêtes modifiées pour la collecte
+		counter.addRequest("test 1", 100, 50, false, 1000);
+		assertEquals("getRequests", 2, counter.getRequests().size());
+		assertEquals("modified after getRequests", 1, counter.getRequestsForCollect(true).size());
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testAddRequestWithoutLock() throws InterruptedException {
+		final Counter lockFreeCounter = new Counter("services", null);
+		lockFreeCounter.setLockFreeRecording(true);
+		assertTrue("lockFreeRecording", lockFreeCounter.isLockFreeRecording());
+		final String requestName = "lock free request";
+		final int nbThreads = 8;
+		final int nbHits = 10000;
+		final List<Thread> threads = new ArrayList<Thread>(nbThreads);
+		for (int i = 0; i < nbThreads; i++) {
+			final Thread thread = new Thread(new Runnable() { // NOPMD
+				@Override
+				public void run() {
+					for (int j = 0; j < nbHits; j++) {
+						lockFreeCounter.addRequest(requestName, j % 100, 1, j % 10 == 0, 10);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		final CounterRequest request = lockFreeCounter.getCounterRequestByName(requestName);
+		assertEquals("hits", nbThreads * nbHits, request.getHits());
+		assertEquals("durationsSum", nbThreads * nbHits / 100 * 4950, request.getDurationsSum());
+		assertEquals("maximum", 99, request.getMaximum());
+		assertEquals("cpuTimeMean", 1, request.getCpuTimeMean());
+		assertEquals("responseSizeMean", 10, request.getResponseSizeMean());
+		assertEquals("systemErrorPercentage", 10f, request.getSystemErrorPercentage(), 0.01f);
+		// les hits accumulés sans verrou sont conservés lors de l'ajout de hits avec verrou
+		lockFreeCounter.addHits(request);
+		assertEquals("hits", 2L * nbThreads * nbHits,
+				lockFreeCounter.getRequests().get(0).getHits());
+		assertEquals("counter clone", lockFreeCounter.getRequests().toString(),
+				lockFreeCounter.clone().getRequests().toString());
+	}
+
+	/** Test. */
+	@Test
+	public void testGettersWithoutLock() {
+		// les getters d'une requête non clonée incluent les hits accumulés sans verrou
+		final CounterRequest request = new CounterRequest("lock free getters", "sql");
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter httpCounter = new Counter("http", null, sqlCounter);
+		final CounterRequestContext parentContext = new CounterRequestContext(httpCounter, null,
+				"parent", "parent", null, -1);
+		final CounterRequestContext context = new CounterRequestContext(sqlCounter,
+				parentContext, "child", "child", null, -1);
+		context.addChildRequest(sqlCounter, "child", "child", 20, false, 0);
+		assertEquals("childHits", 1, context.getChildHits());
+		request.addHit(100, 10, false, null, 1000);
+		for (int i = 0; i < 10; i++) {
+			request.addHitWithoutLock(i * 50, 20, i % 2 == 0, 3000, context);
+		}
+		final CounterRequest clone = request.clone();
+		assertEquals("hits", clone.getHits(), request.getHits());
+		assertEquals("hits", 11, request.getHits());
+		assertEquals("durationsSum", clone.getDurationsSum(), request.getDurationsSum());
+		assertEquals("mean", clone.getMean(), request.getMean());
+		assertEquals("standardDeviation", clone.getStandardDeviation(),
+				request.getStandardDeviation());
+		assertEquals("maximum", clone.getMaximum(), request.getMaximum());
+		assertEquals("cpuTimeSum", clone.getCpuTimeSum(), request.getCpuTimeSum());
+		assertEquals("cpuTimeMean", clone.getCpuTimeMean(), request.getCpuTimeMean());
+		assertEquals("systemErrorPercentage", clone.getSystemErrorPercentage(),
+				request.getSystemErrorPercentage(), 0.01f);
+		assertEquals("responseSizeMean", clone.getResponseSizeMean(),
+				request.getResponseSizeMean());
+		assertEquals("hasChildHits", clone.hasChildHits(), request.hasChildHits());
+		assertEquals("childHitsMean", clone.getChildHitsMean(), request.getChildHitsMean());
+		assertEquals("childDurationsMean", clone.getChildDurationsMean(),
+				request.getChildDurationsMean());
+		assertEquals("durationsPercentile", clone.getDurationsPercentile(99),
+				request.getDurationsPercentile(99));
+	}
+
 	/** Test. */
 	@Test
 	public void testGetRequestsCount() {
@@ -17,11 +17,20 @@
  */
 package net.bull.javamelody;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -65,6 +74,340 @@ public class TestCounterStorage {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testLogStorageFormat() throws IOException {
+		Utils.setProperty(Parameter.STORAGE_FORMAT, "log");
+		try {
+			final Counter counter = createCounterForLog();
+			final File file = getFile(counter, ".ser.gz");
+			final File logFile = getFile(counter, ".log");
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.addRequest("test 2", 100, 50, false, 1000);
+			counter.writeToFile();
+			assertTrue("file", file.exists());
+			assertTrue("log file", logFile.exists());
+			final long fileLastModified = file.lastModified();
+			final long fileLength = file.length();
+
+			// seule la requête modifiée est ajoutée au journal, le fichier complet n'est pas réécrit
+			counter.addRequest("test 2", 300, 50, false, 1000);
+			counter.addRequest("test 3", 100, 50, false, 1000);
+			final long logLength = logFile.length();
+			counter.writeToFile();
+			assertTrue("log appended", logFile.length() > logLength);
+			assertEquals("file not rewritten", fileLength, file.length());
+			assertEquals("file not rewritten", fileLastModified, file.lastModified());
+			// sans modification, rien n'est ajouté
+			final long logLength2 = logFile.length();
+			counter.writeToFile();
+			assertEquals("nothing appended", logLength2, logFile.length());
+
+			final Counter readCounter = createCounterForLog();
+			readCounter.readFromFile();
+			assertEquals("requests count", 3, readCounter.getRequestsCount());
+			assertEquals("hits", 2, readCounter.getCounterRequestByName("test 2").getHits());
+			assertEquals("durations sum", 400,
+					readCounter.getCounterRequestByName("test 2").getDurationsSum());
+
+			// une requête supprimée impose la compaction du journal dans le fichier complet
+			counter.removeRequest("test 1");
+			counter.writeToFile();
+			final Counter readCounter2 = createCounterForLog();
+			readCounter2.readFromFile();
+			assertEquals("requests count after compaction", 2, readCounter2.getRequestsCount());
+		} finally {
+			Utils.setProperty(Parameter.STORAGE_FORMAT, null);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testLogStorageFormatRecovery() throws IOException {
+		Utils.setProperty(Parameter.STORAGE_FORMAT, "log");
+		try {
+			final Counter counter = createCounterForLog();
+			final File logFile = getFile(counter, ".log");
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.writeToFile();
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.writeToFile();
+			final long logLength = logFile.length();
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.writeToFile();
+			// arrêt brutal pendant l'écriture du dernier enregistrement
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "rw");
+			try {
+				randomAccessFile.setLength(logFile.length() - 3);
+			} finally {
+				randomAccessFile.close();
+			}
+			final Counter readCounter = createCounterForLog();
+			readCounter.readFromFile();
+			assertEquals("hits until incomplete record", 2,
+					readCounter.getCounterRequestByName("test 1").getHits());
+			// le journal incomplet n'est pas complété, il est compacté à l'enregistrement suivant
+			readCounter.addRequest("test 1", 100, 50, false, 1000);
+			readCounter.writeToFile();
+			assertTrue("log compacted", logFile.length() < logLength);
+			final Counter readCounter2 = createCounterForLog();
+			readCounter2.readFromFile();
+			assertEquals("hits after compaction", 3,
+					readCounter2.getCounterRequestByName("test 1").getHits());
+
+			// un journal qui ne correspond pas au fichier complet est ignoré
+			final FileOutputStream output = new FileOutputStream(logFile);
+			try {
+				output.write(new byte[] { 1, 2, 3 });
+			} finally {
+				output.close();
+			}
+			final Counter readCounter3 = createCounterForLog();
+			readCounter3.readFromFile();
+			assertEquals("hits without log", 3,
+					readCounter3.getCounterRequestByName("test 1").getHits());
+		} finally {
+			Utils.setProperty(Parameter.STORAGE_FORMAT, null);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testLogStorageFormatWithHeavyHitters() throws IOException {
+		Utils.setProperty(Parameter.STORAGE_FORMAT, "log");
+		try {
+			final Counter counter = createCounterForLog();
+			counter.setMaxRequestsCount(5);
+			counter.setHeavyHittersEnabled(true);
+			getFile(counter, ".ser.gz");
+			getFile(counter, ".log");
+			for (int i = 0; i < 4; i++) {
+				counter.addRequest("request " + i, 100, 50, false, 1000);
+			}
+			counter.writeToFile();
+			// des requêtes plus fréquentes évincent les requêtes déjà enregistrées
+			for (int i = 0; i < 100; i++) {
+				counter.addRequest("heavy request " + i % 4, 100, 50, false, 1000);
+			}
+			counter.writeToFile();
+			final Counter readCounter = createCounterForLog();
+			readCounter.setMaxRequestsCount(5);
+			readCounter.setHeavyHittersEnabled(true);
+			readCounter.readFromFile();
+			long hitsSum = 0;
+			for (final CounterRequest request : readCounter.getRequests()) {
+				hitsSum += request.getHits();
+			}
+			// les hits des requêtes évincées ne sont pas comptés 2 fois
+			assertEquals("hits sum", 104, hitsSum);
+		} finally {
+			Utils.setProperty(Parameter.STORAGE_FORMAT, null);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testLogStorageFormatErrorsOfSameTime() throws IOException {
+		Utils.setProperty(Parameter.STORAGE_FORMAT, "log");
+		try {
+			final Counter counter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+			counter.setApplication("test counter storage");
+			getFile(counter, ".ser.gz");
+			getFile(counter, ".log");
+			final long time = System.currentTimeMillis();
+			counter.addErrors(
+					Collections.singletonList(new CounterError("error 1", null, time, null, null)));
+			counter.writeToFile();
+			// erreur de la même milliseconde que l'erreur déjà enregistrée
+			counter.addErrors(
+					Collections.singletonList(new CounterError("error 2", null, time, null, null)));
+			counter.writeToFile();
+			final Counter readCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+			readCounter.setApplication("test counter storage");
+			readCounter.readFromFile();
+			assertEquals("errors count", 2, readCounter.getErrorsCount());
+		} finally {
+			Utils.setProperty(Parameter.STORAGE_FORMAT, null);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testSerializedStorageFormatDeletesLog() throws IOException {
+		final Counter counter = createCounterForLog();
+		final File logFile = getFile(counter, ".log");
+		Utils.setProperty(Parameter.STORAGE_FORMAT, "log");
+		try {
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.writeToFile();
+			assertTrue("log file", logFile.exists());
+		} finally {
+			Utils.setProperty(Parameter.STORAGE_FORMAT, null);
+		}
+		counter.writeToFile();
+		assertFalse("log file deleted", logFile.exists());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testWriteToFileKeepsPreviousGeneration() throws IOException {
+		final Counter counter = createCounterForLog();
+		final File file = getFile(counter, ".ser.gz");
+		final File backupFile = getFile(counter, ".ser.gz.bak");
+		final File tmpFile = getFile(counter, ".ser.gz.tmp");
+		counter.addRequest("test 1", 100, 50, false, 1000);
+		counter.writeToFile();
+		assertTrue("file", file.exists());
+		assertFalse("backup file", backupFile.exists());
+		counter.addRequest("test 1", 100, 50, false, 1000);
+		counter.writeToFile();
+		assertTrue("backup file", backupFile.exists());
+		assertFalse("tmp file", tmpFile.exists());
+		final Counter readCounter = createCounterForLog();
+		readCounter.readFromFile();
+		assertEquals("hits", 2, readCounter.getCounterRequestByName("test 1").getHits());
+
+		// fichier tronqué : c'est la génération précédente qui est lue
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(file.length() - 3);
+		} finally {
+			randomAccessFile.close();
+		}
+		final Counter readCounter2 = createCounterForLog();
+		readCounter2.readFromFile();
+		assertEquals("hits of previous generation", 1,
+				readCounter2.getCounterRequestByName("test 1").getHits());
+
+		// données modifiées : le CRC32 ne correspond plus
+		// (deux enregistrements pour que la génération précédente ne soit plus le fichier tronqué)
+		counter.writeToFile();
+		counter.writeToFile();
+		final RandomAccessFile randomAccessFile2 = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile2.seek(file.length() - 1);
+			final int lastByte = randomAccessFile2.read();
+			randomAccessFile2.seek(file.length() - 1);
+			randomAccessFile2.write(lastByte ^ 0xFF);
+		} finally {
+			randomAccessFile2.close();
+		}
+		final Counter readCounter3 = createCounterForLog();
+		readCounter3.readFromFile();
+		assertEquals("hits of previous generation", 2,
+				readCounter3.getCounterRequestByName("test 1").getHits());
+
+		// sans génération précédente, l'erreur de lecture est remontée
+		if (!backupFile.delete()) {
+			fail("delete");
+		}
+		try {
+			createCounterForLog().readFromFile();
+			fail("corrupted file");
+		} catch (final IOException e) {
+			assertTrue("corrupted file", e.getMessage().contains("checksum"));
+		}
+		if (!file.delete()) {
+			fail("delete");
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testLogReplayedOnPreviousGeneration() throws IOException {
+		Utils.setProperty(Parameter.STORAGE_FORMAT, "log");
+		try {
+			final Counter counter = createCounterForLog();
+			final File file = getFile(counter, ".ser.gz");
+			final File backupFile = getFile(counter, ".ser.gz.bak");
+			final File logFile = getFile(counter, ".log");
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.writeToFile();
+			counter.addRequest("test 1", 100, 50, false, 1000);
+			counter.writeToFile();
+			final byte[] log = Files.readAllBytes(logFile.toPath());
+			// une requête supprimée impose l'écriture du fichier complet et d'un nouveau journal
+			counter.addRequest("test 2", 100, 50, false, 1000);
+			counter.removeRequest("test 2");
+			counter.writeToFile();
+			assertTrue("backup file", backupFile.exists());
+			// arrêt brutal après le renommage du nouveau fichier mais avant l'écriture du nouveau journal
+			Files.write(logFile.toPath(), log);
+			final Counter readCounter = createCounterForLog();
+			readCounter.readFromFile();
+			assertEquals("hits", 2, readCounter.getCounterRequestByName("test 1").getHits());
+
+			// fichier illisible : la génération précédente est lue avec son journal
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.setLength(file.length() - 3);
+			} finally {
+				randomAccessFile.close();
+			}
+			final Counter readCounter2 = createCounterForLog();
+			readCounter2.readFromFile();
+			assertEquals("hits with log", 2,
+					readCounter2.getCounterRequestByName("test 1").getHits());
+
+			// fichier absent : idem
+			if (!file.delete()) {
+				fail("delete");
+			}
+			final Counter readCounter3 = createCounterForLog();
+			readCounter3.readFromFile();
+			assertEquals("hits with log", 2,
+					readCounter3.getCounterRequestByName("test 1").getHits());
+		} finally {
+			Utils.setProperty(Parameter.STORAGE_FORMAT, null);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testReadFromFileWithoutHeader() throws IOException {
+		final Counter counter = createCounterForLog();
+		final File file = getFile(counter, ".ser.gz");
+		getFile(counter, ".ser.gz.bak");
+		counter.addRequest("test 1", 100, 50, false, 1000);
+		// fichier écrit par une version précédente, directement en gzip
+		final ObjectOutputStream output = new ObjectOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file)));
+		try {
+			output.writeObject(counter);
+		} finally {
+			output.close();
+		}
+		final Counter readCounter = createCounterForLog();
+		readCounter.readFromFile();
+		assertEquals("hits", 1, readCounter.getCounterRequestByName("test 1").getHits());
+		if (!file.delete()) {
+			fail("delete");
+		}
+	}
+
+	private static Counter createCounterForLog() {
+		final Counter counter = new Counter("sql", null);
+		counter.setApplication("test counter storage");
+		return counter;
+	}
+
+	private static File getFile(Counter counter, String extension) {
+		final File file = new File(Parameters.getStorageDirectory(counter.getApplication()),
+				counter.getStorageName() + extension);
+		if (file.exists() && !file.delete()) {
+			fail("delete");
+		}
+		return file;
+	}
+
 	private void checkSetup(final File storageDir, final File obsoleteFile,
 			final File notObsoleteFile) throws IOException {
 		if (!storageDir.exists() && !storageDir.mkdirs()) {
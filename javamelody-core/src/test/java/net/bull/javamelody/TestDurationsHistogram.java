@@ -0,0 +1,140 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe DurationsHistogram.
+ * @author Emeric Vernat
+ */
+public class TestDurationsHistogram {
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test. */
+	@Test
+	public void testBuckets() {
+		for (long duration = 0; duration < 100000; duration++) {
+			final long highestValue = DurationsHistogram
+					.getHighestValueInBucket(DurationsHistogram.getBucketIndex(duration));
+			assertTrue("highest value " + duration, highestValue >= duration);
+			assertTrue("relative error " + duration, highestValue - duration <= duration / 8);
+		}
+		assertEquals("negative", 0, DurationsHistogram.getBucketIndex(-1));
+		assertTrue("very long duration", DurationsHistogram.getBucketIndex(Long.MAX_VALUE) >= 0);
+		assertEquals("label", "p99", DurationsHistogram.getPercentileLabel(99));
+		assertEquals("label", "p99.9", DurationsHistogram.getPercentileLabel(99.9));
+	}
+
+	/** Test. */
+	@Test
+	public void testPercentiles() {
+		final DurationsHistogram histogram = new DurationsHistogram();
+		assertEquals("empty", -1, histogram.getValueAtPercentile(50));
+		assertEquals("empty", -1, histogram.getHighestValue());
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals("totalCount", 1000, histogram.getTotalCount());
+		assertPercentile(500, histogram.getValueAtPercentile(50));
+		assertPercentile(990, histogram.getValueAtPercentile(99));
+		assertPercentile(1000, histogram.getHighestValue());
+
+		final DurationsHistogram copy = histogram.copy();
+		copy.add(histogram);
+		assertEquals("add", 2000, copy.getTotalCount());
+		copy.remove(histogram);
+		assertEquals("remove", 1000, copy.getTotalCount());
+		assertEquals("remove", histogram.getValueAtPercentile(90), copy.getValueAtPercentile(90));
+		copy.remove(histogram);
+		copy.remove(histogram);
+		assertEquals("remove more", 0, copy.getTotalCount());
+	}
+
+	private static void assertPercentile(long expected, long actual) {
+		assertTrue(expected + " " + actual, actual >= expected && actual <= expected * 9 / 8);
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e */
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		final CounterRequest request = new CounterRequest("test", Counter.HTTP_COUNTER_NAME);
+		request.addHit(10, 0, false, null, 100);
+		request.addHit(2000, 0, false, null, 100);
+		request.addHit(123456, 0, false, null, 100);
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(output);
+		out.writeObject(request);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(output.toByteArray()));
+		final CounterRequest read = (CounterRequest) in.readObject();
+		in.close();
+		assertEquals("totalCount", 3, read.getDurationsHistogram().getTotalCount());
+		for (final double percentile : DurationsHistogram.DISPLAYED_PERCENTILES) {
+			assertEquals("percentile " + percentile, request.getDurationsPercentile(percentile),
+					read.getDurationsPercentile(percentile));
+		}
+		// le centile n'est pas au-delà du maximum
+		assertEquals("p99", 123456, read.getP99());
+	}
+
+	/** Test. */
+	@Test
+	public void testCounterRequest() {
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		counter.setLockFreeRecording(true);
+		for (int i = 0; i < 100; i++) {
+			counter.addRequest("test", i < 90 ? 10 : 1000, 0, false, 100);
+		}
+		final CounterRequest request = counter.getCounterRequestByName("test");
+		assertEquals("p50", 10, request.getP50());
+		assertPercentile(1000, request.getP99());
+
+		// removeHits comme dans Collector : maximum de la période selon l'histogramme restant
+		final CounterRequest previousRequest = request.clone();
+		counter.setLockFreeRecording(false);
+		counter.addRequest("test", 20, 0, false, 100);
+		final CounterRequest lastPeriodRequest = counter.getCounterRequestByName("test");
+		lastPeriodRequest.removeHits(previousRequest);
+		assertEquals("hits", 1, lastPeriodRequest.getHits());
+		assertPercentile(20, lastPeriodRequest.getMaximum());
+		assertPercentile(20, lastPeriodRequest.getP999());
+
+		final CounterRequest global = new CounterRequest("global", Counter.HTTP_COUNTER_NAME);
+		global.addHits(previousRequest);
+		global.addHits(lastPeriodRequest);
+		assertEquals("addHits", 101, global.getDurationsHistogram().getTotalCount());
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe HeavyHitters.
+ * @author Emeric Vernat
+ */
+public class TestHeavyHitters {
+	private static final int MAX_REQUESTS_COUNT = 10;
+
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	private static Counter createCounter(String name) {
+		final Counter counter = new Counter(name, null);
+		counter.setMaxRequestsCount(MAX_REQUESTS_COUNT);
+		counter.setHeavyHittersEnabled(true);
+		counter.setDisplayed(true);
+		counter.setApplication("test heavy hitters");
+		return counter;
+	}
+
+	private static long getHitsSum(Counter counter) {
+		long result = 0;
+		for (final CounterRequest request : counter.getRequests()) {
+			result += request.getHits();
+		}
+		return result;
+	}
+
+	private static CounterRequest getRequest(Counter counter, String requestName) {
+		for (final CounterRequest request : counter.getRequests()) {
+			if (request.getName().equals(requestName)) {
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/** Test. */
+	@Test
+	public void testAddRequest() {
+		final Counter counter = createCounter("http");
+		assertTrue("isHeavyHittersEnabled", counter.isHeavyHittersEnabled());
+		for (int i = 0; i < 5; i++) {
+			counter.addRequest("heavy " + i, 100, 10, false, 1000);
+		}
+		for (int i = 0; i < 1000; i++) {
+			counter.addRequest("rare " + i, 10, 10, false, 1000);
+			counter.addRequest("heavy " + i % 5, 100, 10, false, 1000);
+		}
+		assertTrue("requests count", counter.getRequestsCount() <= MAX_REQUESTS_COUNT);
+		assertEquals("hits sum", 2005, getHitsSum(counter));
+		for (int i = 0; i < 5; i++) {
+			final CounterRequest heavyRequest = getRequest(counter, "heavy " + i);
+			assertNotNull("heavy hitter", heavyRequest);
+			assertEquals("heavy hitter hits", 201, heavyRequest.getHits());
+			assertEquals("heavy hitter error bound", 0, heavyRequest.getHitsErrorBound());
+		}
+		final CounterRequest otherRequest = getRequest(counter,
+				HeavyHitters.OTHER_REQUESTS_NAME);
+		assertNotNull("other requests", otherRequest);
+		assertTrue("other requests hits", otherRequest.getHits() > 900);
+		assertEquals("other requests mean", 10, otherRequest.getMean());
+		assertEquals("getCounterRequestByName not added", 0,
+				counter.getCounterRequestByName("unknown").getHits());
+		assertFalse("getCounterRequestByName not added",
+				getRequest(counter, "unknown") != null);
+	}
+
+	/** Test. */
+	@Test
+	public void testNewHeavyHitter() {
+		final Counter counter = createCounter("http");
+		for (int i = 0; i < 1000; i++) {
+			counter.addRequest("rare " + i, 10, 10, false, 1000);
+		}
+		// une requête devenue fréquente est conservée, avec un majorant de ses hits comptés avant
+		for (int i = 0; i < 100; i++) {
+			counter.addRequest("new heavy", 100, 10, false, 1000);
+		}
+		final CounterRequest newHeavyRequest = getRequest(counter, "new heavy");
+		assertNotNull("new heavy hitter", newHeavyRequest);
+		assertTrue("error bound",
+				newHeavyRequest.getHits() + newHeavyRequest.getHitsErrorBound() >= 100);
+		assertTrue("requests count", counter.getRequestsCount() <= MAX_REQUESTS_COUNT);
+		assertEquals("hits sum", 1100, getHitsSum(counter));
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testConcurrentAddRequest() throws InterruptedException {
+		final Counter counter = createCounter("http");
+		counter.setLockFreeRecording(true);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int threadIndex = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 2000; i++) {
+						counter.addRequest("rare " + threadIndex + ' ' + i, 10, 10, false, 1000);
+						counter.addRequest("heavy " + i % 3, 100, 10, false, 1000);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		// les requêtes non admises sont comptées sans verrou, mais aucun hit n'est perdu
+		assertEquals("hits sum", 16000, getHitsSum(counter));
+		assertTrue("requests count", counter.getRequestsCount() <= MAX_REQUESTS_COUNT);
+		for (int i = 0; i < 3; i++) {
+			assertNotNull("heavy hitter", getRequest(counter, "heavy " + i));
+		}
+	}
+
+	/** Test.
+	 * @throws Exception e */
+	@Test
+	public void testLateHitsOfEvictedRequest() throws Exception {
+		final Counter counter = createCounter("http");
+		counter.addRequest("evicted", 10, 10, false, 1000);
+		final Field requestsField = Counter.class.getDeclaredField("requests");
+		requestsField.setAccessible(true);
+		@SuppressWarnings("unchecked")
+		final Map<String, CounterRequest> requests = (Map<String, CounterRequest>) requestsField
+				.get(counter);
+		final CounterRequest evictedRequest = requests.get("evicted");
+		for (int i = 0; i < 1000; i++) {
+			counter.addRequest("heavy " + i % MAX_REQUESTS_COUNT, 100, 10, false, 1000);
+		}
+		assertNull("evicted", getRequest(counter, "evicted"));
+		// hit ajouté par un thread qui avait obtenu l'instance juste avant l'éviction
+		synchronized (evictedRequest) {
+			evictedRequest.addHit(10, 10, false, null, 1000);
+		}
+		assertEquals("hits sum", 1002, getHitsSum(counter));
+		assertEquals("hits sum", 1002, getHitsSum(counter));
+		assertTrue("clone", counter.clone().isHeavyHittersEnabled());
+	}
+
+	/** Test. */
+	@Test
+	public void testAddHits() {
+		final Counter counter = createCounter("http");
+		final Counter dayCounter = new PeriodCounterFactory(counter)
+				.createDayCounterAtDate(new Date());
+		assertTrue("period counter", dayCounter.isHeavyHittersEnabled());
+		final Counter notBoundedCounter = new Counter("http", null);
+		for (int i = 0; i < 100; i++) {
+			notBoundedCounter.addRequest("rare " + i, 10, 10, false, 1000);
+		}
+		notBoundedCounter.addRequest("heavy", 100, 10, false, 1000);
+		final CounterRequest heavyRequest = notBoundedCounter.getCounterRequestByName("heavy");
+		for (int i = 0; i < 50; i++) {
+			heavyRequest.addHits(notBoundedCounter.getCounterRequestByName("heavy"));
+		}
+		notBoundedCounter.addHits(heavyRequest);
+		dayCounter.addRequestsAndErrors(notBoundedCounter);
+		assertTrue("requests count", dayCounter.getRequestsCount() <= MAX_REQUESTS_COUNT);
+		assertEquals("hits sum", getHitsSum(notBoundedCounter), getHitsSum(dayCounter));
+		assertNotNull("heavy hitter", getRequest(dayCounter, "heavy"));
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollect() throws IOException {
+		final Counter counter = createCounter("heavyhitters");
+		JRobin.initBackendFactory(new Timer(getClass().getSimpleName(), true));
+		final Collector collector = new Collector("test heavy hitters",
+				Collections.singletonList(counter));
+		try {
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			for (int j = 0; j < 5; j++) {
+				for (int i = 0; i < 100; i++) {
+					counter.addRequest("rare " + j + ' ' + i, 10, 10, false, 1000);
+					counter.addRequest("heavy " + i % 3, 100, 10, false, 1000);
+				}
+				collector.collectWithoutErrors(
+						Collections.singletonList(new JavaInformations(null, false)));
+			}
+			// les hits des requêtes évincées ne sont pas comptés 2 fois dans le compteur du jour
+			final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+					counter.getName());
+			assertEquals("day counter hits sum", getHitsSum(counter), getHitsSum(dayCounter));
+			assertTrue("day counter requests count",
+					dayCounter.getRequestsCount() <= MAX_REQUESTS_COUNT);
+		} finally {
+			collector.clearCounter(counter.getName());
+			collector.stop();
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectDeletesJRobinsOfEvictedRequests() throws IOException {
+		final Counter counter = createCounter("heavyhittersjrobins");
+		JRobin.initBackendFactory(new Timer(getClass().getSimpleName(), true));
+		final Collector collector = new Collector("test heavy hitters",
+				Collections.singletonList(counter));
+		final File rrdFile = new File(Parameters.getStorageDirectory(collector.getApplication()),
+				new CounterRequest("soon evicted", counter.getName()).getId() + ".rrd");
+		try {
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			counter.addRequest("soon evicted", 10, 10, false, 1000);
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			for (int i = 0; i < 3; i++) {
+				counter.addRequest("soon evicted", 10, 10, false, 1000);
+			}
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			assertTrue("rrd file created", rrdFile.exists());
+			for (int i = 0; i < 1000; i++) {
+				counter.addRequest("heavy " + i % MAX_REQUESTS_COUNT, 100, 10, false, 1000);
+			}
+			collector.collectWithoutErrors(
+					Collections.singletonList(new JavaInformations(null, false)));
+			assertNull("evicted", getRequest(counter, "soon evicted"));
+			assertFalse("rrd file deleted", rrdFile.exists());
+		} finally {
+			collector.clearCounter(counter.getName());
+			collector.stop();
+		}
+	}
+}
@@ -189,6 +189,41 @@ public class TestHtmlReport {
 		assertNotEmptyAndClear(writer);
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testSlowestExecutions() throws IOException {
+		// paramètres bindés des exécutions les plus lentes (paramètre slow-sql-parameters-threshold)
+		sqlCounter.addRequest("select * from t where id = ?", 100, -1, false, -1);
+		sqlCounter.addSlowExecution("select * from t where id = ?", 100, "1=12");
+		collector.collectWithoutErrors(javaInformationsList);
+		final HtmlReport htmlReport = new HtmlReport(collector, null, javaInformationsList,
+				Period.TOUT, writer);
+		for (final CounterRequest request : sqlCounter.getRequests()) {
+			htmlReport.writeRequestAndGraphDetail(request.getId());
+		}
+		assertTrue("slowestExecutions", writer.toString().contains("1=12"));
+		assertNotEmptyAndClear(writer);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testSuspectedNPlusOnes() throws IOException {
+		// requête sql exécutée trop de fois par requête http (paramètre n-plus-one-threshold)
+		counter.setNPlusOneThreshold(2);
+		counter.bindContext("test n+1", "test n+1", null, -1);
+		for (int i = 0; i < 5; i++) {
+			sqlCounter.addRequest("select * from item where id = ?", 1, -1, false, -1);
+		}
+		counter.addRequest("test n+1", 10, 5, false, 1000);
+		final HtmlReport htmlReport = new HtmlReport(collector, null, javaInformationsList,
+				Period.TOUT, writer);
+		htmlReport.toHtml(null, null);
+		assertTrue("suspectedNPlusOnes", writer.toString().contains("nPlusOnehttp"));
+		assertNotEmptyAndClear(writer);
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
@@ -198,6 +233,9 @@ public class TestHtmlReport {
 		final String requestName = "test 1";
 		counter.bindContext(requestName, "complete test 1", null, -1);
 		sqlCounter.addRequest("sql1", 10, 10, false, -1);
+		// lignes lues dans un resultSet (paramètre result-set-monitoring)
+		sqlCounter.addFetchedRows("sql1", 100, 1000000);
+		sqlCounter.addBatch("sql1", 50, 10);
 		counter.addRequest(requestName, 0, 0, false, 1000);
 		counter.addRequest("test2", 1000, 500, false, 1000);
 		counter.addRequest("test3", 10000, 500, true, 10000);
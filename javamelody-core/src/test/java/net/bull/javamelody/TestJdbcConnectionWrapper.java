@@ -0,0 +1,219 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire des wrappers jdbc sans réflexion
+ * ({@link JdbcConnectionWrapper}, {@link JdbcStatementWrapper}...).
+ * @author Emeric Vernat
+ */
+public class TestJdbcConnectionWrapper {
+	private JdbcWrapper jdbcWrapper;
+
+	/** Test. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		jdbcWrapper = JdbcWrapper.SINGLETON;
+		jdbcWrapper.getSqlCounter().setDisplayed(true);
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testConnectionWrapper() throws SQLException {
+		// nécessite la dépendance vers la base de données H2
+		final Connection h2Connection = DriverManager
+				.getConnection(TestJdbcWrapper.H2_DATABASE_URL);
+		final int usedConnectionCount = JdbcWrapper.getUsedConnectionCount();
+		final Connection connection = jdbcWrapper.createConnectionProxy(h2Connection);
+		try {
+			assertTrue("wrapper", connection instanceof JdbcConnectionWrapper);
+			assertFalse("proxy", Proxy.isProxyClass(connection.getClass()));
+			assertEquals("getUsedConnectionCount", usedConnectionCount + 1,
+					JdbcWrapper.getUsedConnectionCount());
+			assertSame("wrapper of wrapper", connection,
+					jdbcWrapper.createConnectionProxy(connection));
+			assertEquals("equals", connection, connection);
+			assertEquals("hashCode", h2Connection.hashCode(), connection.hashCode());
+
+			final Statement statement = connection.createStatement();
+			final PreparedStatement preparedStatement = connection.prepareStatement("select 1");
+			final CallableStatement callableStatement = connection.prepareCall("select 2");
+			try {
+				assertTrue("statement", statement instanceof JdbcStatementWrapper);
+				assertTrue("preparedStatement",
+						preparedStatement instanceof JdbcPreparedStatementWrapper);
+				assertTrue("callableStatement",
+						callableStatement instanceof JdbcCallableStatementWrapper);
+				final long hits = getHits("select 1");
+				statement.executeQuery("select 1").close();
+				final ResultSet resultSet = preparedStatement.executeQuery();
+				try {
+					assertTrue("next", resultSet.next());
+				} finally {
+					resultSet.close();
+				}
+				assertEquals("hits", hits + 2, getHits("select 1"));
+				final long callHits = getHits("select 2");
+				callableStatement.execute();
+				assertEquals("callHits", callHits + 1, getHits("select 2"));
+				try {
+					statement.execute("invalid sql");
+				} catch (final SQLException e) {
+					assertNotNull("ok", e);
+				}
+				assertTrue("systemError",
+						jdbcWrapper.getSqlCounter().getCounterRequestByName("invalid sql")
+								.getSystemErrorPercentage() > 0);
+			} finally {
+				statement.close();
+				preparedStatement.close();
+				callableStatement.close();
+			}
+		} finally {
+			connection.close();
+			connection.close();
+		}
+		assertEquals("getUsedConnectionCount after close", usedConnectionCount,
+				JdbcWrapper.getUsedConnectionCount());
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testStatementWrapper() throws SQLException {
+		final Statement statement = jdbcWrapper.createStatementProxy(null,
+				createStatement(Statement.class));
+		assertTrue("wrapper", statement instanceof JdbcStatementWrapper);
+		final int activeConnectionCount = JdbcWrapper.getActiveConnectionCount();
+		final long hits = getHits("insert into test values (1)");
+		statement.addBatch("insert into test values (1)");
+		statement.executeBatch();
+		assertEquals("executeBatch", hits + 1, getHits("insert into test values (1)"));
+		// taille du batch : nombre d'appels à addBatch depuis la précédente exécution
+		final PreparedStatement batchStatement = (PreparedStatement) jdbcWrapper
+				.createStatementProxy("insert into test values (?)",
+						createStatement(PreparedStatement.class));
+		batchStatement.addBatch();
+		batchStatement.clearBatch();
+		for (int i = 0; i < 20; i++) {
+			batchStatement.addBatch();
+		}
+		batchStatement.executeBatch();
+		batchStatement.executeBatch();
+		final CounterRequest batchRequest = jdbcWrapper.getSqlCounter()
+				.getCounterRequestByName("insert into test values (?)");
+		assertEquals("getBatchSizeMean", 20, batchRequest.getBatchSizeMean());
+		assertEquals("getBatchSizesDistribution", 1,
+				batchRequest.getBatchSizesDistribution()[2]);
+		statement.executeUpdate("insert into test values (1)");
+		assertEquals("executeUpdate", hits + 2, getHits("insert into test values (1)"));
+		assertEquals("getActiveConnectionCount", activeConnectionCount,
+				JdbcWrapper.getActiveConnectionCount());
+
+		final long explainHits = getHits("explain select 1");
+		statement.execute("explain select 1");
+		assertEquals("explain", explainHits, getHits("explain select 1"));
+
+		final PreparedStatement preparedStatement = (PreparedStatement) jdbcWrapper
+				.createStatementProxy(null, createStatement(PreparedStatement.class));
+		final long nullHits = getHits("null");
+		preparedStatement.executeUpdate();
+		assertEquals("null request", nullHits + 1, getHits("null"));
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testProxyForVendorInterfaces() throws SQLException {
+		final Statement vendorStatement = createStatement(Statement.class, Closeable.class);
+		final Statement statement = jdbcWrapper.createStatementProxy(null, vendorStatement);
+		assertTrue("proxy", Proxy.isProxyClass(statement.getClass()));
+		assertTrue("vendor interface", statement instanceof Closeable);
+		assertFalse("hasOnlyJdbcInterfaces",
+				JdbcWrapperHelper.hasOnlyJdbcInterfaces(vendorStatement.getClass()));
+		// taille du batch avec le proxy
+		for (int i = 0; i < 3; i++) {
+			statement.addBatch("insert into vendor values (1)");
+		}
+		statement.executeBatch();
+		assertEquals("getBatchSizeMean", 3, jdbcWrapper.getSqlCounter()
+				.getCounterRequestByName("insert into vendor values (1)").getBatchSizeMean());
+		assertTrue("hasOnlyJdbcInterfaces", JdbcWrapperHelper
+				.hasOnlyJdbcInterfaces(createStatement(CallableStatement.class).getClass()));
+	}
+
+	/** Test. */
+	@Test
+	public void testIsSystemError() {
+		assertTrue("isSystemError", JdbcWrapper.isSystemError(new SQLException("test")));
+		assertFalse("isSystemError",
+				JdbcWrapper.isSystemError(new SQLException("test", "state", 20001)));
+		assertTrue("isSystemError",
+				JdbcWrapper.isSystemError(new SQLException("test", "state", 30000)));
+	}
+
+	private long getHits(String requestName) {
+		return jdbcWrapper.getSqlCounter().getCounterRequestByName(requestName).getHits();
+	}
+
+	private static <T extends Statement> T createStatement(Class<T> statementClass,
+			Class<?>... otherInterfaces) {
+		final Class<?>[] interfaces = new Class<?>[otherInterfaces.length + 1];
+		interfaces[0] = statementClass;
+		System.arraycopy(otherInterfaces, 0, interfaces, 1, otherInterfaces.length);
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final Class<?> returnType = method.getReturnType();
+				if (returnType == Boolean.TYPE) {
+					return Boolean.FALSE;
+				} else if (returnType == Integer.TYPE) {
+					return 0;
+				} else if (returnType == int[].class) {
+					return new int[0];
+				}
+				return null;
+			}
+		};
+		return statementClass.cast(Proxy.newProxyInstance(statementClass.getClassLoader(),
+				interfaces, invocationHandler));
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe JdbcDataSourceStatistics.
+ * @author Emeric Vernat
+ */
+public class TestJdbcDataSourceStatistics {
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		JdbcDataSourceStatistics.clearAll();
+	}
+
+	/** Finalisation. */
+	@After
+	public void tearDown() {
+		JdbcDataSourceStatistics.clearAll();
+	}
+
+	/** Test. */
+	@Test
+	public void testGetInstance() {
+		final JdbcDataSourceStatistics statistics = JdbcDataSourceStatistics.getInstance("test");
+		assertNotNull("getInstance", statistics);
+		assertSame("same instance", statistics, JdbcDataSourceStatistics.getInstance("test"));
+		for (int i = 1; i < JdbcDataSourceStatistics.MAX_DATA_SOURCES; i++) {
+			assertNotNull("getInstance", JdbcDataSourceStatistics.getInstance("test" + i));
+		}
+		assertNull("max data sources", JdbcDataSourceStatistics.getInstance("other"));
+		assertSame("existing instance", statistics, JdbcDataSourceStatistics.getInstance("test"));
+		assertEquals("getAllStatistics", JdbcDataSourceStatistics.MAX_DATA_SOURCES,
+				JdbcDataSourceStatistics.getAllStatistics().size());
+	}
+
+	/** Test. */
+	@Test
+	public void testStatistics() {
+		final JdbcDataSourceStatistics statistics = JdbcDataSourceStatistics.getInstance("test");
+		statistics.connectionUsed();
+		statistics.executionStarted();
+		assertEquals("getUsedConnectionCount", 1, statistics.getUsedConnectionCount());
+		assertEquals("getActiveConnectionCount", 1, statistics.getActiveConnectionCount());
+		statistics.executionEnded(System.currentTimeMillis() - 100, true);
+		statistics.executionStarted();
+		// requête non enregistrée dans le counter sql
+		statistics.executionEnded(-1, false);
+		assertEquals("getActiveConnectionCount", 0, statistics.getActiveConnectionCount());
+		assertEquals("getSqlHits", 1, statistics.getSqlHits());
+		assertEquals("getSqlSystemErrors", 1, statistics.getSqlSystemErrors());
+		if (statistics.getSqlDurationsSum() < 100) {
+			assertEquals("getSqlDurationsSum", 100, statistics.getSqlDurationsSum());
+		}
+
+		final JdbcDataSourceStatistics copy = statistics.copy();
+		copy.add(statistics);
+		assertEquals("add", 2, copy.getUsedConnectionCount());
+		assertEquals("add", 2, copy.getSqlHits());
+		assertEquals("copy", 1, statistics.getSqlHits());
+		statistics.connectionReleased();
+		assertEquals("connectionReleased", 0, statistics.getUsedConnectionCount());
+		assertNotNull("toString", statistics.toString());
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testDataSourceProxy() throws SQLException {
+		final JdbcWrapper jdbcWrapper = JdbcWrapper.SINGLETON;
+		final boolean sqlCounterDisplayed = jdbcWrapper.getSqlCounter().isDisplayed();
+		jdbcWrapper.getSqlCounter().setDisplayed(true);
+		final BasicDataSource tomcatDataSource = new BasicDataSource();
+		tomcatDataSource.setUrl(TestJdbcWrapper.H2_DATABASE_URL);
+		try {
+			final DataSource dataSource = jdbcWrapper.createDataSourceProxy("testStatistics",
+					tomcatDataSource);
+			final JdbcDataSourceStatistics statistics = JdbcDataSourceStatistics
+					.getInstance("testStatistics");
+			final Connection connection = dataSource.getConnection();
+			try {
+				assertEquals("getUsedConnectionCount", 1, statistics.getUsedConnectionCount());
+				final Statement statement = connection.createStatement();
+				try {
+					statement.execute("select 1");
+				} finally {
+					statement.close();
+				}
+			} finally {
+				connection.close();
+			}
+			assertEquals("getUsedConnectionCount", 0, statistics.getUsedConnectionCount());
+			assertEquals("getActiveConnectionCount", 0, statistics.getActiveConnectionCount());
+			assertEquals("getSqlHits", 1, statistics.getSqlHits());
+
+			// sans nom, la dataSource n'est comptée que dans les statistiques globales
+			jdbcWrapper.createDataSourceProxy(tomcatDataSource).getConnection().close();
+			assertEquals("getAllStatistics", 1,
+					JdbcDataSourceStatistics.getAllStatistics().size());
+		} finally {
+			tomcatDataSource.close();
+			jdbcWrapper.getSqlCounter().setDisplayed(sqlCounterDisplayed);
+		}
+	}
+}
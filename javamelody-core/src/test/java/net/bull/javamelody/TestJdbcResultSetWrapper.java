@@ -0,0 +1,240 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe {@link JdbcResultSetWrapper}.
+ * @author Emeric Vernat
+ */
+public class TestJdbcResultSetWrapper {
+	private static final String QUERY = "select x from system_range(1, 10)";
+
+	private JdbcWrapper jdbcWrapper;
+
+	/** Test. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		jdbcWrapper = JdbcWrapper.SINGLETON;
+		jdbcWrapper.getSqlCounter().setDisplayed(true);
+		jdbcWrapper.getSqlCounter().clear();
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testResultSetMonitoring() throws SQLException {
+		Utils.setProperty(Parameter.RESULT_SET_MONITORING, "true");
+		// nécessite la dépendance vers la base de données H2
+		final Connection connection = jdbcWrapper
+				.createConnectionProxy(DriverManager.getConnection(TestJdbcWrapper.H2_DATABASE_URL));
+		try {
+			final Statement statement = connection.createStatement();
+			try {
+				final ResultSet resultSet = statement.executeQuery(QUERY);
+				int rows = 0;
+				while (resultSet.next()) {
+					assertEquals("getInt", rows + 1, resultSet.getInt(1));
+					rows++;
+				}
+				resultSet.close();
+				assertEquals("rows", 10, rows);
+			} finally {
+				statement.close();
+			}
+			CounterRequest request = getCounterRequest(QUERY);
+			assertTrue("hasFetchedRows", request.hasFetchedRows());
+			assertEquals("getFetchedRowsMean", 10, request.getFetchedRowsMean());
+			assertTrue("getFetchDurationsMean", request.getFetchDurationsMean() >= 0);
+
+			// resultSet lu partiellement puis fermé
+			final PreparedStatement preparedStatement = connection.prepareStatement(QUERY);
+			try {
+				final ResultSet resultSet = preparedStatement.executeQuery();
+				assertTrue("next", resultSet.next());
+				assertTrue("next", resultSet.next());
+				resultSet.close();
+				resultSet.close();
+			} finally {
+				preparedStatement.close();
+			}
+			request = getCounterRequest(QUERY);
+			assertEquals("getFetchedRowsMean", 6, request.getFetchedRowsMean());
+
+			// resultSet d'un execute(String sql)
+			final Statement statement2 = connection.createStatement();
+			try {
+				assertTrue("execute", statement2.execute(QUERY));
+				final ResultSet resultSet = statement2.getResultSet();
+				while (resultSet.next()) {
+					continue;
+				}
+				resultSet.close();
+			} finally {
+				statement2.close();
+			}
+			request = getCounterRequest(QUERY);
+			assertEquals("getHits", 3, request.getHits());
+			assertEquals("getFetchedRowsMean", 22 / 3, request.getFetchedRowsMean());
+		} finally {
+			connection.close();
+		}
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testResultSetMonitoringDisabled() throws SQLException {
+		final ResultSet resultSet = createResultSet();
+		assertSame("disabled", resultSet,
+				jdbcWrapper.createResultSetProxy("select 1", resultSet));
+		Utils.setProperty(Parameter.RESULT_SET_MONITORING, "true");
+		assertSame("null", null, jdbcWrapper.createResultSetProxy("select 1", null));
+		assertSame("explain", resultSet,
+				jdbcWrapper.createResultSetProxy("explain select 1", resultSet));
+		assertTrue("wrapper", jdbcWrapper.createResultSetProxy("select 1",
+				resultSet) instanceof JdbcResultSetWrapper);
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testProxyForVendorInterfaces() throws SQLException {
+		Utils.setProperty(Parameter.RESULT_SET_MONITORING, "true");
+		final ResultSet vendorResultSet = createResultSet(Closeable.class);
+		final ResultSet resultSet = jdbcWrapper.createResultSetProxy("select 3",
+				vendorResultSet);
+		assertTrue("proxy", Proxy.isProxyClass(resultSet.getClass()));
+		assertTrue("vendor interface", resultSet instanceof Closeable);
+		assertFalse("next", resultSet.next());
+		assertEquals("getInt", 0, resultSet.getInt(1));
+		resultSet.close();
+		// aucune ligne lue, mais le temps de lecture de next() est compté
+		assertTrue("hasFetchedRows", getCounterRequest("select 3").hasFetchedRows());
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testRecordFetchOnStatementOrConnectionClose() throws SQLException {
+		Utils.setProperty(Parameter.RESULT_SET_MONITORING, "true");
+		final Connection connection = jdbcWrapper
+				.createConnectionProxy(DriverManager.getConnection(TestJdbcWrapper.H2_DATABASE_URL));
+		try {
+			// resultSet lu partiellement et non fermé, compté à la fermeture du statement
+			final Statement statement = connection.createStatement();
+			try {
+				final ResultSet resultSet = statement.executeQuery(QUERY);
+				assertTrue("next", resultSet.next());
+				assertTrue("next", resultSet.next());
+				assertTrue("next", resultSet.next());
+				assertFalse("not recorded", getCounterRequest(QUERY).hasFetchedRows());
+			} finally {
+				statement.close();
+			}
+			assertEquals("getFetchedRowsMean", 3, getCounterRequest(QUERY).getFetchedRowsMean());
+
+			// resultSet et statement non fermés, comptés à la fermeture de la connexion
+			final PreparedStatement preparedStatement = connection.prepareStatement(QUERY);
+			final ResultSet resultSet = preparedStatement.executeQuery();
+			assertTrue("next", resultSet.next());
+		} finally {
+			connection.close();
+		}
+		assertEquals("getFetchedRowsMean", (3 + 1) / 2,
+				getCounterRequest(QUERY).getFetchedRowsMean());
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testRecordFetchOnStatementProxyClose() throws SQLException {
+		Utils.setProperty(Parameter.RESULT_SET_MONITORING, "true");
+		// resultSet dont next() retourne toujours true
+		final ResultSet vendorResultSet = (ResultSet) Proxy.newProxyInstance(
+				ResultSet.class.getClassLoader(),
+				new Class<?>[] { ResultSet.class, Closeable.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return "next".equals(method.getName()) ? Boolean.TRUE : null;
+					}
+				});
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("executeQuery".equals(method.getName())) {
+					return vendorResultSet;
+				}
+				return null;
+			}
+		};
+		final Statement vendorStatement = (Statement) Proxy.newProxyInstance(
+				Statement.class.getClassLoader(),
+				new Class<?>[] { Statement.class, Closeable.class }, invocationHandler);
+		final Statement statement = jdbcWrapper.createStatementProxy(null, vendorStatement);
+		assertTrue("proxy", Proxy.isProxyClass(statement.getClass()));
+		final ResultSet resultSet = statement.executeQuery("select 4");
+		assertTrue("next", resultSet.next());
+		assertFalse("not recorded", getCounterRequest("select 4").hasFetchedRows());
+		statement.close();
+		assertEquals("getFetchedRowsMean", 1, getCounterRequest("select 4").getFetchedRowsMean());
+	}
+
+	private CounterRequest getCounterRequest(String requestName) {
+		return jdbcWrapper.getSqlCounter().getCounterRequestByName(requestName);
+	}
+
+	private static ResultSet createResultSet(Class<?>... otherInterfaces) {
+		final Class<?>[] interfaces = new Class<?>[otherInterfaces.length + 1];
+		interfaces[0] = ResultSet.class;
+		System.arraycopy(otherInterfaces, 0, interfaces, 1, otherInterfaces.length);
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final Class<?> returnType = method.getReturnType();
+				if (returnType == Boolean.TYPE) {
+					return Boolean.FALSE;
+				} else if (returnType == Integer.TYPE) {
+					return 0;
+				}
+				return null;
+			}
+		};
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), interfaces,
+				invocationHandler);
+	}
+}
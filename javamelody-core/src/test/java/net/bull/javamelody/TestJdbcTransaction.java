@@ -0,0 +1,158 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe JdbcTransaction.
+ * @author Emeric Vernat
+ */
+public class TestJdbcTransaction {
+	private static final String QUERY = "select 1";
+	private static final String QUERY2 = "select 2";
+
+	private JdbcWrapper jdbcWrapper;
+	private Counter transactionCounter;
+
+	/** Test. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		jdbcWrapper = JdbcWrapper.SINGLETON;
+		jdbcWrapper.getSqlCounter().setDisplayed(true);
+		transactionCounter = jdbcWrapper.getTransactionCounter();
+		transactionCounter.clear();
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testTransactionWithWrapper() throws SQLException {
+		// nécessite la dépendance vers la base de données H2
+		final Connection connection = jdbcWrapper
+				.createConnectionProxy(DriverManager.getConnection(TestJdbcWrapper.H2_DATABASE_URL));
+		assertTrue("wrapper", connection instanceof JdbcConnectionWrapper);
+		checkTransactions(connection);
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testTransactionWithProxy() throws SQLException {
+		// une interface non jdbc oblige à utiliser un proxy plutôt que le wrapper
+		final Connection h2Connection = DriverManager
+				.getConnection(TestJdbcWrapper.H2_DATABASE_URL);
+		final Connection vendorConnection = (Connection) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { Connection.class, Closeable.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args)
+							throws Throwable {
+						try {
+							return method.invoke(h2Connection, args);
+						} catch (final InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		final Connection connection = jdbcWrapper.createConnectionProxy(vendorConnection);
+		assertTrue("proxy", Proxy.isProxyClass(connection.getClass())
+				&& !(connection instanceof JdbcConnectionWrapper));
+		checkTransactions(connection);
+	}
+
+	private void checkTransactions(Connection connection) throws SQLException {
+		final int openTransactionCount = JdbcTransaction.getOpenTransactionCount();
+		try {
+			// en mode auto-commit, pas de transaction enregistrée
+			execute(connection, QUERY);
+			assertEquals("auto-commit", 0,
+					transactionCounter.getCounterRequestByName(QUERY).getHits());
+
+			connection.setAutoCommit(false);
+			execute(connection, QUERY);
+			assertEquals("getOpenTransactionCount", openTransactionCount + 1,
+					JdbcTransaction.getOpenTransactionCount());
+			assertTrue("getLongestOpenTransactionDuration",
+					JdbcTransaction.getLongestOpenTransactionDuration() >= 0);
+			execute(connection, QUERY2);
+			connection.commit();
+			assertEquals("getOpenTransactionCount", openTransactionCount,
+					JdbcTransaction.getOpenTransactionCount());
+			CounterRequest request = transactionCounter.getCounterRequestByName(QUERY);
+			assertEquals("hits", 1, request.getHits());
+			assertEquals("sql hits per transaction", 2, request.getChildHitsMean());
+			assertEquals("systemErrors", 0, request.getSystemErrorPercentage(), 0.01);
+			assertTrue("isUsed", transactionCounter.isUsed());
+
+			// commit sans requête : pas de transaction enregistrée
+			connection.commit();
+			execute(connection, QUERY);
+			connection.rollback();
+			request = transactionCounter.getCounterRequestByName(QUERY);
+			assertEquals("hits", 2, request.getHits());
+			assertEquals("systemErrors after rollback", 50, request.getSystemErrorPercentage(), 0.01);
+
+			// setAutoCommit(true) valide la transaction en cours
+			execute(connection, QUERY2);
+			connection.setAutoCommit(true);
+			assertEquals("setAutoCommit", 1,
+					transactionCounter.getCounterRequestByName(QUERY2).getHits());
+			execute(connection, QUERY2);
+			assertEquals("auto-commit", 1,
+					transactionCounter.getCounterRequestByName(QUERY2).getHits());
+
+			connection.setAutoCommit(false);
+			execute(connection, QUERY2);
+		} finally {
+			// fermeture sans commit
+			connection.close();
+		}
+		final CounterRequest request = transactionCounter.getCounterRequestByName(QUERY2);
+		assertEquals("close", 2, request.getHits());
+		assertEquals("systemErrors after close", 50, request.getSystemErrorPercentage(), 0.01);
+		assertEquals("getOpenTransactionCount", openTransactionCount,
+				JdbcTransaction.getOpenTransactionCount());
+		assertFalse("isOpen", new JdbcTransaction(transactionCounter, connection).isOpen());
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -226,6 +226,46 @@ public class TestJdbcWrapper {
 		jdbcWrapper.createDataSourceProxy(dataSource2);
 	}
 
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testPoolCounter() throws SQLException {
+		final Counter poolCounter = jdbcWrapper.getPoolCounter();
+		final BasicDataSource tomcatDataSource = new BasicDataSource();
+		tomcatDataSource.setUrl(H2_DATABASE_URL);
+		tomcatDataSource.setMaxActive(1);
+		tomcatDataSource.setMaxWait(100);
+		final DataSource dataSource = jdbcWrapper.createDataSourceProxy("testPool",
+				tomcatDataSource);
+		assertTrue("isUsed", poolCounter.isUsed());
+		assertTrue("isDisplayed", poolCounter.isDisplayed());
+		final long hits = poolCounter.getCounterRequestByName("testPool").getHits();
+		// attente de connexion dans une requête http, comme une requête sql
+		final Counter httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, null,
+				jdbcWrapper.getSqlCounter());
+		httpCounter.bindContext("test pool", "test pool", null, -1);
+		final Connection connection = dataSource.getConnection();
+		try {
+			assertEquals("getPoolWaiterCount", 0, JdbcWrapper.getPoolWaiterCount());
+			try {
+				// le pool est épuisé, donc l'attente se termine par une erreur après maxWait
+				dataSource.getConnection().close();
+			} catch (final SQLException e) {
+				assertNotNull("ok", e);
+			}
+		} finally {
+			connection.close();
+		}
+		httpCounter.addRequest("test pool", 100, 0, false, 1000);
+		final CounterRequest poolRequest = poolCounter.getCounterRequestByName("testPool");
+		assertEquals("hits", hits + 2, poolRequest.getHits());
+		assertTrue("systemErrors", poolRequest.getSystemErrorPercentage() > 0);
+		assertTrue("maximum", poolRequest.getMaximum() >= 50);
+		assertTrue("containsChildRequest", httpCounter.getCounterRequestByName("test pool")
+				.containsChildRequest(poolRequest.getId()));
+		tomcatDataSource.close();
+	}
+
 	private static void cleanUp() throws NoSuchFieldException, IllegalAccessException {
 		final Field tomcatField = JdbcWrapperHelper.class
 				.getDeclaredField("TOMCAT_BASIC_DATASOURCES_PROPERTIES");
@@ -171,6 +171,41 @@ public class TestParameters {
 		assertNull("getParameter", Parameters.getParameter(Parameter.DATASOURCES));
 	}
 
+	/** Test. */
+	@Test
+	public void testGetParameterFromSnapshot() {
+		final String disabledName = Parameters.PARAMETER_SYSTEM_PREFIX
+				+ Parameter.DISABLED.getCode();
+		assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+		assertNull("getParameterFromSnapshot",
+				Parameters.getParameterFromSnapshot(Parameter.DISABLED));
+		System.setProperty(disabledName, "true");
+		try {
+			// l'instantané n'est recalculé qu'à la notification d'un changement de paramètres
+			assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+			Parameters.parametersChanged();
+			assertTrue("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+			assertEquals("getParameterFromSnapshot", "true",
+					Parameters.getParameterFromSnapshot(Parameter.DISABLED));
+		} finally {
+			Utils.setProperty(Parameter.DISABLED, null);
+		}
+		assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+
+		// paramètre défini dans un attribut du contexte de servlet (issue 463)
+		final ServletContext context = createNiceMock(ServletContext.class);
+		expect(context.getAttribute(disabledName)).andReturn("true").anyTimes();
+		replay(context);
+		Parameters.initialize(context);
+		try {
+			assertTrue("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+		} finally {
+			Parameters.initialize((ServletContext) null);
+		}
+		verify(context);
+		assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+	}
+
 	/** Test. */
 	@Test
 	public void testParameterValueOfIgnoreCase() {
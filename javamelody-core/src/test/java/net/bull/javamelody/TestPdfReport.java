@@ -128,6 +128,9 @@ public class TestPdfReport {
 		counter.bindContext("test 1", "complete test 1", null, -1);
 		sqlCounter.bindContext("sql1", "sql 1", null, -1);
 		sqlCounter.addRequest("sql1", 100, 100, false, -1);
+		// lignes lues dans un resultSet (paramètre result-set-monitoring)
+		sqlCounter.addFetchedRows("sql1", 100, 1000000);
+		sqlCounter.addBatch("sql1", 50, 10);
 		counter.addRequest("test 1", 0, 0, false, 1000);
 		counter.addRequest("test2", 1000, 500, false, 1000);
 		counter.addRequest(buildLongRequestName(), 10000, 5000, true, 10000);
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe RequestNameNormalizer.
+ * @author Emeric Vernat
+ */
+public class TestRequestNameNormalizer {
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test. */
+	@Test
+	public void testNormalizeWithoutCache() {
+		final String unchanged = "/app/user/edit GET";
+		assertSame("unchanged", unchanged, RequestNameNormalizer.normalizeWithoutCache(unchanged));
+		assertEquals("digits", "/app/user/$/edit GET",
+				RequestNameNormalizer.normalizeWithoutCache("/app/user/12345/edit GET"));
+		assertEquals("identifier with digits", "/app/v2/table1",
+				RequestNameNormalizer.normalizeWithoutCache("/app/v2/table1"));
+		assertEquals("uuid", "/app/doc/$ GET", RequestNameNormalizer
+				.normalizeWithoutCache("/app/doc/123e4567-e89b-12d3-a456-426655440000 GET"));
+		assertEquals("hex id", "/app/doc/$",
+				RequestNameNormalizer.normalizeWithoutCache("/app/doc/507f1f77bcf86cd799439011"));
+		assertEquals("short hex word", "/app/cafe/face1",
+				RequestNameNormalizer.normalizeWithoutCache("/app/cafe/face1"));
+		assertEquals("sql literals", "select * from t where a = $ and b = $ and c = $",
+				RequestNameNormalizer.normalizeWithoutCache(
+						"select * from t where a = 'it''s' and b = 12 and c = 35"));
+		assertEquals("unterminated literal", "select 'abc",
+				RequestNameNormalizer.normalizeWithoutCache("select 'abc"));
+		assertEquals("empty", "", RequestNameNormalizer.normalizeWithoutCache(""));
+	}
+
+	/** Test. */
+	@Test
+	public void testNormalize() {
+		final RequestNameNormalizer normalizer = new RequestNameNormalizer(
+				Pattern.compile("edit|view"));
+		final String requestName = "/app/user/12345/edit GET";
+		final String result = normalizer.normalize(requestName);
+		assertEquals("normalize with pattern", "/app/user/$/$ GET", result);
+		assertSame("cached", result, normalizer.normalize(requestName));
+		for (int i = 0; i < RequestNameNormalizer.MAX_CACHED_NAMES + 10; i++) {
+			normalizer.normalize("request " + i);
+		}
+		assertTrue("bounded cache",
+				normalizer.getCachedNamesCount() <= RequestNameNormalizer.MAX_CACHED_NAMES);
+
+		final Counter counter = new Counter("http", null);
+		counter.setRequestNameNormalizer(new RequestNameNormalizer(null));
+		counter.addRequest("/app/user/1 GET", 10, 0, false, 100);
+		counter.addRequest("/app/user/2 GET", 10, 0, false, 100);
+		assertEquals("aggregated requests", 1, counter.getRequestsCount());
+		assertEquals("hits", 2, counter.getCounterRequestByName("/app/user/3 GET").getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testCacheEviction() {
+		final RequestNameNormalizer normalizer = new RequestNameNormalizer(null);
+		final String requestName = "/app/user/12345/edit GET";
+		final String result = normalizer.normalize(requestName);
+		for (int i = 0; i < 3 * RequestNameNormalizer.MAX_CACHED_NAMES; i++) {
+			// description utilisée régulièrement, donc conservée dans le cache
+			assertSame("cached", result, normalizer.normalize(requestName));
+			normalizer.normalize("request " + i);
+		}
+		// le cache n'est pas vidé entièrement lorsqu'il est plein
+		assertTrue("not cleared", normalizer.getCachedNamesCount() >= 3
+				* RequestNameNormalizer.MAX_CACHED_NAMES / 4);
+		assertTrue("bounded cache",
+				normalizer.getCachedNamesCount() <= RequestNameNormalizer.MAX_CACHED_NAMES);
+	}
+
+	/** Test. */
+	@Test
+	public void testCheckTransformPattern() {
+		RequestNameNormalizer.checkTransformPattern("[0-9]+");
+		RequestNameNormalizer.checkTransformPattern("(edit|view)");
+		RequestNameNormalizer.checkTransformPattern("/(item|user)/[0-9]+.*");
+		RequestNameNormalizer.checkTransformPattern("(ab)?[(]+");
+		RequestNameNormalizer.checkTransformPattern("(ab){2}\\)+\\Q(a)*\\E");
+		for (final String regex : new String[] { "(A|B)*", "(a+)+", "(?:ab){2,}",
+				"x(ab){1,1000}" }) {
+			try {
+				RequestNameNormalizer.checkTransformPattern(regex);
+				fail(regex);
+			} catch (final IllegalArgumentException e) {
+				assertTrue("message", e.getMessage().contains(regex));
+			}
+			// seulement un avertissement à la création, comme sans normalisation
+			assertNotNull("accepted", new RequestNameNormalizer(Pattern.compile(regex)));
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testStackOverflowErrorInTransformPattern() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			sb.append("gh");
+		}
+		final String longName = sb.toString();
+		final Pattern pattern = Pattern.compile("(g|h)*");
+		// même description agrégée avec ou sans normalisation : StackOverflowError interceptée
+		final Counter counter = new Counter("test", null);
+		counter.setRequestTransformPattern(pattern);
+		counter.addRequest(longName, 10, 10, false, 1000);
+		assertEquals("without normalizer", longName, counter.getRequests().get(0).getName());
+		final RequestNameNormalizer normalizer = new RequestNameNormalizer(pattern);
+		assertEquals("with normalizer", longName, normalizer.normalize(longName));
+		final Counter normalizedCounter = new Counter("test", null);
+		normalizedCounter.setRequestTransformPattern(pattern);
+		normalizedCounter.setRequestNameNormalizer(normalizer);
+		normalizedCounter.addRequest(longName, 10, 10, false, 1000);
+		assertEquals("normalized counter", longName,
+				normalizedCounter.getRequests().get(0).getName());
+	}
+}
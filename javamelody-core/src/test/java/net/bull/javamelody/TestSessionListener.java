@@ -25,11 +25,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.lang.reflect.Field;
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextAttributeEvent;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionEvent;
@@ -237,6 +239,32 @@ public class TestSessionListener {
 		}
 	}
 
+	/** Test. */
+	@Test
+	public void testServletContextAttributeChanged() {
+		final ServletContext servletContext = createNiceMock(ServletContext.class);
+		replay(servletContext);
+		System.setProperty(Parameters.PARAMETER_SYSTEM_PREFIX + Parameter.DISABLED.getCode(),
+				"true");
+		try {
+			assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+			sessionListener.attributeAdded(
+					new ServletContextAttributeEvent(servletContext, "other", "true"));
+			assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+			sessionListener.attributeAdded(new ServletContextAttributeEvent(servletContext,
+					Parameters.PARAMETER_SYSTEM_PREFIX + "log", "true"));
+			assertTrue("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+		} finally {
+			Utils.setProperty(Parameter.DISABLED, null);
+		}
+		sessionListener.attributeReplaced(new ServletContextAttributeEvent(servletContext,
+				Parameters.PARAMETER_SYSTEM_PREFIX + "log", "false"));
+		sessionListener.attributeRemoved(new ServletContextAttributeEvent(servletContext,
+				Parameters.PARAMETER_SYSTEM_PREFIX + "log", "false"));
+		assertFalse("isMonitoringDisabled", Parameters.isMonitoringDisabled());
+		verify(servletContext);
+	}
+
 	/** Test. */
 	@Test
 	public void testWithInstanceDisabled() {
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe {@link SlowSqlExecution}.
+ * @author Emeric Vernat
+ */
+public class TestSlowSqlExecution {
+	/** Test. */
+	@Test
+	public void testMerge() {
+		assertNull("merge", SlowSqlExecution.merge(null, null));
+		final List<SlowSqlExecution> executions = new ArrayList<SlowSqlExecution>();
+		for (int i = 0; i < SlowSqlExecution.MAX_SLOWEST_EXECUTIONS + 3; i++) {
+			executions.add(new SlowSqlExecution(i * 10, "1=" + i));
+		}
+		List<SlowSqlExecution> result = SlowSqlExecution.merge(null, executions);
+		assertEquals("size", SlowSqlExecution.MAX_SLOWEST_EXECUTIONS, result.size());
+		assertEquals("slowest", (SlowSqlExecution.MAX_SLOWEST_EXECUTIONS + 2) * 10,
+				result.get(0).getDuration());
+		// les mêmes exécutions ne sont pas dupliquées (deltas de la collecte)
+		result = SlowSqlExecution.merge(result, executions);
+		assertEquals("no duplicates", SlowSqlExecution.MAX_SLOWEST_EXECUTIONS,
+				new HashSet<SlowSqlExecution>(result).size());
+		assertEquals("size", SlowSqlExecution.MAX_SLOWEST_EXECUTIONS, result.size());
+		assertFalse("isAmongSlowest", SlowSqlExecution.isAmongSlowest(result, 10));
+		assertTrue("isAmongSlowest", SlowSqlExecution.isAmongSlowest(result, 1000));
+		assertTrue("isAmongSlowest", SlowSqlExecution.isAmongSlowest(null, 0));
+	}
+
+	/** Test. */
+	@Test
+	public void testCounterRequest() {
+		final CounterRequest request = new CounterRequest("select ?", Counter.SQL_COUNTER_NAME);
+		request.addHit(100, 0, false, null, 0);
+		request.addSlowestExecution(new SlowSqlExecution(100, "1=1"));
+		final CounterRequest other = new CounterRequest("select ?", Counter.SQL_COUNTER_NAME);
+		other.addHits(request);
+		other.addHits(request.clone());
+		assertEquals("addHits", Collections.singletonList(request.getSlowestExecutions().get(0)),
+				other.getSlowestExecutions());
+		assertTrue("toString", other.getSlowestExecutions().get(0).toString().contains("1=1"));
+	}
+}
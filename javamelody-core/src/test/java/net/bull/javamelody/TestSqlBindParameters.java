@@ -0,0 +1,234 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe {@link SqlBindParameters}.
+ * @author Emeric Vernat
+ */
+public class TestSqlBindParameters {
+	private static final Pattern MASKED_COLUMNS = Pattern
+			.compile(SqlBindParameters.DEFAULT_MASKED_COLUMNS);
+
+	private JdbcWrapper jdbcWrapper;
+
+	/** Test. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		jdbcWrapper = JdbcWrapper.SINGLETON;
+		jdbcWrapper.getSqlCounter().setDisplayed(true);
+		jdbcWrapper.getSqlCounter().clear();
+	}
+
+	/** Test. */
+	@Test
+	public void testFormat() {
+		final SqlBindParameters bindParameters = new SqlBindParameters(0);
+		bindParameters.set(1, 12);
+		bindParameters.set(2, "abc");
+		bindParameters.set(3, null);
+		bindParameters.set(4, new byte[3]);
+		bindParameters.set(5, new ByteArrayInputStream(new byte[0]));
+		assertEquals("format", "1=12, 2='abc', 3=null, 4=byte[3], 5=(ByteArrayInputStream)",
+				bindParameters.format("select ?, ?, ?, ?, ?", null, false));
+		bindParameters.clear();
+		assertEquals("clear", "", bindParameters.format("select 1", null, false));
+
+		final char[] chars = new char[SqlBindParameters.MAX_VALUE_LENGTH + 10];
+		Arrays.fill(chars, 'a');
+		bindParameters.set(2, new String(chars));
+		final String formatted = bindParameters.format("select ?, ?", null, false);
+		assertTrue("truncated",
+				formatted.startsWith("1=null, 2='aaa") && formatted.endsWith("...'"));
+		assertEquals("truncated", "1=null, 2=''...".length() + SqlBindParameters.MAX_VALUE_LENGTH,
+				formatted.length());
+
+		bindParameters.clear();
+		bindParameters.set(SqlBindParameters.MAX_PARAMETERS + 1, 1);
+		assertEquals("getParametersCount", SqlBindParameters.MAX_PARAMETERS + 1,
+				bindParameters.getParametersCount());
+		assertTrue("bounded", bindParameters.format("select 1", null, false).endsWith(", ..."));
+		bindParameters.set(0, 1);
+	}
+
+	/** Test. */
+	@Test
+	public void testMask() {
+		final SqlBindParameters bindParameters = new SqlBindParameters(0);
+		bindParameters.set(1, "john");
+		bindParameters.set(2, "secret");
+		assertEquals("where", "1='john', 2=***", bindParameters.format(
+				"select * from users u where u.login = ? and u.PASSWORD=?", MASKED_COLUMNS, true));
+		assertEquals("update", "1='john', 2=***", bindParameters.format(
+				"update users set name = ?, pwd_hash = ? where id = 1", MASKED_COLUMNS, true));
+		assertEquals("insert", "1='john', 2=***", bindParameters.format(
+				"insert into users (name, \"password\") values (?, ?)", MASKED_COLUMNS, true));
+		assertEquals("like", "1='john', 2=***", bindParameters.format(
+				"select * from users where name like ? or token like ?", MASKED_COLUMNS, true));
+		assertEquals("no mask", "1='john', 2='secret'", bindParameters
+				.format("select * from users where password = ? and 1 = ?", null, false));
+	}
+
+	/** Test. */
+	@Test
+	public void testMaskUnknownColumns() {
+		final SqlBindParameters bindParameters = new SqlBindParameters(0);
+		bindParameters.set(1, "john");
+		bindParameters.set(2, "secret");
+		assertEquals("call", "1=***, 2=***",
+				bindParameters.format("{call set_password(?, ?)}", MASKED_COLUMNS, true));
+		assertEquals("function", "1='john', 2=***", bindParameters.format(
+				"select * from users where login = ? and password = crypt(?)", MASKED_COLUMNS, true));
+		assertEquals("in", "1=***, 2=***",
+				bindParameters.format("select * from users where id in (?, ?)", MASKED_COLUMNS, true));
+		assertEquals("unknown not masked", "1='john', 2='secret'", bindParameters
+				.format("select * from users where id in (?, ?)", MASKED_COLUMNS, false));
+	}
+
+	/** Test. */
+	@Test
+	public void testInvalidParameters() {
+		Utils.setProperty(Parameter.SLOW_SQL_PARAMETERS_THRESHOLD, "abc");
+		Utils.setProperty(Parameter.SLOW_SQL_PARAMETERS_MASKED_COLUMNS, "(password");
+		assertNull("invalid threshold", jdbcWrapper.createBindParameters());
+		assertEquals("invalid masked columns", SqlBindParameters.DEFAULT_MASKED_COLUMNS,
+				Parameters.getSlowSqlParametersMaskedColumns().pattern());
+		Utils.setProperty(Parameter.SLOW_SQL_PARAMETERS_THRESHOLD, " 10 ");
+		assertEquals("threshold", 10, jdbcWrapper.createBindParameters().getThreshold());
+		assertTrue("mask unknown columns", Parameters.isSlowSqlParametersMaskUnknownColumns());
+	}
+
+	/** Test. */
+	@Test
+	public void testGetParameterColumns() {
+		assertEquals("columns", Arrays.asList("id", null, "name"), SqlBindParameters
+				.getParameterColumns("select * from t where t.id = ? and '?' = ? or name <> ?"));
+		final List<String> insertColumns = SqlBindParameters.getParameterColumns(
+				"insert into t (a, b, c) values (?, coalesce(?, 'x'), ?)");
+		assertEquals("insert columns", Arrays.asList("a", null, "c"), insertColumns);
+		assertNull("unknown column",
+				SqlBindParameters.getParameterColumns("select ? from dual").get(0));
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testSlowestExecutions() throws SQLException {
+		final String query = "select x from system_range(1, 10) where x = ? or x = ?";
+		Utils.setProperty(Parameter.SLOW_SQL_PARAMETERS_THRESHOLD, "0");
+		// nécessite la dépendance vers la base de données H2
+		final Connection connection = jdbcWrapper
+				.createConnectionProxy(DriverManager.getConnection(TestJdbcWrapper.H2_DATABASE_URL));
+		try {
+			final PreparedStatement statement = connection.prepareStatement(query);
+			try {
+				for (int i = 1; i <= SlowSqlExecution.MAX_SLOWEST_EXECUTIONS + 2; i++) {
+					statement.setInt(1, i);
+					statement.setNull(2, Types.INTEGER);
+					final ResultSet resultSet = statement.executeQuery();
+					resultSet.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		final CounterRequest request = jdbcWrapper.getSqlCounter()
+				.getCounterRequestByName(query);
+		final List<SlowSqlExecution> slowestExecutions = request.getSlowestExecutions();
+		assertEquals("slowestExecutions", SlowSqlExecution.MAX_SLOWEST_EXECUTIONS,
+				slowestExecutions.size());
+		assertTrue("parameters",
+				slowestExecutions.get(0).getParameters().matches("1=\\d, 2=null"));
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testSlowestExecutionsWithProxy() throws SQLException {
+		final String query = "update users set password = ? where id = ?";
+		final PreparedStatement vendorStatement = createPreparedStatement();
+		final PreparedStatement statement = (PreparedStatement) jdbcWrapper
+				.createStatementProxy(query, vendorStatement);
+		assertTrue("proxy", Proxy.isProxyClass(statement.getClass()));
+		statement.setString(1, "secret");
+		statement.setLong(2, 1L);
+		statement.executeUpdate();
+		// non capturé sans le paramètre slow-sql-parameters-threshold
+		assertTrue("disabled", jdbcWrapper.getSqlCounter().getCounterRequestByName(query)
+				.getSlowestExecutions().isEmpty());
+
+		Utils.setProperty(Parameter.SLOW_SQL_PARAMETERS_THRESHOLD, "0");
+		final PreparedStatement statement2 = (PreparedStatement) jdbcWrapper
+				.createStatementProxy(query, vendorStatement);
+		statement2.setString(1, "secret");
+		statement2.setLong(2, 1L);
+		statement2.setFetchSize(10);
+		statement2.executeUpdate();
+		statement2.clearParameters();
+		statement2.executeUpdate();
+		final List<SlowSqlExecution> slowestExecutions = jdbcWrapper.getSqlCounter()
+				.getCounterRequestByName(query).getSlowestExecutions();
+		assertEquals("slowestExecutions", 1, slowestExecutions.size());
+		assertEquals("parameters", "1=***, 2=1", slowestExecutions.get(0).getParameters());
+	}
+
+	private static PreparedStatement createPreparedStatement() {
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final Class<?> returnType = method.getReturnType();
+				if (returnType == Boolean.TYPE) {
+					return Boolean.FALSE;
+				} else if (returnType == Integer.TYPE) {
+					return 0;
+				} else if (returnType == Long.TYPE) {
+					return 0L;
+				}
+				return null;
+			}
+		};
+		return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class, Closeable.class }, invocationHandler);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe SqlFingerprint.
+ * @author Emeric Vernat
+ */
+public class TestSqlFingerprint {
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	private static void assertFingerprint(String expected, String sql) {
+		assertEquals(sql, expected, SqlFingerprint.fingerprint(sql));
+	}
+
+	/** Test. */
+	@Test
+	public void testFingerprint() {
+		final String bound = "select * from t1 where id = ? and name = :name";
+		assertSame("unchanged", bound, SqlFingerprint.fingerprint(bound));
+		assertFingerprint("select * from t1 where a = ? and b = ? and c = -?",
+				"select * from t1 where a = 12 and b = 'it''s' and c = -1.5e-3");
+		assertFingerprint("select a from t where b in (?) and c not in (?)",
+				"select a from t where b in (1, 2,3 , 4) and c not in('x', 'y')");
+		assertFingerprint("select a from t where b in (select c from u where d = ?)",
+				"select a from t where b in (select c from u where d = 5)");
+		assertFingerprint("select \"Col 1\", `col2` from t where x = ? and y = ?",
+				"select \"Col 1\", `col2` from t where x = N'abc' and y = 0x1F");
+		assertFingerprint("select a.b1, .c from t a where a.d = ?",
+				"select  a.b1,\r\n .c\tfrom t a where a.d = .5 ");
+		assertFingerprint("select /* hint 1 */ a -- comment 2\nfrom t where b = ?",
+				"select /* hint 1 */ a -- comment 2\n  from t where b = 3");
+		assertFingerprint("select 'abc", "select 'abc");
+		assertFingerprint("", "");
+	}
+
+	/** Test. */
+	@Test
+	public void testSqlCounterFingerprint() {
+		final Counter counter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		counter.setRequestNameNormalizer(new RequestNameNormalizer(null, true));
+		final String sample = "select * from t where id = 1";
+		counter.addRequest(sample, 10, -1, false, -1);
+		counter.addRequest("select * from t where id = 2", 10, -1, false, -1);
+		counter.addRequest("select * from t where id in (3, 4)", 10, -1, false, -1);
+		assertEquals("aggregated requests", 2, counter.getRequestsCount());
+		final CounterRequest request = counter.getCounterRequestByName(sample);
+		assertEquals("fingerprint", "select * from t where id = ?", request.getName());
+		assertEquals("hits", 2, request.getHits());
+		assertEquals("sample", sample, request.getSampleName());
+
+		final Counter dayCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		dayCounter.addRequestsAndErrors(counter);
+		assertEquals("sample after addHits", sample,
+				dayCounter.getCounterRequestByName(request.getName()).getSampleName());
+
+		final Counter notNormalizedCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		notNormalizedCounter.addRequest(sample, 10, -1, false, -1);
+		assertNull("no sample", notNormalizedCounter.getCounterRequestByName(sample).getSampleName());
+	}
+}
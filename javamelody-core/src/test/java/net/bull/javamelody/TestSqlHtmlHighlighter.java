@@ -0,0 +1,115 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe SqlHtmlHighlighter.
+ * @author Emeric Vernat
+ */
+public class TestSqlHtmlHighlighter {
+	// ancienne implémentation par expression régulière, pour comparaison
+	private static final Pattern SQL_KEYWORDS_PATTERN = Pattern.compile(
+			"\\b(select|from|where|order by|group by|update|delete|insert into|values)\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private static String highlightWithPattern(String sql) {
+		return SQL_KEYWORDS_PATTERN.matcher(HtmlAbstractReport.htmlEncodeButNotSpace(sql))
+				.replaceAll("<span class='sqlKeyword'>$1</span>");
+	}
+
+	/** Test. */
+	@Test
+	public void testHighlight() {
+		assertEquals("highlight",
+				"<span class='sqlKeyword'>select</span> * <span class='sqlKeyword'>from</span> test",
+				SqlHtmlHighlighter.highlight("select * from test"));
+		final String[] sqls = { "", "select", "SELECT a FROM b WHERE c &lt; 1",
+				"select * from test where a < 1 and b > 2 & c",
+				"insert into test values (?, ?)", "insert  into test values(?)",
+				"update test set selected = 1 where fromage = 'from'",
+				"delete from test\nwhere id = ?", "select a from b order by c group by d",
+				"select a from b order  by c", "x_select select_x 1select select1 éselect",
+				"select\tfrom\rwhere", "(select max(a) from b)", "Select a From b Group By c",
+				"ORDERBY orders by order by", "values", "&select;<from>", "fromwhere",
+				"selectſ ſelect", };
+		for (final String sql : sqls) {
+			assertEquals(sql, highlightWithPattern(sql), SqlHtmlHighlighter.highlight(sql));
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testGetHighlightedHtml() {
+		final String requestId = "sql" + getClass().getName();
+		final String sql = "select * from test";
+		final String html = SqlHtmlHighlighter.getHighlightedHtml(requestId, sql);
+		assertEquals("getHighlightedHtml", SqlHtmlHighlighter.highlight(sql), html);
+		assertSame("cached", html, SqlHtmlHighlighter.getHighlightedHtml(requestId, sql));
+		// requête tronquée pour l'affichage, avec le même id
+		assertEquals("truncated", SqlHtmlHighlighter.highlight("select"),
+				SqlHtmlHighlighter.getHighlightedHtml(requestId, sql.substring(0, 6)));
+		final String html2 = SqlHtmlHighlighter.getHighlightedHtml(requestId, sql);
+		assertEquals("not truncated", html, html2);
+		SqlHtmlHighlighter.removeFromCache(requestId);
+		assertNotSame("removeFromCache", html2,
+				SqlHtmlHighlighter.getHighlightedHtml(requestId, sql));
+		assertEquals("htmlEncodeRequestName", html,
+				HtmlCounterReport.htmlEncodeRequestName(requestId, sql));
+		assertEquals("htmlEncodeRequestName", "select * from test",
+				HtmlCounterReport.htmlEncodeRequestName("http" + getClass().getName(), sql));
+	}
+
+	/** Test. */
+	@Test
+	public void testMaxCachedRequests() {
+		for (int i = 0; i < SqlHtmlHighlighter.MAX_CACHED_REQUESTS + 10; i++) {
+			SqlHtmlHighlighter.getHighlightedHtml("sql" + i, "select " + i);
+		}
+		if (SqlHtmlHighlighter.getCachedRequestsCount() > SqlHtmlHighlighter.MAX_CACHED_REQUESTS) {
+			assertEquals("getCachedRequestsCount", SqlHtmlHighlighter.MAX_CACHED_REQUESTS,
+					SqlHtmlHighlighter.getCachedRequestsCount());
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testCacheEviction() {
+		final String requestId = "sql" + getClass().getName() + "-eviction";
+		final String sql = "select * from test";
+		final String html = SqlHtmlHighlighter.getHighlightedHtml(requestId, sql);
+		for (int i = 0; i < 3 * SqlHtmlHighlighter.MAX_CACHED_REQUESTS; i++) {
+			// requête affichée régulièrement, donc conservée dans le cache
+			assertSame("cached", html, SqlHtmlHighlighter.getHighlightedHtml(requestId, sql));
+			SqlHtmlHighlighter.getHighlightedHtml("sql" + i, "select " + i);
+		}
+		// le cache n'est pas vidé entièrement lorsqu'il est plein
+		assertTrue("not cleared", SqlHtmlHighlighter.getCachedRequestsCount() >= 3
+				* SqlHtmlHighlighter.MAX_CACHED_REQUESTS / 4);
+		assertTrue("bounded cache", SqlHtmlHighlighter
+				.getCachedRequestsCount() <= SqlHtmlHighlighter.MAX_CACHED_REQUESTS);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.StackTraceStore.SharedStackTrace;
+
+/**
+ * Test unitaire de la classe StackTraceStore.
+ * @author Emeric Vernat
+ */
+public class TestStackTraceStore {
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		StackTraceStore.clear();
+	}
+
+	/** Finalisation. */
+	@After
+	public void tearDown() {
+		StackTraceStore.clear();
+	}
+
+	private static Throwable createException(String message) {
+		// même ligne pour chaque appel, donc même forme quel que soit le message
+		return new IllegalStateException(message, new IOException("cause"));
+	}
+
+	private static Throwable[] createExceptions(String... messages) {
+		// même ligne d'appel de createException pour chaque exception
+		final Throwable[] result = new Throwable[messages.length];
+		for (int i = 0; i < messages.length; i++) {
+			result[i] = createException(messages[i]);
+		}
+		return result;
+	}
+
+	/** Test. */
+	@Test
+	public void testGetSharedStackTrace() {
+		final Throwable[] exceptions = createExceptions("test 1", "test 2");
+		final SharedStackTrace sharedStackTrace = StackTraceStore
+				.getSharedStackTrace(exceptions[0]);
+		assertFalse("not rendered", sharedStackTrace.isRendered());
+		assertSame("same shape", sharedStackTrace,
+				StackTraceStore.getSharedStackTrace(exceptions[1]));
+		assertEquals("occurrences", 2, sharedStackTrace.getOccurrences());
+		assertNotSame("other shape", sharedStackTrace,
+				StackTraceStore.getSharedStackTrace(new IllegalStateException("test 1")));
+		assertEquals("count", 2, StackTraceStore.getSharedStackTracesCount());
+		final Throwable[] otherExceptions = createExceptions("a", "b");
+		assertEquals("same hash", StackTraceStore.hash(otherExceptions[0]),
+				StackTraceStore.hash(otherExceptions[1]));
+
+		final String stackTrace = sharedStackTrace
+				.getStackTrace(StackTraceStore.getMessages(exceptions[1]));
+		assertTrue("rendered", sharedStackTrace.isRendered());
+		// chaque erreur garde ses propres messages, seuls les éléments sont partagés
+		assertTrue("own message",
+				stackTrace.startsWith(IllegalStateException.class.getName() + ": test 2"));
+		assertFalse("not first message", stackTrace.contains("test 1"));
+		assertTrue("cause", stackTrace.contains("Caused by: java.io.IOException: cause"));
+		assertEquals("printStackTrace", printStackTrace(exceptions[1]), stackTrace);
+		assertTrue("first message", sharedStackTrace
+				.getStackTrace(StackTraceStore.getMessages(exceptions[0])).startsWith(
+						IllegalStateException.class.getName() + ": test 1"));
+	}
+
+	private static String printStackTrace(Throwable throwable) {
+		final StringWriter stringWriter = new StringWriter();
+		throwable.printStackTrace(new PrintWriter(stringWriter));
+		return stringWriter.toString();
+	}
+
+	/** Test. */
+	@Test
+	public void testHashOfTopFrames() {
+		final StackTraceElement[] elements = new StackTraceElement[100];
+		for (int i = 0; i < elements.length; i++) {
+			elements[i] = new StackTraceElement("Class" + i, "method", "Class" + i + ".java", i);
+		}
+		final Throwable throwable = new IllegalStateException();
+		throwable.setStackTrace(elements);
+		final long hash = StackTraceStore.hash(throwable);
+
+		final StackTraceElement[] deepElements = elements.clone();
+		deepElements[90] = new StackTraceElement("Other", "method", "Other.java", 1);
+		final Throwable deepThrowable = new IllegalStateException();
+		deepThrowable.setStackTrace(deepElements);
+		// seuls les premiers éléments de la stack-trace sont pris en compte
+		assertEquals("same top frames", hash, StackTraceStore.hash(deepThrowable));
+
+		final StackTraceElement[] topElements = elements.clone();
+		topElements[0] = deepElements[90];
+		final Throwable topThrowable = new IllegalStateException();
+		topThrowable.setStackTrace(topElements);
+		assertNotEquals("other top frame", hash, StackTraceStore.hash(topThrowable));
+
+		final Throwable shorterThrowable = new IllegalStateException();
+		shorterThrowable.setStackTrace(Arrays.copyOf(elements, 99));
+		assertNotEquals("other depth", hash, StackTraceStore.hash(shorterThrowable));
+	}
+
+	/** Test. */
+	@Test
+	public void testMaxSharedStackTraces() {
+		for (int i = 0; i < StackTraceStore.MAX_SHARED_STACK_TRACES + 10; i++) {
+			// forme différente à chaque fois par la profondeur de la pile
+			final Throwable throwable = createNestedException(i % 100, i / 100);
+			StackTraceStore.getSharedStackTrace(throwable);
+		}
+		assertTrue("bounded", StackTraceStore
+				.getSharedStackTracesCount() <= StackTraceStore.MAX_SHARED_STACK_TRACES);
+	}
+
+	private static Throwable createNestedException(int depth, int causes) {
+		if (depth > 0) {
+			return createNestedException(depth - 1, causes);
+		}
+		Throwable result = new IllegalStateException();
+		for (int i = 0; i < causes; i++) {
+			result = new IllegalArgumentException(result);
+		}
+		return result;
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e
+	 * @throws ReflectiveOperationException e */
+	@Test
+	public void testCounterError()
+			throws IOException, ClassNotFoundException, ReflectiveOperationException {
+		final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+		for (int i = 0; i < 3; i++) {
+			final Throwable throwable = createException("test " + i);
+			final CounterError counterError = new CounterError(throwable.toString(), null);
+			counterError.setSharedStackTrace(throwable);
+			errorCounter.addRequestForSystemError(counterError, 10, 5);
+		}
+		final CounterError counterError = errorCounter.getErrors().get(2);
+		assertFalse("not rendered", counterError.getSharedStackTrace().isRendered());
+		assertEquals("occurrences", 3, counterError.getStackTraceOccurrences());
+		final CounterRequest request = errorCounter
+				.getCounterRequestByName(counterError.getMessage());
+		assertEquals("hits", 1, request.getHits());
+		assertEquals("request stack trace", counterError.getStackTrace(), request.getStackTrace());
+		for (int i = 0; i < 3; i++) {
+			final CounterError error = errorCounter.getErrors().get(i);
+			assertTrue("own message", error.getStackTrace().startsWith(error.getMessage()));
+		}
+		assertTrue("request own message", request.getStackTrace()
+				.startsWith(IllegalStateException.class.getName() + ": test 2"));
+
+		final StringWriter writer = new StringWriter();
+		new HtmlCounterErrorReport(errorCounter, writer).toHtml();
+		assertTrue("occurrences displayed",
+				writer.toString().contains("3 occurrences of this stack trace"));
+
+		// la stack-trace est calculée à la sérialisation
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(output);
+		out.writeObject(errorCounter);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(output.toByteArray()));
+		final Counter readCounter = (Counter) in.readObject();
+		in.close();
+		final CounterError readError = readCounter.getErrors().get(2);
+		assertEquals("serialized stack trace", counterError.getStackTrace(),
+				readError.getStackTrace());
+		assertEquals("serialized occurrences", -1, readError.getStackTraceOccurrences());
+		assertEquals("serialized request stack trace", counterError.getStackTrace(),
+				readCounter.getCounterRequestByName(counterError.getMessage()).getStackTrace());
+		// l'erreur n'est pas modifiée par sa sérialisation
+		final Field stackTraceField = CounterError.class.getDeclaredField("stackTrace");
+		stackTraceField.setAccessible(true);
+		assertNull("not modified", stackTraceField.get(counterError));
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2008-2016 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe {@link SuspectedNPlusOne}.
+ * @author Emeric Vernat
+ */
+public class TestSuspectedNPlusOne {
+	private static final String SQL_REQUEST = "select * from item where order_id = ?";
+
+	/** Test. */
+	@Test
+	public void testNPlusOneDetection() {
+		final Counter sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		final Counter httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, null, sqlCounter);
+		httpCounter.setNPlusOneThreshold(3);
+		executeHttpRequest(httpCounter, sqlCounter, 3);
+		final CounterRequest httpRequest = httpCounter.getCounterRequestByName("http request");
+		assertTrue("under threshold", httpRequest.getSuspectedNPlusOnes().isEmpty());
+
+		executeHttpRequest(httpCounter, sqlCounter, 5);
+		executeHttpRequest(httpCounter, sqlCounter, 11);
+		final List<SuspectedNPlusOne> suspects = httpCounter
+				.getCounterRequestByName("http request").getSuspectedNPlusOnes();
+		assertEquals("suspects", 1, suspects.size());
+		final SuspectedNPlusOne suspect = suspects.get(0);
+		assertEquals("getChildRequestName", SQL_REQUEST, suspect.getChildRequestName());
+		assertEquals("getChildRequestId",
+				sqlCounter.getCounterRequestByName(SQL_REQUEST).getId(),
+				suspect.getChildRequestId());
+		assertEquals("getHits", 2, suspect.getHits());
+		assertEquals("getChildExecutionsPerHit", 8, suspect.getChildExecutionsPerHit());
+		assertEquals("getMaximumChildExecutions", 11, suspect.getMaximumChildExecutions());
+		assertTrue("toString", suspect.toString().contains(SQL_REQUEST));
+
+		// désactivé par défaut
+		final Counter sqlCounter2 = new Counter(Counter.SQL_COUNTER_NAME, null);
+		final Counter httpCounter2 = new Counter(Counter.HTTP_COUNTER_NAME, null, sqlCounter2);
+		executeHttpRequest(httpCounter2, sqlCounter2, 100);
+		assertTrue("disabled", httpCounter2.getCounterRequestByName("http request")
+				.getSuspectedNPlusOnes().isEmpty());
+	}
+
+	/** Test. */
+	@Test
+	public void testAddAndRemoveHits() {
+		final Counter sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		final Counter httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, null, sqlCounter);
+		httpCounter.setNPlusOneThreshold(1);
+		executeHttpRequest(httpCounter, sqlCounter, 4);
+		final CounterRequest request = httpCounter.getCounterRequestByName("http request");
+		final CounterRequest clone = request.clone();
+		assertEquals("clone", 1, clone.getSuspectedNPlusOnes().size());
+		final CounterRequest sum = new CounterRequest("http request", httpCounter.getName());
+		sum.addHits(request);
+		sum.addHits(clone);
+		assertEquals("addHits", 2, sum.getSuspectedNPlusOnes().get(0).getHits());
+		assertEquals("addHits", 4, sum.getSuspectedNPlusOnes().get(0).getChildExecutionsPerHit());
+		sum.removeHits(request);
+		assertEquals("removeHits", 1, sum.getSuspectedNPlusOnes().get(0).getHits());
+		sum.removeHits(clone);
+		assertTrue("removeHits", sum.getSuspectedNPlusOnes().isEmpty());
+	}
+
+	/** Test. */
+	@Test
+	public void testMaxSuspectedNPlusOnes() {
+		final Counter sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		final Counter httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, null, sqlCounter);
+		httpCounter.setNPlusOneThreshold(1);
+		httpCounter.bindContext("http request", "http request", null, -1);
+		for (int i = 0; i < CounterRequest.MAX_SUSPECTED_N_PLUS_ONES + 5; i++) {
+			sqlCounter.addRequest("select " + i, 0, -1, false, -1);
+			sqlCounter.addRequest("select " + i, 0, -1, false, -1);
+		}
+		httpCounter.addRequest("http request", 10, 2, false, 100);
+		assertEquals("bounded", CounterRequest.MAX_SUSPECTED_N_PLUS_ONES, httpCounter
+				.getCounterRequestByName("http request").getSuspectedNPlusOnes().size());
+	}
+
+	private static void executeHttpRequest(Counter httpCounter, Counter sqlCounter,
+			int sqlExecutions) {
+		httpCounter.bindContext("http request", "http request", null, -1);
+		for (int i = 0; i < sqlExecutions; i++) {
+			sqlCounter.bindContext(SQL_REQUEST, SQL_REQUEST, null, -1);
+			sqlCounter.addRequest(SQL_REQUEST, 1, -1, false, -1);
+		}
+		sqlCounter.addRequest("select 1", 1, -1, false, -1);
+		httpCounter.addRequest("http request", 10, 2, false, 100);
+	}
+}
@@ -51,6 +51,8 @@ final class Utils {
 		} else {
 			System.setProperty(string, value);
 		}
+		// comme à chaque collecte, pour l'instantané des paramètres
+		Parameters.parametersChanged();
 	}
 
 	static void initialize() {
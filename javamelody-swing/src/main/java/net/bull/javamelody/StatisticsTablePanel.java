@@ -155,6 +155,12 @@ class StatisticsTablePanel extends MelodyPanel {
 			table.addColumn("mean", getString("Temps_moyen"));
 			table.addColumn("maximum", getString("Temps_max"));
 			table.addColumn("standardDeviation", getString("Ecart_type"));
+			if (counterRequestAggregation.isPercentilesDisplayed()) {
+				table.addColumn("p50", "p50");
+				table.addColumn("p90", "p90");
+				table.addColumn("p99", "p99");
+				table.addColumn("p999", "p99.9");
+			}
 			table.setColumnCellRenderer("durationsSum", new DurationPercentageTableCellRenderer());
 			table.setColumnCellRenderer("mean", meanCellRenderer);
 		} else {